@@ -0,0 +1,70 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.db.H2Access;
+import com.borunovv.orm.SimpleORM;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Общая подготовка БД для бенчмарков (H2 в памяти).
+ *
+ * @author borunovv
+ */
+final class BenchDB {
+
+    private BenchDB() {
+    }
+
+    static DBAccess open(String name, int poolSize) throws SQLException, ClassNotFoundException {
+        return new H2Access("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1", "sa", "", poolSize);
+    }
+
+    static void createNarrow(DBAccess dbAccess) throws SQLException, InterruptedException {
+        dbAccess.executeUpdate("DROP TABLE IF EXISTS narrow");
+        dbAccess.executeUpdate("CREATE TABLE narrow (id bigint AUTO_INCREMENT PRIMARY KEY, value bigint NOT NULL)");
+    }
+
+    static void createWide(DBAccess dbAccess) throws SQLException, InterruptedException {
+        dbAccess.executeUpdate("DROP TABLE IF EXISTS wide");
+        dbAccess.executeUpdate("CREATE TABLE wide (id bigint AUTO_INCREMENT PRIMARY KEY, " +
+                "l1 bigint, l2 bigint, i1 int, i2 int, d1 double, d2 double, " +
+                "s1 varchar(64), s2 varchar(64), n1 bigint)");
+    }
+
+    static void fillNarrow(DBAccess dbAccess, int rows) throws SQLException, InterruptedException {
+        createNarrow(dbAccess);
+        SimpleORM.insertAll(dbAccess, NarrowEntity.class, narrow(rows));
+    }
+
+    static void fillWide(DBAccess dbAccess, int rows) throws SQLException, InterruptedException {
+        createWide(dbAccess);
+        List<WideEntity> list = new ArrayList<WideEntity>(rows);
+        for (int i = 0; i < rows; ++i) {
+            WideEntity entity = new WideEntity();
+            entity.setL1(i);
+            entity.setL2(i * 31L);
+            entity.setI1(i);
+            entity.setI2(-i);
+            entity.setD1(i * 0.5);
+            entity.setD2(i * 0.25);
+            entity.setS1("name-" + i);
+            entity.setS2("description-" + i);
+            entity.setN1(i % 2 == 0 ? null : (long) i);
+            list.add(entity);
+        }
+        SimpleORM.insertAll(dbAccess, WideEntity.class, list);
+    }
+
+    static List<NarrowEntity> narrow(int rows) {
+        List<NarrowEntity> list = new ArrayList<NarrowEntity>(rows);
+        for (int i = 0; i < rows; ++i) {
+            NarrowEntity entity = new NarrowEntity();
+            entity.setValue(i);
+            list.add(entity);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,61 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.orm.ColumnarResult;
+import com.borunovv.orm.SimpleORM;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Агрегат по всей таблице: список сущностей (SimpleORM.findAll()) против
+ * столбцов в массивах примитивов (SimpleORM.findAllColumnar(), в куче и вне ее).
+ * Расход памяти смотреть с профилировщиком: -prof gc (gc.alloc.rate.norm).
+ *
+ * @author borunovv
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColumnarBenchmark {
+
+    private static final int ROWS = 200000;
+
+    private DBAccess dbAccess;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbAccess = BenchDB.open("columnar", 1);
+        BenchDB.fillNarrow(dbAccess, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dbAccess.close();
+    }
+
+    @Benchmark
+    public long entities() throws Exception {
+        List<NarrowEntity> list = SimpleORM.findAll(dbAccess, NarrowEntity.class);
+        long sum = 0;
+        for (NarrowEntity entity : list) {
+            sum += entity.getValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long columnar() throws Exception {
+        return SimpleORM.findAllColumnar(dbAccess, NarrowEntity.class).sumLong("value");
+    }
+
+    @Benchmark
+    public long columnarOffHeap() throws Exception {
+        ColumnarResult result = SimpleORM.findAllColumnar(dbAccess, NarrowEntity.class, true);
+        return result.sumLong("value");
+    }
+}
@@ -0,0 +1,56 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.orm.MappingMode;
+import com.borunovv.orm.SimpleORM;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пропускная способность SimpleORM.findAll() (выборка + маппинг)
+ * в зависимости от числа строк, ширины сущности и способа маппинга.
+ *
+ * @author borunovv
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MappingBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int rows;
+
+    @Param({"PROCESSED", "GENERATED", "REFLECTIVE"})
+    public MappingMode mode;
+
+    private DBAccess dbAccess;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbAccess = BenchDB.open("mapping", 1);
+        BenchDB.fillNarrow(dbAccess, rows);
+        BenchDB.fillWide(dbAccess, rows);
+        SimpleORM.setMappingMode(mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SimpleORM.setMappingMode(MappingMode.PROCESSED);
+        dbAccess.close();
+    }
+
+    @Benchmark
+    public List<NarrowEntity> findAllNarrow() throws Exception {
+        return SimpleORM.findAll(dbAccess, NarrowEntity.class);
+    }
+
+    @Benchmark
+    public List<WideEntity> findAllWide() throws Exception {
+        return SimpleORM.findAll(dbAccess, WideEntity.class);
+    }
+}
@@ -0,0 +1,37 @@
+package com.borunovv.bench;
+
+import com.borunovv.orm.DBColumn;
+import com.borunovv.orm.DBEntity;
+import com.borunovv.orm.DBId;
+
+/**
+ * Узкая сущность: 2 столбца.
+ *
+ * @author borunovv
+ */
+@DBEntity(table = "narrow")
+public class NarrowEntity {
+
+    @DBId
+    @DBColumn("id")
+    private long id;
+
+    @DBColumn("value")
+    private long value;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,63 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.orm.SimpleORM;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение одной страницы на заданной "глубине" таблицы:
+ * keyset (SimpleORM.findPage(), WHERE id > ?) против LIMIT/OFFSET.
+ *
+ * @author borunovv
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PagingBenchmark {
+
+    private static final int ROWS = 200000;
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"0", "10000", "190000"})
+    public int depth;
+
+    private DBAccess dbAccess;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbAccess = BenchDB.open("paging", 1);
+        BenchDB.fillNarrow(dbAccess, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dbAccess.close();
+    }
+
+    @Benchmark
+    public List<NarrowEntity> keyset() throws Exception {
+        return SimpleORM.findPage(dbAccess, NarrowEntity.class, depth > 0 ? (long) depth : null, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public long offset() throws Exception {
+        return dbAccess.executeSelect("SELECT id, value FROM narrow ORDER BY id LIMIT ? OFFSET ?",
+                new DBAccess.IResultSetProcessor<Long>() {
+                    public Long process(ResultSet resultSet) throws SQLException {
+                        long sum = 0;
+                        while (resultSet.next()) {
+                            sum += resultSet.getLong(2);
+                        }
+                        return sum;
+                    }
+                }, PAGE_SIZE, depth);
+    }
+}
@@ -0,0 +1,51 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.orm.SimpleORM;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полное чтение широкой таблицы: SimpleORM.findAll() (одно соединение)
+ * против SimpleORM.findAllParallel() (диапазоны ключа на poolSize соединениях).
+ *
+ * @author borunovv
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelScanBenchmark {
+
+    private static final int ROWS = 200000;
+
+    @Param({"1", "4", "8"})
+    public int poolSize;
+
+    private DBAccess dbAccess;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbAccess = BenchDB.open("scan", poolSize);
+        BenchDB.fillWide(dbAccess, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dbAccess.close();
+    }
+
+    @Benchmark
+    public List<WideEntity> findAll() throws Exception {
+        return SimpleORM.findAll(dbAccess, WideEntity.class);
+    }
+
+    @Benchmark
+    public List<WideEntity> findAllParallel() throws Exception {
+        return SimpleORM.findAllParallel(dbAccess, WideEntity.class);
+    }
+}
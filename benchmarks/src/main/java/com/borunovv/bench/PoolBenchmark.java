@@ -0,0 +1,61 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.DatabaseMetaData;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Захват/возврат соединения из пула под конкуренцией 1..N потоков
+ * (DBAccess.getMetaData() - взять соединение, почти ничего не сделать, вернуть).
+ *
+ * @author borunovv
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PoolBenchmark {
+
+    @Param({"1", "4", "10"})
+    public int poolSize;
+
+    private DBAccess dbAccess;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbAccess = BenchDB.open("pool", poolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dbAccess.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DatabaseMetaData acquireRelease1Thread() throws Exception {
+        return dbAccess.getMetaData();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DatabaseMetaData acquireRelease4Threads() throws Exception {
+        return dbAccess.getMetaData();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public DatabaseMetaData acquireRelease16Threads() throws Exception {
+        return dbAccess.getMetaData();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public DatabaseMetaData acquireRelease64Threads() throws Exception {
+        return dbAccess.getMetaData();
+    }
+}
@@ -0,0 +1,67 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Накладные расходы DBAccess.executeInTransaction() по сравнению с одиночным executeUpdate()
+ * (на одном и том же UPDATE по первичному ключу), и отложенная запись того же инкремента (DeltaAccumulator).
+ *
+ * @author borunovv
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionBenchmark {
+
+    private static final String UPDATE = "UPDATE narrow SET value = value + 1 WHERE id = ?";
+
+    private DBAccess dbAccess;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbAccess = BenchDB.open("transaction", 1);
+        BenchDB.fillNarrow(dbAccess, 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dbAccess.close();
+    }
+
+    @Benchmark
+    public int autoCommitUpdate() throws Exception {
+        return dbAccess.executeUpdate(UPDATE, 1);
+    }
+
+    @Benchmark
+    public void transactionalUpdate() throws Exception {
+        dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+            public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                queryExecutor.executeUpdate(UPDATE, 1);
+            }
+        });
+    }
+
+    @Benchmark
+    public void transactionalThreeUpdates() throws Exception {
+        dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+            public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                queryExecutor.executeUpdate(UPDATE, 1);
+                queryExecutor.executeUpdate(UPDATE, 2);
+                queryExecutor.executeUpdate(UPDATE, 3);
+            }
+        });
+    }
+
+    @Benchmark
+    public void writeBehindIncrement() {
+        dbAccess.getDeltaAccumulator().add("narrow", "value", "id", 1L, 1);
+    }
+}
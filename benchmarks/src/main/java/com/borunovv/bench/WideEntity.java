@@ -0,0 +1,125 @@
+package com.borunovv.bench;
+
+import com.borunovv.orm.DBColumn;
+import com.borunovv.orm.DBEntity;
+import com.borunovv.orm.DBId;
+
+/**
+ * Широкая сущность: 10 столбцов разных типов.
+ *
+ * @author borunovv
+ */
+@DBEntity(table = "wide")
+public class WideEntity {
+
+    @DBId
+    @DBColumn("id")
+    private long id;
+
+    @DBColumn("l1")
+    private long l1;
+
+    @DBColumn("l2")
+    private long l2;
+
+    @DBColumn("i1")
+    private int i1;
+
+    @DBColumn("i2")
+    private int i2;
+
+    @DBColumn("d1")
+    private double d1;
+
+    @DBColumn("d2")
+    private double d2;
+
+    @DBColumn("s1")
+    private String s1;
+
+    @DBColumn("s2")
+    private String s2;
+
+    @DBColumn("n1")
+    private Long n1;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getL1() {
+        return l1;
+    }
+
+    public void setL1(long l1) {
+        this.l1 = l1;
+    }
+
+    public long getL2() {
+        return l2;
+    }
+
+    public void setL2(long l2) {
+        this.l2 = l2;
+    }
+
+    public int getI1() {
+        return i1;
+    }
+
+    public void setI1(int i1) {
+        this.i1 = i1;
+    }
+
+    public int getI2() {
+        return i2;
+    }
+
+    public void setI2(int i2) {
+        this.i2 = i2;
+    }
+
+    public double getD1() {
+        return d1;
+    }
+
+    public void setD1(double d1) {
+        this.d1 = d1;
+    }
+
+    public double getD2() {
+        return d2;
+    }
+
+    public void setD2(double d2) {
+        this.d2 = d2;
+    }
+
+    public String getS1() {
+        return s1;
+    }
+
+    public void setS1(String s1) {
+        this.s1 = s1;
+    }
+
+    public String getS2() {
+        return s2;
+    }
+
+    public void setS2(String s2) {
+        this.s2 = s2;
+    }
+
+    public Long getN1() {
+        return n1;
+    }
+
+    public void setN1(Long n1) {
+        this.n1 = n1;
+    }
+}
@@ -0,0 +1,59 @@
+package com.borunovv.bench;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.orm.SimpleORM;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Вставка N строк: по одной (executeUpdate на строку) против пакетной (SimpleORM.insertAll()).
+ *
+ * @author borunovv
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+
+    @Param({"1000", "10000"})
+    public int rows;
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private DBAccess dbAccess;
+    private List<NarrowEntity> entities;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dbAccess = BenchDB.open("write", 1);
+        entities = BenchDB.narrow(rows);
+    }
+
+    @Setup(Level.Invocation)
+    public void cleanTable() throws Exception {
+        BenchDB.createNarrow(dbAccess);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dbAccess.close();
+    }
+
+    @Benchmark
+    public void singleRowInserts() throws Exception {
+        for (NarrowEntity entity : entities) {
+            dbAccess.executeUpdate("INSERT INTO narrow (value) VALUES (?)", entity.getValue());
+        }
+    }
+
+    @Benchmark
+    public long[] batchInsert() throws Exception {
+        return SimpleORM.insertAll(dbAccess, NarrowEntity.class, entities, batchSize);
+    }
+}
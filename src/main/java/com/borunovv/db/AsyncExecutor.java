@@ -0,0 +1,140 @@
+package com.borunovv.db;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Исполнитель асинхронных запросов DBAccess с ограничением числа одновременно выполняемых задач
+ * (admission control): сверх лимита задачи ждут в очереди, не занимая потоков,
+ * и передаются исполнителю по мере завершения предыдущих.
+ *
+ * По умолчанию - виртуальные потоки (если JVM их поддерживает, Java 21+),
+ * иначе - пул из maxConcurrency daemon-потоков.
+ *
+ * @author borunovv
+ */
+class AsyncExecutor {
+
+    private final Executor executor;
+    private final ExecutorService ownExecutor; // Создан нами (закрыть в shutdown()), иначе null.
+    private final int maxConcurrency;
+    private final Queue<Job<?>> pending = new ConcurrentLinkedQueue<Job<?>>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    AsyncExecutor(int maxConcurrency) {
+        this(null, maxConcurrency);
+    }
+
+    // executor == null - создать исполнитель по умолчанию.
+    AsyncExecutor(Executor executor, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be > 0");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.ownExecutor = executor == null ? createDefaultExecutor(maxConcurrency) : null;
+        this.executor = executor != null ? executor : ownExecutor;
+    }
+
+    <T> CompletableFuture<T> submit(Callable<T> task) {
+        Job<T> job = new Job<T>(task);
+        pending.add(job);
+        queued.incrementAndGet();
+        drain();
+        return job.future;
+    }
+
+    // Задачи, ожидающие свободного слота.
+    int getQueuedCount() {
+        return queued.get();
+    }
+
+    int getRunningCount() {
+        return running.get();
+    }
+
+    int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    // Задачи, уже переданные исполнителю, завершатся; новые будут отклонены.
+    void shutdown() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    // Передает задачи из очереди исполнителю, пока есть свободные слоты.
+    // Вызывается и при добавлении, и при завершении задачи, поэтому задача не "зависнет" в очереди.
+    private void drain() {
+        while (!pending.isEmpty()) {
+            int current = running.get();
+            if (current >= maxConcurrency) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Job<?> job = pending.poll();
+            if (job == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException e) {
+                running.decrementAndGet();
+                job.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static ExecutorService createDefaultExecutor(int threadCount) {
+        try {
+            // Java 21+: Executors.newVirtualThreadPerTaskExecutor().
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            final AtomicInteger counter = new AtomicInteger();
+            return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "db-async-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    // Задача + ее результат. По завершении освобождает слот и запускает следующую из очереди.
+    private final class Job<T> implements Runnable {
+        final Callable<T> task;
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        Job(Callable<T> task) {
+            this.task = task;
+        }
+
+        public void run() {
+            try {
+                // Отмененную (future.cancel()) до запуска задачу не выполняем.
+                if (!future.isDone()) {
+                    future.complete(task.call());
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                running.decrementAndGet();
+                drain();
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.borunovv.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пул соединений с БД.
+ *
+ * - Быстрый путь без блокировок: свободные соединения лежат в LIFO-деке (берется самое "горячее"),
+ *   число открытых соединений ограничивается CAS-счетчиком.
+ * - Ожидание свободного соединения ограничено таймаутом (ConnectionPoolTimeoutException).
+ * - minIdle соединений открываются сразу при создании пула и поддерживаются фоновой чисткой.
+ * - Соединение, простоявшее дольше validateAfterIdle, проверяется на живость перед выдачей.
+ * - Соединения старше maxLifetime и простаивающие дольше idleTimeout (сверх minIdle) закрываются.
+ * - closeAll() не блокируется: свободные соединения закрываются сразу, занятые - при возврате.
+ *
+ * @author borunovv
+ */
+class ConnectionPool {
+
+    // Максимальный квант ожидания в деке: чтобы заметить освободившийся слот
+    // (соединение закрыли при возврате) или закрытие пула, не дожидаясь всего таймаута.
+    private static final long MAX_WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    static interface IConnectionFactory {
+        public PooledConnection create() throws SQLException;
+    }
+
+    private final String name;
+    private final IConnectionFactory factory;
+    private final int maxSize;
+    private final int minIdle;
+    private final long acquireTimeoutNanos;
+    private final long validateAfterIdleNanos;
+    private final int validationTimeoutSeconds;
+    private final long idleTimeoutNanos;
+    private final long maxLifetimeNanos;
+
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed = false;
+
+    ConnectionPool(String name, ConnectionPoolSettings settings, IConnectionFactory factory) throws SQLException {
+        settings.validate();
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = settings.getMaxSize();
+        this.minIdle = settings.getMinIdle();
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getAcquireTimeoutMillis());
+        this.validateAfterIdleNanos = TimeUnit.MILLISECONDS.toNanos(settings.getValidateAfterIdleMillis());
+        this.validationTimeoutSeconds = settings.getValidationTimeoutSeconds();
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeoutMillis());
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(settings.getMaxLifetimeMillis());
+
+        // Прогрев: открываем minIdle соединений сразу.
+        fillMinIdle(true);
+
+        long evictionInterval = settings.getEvictionIntervalMillis();
+        if (evictionInterval > 0 && (idleTimeoutNanos > 0 || maxLifetimeNanos > 0 || minIdle > 0)) {
+            housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "db-pool-housekeeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            housekeeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evict();
+                }
+            }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        } else {
+            housekeeper = null;
+        }
+    }
+
+    public PooledConnection getConnection() throws SQLException, InterruptedException {
+        long deadline = System.nanoTime() + acquireTimeoutNanos;
+        while (true) {
+            ensureOpen();
+
+            PooledConnection conn = idle.pollFirst();
+            if (conn == null) {
+                if (reserveSlot()) {
+                    return createReserved();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new ConnectionPoolTimeoutException("Timeout waiting for connection ("
+                            + TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) + " ms, " + total.get()
+                            + "/" + maxSize + " in use), url='" + name + "'");
+                }
+                waiting.incrementAndGet();
+                try {
+                    conn = idle.pollFirst(Math.min(remaining, MAX_WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                } finally {
+                    waiting.decrementAndGet();
+                }
+                if (conn == null) {
+                    continue;
+                }
+            }
+
+            if (isUsable(conn)) {
+                return conn;
+            }
+            destroy(conn);
+        }
+    }
+
+    public void putConnectionBack(PooledConnection conn) {
+        if (conn == null) {
+            throw new IllegalArgumentException("Connection is null, url='" + name + "'");
+        }
+        conn.touch();
+        if (closed || isExpired(conn, conn.getLastUsedAtNanos())) {
+            destroy(conn);
+        } else {
+            idle.offerFirst(conn);
+            if (closed) {
+                // closeAll() мог пройти между проверкой и offerFirst(): соединение осталось бы в деке.
+                destroyIdle();
+            }
+        }
+    }
+
+    // Закроет свободные соединения сразу, занятые - по мере возврата. Не блокируется.
+    public void closeAll() {
+        closed = true;
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+        destroyIdle();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // Число открытых соединений (свободных + занятых).
+    public int getTotalCount() {
+        return total.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getActiveCount() {
+        return Math.max(0, total.get() - idle.size());
+    }
+
+    // Число потоков, ожидающих свободное соединение.
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    // Сколько раз ожидание соединения завершилось таймаутом.
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    // Фоновая чистка: закрывает просроченные/лишние простаивающие соединения и доливает до minIdle.
+    void evict() {
+        long now = System.nanoTime();
+        for (PooledConnection conn : idle) {
+            boolean idleTooLong = idleTimeoutNanos > 0
+                    && now - conn.getLastUsedAtNanos() > idleTimeoutNanos
+                    && total.get() > minIdle;
+            if ((idleTooLong || isExpired(conn, now)) && idle.remove(conn)) {
+                destroy(conn);
+            }
+        }
+        try {
+            fillMinIdle(false);
+        } catch (SQLException ignore) {
+            // БД недоступна - попробуем при следующей чистке.
+        }
+    }
+
+    private void fillMinIdle(boolean failFast) throws SQLException {
+        while (!closed && idle.size() < minIdle && reserveSlot()) {
+            try {
+                idle.offerLast(createReserved());
+                if (closed) {
+                    destroyIdle();
+                }
+            } catch (SQLException e) {
+                if (failFast) {
+                    closeAll();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int current = total.get();
+            if (current >= maxSize) {
+                return false;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private PooledConnection createReserved() throws SQLException {
+        try {
+            return factory.create();
+        } catch (SQLException e) {
+            total.decrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledConnection conn) {
+        long now = System.nanoTime();
+        if (isExpired(conn, now)) {
+            return false;
+        }
+        if (now - conn.getLastUsedAtNanos() > validateAfterIdleNanos) {
+            try {
+                return conn.getConnection().isValid(validationTimeoutSeconds);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isExpired(PooledConnection conn, long now) {
+        return maxLifetimeNanos > 0 && now - conn.getCreatedAtNanos() > maxLifetimeNanos;
+    }
+
+    private void destroy(PooledConnection conn) {
+        total.decrementAndGet();
+        try {
+            conn.close();
+        } catch (SQLException ignore) {
+        }
+    }
+
+    private void destroyIdle() {
+        PooledConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            destroy(conn);
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.borunovv.db;
+
+/**
+ * Настройки пула соединений (см. ConnectionPool).
+ * Все интервалы - в миллисекундах, 0 - ограничение выключено.
+ *
+ * @author borunovv
+ */
+public class ConnectionPoolSettings {
+
+    private int maxSize = 1;                      // Максимум открытых соединений.
+    private int minIdle = 0;                      // Сколько соединений открыть сразу и держать свободными.
+    private long acquireTimeoutMillis = 30000;    // Сколько ждать свободное соединение, затем - исключение.
+    private long validateAfterIdleMillis = 5000;  // Проверять живость соединения, простоявшего дольше.
+    private int validationTimeoutSeconds = 2;     // Таймаут проверки (Connection.isValid()).
+    private long idleTimeoutMillis = 600000;      // Закрывать соединения (сверх minIdle), простаивающие дольше.
+    private long maxLifetimeMillis = 1800000;     // Закрывать соединения старше (при возврате / простое).
+    private long evictionIntervalMillis = 30000;  // Период фоновой чистки пула.
+
+    public ConnectionPoolSettings() {
+    }
+
+    public ConnectionPoolSettings(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    public long getValidateAfterIdleMillis() {
+        return validateAfterIdleMillis;
+    }
+
+    public void setValidateAfterIdleMillis(long validateAfterIdleMillis) {
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+    }
+
+    public int getValidationTimeoutSeconds() {
+        return validationTimeoutSeconds;
+    }
+
+    public void setValidationTimeoutSeconds(int validationTimeoutSeconds) {
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getMaxLifetimeMillis() {
+        return maxLifetimeMillis;
+    }
+
+    public void setMaxLifetimeMillis(long maxLifetimeMillis) {
+        this.maxLifetimeMillis = maxLifetimeMillis;
+    }
+
+    public long getEvictionIntervalMillis() {
+        return evictionIntervalMillis;
+    }
+
+    public void setEvictionIntervalMillis(long evictionIntervalMillis) {
+        this.evictionIntervalMillis = evictionIntervalMillis;
+    }
+
+    void validate() {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool max size must be > 0");
+        }
+        if (minIdle < 0 || minIdle > maxSize) {
+            throw new IllegalArgumentException("Pool min idle must be in [0, maxSize]");
+        }
+        if (acquireTimeoutMillis < 0 || validateAfterIdleMillis < 0 || validationTimeoutSeconds < 0
+                || idleTimeoutMillis < 0 || maxLifetimeMillis < 0 || evictionIntervalMillis < 0) {
+            throw new IllegalArgumentException("Pool timeouts must be >= 0");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPoolSettings{" +
+                "maxSize=" + maxSize +
+                ", minIdle=" + minIdle +
+                ", acquireTimeoutMillis=" + acquireTimeoutMillis +
+                ", validateAfterIdleMillis=" + validateAfterIdleMillis +
+                ", validationTimeoutSeconds=" + validationTimeoutSeconds +
+                ", idleTimeoutMillis=" + idleTimeoutMillis +
+                ", maxLifetimeMillis=" + maxLifetimeMillis +
+                ", evictionIntervalMillis=" + evictionIntervalMillis +
+                '}';
+    }
+}
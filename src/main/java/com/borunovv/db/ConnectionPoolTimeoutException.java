@@ -0,0 +1,15 @@
+package com.borunovv.db;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Не удалось получить соединение из пула за отведенное время (все соединения заняты).
+ *
+ * @author borunovv
+ */
+public class ConnectionPoolTimeoutException extends SQLTransientConnectionException {
+
+    public ConnectionPoolTimeoutException(String message) {
+        super(message);
+    }
+}
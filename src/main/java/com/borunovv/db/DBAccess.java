@@ -1,20 +1,44 @@
 package com.borunovv.db;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Базовый класс обертки над любым JDBC-драйвером.
  *
+ * Запросы с параметрами ('?' в SQL + значения) выполняются через PreparedStatement,
+ * которые кэшируются для каждого соединения пула (LRU, см. setStatementCacheSize()).
+ *
+ * Чтение можно разгрузить на реплики (addReplica()): запись и транзакции остаются на основной БД.
+ *
  * @author borunovv
  */
 public abstract class DBAccess {
 
     private static final int DEFAULT_CONNECTION_POOL_SIZE = 1;
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    // Снимок строк выборки (для кэша результатов).
+    private static final IResultSetProcessor<ResultSnapshot> SNAPSHOT_PROCESSOR = new IResultSetProcessor<ResultSnapshot>() {
+        public ResultSnapshot process(ResultSet resultSet) throws SQLException {
+            return ResultSnapshot.of(resultSet);
+        }
+    };
 
     // URL к базе данных, например "localhost/test", или полностью: "jdbc:mysql://localhost/test?param=value"
     private String dbUrl;
@@ -25,6 +49,36 @@ public abstract class DBAccess {
                                     // Необязательно, если в dbUrl задан полный url (типа "jdbc:mysql:...").
     private ConnectionPool pool;
 
+    private volatile int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private volatile MetricsListener metricsListener = MetricsListener.NONE;
+    private volatile SlowQueryLog slowQueryLog; // null - выключен.
+    private volatile QueryCache queryCache;     // null - выключен.
+    private volatile TransactionSettings transactionSettings = new TransactionSettings();
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    private volatile AsyncExecutor asyncExecutor;    // Создается при первом *Async-вызове.
+    private volatile DeltaAccumulator deltaAccumulator; // Создается при первом обращении.
+    private final Object lazyInitLock = new Object();
+
+    private final List<ICloseListener> closeListeners = new CopyOnWriteArrayList<ICloseListener>();
+
+    // Реплики для чтения (см. addReplica()). Пока их нет - все выполняется на этой БД.
+    private final ReplicaRouter replicas = new ReplicaRouter();
+    private volatile long readYourWritesNanos = 0;
+    private final ThreadLocal<int[]> primarySessionDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    private final ThreadLocal<long[]> lastWriteNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[]{Long.MIN_VALUE};
+        }
+    };
+
     private final AtomicBoolean classLoaded = new AtomicBoolean(false);
 
     public DBAccess(String driverClassName, String protocolScheme,
@@ -35,34 +89,332 @@ public abstract class DBAccess {
 
     public DBAccess(String driverClassName, String protocolScheme,
                     String dbUrl, String user, String password, int poolSize) throws SQLException, ClassNotFoundException {
+        this(driverClassName, protocolScheme,
+                dbUrl, user, password, new ConnectionPoolSettings(poolSize));
+    }
+
+    public DBAccess(String driverClassName, String protocolScheme,
+                    String dbUrl, String user, String password, ConnectionPoolSettings poolSettings) throws SQLException, ClassNotFoundException {
 
         this.driverClassName = driverClassName;
         this.protocolScheme = protocolScheme;
         this.dbUrl = getFullUrl(dbUrl);
         this.user = user;
         this.password = password;
-        this.pool = new ConnectionPool(poolSize);
         init();
+        this.pool = new ConnectionPool(this.dbUrl, poolSettings, new ConnectionPool.IConnectionFactory() {
+            public PooledConnection create() throws SQLException {
+                return createNewConnection();
+            }
+        });
     }
 
+    // Закроет пул: свободные соединения - сразу, занятые - по мере их возврата (не блокируется).
+    // Перед этим вызываются все слушатели закрытия (пул еще доступен). Реплики закрываются тоже.
+    // Ошибка слушателя не мешает остальным и закрытию пула: бросается первая, уже после закрытия.
+    // Пул закрывается в любом случае, поэтому приращения DeltaAccumulator, которые не удалось записать
+    // при закрытии, теряются. Чтобы иметь возможность повторить запись, закройте накопитель
+    // (getDeltaAccumulator().close()) до close().
     public void close() throws SQLException, InterruptedException {
+        Exception error = null;
+        for (ICloseListener listener : closeListeners) {
+            try {
+                listener.onClose(this);
+            } catch (Exception e) {
+                error = error != null ? error : e;
+            }
+        }
+        AsyncExecutor async = asyncExecutor;
+        if (async != null) {
+            async.shutdown();
+        }
         if (pool != null) {
             pool.closeAll();
         }
+        for (ReplicaRouter.Replica replica : replicas.getReplicas()) {
+            try {
+                replica.dbAccess.close();
+            } catch (Exception e) {
+                error = error != null ? error : e;
+            }
+        }
+        if (error instanceof SQLException) {
+            throw (SQLException) error;
+        } else if (error instanceof InterruptedException) {
+            throw (InterruptedException) error;
+        } else if (error != null) {
+            throw (RuntimeException) error;
+        }
+    }
+
+    public boolean isClosed() {
+        return pool.isClosed();
+    }
+
+    // ---------------- Реплики ----------------
+    // Чтение (executeSelect(), openCursor() и все чтения SimpleORM) распределяется по репликам,
+    // запись, транзакции и getMetaData() - всегда на этой (основной) БД.
+    // Реплика, недоступная по соединению, пропускается на setReplicaRetryMillis() (чтение повторяется
+    // на другой реплике или на основной БД). Реплика, у которой просто заняты все соединения
+    // (ConnectionPoolTimeoutException), недоступной не считается: это чтение идет на следующую реплику.
+    // Сколько ждать соединения реплики перед этим - acquireTimeout ее пула (разумно задать небольшим).
+    // Реплика закрывается вместе с основной.
+    // Реплики добавлять до начала работы (до первых запросов).
+
+    public void addReplica(DBAccess replica) {
+        if (replica == null || replica == this) {
+            throw new IllegalArgumentException("Bad replica: " + replica);
+        }
+        replica.setMetricsListener(metricsListener);
+        replica.setSlowQueryLog(slowQueryLog);
+        replicas.add(replica);
+    }
+
+    public List<DBAccess> getReplicas() {
+        List<DBAccess> result = new ArrayList<DBAccess>();
+        for (ReplicaRouter.Replica replica : replicas.getReplicas()) {
+            result.add(replica.dbAccess);
+        }
+        return result;
+    }
+
+    // Сколько не слать запросы на реплику после ошибки соединения (по умолчанию 5 сек).
+    public void setReplicaRetryMillis(long replicaRetryMillis) {
+        if (replicaRetryMillis < 0) {
+            throw new IllegalArgumentException("replicaRetryMillis must be >= 0");
+        }
+        replicas.setRetryAfterMillis(replicaRetryMillis);
+    }
+
+    // Чтение своих записей: столько миллисекунд после записи поток читает с основной БД
+    // (пока реплики догоняют). По умолчанию 0 - сразу с реплик, см. также executeOnPrimary().
+    public void setReadYourWritesMillis(long readYourWritesMillis) {
+        if (readYourWritesMillis < 0) {
+            throw new IllegalArgumentException("readYourWritesMillis must be >= 0");
+        }
+        this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+    }
+
+    // Число чтений, отправленных на реплику (-1, если это не реплика данной БД).
+    public long getReplicaReadCount(DBAccess replica) {
+        ReplicaRouter.Replica found = replicas.find(replica);
+        return found != null ? found.reads.get() : -1;
+    }
+
+    // Число ошибок соединения с репликой (-1, если это не реплика данной БД).
+    public long getReplicaFailureCount(DBAccess replica) {
+        ReplicaRouter.Replica found = replicas.find(replica);
+        return found != null ? found.failures.get() : -1;
+    }
+
+    // Выполнит session так, что все чтения (в этом потоке) идут на основную БД:
+    // например, прочитать только что записанное. Асинхронные чтения внутри session сюда не относятся.
+    public <T> T executeOnPrimary(IPrimarySession<T> session) throws SQLException, InterruptedException {
+        int[] depth = primarySessionDepth.get();
+        depth[0]++;
+        try {
+            return session.execute(this);
+        } finally {
+            depth[0]--;
+        }
+    }
+
+    // Можно ли отправить очередное чтение на реплику.
+    private boolean isReplicaReadAllowed() {
+        if (replicas.isEmpty() || primarySessionDepth.get()[0] > 0) {
+            return false;
+        }
+        long window = readYourWritesNanos;
+        return window == 0 || System.nanoTime() - lastWriteNanos.get()[0] >= window;
+    }
+
+    private void onWrite() {
+        if (readYourWritesNanos > 0 && !replicas.isEmpty()) {
+            lastWriteNanos.get()[0] = System.nanoTime();
+        }
+    }
+
+    // Выполнит чтение на реплике; если ни одна не доступна - на этой БД.
+    private <T> T read(IRead<T> read) throws SQLException, InterruptedException {
+        if (!isReplicaReadAllowed()) {
+            return read.read(this);
+        }
+        List<ReplicaRouter.Replica> busy = null; // Реплики, пул которых занят (для этого чтения).
+        ReplicaRouter.Replica replica;
+        while ((replica = busy != null ? replicas.choose(busy) : replicas.choose()) != null) {
+            replica.begin();
+            boolean ok = false;
+            try {
+                T result = read.read(replica.dbAccess);
+                ok = true;
+                return result;
+            } catch (ConnectionPoolTimeoutException e) {
+                if (busy == null) {
+                    busy = new ArrayList<ReplicaRouter.Replica>(2);
+                }
+                busy.add(replica);
+            } catch (SQLException e) {
+                if (!replica.dbAccess.isConnectionError(e)) {
+                    ok = true; // Ошибка запроса, а не реплики.
+                    throw e;
+                }
+                replicas.markDown(replica);
+            } catch (IllegalStateException e) {
+                if (!replica.dbAccess.isClosed()) {
+                    throw e;
+                }
+                replicas.markDown(replica);
+            } finally {
+                replica.end(ok);
+            }
+        }
+        return read.read(this);
+    }
+
+    // Синтаксис SQL этой БД (кавычки, LIMIT, upsert и т.п.), по нему SimpleORM строит запросы.
+    public abstract Dialect getDialect();
+
+    // Ошибка соединения с БД (а не конкретного запроса): SQLState класса 08.
+    // Наследники добавляют коды ошибок своей СУБД.
+    protected boolean isConnectionError(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientConnectionException || t instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Слушатель будет вызван в начале close() (например, чтобы сбросить накопленные данные или освободить кэши).
+    public void addCloseListener(ICloseListener listener) {
+        closeListeners.add(listener);
+    }
+
+    public void removeCloseListener(ICloseListener listener) {
+        closeListeners.remove(listener);
+    }
+
+    // Максимальный размер пула соединений.
+    public int getPoolMaxSize() {
+        return pool.getMaxSize();
+    }
+
+    // Число открытых соединений пула (свободных + занятых).
+    public int getPoolTotalCount() {
+        return pool.getTotalCount();
+    }
+
+    public int getPoolActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    public int getPoolIdleCount() {
+        return pool.getIdleCount();
+    }
+
+    // Число потоков, ожидающих свободное соединение.
+    public int getPoolWaitingCount() {
+        return pool.getWaitingCount();
+    }
+
+    // Слушатель метрик (время ожидания пула, выполнения запросов, транзакции и т.п.), см. DBMetrics.
+    // Передается и репликам.
+    public void setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener != null ? metricsListener : MetricsListener.NONE;
+        for (ReplicaRouter.Replica replica : replicas.getReplicas()) {
+            replica.dbAccess.setMetricsListener(metricsListener);
+        }
+    }
+
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    // Журнал медленных запросов (null - выключить), см. SlowQueryLog. Передается и репликам.
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+        for (ReplicaRouter.Replica replica : replicas.getReplicas()) {
+            replica.dbAccess.setSlowQueryLog(slowQueryLog);
+        }
+    }
+
+    public SlowQueryLog getSlowQueryLog() {
+        return slowQueryLog;
+    }
+
+    // Кэш результатов для executeSelectCached() (null - выключить), см. QueryCache.
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    // Настройки транзакций по умолчанию (для executeInTransaction(executor)).
+    public void setTransactionSettings(TransactionSettings transactionSettings) {
+        transactionSettings.validate();
+        this.transactionSettings = new TransactionSettings(transactionSettings);
+    }
+
+    public TransactionSettings getTransactionSettings() {
+        return new TransactionSettings(transactionSettings);
+    }
+
+    // Размер LRU-кэша подготовленных запросов на одно соединение (0 - кэш выключен).
+    // Применяется к соединениям, созданным после вызова.
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("Statement cache size must be >= 0");
+        }
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    // Число запросов, взятых из кэша подготовленных запросов (по всем соединениям).
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    // Число запросов, подготовленных заново (промахи кэша, по всем соединениям).
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
     }
 
     public <T> T executeSelect(final String selectQuery, final IResultSetProcessor<T> processor) throws SQLException, InterruptedException {
+        return read(new IRead<T>() {
+            public T read(DBAccess target) throws SQLException, InterruptedException {
+                return target.selectLocal(selectQuery, processor);
+            }
+        });
+    }
+
+    private <T> T selectLocal(final String selectQuery, final IResultSetProcessor<T> processor) throws SQLException, InterruptedException {
         ensureInitialized();
 
         return exec(new IExecuteWithConnection<T>() {
-            public T execute(Connection conn) throws SQLException {
+            public T execute(PooledConnection conn) throws SQLException {
                 ResultSet resultSet = null;
                 Statement statement = null;
                 try {
                     // Statements allow to issue SQL queries to the database
-                    statement = conn.createStatement();
+                    statement = conn.getConnection().createStatement();
+                    long start = System.nanoTime();
                     resultSet = statement.executeQuery(selectQuery);
-                    return processor.process(resultSet);
+                    long executed = System.nanoTime();
+                    T result = processor.process(resultSet);
+                    onQuery(conn, QueryType.SELECT, selectQuery, null,
+                            executed - start, System.nanoTime() - executed, -1);
+                    return result;
 
                 } finally {
                     if (resultSet != null) {
@@ -76,19 +428,215 @@ public abstract class DBAccess {
         });
     }
 
+    // Выборка по запросу с параметрами ('?' в SQL), через кэш подготовленных запросов.
+    public <T> T executeSelect(final String selectQuery, final IResultSetProcessor<T> processor, final Object... params) throws SQLException, InterruptedException {
+        return read(new IRead<T>() {
+            public T read(DBAccess target) throws SQLException, InterruptedException {
+                return target.selectLocal(selectQuery, processor, params);
+            }
+        });
+    }
+
+    private <T> T selectLocal(final String selectQuery, final IResultSetProcessor<T> processor, final Object... params) throws SQLException, InterruptedException {
+        ensureInitialized();
+
+        return exec(new IExecuteWithConnection<T>() {
+            public T execute(PooledConnection conn) throws SQLException {
+                StatementCache cache = conn.getStatementCache();
+                PreparedStatement statement = cache.prepare(selectQuery, false);
+                boolean ok = false;
+                try {
+                    bindParameters(statement, params);
+                    long start = System.nanoTime();
+                    ResultSet resultSet = statement.executeQuery();
+                    long executed = System.nanoTime();
+                    try {
+                        T result = processor.process(resultSet);
+                        onQuery(conn, QueryType.SELECT, selectQuery, params,
+                                executed - start, System.nanoTime() - executed, -1);
+                        ok = true;
+                        return result;
+                    } finally {
+                        resultSet.close();
+                    }
+                } finally {
+                    release(cache, statement, ok);
+                }
+            }
+        });
+    }
+
+    // Выборка через кэш результатов (см. setQueryCache()): при попадании processor получает ResultSet
+    // поверх снимка строк, без обращения к БД. Для частых одинаковых выборок из редко меняющихся таблиц.
+    // Промах читается с основной БД: снимок с отстающей реплики пережил бы сброс кэша записью.
+    // Без кэша - как executeSelect().
+    public <T> T executeSelectCached(final String selectQuery, IResultSetProcessor<T> processor, final Object... params) throws SQLException, InterruptedException {
+        QueryCache cache = queryCache;
+        if (cache == null) {
+            return executeSelect(selectQuery, processor, params);
+        }
+        QueryCache.Key key = QueryCache.key(selectQuery, params);
+        ResultSnapshot snapshot = cache.get(key);
+        if (snapshot == null) {
+            Set<String> tables = SqlTables.getReadTables(selectQuery);
+            long stamp = cache.getStamp(tables);
+            snapshot = executeOnPrimary(new IPrimarySession<ResultSnapshot>() {
+                public ResultSnapshot execute(DBAccess dbAccess) throws SQLException, InterruptedException {
+                    return dbAccess.executeSelect(selectQuery, SNAPSHOT_PROCESSOR, params);
+                }
+            });
+            cache.putIfNotInvalidated(key, snapshot, tables, stamp);
+        }
+        ResultSet resultSet = snapshot.openResultSet();
+        try {
+            return processor.process(resultSet);
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    // Сбросит из кэша результатов выборки из таблиц, изменяемых запросом.
+    private void invalidateQueryCache(String updateQuery) {
+        QueryCache cache = queryCache;
+        if (cache != null) {
+            cache.invalidate(SqlTables.getWrittenTables(updateQuery));
+        }
+    }
+
+    // ---------------- Асинхронные варианты ----------------
+    // Выполняются в отдельных потоках (виртуальных, если JVM поддерживает), одновременно - не больше,
+    // чем соединений в пуле (см. setAsyncExecutor()); остальные ждут в очереди, не занимая потоков.
+    // Ошибка (SQLException и т.п.) - в future.
+
+    public <T> CompletableFuture<T> executeSelectAsync(final String selectQuery, final IResultSetProcessor<T> processor, final Object... params) {
+        return executeAsync(new Callable<T>() {
+            public T call() throws Exception {
+                return executeSelect(selectQuery, processor, params);
+            }
+        });
+    }
+
+    // Вернет число измененных строк.
+    public CompletableFuture<Integer> executeUpdateAsync(final String updateQuery, final Object... params) {
+        return executeAsync(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return executeUpdate(updateQuery, params);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> executeInTransactionAsync(IExecuteInTransaction executor) {
+        return executeInTransactionAsync(transactionSettings, executor);
+    }
+
+    public CompletableFuture<Void> executeInTransactionAsync(final TransactionSettings settings, final IExecuteInTransaction executor) {
+        return executeAsync(new Callable<Void>() {
+            public Void call() throws Exception {
+                executeInTransaction(settings, executor);
+                return null;
+            }
+        });
+    }
+
+    // Выполнит произвольную (блокирующую) работу с БД на исполнителе асинхронных запросов.
+    public <T> CompletableFuture<T> executeAsync(Callable<T> task) {
+        return getAsyncExecutor().submit(task);
+    }
+
+    // Дождется одной из частей параллельной работы all (результатов executeAsync());
+    // при ошибке отменит остальные (еще не начатые не выполнятся). Ошибка части - как есть
+    // (SQLException, RuntimeException), прочие исключения - в RuntimeException.
+    public static <T> T await(CompletableFuture<T> part, List<? extends CompletableFuture<?>> all) throws SQLException, InterruptedException {
+        try {
+            return part.get();
+        } catch (ExecutionException e) {
+            cancelAll(all);
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new RuntimeException("Error in async task", cause);
+        } catch (InterruptedException e) {
+            cancelAll(all);
+            throw e;
+        }
+    }
+
+    private static void cancelAll(List<? extends CompletableFuture<?>> all) {
+        for (CompletableFuture<?> other : all) {
+            other.cancel(false);
+        }
+    }
+
+    // Свой исполнитель для асинхронных запросов (не будет закрыт в close()) и максимум одновременно выполняемых.
+    // Вызывать до первого *Async-вызова.
+    public void setAsyncExecutor(Executor executor, int maxConcurrency) {
+        synchronized (lazyInitLock) {
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+            }
+            asyncExecutor = new AsyncExecutor(executor, maxConcurrency);
+        }
+    }
+
+    // Число асинхронных запросов, ожидающих очереди на выполнение.
+    public int getAsyncQueuedCount() {
+        AsyncExecutor async = asyncExecutor;
+        return async != null ? async.getQueuedCount() : 0;
+    }
+
+    // Накопитель приращений счетчиков с отложенной записью (создается при первом обращении,
+    // сбрасывается в БД в close()). См. DeltaAccumulator.
+    public DeltaAccumulator getDeltaAccumulator() {
+        DeltaAccumulator accumulator = deltaAccumulator;
+        if (accumulator == null) {
+            synchronized (lazyInitLock) {
+                accumulator = deltaAccumulator;
+                if (accumulator == null) {
+                    accumulator = new DeltaAccumulator(this);
+                    deltaAccumulator = accumulator;
+                }
+            }
+        }
+        return accumulator;
+    }
+
+    private AsyncExecutor getAsyncExecutor() {
+        AsyncExecutor async = asyncExecutor;
+        if (async == null) {
+            synchronized (lazyInitLock) {
+                async = asyncExecutor;
+                if (async == null) {
+                    async = new AsyncExecutor(pool.getMaxSize());
+                    asyncExecutor = async;
+                }
+            }
+        }
+        return async;
+    }
+
     public void executeUpdate(final String updateQuery) throws SQLException, InterruptedException {
         ensureInitialized();
+        onWrite();
 
         exec(new IExecuteWithConnection<Integer>() {
-            public Integer execute(Connection conn) throws SQLException {
+            public Integer execute(PooledConnection pooledConn) throws SQLException {
+                Connection conn = pooledConn.getConnection();
                 boolean autoCommitBefore = conn.getAutoCommit();
                 Statement statement = null;
                 try {
                     conn.setAutoCommit(true);
                     // Statements allow to issue SQL queries to the database
                     statement = conn.createStatement();
-                    statement.executeUpdate(updateQuery);
+                    long start = System.nanoTime();
+                    int rows = statement.executeUpdate(updateQuery);
+                    onQuery(pooledConn, QueryType.UPDATE, updateQuery, null, System.nanoTime() - start, 0, rows);
                 } finally {
+                    invalidateQueryCache(updateQuery);
                     if (statement != null) {
                         statement.close();
                     }
@@ -99,18 +647,117 @@ public abstract class DBAccess {
         });
     }
 
-    public void executeInTransaction(final IExecuteInTransaction executor) throws SQLException, InterruptedException {
+    // Изменение по запросу с параметрами ('?' в SQL), через кэш подготовленных запросов.
+    // Вернет число измененных строк.
+    public int executeUpdate(final String updateQuery, final Object... params) throws SQLException, InterruptedException {
+        ensureInitialized();
+        onWrite();
+
+        return exec(new IExecuteWithConnection<Integer>() {
+            public Integer execute(PooledConnection pooledConn) throws SQLException {
+                Connection conn = pooledConn.getConnection();
+                StatementCache cache = pooledConn.getStatementCache();
+                boolean autoCommitBefore = conn.getAutoCommit();
+                PreparedStatement statement = null;
+                boolean ok = false;
+                try {
+                    conn.setAutoCommit(true);
+                    statement = cache.prepare(updateQuery, false);
+                    bindParameters(statement, params);
+                    long start = System.nanoTime();
+                    int result = statement.executeUpdate();
+                    onQuery(pooledConn, QueryType.UPDATE, updateQuery, params, System.nanoTime() - start, 0, result);
+                    ok = true;
+                    return result;
+                } finally {
+                    invalidateQueryCache(updateQuery);
+                    if (statement != null) {
+                        release(cache, statement, ok);
+                    }
+                    conn.setAutoCommit(autoCommitBefore);
+                }
+            }
+        });
+    }
+
+    // Выполнит транзакцию с настройками по умолчанию (см. setTransactionSettings()).
+    public void executeInTransaction(IExecuteInTransaction executor) throws SQLException, InterruptedException {
+        executeInTransaction(transactionSettings, executor);
+    }
+
+    // То же с заданным уровнем изоляции (Connection.TRANSACTION_*).
+    public void executeInTransaction(int isolation, IExecuteInTransaction executor) throws SQLException, InterruptedException {
+        TransactionSettings settings = new TransactionSettings(transactionSettings);
+        settings.setIsolation(isolation);
+        executeInTransaction(settings, executor);
+    }
+
+    // Выполнит транзакцию. При ошибке (в т.ч. RuntimeException) - откат.
+    // Deadlock / ошибка сериализации (и конфликт версий, если settings.isRetryOnOptimisticLock()) -
+    // откат и повтор (до settings.getMaxRetries() раз), каждый раз на свободном соединении из пула.
+    public void executeInTransaction(TransactionSettings settings, IExecuteInTransaction executor) throws SQLException, InterruptedException {
+        settings.validate();
+        onWrite();
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                executeInTransactionOnce(settings.getIsolation(), executor);
+                return;
+            } catch (SQLException e) {
+                boolean retryable = e instanceof OptimisticLockException
+                        ? settings.isRetryOnOptimisticLock()
+                        : isRetryableError(e);
+                if (!retryable || attempt >= settings.getMaxRetries()) {
+                    throw e;
+                }
+                metricsListener.onTransactionRetry(attempt + 1, e);
+                Thread.sleep(getRetryBackoffMillis(settings, attempt));
+            }
+        }
+    }
+
+    // Можно ли повторить транзакцию, упавшую с данной ошибкой:
+    // SQLState класса 40 (откат транзакции: deadlock, ошибка сериализации).
+    // Наследники добавляют коды ошибок своей СУБД.
+    protected boolean isRetryableError(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                if (state != null && state.startsWith("40")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Пауза перед повтором: случайная в [0, min(max, base * 2^attempt)] ("full jitter").
+    private static long getRetryBackoffMillis(TransactionSettings settings, int attempt) {
+        long limit = settings.getRetryBackoffMillis() << Math.min(attempt, 20);
+        limit = Math.min(limit, settings.getMaxRetryBackoffMillis());
+        return limit > 0 ? ThreadLocalRandom.current().nextLong(limit + 1) : 0;
+    }
+
+    private void executeInTransactionOnce(final int isolation, final IExecuteInTransaction executor) throws SQLException, InterruptedException {
         ensureInitialized();
 
         exec(new IExecuteWithConnection<Integer>() {
-            public Integer execute(Connection conn) throws SQLException {
+            public Integer execute(PooledConnection pooledConn) throws SQLException {
+                final Connection conn = pooledConn.getConnection();
+                final StatementCache cache = pooledConn.getStatementCache();
                 boolean autoCommitBefore = conn.getAutoCommit();
                 int transactionIsolationBefore = conn.getTransactionIsolation();
                 final List<ResultSet> resultSets = new LinkedList<ResultSet>();
+                final List<PreparedStatement> preparedStatements = new LinkedList<PreparedStatement>();
+                final Set<String> updateQueries = new LinkedHashSet<String>(); // Для сброса кэша результатов.
                 Statement statement = null;
+                boolean ok = false;
+                long transactionStart = System.nanoTime();
 
                 try {
-                    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+                    conn.setTransactionIsolation(isolation);
                     conn.setAutoCommit(false);
 
                     final Statement localStatement = conn.createStatement();
@@ -118,46 +765,154 @@ public abstract class DBAccess {
 
                     IQueryExecutor localExecutor = new IQueryExecutor() {
                         public void executeUpdate(String updateQuery) throws SQLException {
-                            localStatement.executeUpdate(updateQuery);
+                            long start = System.nanoTime();
+                            updateQueries.add(updateQuery);
+                            int rows = localStatement.executeUpdate(updateQuery);
+                            onQuery(pooledConn, QueryType.UPDATE, updateQuery, null, System.nanoTime() - start, 0, rows);
                         }
 
                         public ResultSet executeSelect(String selectQuery) throws SQLException {
+                            long start = System.nanoTime();
                             ResultSet res = localStatement.executeQuery(selectQuery);
+                            onQuery(pooledConn, QueryType.SELECT, selectQuery, null, System.nanoTime() - start, 0, -1);
+                            resultSets.add(res);
+                            return res;
+                        }
+
+                        public int executeUpdate(String updateQuery, Object... params) throws SQLException {
+                            PreparedStatement prepared = prepare(updateQuery, params);
+                            updateQueries.add(updateQuery);
+                            long start = System.nanoTime();
+                            int rows = prepared.executeUpdate();
+                            onQuery(pooledConn, QueryType.UPDATE, updateQuery, params, System.nanoTime() - start, 0, rows);
+                            return rows;
+                        }
+
+                        public ResultSet executeSelect(String selectQuery, Object... params) throws SQLException {
+                            PreparedStatement prepared = prepare(selectQuery, params);
+                            long start = System.nanoTime();
+                            ResultSet res = prepared.executeQuery();
+                            onQuery(pooledConn, QueryType.SELECT, selectQuery, params, System.nanoTime() - start, 0, -1);
                             resultSets.add(res);
                             return res;
                         }
+
+                        public <E> int[] executeBatch(String query, List<E> items, IStatementBinder<? super E> binder, int batchSize) throws SQLException {
+                            int[] counts = new int[items.size()];
+                            updateQueries.add(query);
+                            long start = System.nanoTime();
+                            executeBatches(prepare(query, false), items, binder, batchSize, counts, null);
+                            onQuery(pooledConn, QueryType.BATCH, query, null, System.nanoTime() - start, 0, items.size());
+                            return counts;
+                        }
+
+                        public <E> long[] executeBatchInsert(String query, List<E> items, IStatementBinder<? super E> binder, int batchSize) throws SQLException {
+                            long[] keys = new long[items.size()];
+                            updateQueries.add(query);
+                            long start = System.nanoTime();
+                            executeBatches(prepare(query, true), items, binder, batchSize, new int[items.size()], keys);
+                            onQuery(pooledConn, QueryType.BATCH, query, null, System.nanoTime() - start, 0, items.size());
+                            return keys;
+                        }
+
+                        private PreparedStatement prepare(String query, Object[] params) throws SQLException {
+                            PreparedStatement prepared = prepare(query, false);
+                            bindParameters(prepared, params);
+                            return prepared;
+                        }
+
+                        private PreparedStatement prepare(String query, boolean returnGeneratedKeys) throws SQLException {
+                            PreparedStatement prepared = cache.prepare(query, returnGeneratedKeys);
+                            if (!preparedStatements.contains(prepared)) {
+                                preparedStatements.add(prepared);
+                            }
+                            return prepared;
+                        }
                     };
 
                     executor.execute(localExecutor);
 
                     conn.commit();
-                } catch (SQLException e) {
-                    conn.rollback();
-                    throw e;
+                    ok = true;
                 } finally {
+                    if (!ok) {
+                        rollbackQuietly(conn);
+                    } else {
+                        for (String updateQuery : updateQueries) {
+                            invalidateQueryCache(updateQuery);
+                        }
+                    }
 
                     for (ResultSet resultSet : resultSets) {
                         if (resultSet != null) {
                             resultSet.close();
                         }
                     }
+                    for (PreparedStatement prepared : preparedStatements) {
+                        release(cache, prepared, ok);
+                    }
                     if (statement != null) {
                         statement.close();
                     }
                     conn.setAutoCommit(autoCommitBefore);
                     conn.setTransactionIsolation(transactionIsolationBefore);
+                    metricsListener.onTransaction(ok, System.nanoTime() - transactionStart);
                 }
                 return 0;
             }
         });
     }
 
+    // Откроет курсор (forward-only, read-only) по выборке для построчного чтения без загрузки всей таблицы в память.
+    // Соединение из пула занято, пока курсор открыт: после использования обязательно вызвать cursor.close() !
+    public Cursor openCursor(String selectQuery) throws SQLException, InterruptedException {
+        return openCursor(selectQuery, DEFAULT_FETCH_SIZE);
+    }
+
+    // То же, с параметрами запроса ('?' в SQL).
+    public Cursor openCursor(final String selectQuery, final int fetchSize, final Object... params) throws SQLException, InterruptedException {
+        return read(new IRead<Cursor>() {
+            public Cursor read(DBAccess target) throws SQLException, InterruptedException {
+                return target.openCursorLocal(selectQuery, fetchSize, params);
+            }
+        });
+    }
+
+    private Cursor openCursorLocal(String selectQuery, int fetchSize, Object... params) throws SQLException, InterruptedException {
+        ensureInitialized();
+
+        PooledConnection pooledConn = acquireConnection();
+        PreparedStatement statement = null;
+        try {
+            statement = pooledConn.getConnection().prepareStatement(selectQuery,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(getDialect().getStreamingFetchSize(fetchSize));
+            bindParameters(statement, params);
+            long start = System.nanoTime();
+            ResultSet resultSet = statement.executeQuery();
+            onQuery(pooledConn, QueryType.CURSOR, selectQuery, params, System.nanoTime() - start, 0, -1);
+            return new Cursor(pooledConn, statement, resultSet);
+        } catch (SQLException e) {
+            if (statement != null) {
+                statement.close();
+            }
+            pool.putConnectionBack(pooledConn);
+            throw e;
+        } catch (RuntimeException e) {
+            if (statement != null) {
+                statement.close();
+            }
+            pool.putConnectionBack(pooledConn);
+            throw e;
+        }
+    }
+
     public DatabaseMetaData getMetaData() throws SQLException, InterruptedException {
         ensureInitialized();
 
         return exec(new IExecuteWithConnection<DatabaseMetaData>() {
-            public DatabaseMetaData execute(Connection conn) throws SQLException {
-                return conn.getMetaData();
+            public DatabaseMetaData execute(PooledConnection conn) throws SQLException {
+                return conn.getConnection().getMetaData();
             }
         });
     }
@@ -165,15 +920,175 @@ public abstract class DBAccess {
     private <T> T exec(IExecuteWithConnection<T> executor) throws SQLException, InterruptedException {
         ensureInitialized();
 
-        Connection conn = null;
+        PooledConnection conn = acquireConnection();
         try {
-            conn = pool.getConnection();
             return executor.execute(conn);
         } finally {
             pool.putConnectionBack(conn);
         }
     }
 
+    // Откат после ошибки: исключение отката не должно скрыть исходное.
+    private static void rollbackQuietly(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException ignore) {
+        }
+    }
+
+    private PooledConnection acquireConnection() throws SQLException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            PooledConnection conn = pool.getConnection();
+            long waitNanos = System.nanoTime() - start;
+            conn.setAcquireWaitNanos(waitNanos);
+            metricsListener.onConnectionAcquired(waitNanos);
+            return conn;
+        } catch (ConnectionPoolTimeoutException e) {
+            metricsListener.onPoolTimeout();
+            throw e;
+        }
+    }
+
+    // Выполнен запрос на соединении conn: метрики и журнал медленных запросов.
+    // params - параметры запроса (null - без параметров), нужны только для EXPLAIN.
+    private void onQuery(PooledConnection conn, QueryType type, String sql, Object[] params,
+                         long executeNanos, long processNanos, int rows) {
+        metricsListener.onQuery(type, sql, executeNanos, processNanos, rows);
+        SlowQueryLog log = slowQueryLog;
+        if (log == null) {
+            return;
+        }
+        long waitNanos = conn.takeAcquireWaitNanos();
+        if (log.isSlow(waitNanos + executeNanos + processNanos)) {
+            String explain = isExplainable(type, sql) && log.sampleExplain() ? explain(conn, sql, params) : null;
+            log.add(new SlowQuery(type, sql, waitNanos, executeNanos, processNanos, rows, explain));
+        }
+    }
+
+    // EXPLAIN - только для отдельных запросов выборки/изменения данных. Не для курсора
+    // (его результат еще читается с этого соединения) и не для пакетов.
+    private static boolean isExplainable(QueryType type, String sql) {
+        if (type != QueryType.SELECT && type != QueryType.UPDATE) {
+            return false;
+        }
+        String head = sql.trim();
+        int end = 0;
+        while (end < head.length() && Character.isLetter(head.charAt(end))) {
+            ++end;
+        }
+        String keyword = head.substring(0, end).toUpperCase();
+        return keyword.equals("SELECT") || keyword.equals("WITH") || keyword.equals("UPDATE")
+                || keyword.equals("DELETE") || keyword.equals("INSERT") || keyword.equals("REPLACE");
+    }
+
+    // План запроса: строки результата EXPLAIN (столбцы через " | "). Ошибка - текстом, без исключения.
+    private String explain(PooledConnection conn, String sql, Object[] params) {
+        PreparedStatement statement = null;
+        try {
+            statement = conn.getConnection().prepareStatement(getDialect().getExplainSql(sql));
+            if (params != null) {
+                bindParameters(statement, params);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                StringBuilder plan = new StringBuilder();
+                int columns = resultSet.getMetaData().getColumnCount();
+                while (resultSet.next()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    for (int i = 1; i <= columns; ++i) {
+                        if (i > 1) {
+                            plan.append(" | ");
+                        }
+                        plan.append(resultSet.getString(i));
+                    }
+                }
+                return plan.toString();
+            } finally {
+                resultSet.close();
+            }
+        } catch (SQLException e) {
+            return "EXPLAIN failed: " + e.getMessage();
+        } finally {
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (SQLException ignore) {
+                }
+            }
+        }
+    }
+
+    // Выставит параметры запроса по порядку (с 1).
+    static void bindParameters(PreparedStatement statement, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; ++i) {
+            bindParameters(statement, i + 1, params[i]);
+        }
+    }
+
+    // Выставит один параметр запроса (index - с 1).
+    static void bindParameters(PreparedStatement statement, int index, Object param) throws SQLException {
+        if (param == null) {
+            statement.setNull(index, Types.NULL);
+        } else if (param instanceof Enum) {
+            statement.setString(index, ((Enum<?>) param).name());
+        } else if (param instanceof java.util.Date
+                && !(param instanceof Timestamp)
+                && !(param instanceof java.sql.Date)
+                && !(param instanceof Time)) {
+            statement.setTimestamp(index, new Timestamp(((java.util.Date) param).getTime()));
+        } else {
+            statement.setObject(index, param);
+        }
+    }
+
+    // Выполнит запрос пакетами (addBatch/executeBatch) по batchSize элементов.
+    // counts - число измененных строк на элемент, keys (если не null) - сгенерированные ключи на элемент.
+    private static <T> void executeBatches(PreparedStatement statement, List<T> items, IStatementBinder<? super T> binder,
+                                           int batchSize, int[] counts, long[] keys) throws SQLException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be > 0");
+        }
+
+        int done = 0;
+        int keysRead = 0;
+        int inBatch = 0;
+        for (T item : items) {
+            binder.bind(statement, item);
+            statement.addBatch();
+            if (++inBatch == batchSize || done + inBatch == items.size()) {
+                int[] batchCounts = statement.executeBatch();
+                System.arraycopy(batchCounts, 0, counts, done, batchCounts.length);
+                done += inBatch;
+                inBatch = 0;
+                if (keys != null) {
+                    ResultSet generatedKeys = statement.getGeneratedKeys();
+                    try {
+                        while (generatedKeys.next() && keysRead < keys.length) {
+                            keys[keysRead++] = generatedKeys.getLong(1);
+                        }
+                    } finally {
+                        generatedKeys.close();
+                    }
+                }
+            }
+        }
+        if (keys != null && keysRead != keys.length) {
+            throw new SQLException("Expected " + keys.length + " generated keys, got " + keysRead);
+        }
+    }
+
+    // Вернет запрос в кэш соединения, а после ошибки - выбросит его из кэша.
+    private static void release(StatementCache cache, PreparedStatement statement, boolean ok) throws SQLException {
+        if (ok) {
+            cache.release(statement);
+        } else {
+            cache.invalidate(statement);
+        }
+    }
+
     private void ensureInitialized() {
         if (pool == null) {
             throw new IllegalStateException("Connection pool is null.");
@@ -199,8 +1114,10 @@ public abstract class DBAccess {
         return fullUrl;
     }
 
-    private Connection createNewConnection() throws SQLException {
-        return DriverManager.getConnection(dbUrl, user, password);
+    private PooledConnection createNewConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(dbUrl, user, password);
+        return new PooledConnection(conn,
+                new StatementCache(conn, statementCacheSize, statementCacheHits, statementCacheMisses));
     }
 
 
@@ -212,63 +1129,87 @@ public abstract class DBAccess {
         public void execute(IQueryExecutor queryExecutor) throws SQLException;
     }
 
+    // Сессия чтения с основной БД, см. executeOnPrimary().
+    public static interface IPrimarySession<T> {
+        public T execute(DBAccess dbAccess) throws SQLException, InterruptedException;
+    }
+
+    public static interface ICloseListener {
+        public void onClose(DBAccess dbAccess) throws SQLException, InterruptedException;
+    }
+
+    // Выставляет параметры запроса для одного элемента пакета (см. IQueryExecutor.executeBatch()).
+    public static interface IStatementBinder<T> {
+        public void bind(PreparedStatement statement, T item) throws SQLException;
+    }
+
+    // Выполнение запросов внутри транзакции.
+    // Варианты с параметрами берут PreparedStatement из кэша соединения: повторное выполнение
+    // того же SQL в рамках транзакции закрывает ResultSet, полученный от предыдущего выполнения.
     public static interface IQueryExecutor {
         public void executeUpdate(String updateQuery) throws SQLException;
 
         public ResultSet executeSelect(String selectQuery) throws SQLException;
-    }
 
+        public int executeUpdate(String updateQuery, Object... params) throws SQLException;
 
-    private static interface IExecuteWithConnection<T> {
-        public T execute(Connection conn) throws SQLException;
+        public ResultSet executeSelect(String selectQuery, Object... params) throws SQLException;
+
+        // Пакетное выполнение запроса для всех элементов (addBatch/executeBatch по batchSize штук).
+        // Вернет число измененных строк на каждый элемент.
+        public <T> int[] executeBatch(String query, List<T> items, IStatementBinder<? super T> binder, int batchSize) throws SQLException;
+
+        // То же для INSERT: вернет сгенерированные ключи (по одному на элемент, в порядке items).
+        public <T> long[] executeBatchInsert(String query, List<T> items, IStatementBinder<? super T> binder, int batchSize) throws SQLException;
     }
 
-    // Простой ("fixed-size") пул соединений с ДБ (фиксированного размера,
-    // наполняется по мере необходимости, без таймаутов простоя).
-    private class ConnectionPool {
-        private BlockingQueue<Connection> freeConnections;
-        private volatile int capacity = 0;
-        private volatile int count = 0;
+    // Открытый курсор по выборке (см. openCursor()). Держит соединение из пула до вызова close().
+    public class Cursor implements Closeable {
+        private final PooledConnection conn;
+        private final Statement statement;
+        private final ResultSet resultSet;
+        private boolean closed = false;
 
-        public ConnectionPool(int capacity) {
-            this.capacity = capacity;
-            freeConnections = new ArrayBlockingQueue<Connection>(capacity);
+        private Cursor(PooledConnection conn, Statement statement, ResultSet resultSet) {
+            this.conn = conn;
+            this.statement = statement;
+            this.resultSet = resultSet;
         }
 
-        public Connection getConnection() throws SQLException, InterruptedException {
-            synchronized (this) {
-                if (capacity == 0) {
-                    throw new IllegalStateException("Pool is closed");
-                }
-            }
-
-            if (freeConnections.isEmpty()) {
-                synchronized (this) {
-                    if (count < capacity) {
-                        freeConnections.add(createNewConnection());
-                        count++;
-                    }
-                }
-            }
-            return freeConnections.take();
+        public ResultSet getResultSet() {
+            return resultSet;
         }
 
-        public void putConnectionBack(Connection conn) {
-            if (conn == null) {
-                throw new IllegalArgumentException("Connection is null, url='" + dbUrl + "'");
-            }
-            freeConnections.add(conn);
+        public boolean isClosed() {
+            return closed;
         }
 
-        public void closeAll() throws SQLException, InterruptedException {
-            synchronized (this) {
-                while (count > 0) {
-                    Connection conn = freeConnections.take();
-                    conn.close();
-                    count--;
+        // Закроет выборку и вернет соединение в пул. Повторный вызов ничего не делает.
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                try {
+                    resultSet.close();
+                } finally {
+                    statement.close();
                 }
-                capacity = 0;
+            } catch (SQLException e) {
+                throw new IOException("Error closing cursor", e);
+            } finally {
+                pool.putConnectionBack(conn);
             }
         }
     }
+
+
+    private static interface IRead<T> {
+        public T read(DBAccess target) throws SQLException, InterruptedException;
+    }
+
+    private static interface IExecuteWithConnection<T> {
+        public T execute(PooledConnection conn) throws SQLException;
+    }
 }
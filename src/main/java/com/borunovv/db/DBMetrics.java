@@ -0,0 +1,295 @@
+package com.borunovv.db;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сборщик метрик DBAccess: гистограммы задержек по типам операций и формам SQL,
+ * ожидание соединений из пула, коммиты/откаты, число смапленных строк по сущностям.
+ * Доступен через JMX (registerMBean()).
+ *
+ * Использование:
+ *   DBMetrics metrics = new DBMetrics(dbAccess);  // подключится как слушатель
+ *   metrics.registerMBean("main");
+ *
+ * @author borunovv
+ */
+public class DBMetrics implements MetricsListener, DBMetricsMBean {
+
+    // Ограничение на число различных форм SQL (остальные попадут в OTHER_SHAPE).
+    private static final int MAX_SQL_SHAPES = 1000;
+    private static final String OTHER_SHAPE = "<other>";
+
+    private final DBAccess dbAccess;
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+    private final LatencyHistogram transactions = new LatencyHistogram();
+    private final LatencyHistogram[] byType = new LatencyHistogram[QueryType.values().length];
+    private final LatencyHistogram[] processByType = new LatencyHistogram[QueryType.values().length];
+    private final ConcurrentMap<String, LatencyHistogram> bySqlShape = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<Class<?>, AtomicLong> rowsByEntity = new ConcurrentHashMap<Class<?>, AtomicLong>();
+    private final AtomicLong poolTimeouts = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final AtomicLong transactionRetries = new AtomicLong();
+    private final AtomicLong rowsMapped = new AtomicLong();
+
+    private ObjectName objectName;
+
+    // Создаст сборщик и подключит его к dbAccess как слушатель метрик.
+    public DBMetrics(DBAccess dbAccess) {
+        this.dbAccess = dbAccess;
+        for (int i = 0; i < byType.length; ++i) {
+            byType[i] = new LatencyHistogram();
+            processByType[i] = new LatencyHistogram();
+        }
+        dbAccess.setMetricsListener(this);
+    }
+
+    // ---------------- MetricsListener ----------------
+
+    public void onConnectionAcquired(long waitNanos) {
+        poolWait.record(waitNanos);
+    }
+
+    public void onPoolTimeout() {
+        poolTimeouts.incrementAndGet();
+    }
+
+    public void onQuery(QueryType type, String sql, long executeNanos, long processNanos, int rows) {
+        byType[type.ordinal()].record(executeNanos);
+        if (processNanos > 0) {
+            processByType[type.ordinal()].record(processNanos);
+        }
+        getShapeHistogram(sql).record(executeNanos + processNanos);
+    }
+
+    public void onTransaction(boolean committed, long durationNanos) {
+        (committed ? commits : rollbacks).incrementAndGet();
+        transactions.record(durationNanos);
+    }
+
+    public void onTransactionRetry(int attempt, SQLException cause) {
+        transactionRetries.incrementAndGet();
+    }
+
+    public void onRowsMapped(Class<?> entityClass, int rows) {
+        rowsMapped.addAndGet(rows);
+        AtomicLong counter = rowsByEntity.get(entityClass);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = rowsByEntity.putIfAbsent(entityClass, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.addAndGet(rows);
+    }
+
+    // ---------------- Доступ к гистограммам ----------------
+
+    public LatencyHistogram getPoolWaitHistogram() {
+        return poolWait;
+    }
+
+    public LatencyHistogram getTransactionHistogram() {
+        return transactions;
+    }
+
+    // Время выполнения в БД по типу операции.
+    public LatencyHistogram getHistogram(QueryType type) {
+        return byType[type.ordinal()];
+    }
+
+    // Время обработки результата (IResultSetProcessor) по типу операции.
+    public LatencyHistogram getProcessHistogram(QueryType type) {
+        return processByType[type.ordinal()];
+    }
+
+    // Гистограмма (выполнение + обработка) по форме SQL. Если такой формы не было - null.
+    public LatencyHistogram getSqlShapeHistogram(String sql) {
+        return bySqlShape.get(SqlFingerprint.of(sql));
+    }
+
+    public long getRowsMapped(Class<?> entityClass) {
+        AtomicLong counter = rowsByEntity.get(entityClass);
+        return counter != null ? counter.get() : 0;
+    }
+
+    // ---------------- JMX ----------------
+
+    // Зарегистрирует MBean "com.borunovv.db:type=DBMetrics,name=<name>" в платформенном MBeanServer.
+    public synchronized void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName newName = new ObjectName("com.borunovv.db:type=DBMetrics,name=" + ObjectName.quote(name));
+        try {
+            server.registerMBean(this, newName);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(newName);
+            server.registerMBean(this, newName);
+        }
+        objectName = newName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    public int getPoolTotal() {
+        return dbAccess.getPoolTotalCount();
+    }
+
+    public int getPoolActive() {
+        return dbAccess.getPoolActiveCount();
+    }
+
+    public int getPoolIdle() {
+        return dbAccess.getPoolIdleCount();
+    }
+
+    public int getPoolWaiting() {
+        return dbAccess.getPoolWaitingCount();
+    }
+
+    public long getPoolTimeouts() {
+        return poolTimeouts.get();
+    }
+
+    public long getPoolWaitCount() {
+        return poolWait.getCount();
+    }
+
+    public long getPoolWaitP99Micros() {
+        return micros(poolWait.getPercentileNanos(99));
+    }
+
+    public long getPoolWaitMaxMicros() {
+        return micros(poolWait.getMaxNanos());
+    }
+
+    public long getSelectCount() {
+        return getHistogram(QueryType.SELECT).getCount();
+    }
+
+    public long getSelectP99Micros() {
+        return micros(getHistogram(QueryType.SELECT).getPercentileNanos(99));
+    }
+
+    public long getUpdateCount() {
+        return getHistogram(QueryType.UPDATE).getCount();
+    }
+
+    public long getUpdateP99Micros() {
+        return micros(getHistogram(QueryType.UPDATE).getPercentileNanos(99));
+    }
+
+    public long getBatchCount() {
+        return getHistogram(QueryType.BATCH).getCount();
+    }
+
+    public long getCursorCount() {
+        return getHistogram(QueryType.CURSOR).getCount();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getRollbacks() {
+        return rollbacks.get();
+    }
+
+    public long getTransactionRetries() {
+        return transactionRetries.get();
+    }
+
+    public long getTransactionP99Micros() {
+        return micros(transactions.getPercentileNanos(99));
+    }
+
+    public long getRowsMapped() {
+        return rowsMapped.get();
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("pool: total=").append(getPoolTotal())
+                .append(", active=").append(getPoolActive())
+                .append(", idle=").append(getPoolIdle())
+                .append(", waiting=").append(getPoolWaiting())
+                .append(", timeouts=").append(getPoolTimeouts())
+                .append("\npool wait: ").append(poolWait.summary())
+                .append("\ntransactions: commits=").append(getCommits())
+                .append(", rollbacks=").append(getRollbacks())
+                .append(", retries=").append(getTransactionRetries())
+                .append(", ").append(transactions.summary());
+        for (QueryType type : QueryType.values()) {
+            sb.append('\n').append(type).append(": execute ").append(getHistogram(type).summary())
+                    .append("; process ").append(getProcessHistogram(type).summary());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(bySqlShape).entrySet()) {
+            sb.append("\nsql [").append(entry.getKey()).append("]: ").append(entry.getValue().summary());
+        }
+        for (Map.Entry<Class<?>, AtomicLong> entry : rowsByEntity.entrySet()) {
+            sb.append("\nrows mapped ").append(entry.getKey().getSimpleName()).append(": ").append(entry.getValue().get());
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        poolWait.reset();
+        transactions.reset();
+        for (int i = 0; i < byType.length; ++i) {
+            byType[i].reset();
+            processByType[i].reset();
+        }
+        bySqlShape.clear();
+        rowsByEntity.clear();
+        poolTimeouts.set(0);
+        commits.set(0);
+        rollbacks.set(0);
+        transactionRetries.set(0);
+        rowsMapped.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "DBMetrics{\n" + report() + "\n}";
+    }
+
+    private LatencyHistogram getShapeHistogram(String sql) {
+        String shape = SqlFingerprint.of(sql);
+        LatencyHistogram histogram = bySqlShape.get(shape);
+        if (histogram == null) {
+            if (bySqlShape.size() >= MAX_SQL_SHAPES) {
+                shape = OTHER_SHAPE;
+                histogram = bySqlShape.get(shape);
+                if (histogram != null) {
+                    return histogram;
+                }
+            }
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = bySqlShape.putIfAbsent(shape, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
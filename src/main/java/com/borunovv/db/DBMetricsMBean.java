@@ -0,0 +1,53 @@
+package com.borunovv.db;
+
+/**
+ * JMX-интерфейс метрик DBAccess (см. DBMetrics.registerMBean()).
+ * Времена - в микросекундах.
+ *
+ * @author borunovv
+ */
+public interface DBMetricsMBean {
+
+    public int getPoolTotal();
+
+    public int getPoolActive();
+
+    public int getPoolIdle();
+
+    public int getPoolWaiting();
+
+    public long getPoolTimeouts();
+
+    public long getPoolWaitCount();
+
+    public long getPoolWaitP99Micros();
+
+    public long getPoolWaitMaxMicros();
+
+    public long getSelectCount();
+
+    public long getSelectP99Micros();
+
+    public long getUpdateCount();
+
+    public long getUpdateP99Micros();
+
+    public long getBatchCount();
+
+    public long getCursorCount();
+
+    public long getCommits();
+
+    public long getRollbacks();
+
+    public long getTransactionRetries();
+
+    public long getTransactionP99Micros();
+
+    public long getRowsMapped();
+
+    // Текстовый отчет: по типам операций, по формам SQL, по сущностям.
+    public String report();
+
+    public void reset();
+}
@@ -0,0 +1,393 @@
+package com.borunovv.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Отложенная запись приращений счетчиков (write-behind):
+ * вместо транзакции "SELECT ... FOR UPDATE + UPDATE" на каждый инкремент приращения копятся в памяти
+ * (одна ячейка на строку+столбец, суммируются без блокировок) и периодически сбрасываются в БД
+ * одной транзакцией пакетами "UPDATE `table` SET `column` = `column` + ? WHERE `id` = ?".
+ *
+ * Сброс: раз в flushIntervalMillis (фоновый поток), при накоплении maxPendingKeys разных ячеек,
+ * по вызову flush() и при DBAccess.close(). Если сброс не удался - приращения остаются в памяти
+ * до следующей попытки. Приращения, не сброшенные до падения процесса, теряются:
+ * когда это недопустимо - addAndFlush() (вернется после записи в БД).
+ *
+ * Строка должна существовать: приращение для несуществующей строки не пишется (см. getMissingRows()).
+ * После каждого успешного сброса вызываются IFlushListener-ы (например, чтобы сбросить кэш записанных строк).
+ *
+ * @author borunovv
+ */
+public class DeltaAccumulator {
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+    public static final int DEFAULT_MAX_PENDING_KEYS = 10000;
+    private static final int BATCH_SIZE = 1000;
+
+    private final DBAccess dbAccess;
+    private final int maxPendingKeys;
+    private final ScheduledExecutorService flusher;
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    private volatile Generation current = new Generation();
+    private volatile boolean closed = false;
+    private volatile SQLException lastFlushError;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong missingRows = new AtomicLong();
+
+    private final CopyOnWriteArraySet<IFlushListener> flushListeners = new CopyOnWriteArraySet<IFlushListener>();
+
+    public DeltaAccumulator(DBAccess dbAccess) {
+        this(dbAccess, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_PENDING_KEYS);
+    }
+
+    public DeltaAccumulator(DBAccess dbAccess, long flushIntervalMillis, int maxPendingKeys) {
+        if (flushIntervalMillis <= 0 || maxPendingKeys <= 0) {
+            throw new IllegalArgumentException("Expected flushIntervalMillis > 0 and maxPendingKeys > 0");
+        }
+        this.dbAccess = dbAccess;
+        this.maxPendingKeys = maxPendingKeys;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "db-delta-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushInBackground();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+        // Все накопленное пишется в БД при закрытии dbAccess (пока пул еще открыт).
+        // Если запись не удалась, пул все равно закрывается и приращения теряются (см. DBAccess.close()).
+        dbAccess.addCloseListener(new DBAccess.ICloseListener() {
+            public void onClose(DBAccess dbAccess) throws SQLException, InterruptedException {
+                close();
+            }
+        });
+    }
+
+    // Добавит приращение delta к значению столбца column строки table с idColumn = id.
+    public void add(String table, String column, String idColumn, Object id, long delta) {
+        if (closed) {
+            throw new IllegalStateException("Delta accumulator is closed");
+        }
+        Key key = new Key(table, column, idColumn, id);
+        int stripe = Generation.stripe();
+        while (true) {
+            Generation generation = current;
+            generation.writers.incrementAndGet(stripe);
+            try {
+                // Повторная проверка под счетчиком писателей: close() выставляет closed до сброса,
+                // а сброс ждет писателей - поэтому успевшее попасть в поколение будет записано.
+                if (closed) {
+                    throw new IllegalStateException("Delta accumulator is closed");
+                }
+                // Если поколение уже забрали на сброс - пишем в новое.
+                if (generation == current) {
+                    generation.add(key, delta);
+                    break;
+                }
+            } finally {
+                generation.writers.decrementAndGet(stripe);
+            }
+        }
+        if (current.cells.size() >= maxPendingKeys && flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.execute(new Runnable() {
+                    public void run() {
+                        flushScheduled.set(false);
+                        flushInBackground();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Идет close(): приращение уже в поколении, его запишет итоговый сброс.
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    // То же, но вернется только после записи приращения в БД (в т.ч. вместе с чужими приращениями).
+    public void addAndFlush(String table, String column, String idColumn, Object id, long delta) throws SQLException, InterruptedException {
+        add(table, column, idColumn, id, delta);
+        flush();
+    }
+
+    // Запишет все накопленные приращения в БД одной транзакцией.
+    // При ошибке приращения возвращаются в накопитель (будут записаны при следующем сбросе).
+    public void flush() throws SQLException, InterruptedException {
+        synchronized (flushLock) {
+            Generation generation = current;
+            if (generation.cells.isEmpty()) {
+                return;
+            }
+            current = new Generation();
+            generation.awaitWriters();
+
+            final Map<String, List<Map.Entry<Key, Long>>> bySql = new TreeMap<String, List<Map.Entry<Key, Long>>>();
+            for (Map.Entry<Key, LongAdder> entry : generation.cells.entrySet()) {
+                long delta = entry.getValue().sum();
+                if (delta != 0) {
+                    String sql = entry.getKey().getSql(dbAccess.getDialect());
+                    List<Map.Entry<Key, Long>> list = bySql.get(sql);
+                    if (list == null) {
+                        list = new ArrayList<Map.Entry<Key, Long>>();
+                        bySql.put(sql, list);
+                    }
+                    list.add(new HashMap.SimpleImmutableEntry<Key, Long>(entry.getKey(), delta));
+                }
+            }
+            if (bySql.isEmpty()) {
+                return;
+            }
+            // Один порядок строк у всех сбросов - меньше взаимных блокировок с другими процессами.
+            for (List<Map.Entry<Key, Long>> list : bySql.values()) {
+                Collections.sort(list, BY_ID);
+            }
+
+            final int[] rows = new int[1];
+            try {
+                dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                    public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                        rows[0] = 0;
+                        for (Map.Entry<String, List<Map.Entry<Key, Long>>> entry : bySql.entrySet()) {
+                            int[] counts = queryExecutor.executeBatch(entry.getKey(), entry.getValue(), BINDER, BATCH_SIZE);
+                            for (int count : counts) {
+                                if (count == 0) {
+                                    missingRows.incrementAndGet();
+                                }
+                            }
+                            rows[0] += counts.length;
+                        }
+                    }
+                });
+            } catch (SQLException e) {
+                restore(bySql);
+                throw e;
+            } catch (RuntimeException e) {
+                restore(bySql);
+                throw e;
+            }
+            flushes.incrementAndGet();
+            flushedRows.addAndGet(rows[0]);
+            notifyFlushed(bySql);
+        }
+    }
+
+    // Запретит новые приращения, остановит фоновый сброс и запишет все накопленное.
+    // Если запись не удалась - исключение, а приращения остаются в накопителе (getPendingCount()):
+    // повторный close() или flush() попробует записать их снова (пока открыт пул dbAccess -
+    // при закрытии через DBAccess.close() повтора нет).
+    public void close() throws SQLException, InterruptedException {
+        if (!closed) {
+            closed = true;
+            flusher.shutdown();
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        flush();
+    }
+
+    // Слушатель вызывается после каждого успешного сброса (в потоке сброса). Повторное добавление ничего не делает.
+    public void addFlushListener(IFlushListener listener) {
+        flushListeners.add(listener);
+    }
+
+    public void removeFlushListener(IFlushListener listener) {
+        flushListeners.remove(listener);
+    }
+
+    // Число разных ячеек (строка + столбец), ожидающих сброса.
+    public int getPendingCount() {
+        return current.cells.size();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    // Число записанных в БД строк (по всем сбросам).
+    public long getFlushedRows() {
+        return flushedRows.get();
+    }
+
+    // Число приращений, не записанных из-за отсутствия строки.
+    public long getMissingRows() {
+        return missingRows.get();
+    }
+
+    // Ошибка последнего фонового сброса (null - если последний сброс успешен).
+    public SQLException getLastFlushError() {
+        return lastFlushError;
+    }
+
+    private void flushInBackground() {
+        try {
+            flush();
+            lastFlushError = null;
+        } catch (SQLException e) {
+            lastFlushError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            lastFlushError = new SQLException("Error flushing deltas", e);
+        }
+    }
+
+    // Ошибка слушателя не отменяет сброс (приращения уже в БД).
+    private void notifyFlushed(Map<String, List<Map.Entry<Key, Long>>> bySql) {
+        if (flushListeners.isEmpty()) {
+            return;
+        }
+        for (List<Map.Entry<Key, Long>> list : bySql.values()) {
+            for (Map.Entry<Key, Long> entry : list) {
+                Key key = entry.getKey();
+                for (IFlushListener listener : flushListeners) {
+                    try {
+                        listener.onFlushed(dbAccess, key.table, key.id);
+                    } catch (RuntimeException ignore) {
+                    }
+                }
+            }
+        }
+    }
+
+    private void restore(Map<String, List<Map.Entry<Key, Long>>> bySql) {
+        for (List<Map.Entry<Key, Long>> list : bySql.values()) {
+            for (Map.Entry<Key, Long> entry : list) {
+                // Под flushLock поколение не сменится, писатели его не ждут.
+                current.add(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+
+    private static final Comparator<Map.Entry<Key, Long>> BY_ID = new Comparator<Map.Entry<Key, Long>>() {
+        public int compare(Map.Entry<Key, Long> a, Map.Entry<Key, Long> b) {
+            return String.valueOf(a.getKey().id).compareTo(String.valueOf(b.getKey().id));
+        }
+    };
+
+    private static final DBAccess.IStatementBinder<Map.Entry<Key, Long>> BINDER = new DBAccess.IStatementBinder<Map.Entry<Key, Long>>() {
+        public void bind(PreparedStatement statement, Map.Entry<Key, Long> item) throws SQLException {
+            statement.setLong(1, item.getValue());
+            DBAccess.bindParameters(statement, 2, item.getKey().id);
+        }
+    };
+
+    // Уведомление о записанном в БД (закоммиченном) приращении строки table с ключом id.
+    public static interface IFlushListener {
+        public void onFlushed(DBAccess dbAccess, String table, Object id);
+    }
+
+    // Набор ячеек, в которые пишут до очередного сброса.
+    // Сброс подменяет поколение новым и ждет, пока писатели, успевшие взять старое, закончат.
+    private static final class Generation {
+        private static final int STRIPES = stripeCount();
+
+        final ConcurrentMap<Key, LongAdder> cells = new ConcurrentHashMap<Key, LongAdder>();
+        // Число писателей в процессе add(), по страйпам (чтобы не конкурировать за один счетчик).
+        final AtomicLongArray writers = new AtomicLongArray(STRIPES);
+
+        void add(Key key, long delta) {
+            LongAdder cell = cells.get(key);
+            if (cell == null) {
+                cell = new LongAdder();
+                LongAdder existing = cells.putIfAbsent(key, cell);
+                if (existing != null) {
+                    cell = existing;
+                }
+            }
+            cell.add(delta);
+        }
+
+        void awaitWriters() {
+            for (int i = 0; i < STRIPES; ++i) {
+                while (writers.get(i) != 0) {
+                    Thread.yield();
+                }
+            }
+        }
+
+        static int stripe() {
+            return (int) Thread.currentThread().getId() & (STRIPES - 1);
+        }
+
+        private static int stripeCount() {
+            int count = 1;
+            while (count < Runtime.getRuntime().availableProcessors() * 2) {
+                count <<= 1;
+            }
+            return count;
+        }
+    }
+
+    private static final class Key {
+        final String table;
+        final String column;
+        final String idColumn;
+        final Object id;
+
+        Key(String table, String column, String idColumn, Object id) {
+            if (table == null || column == null || idColumn == null || id == null) {
+                throw new IllegalArgumentException("Expected not null table, column, idColumn and id");
+            }
+            this.table = table;
+            this.column = column;
+            this.idColumn = idColumn;
+            this.id = id;
+        }
+
+        String getSql(Dialect dialect) {
+            String quotedColumn = dialect.quote(column);
+            return "UPDATE " + dialect.quote(table) + " SET " + quotedColumn + " = " + quotedColumn + " + ? WHERE "
+                    + dialect.quote(idColumn) + " = ?";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return id.equals(other.id) && column.equals(other.column)
+                    && table.equals(other.table) && idColumn.equals(other.idColumn);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = table.hashCode();
+            result = 31 * result + column.hashCode();
+            result = 31 * result + idColumn.hashCode();
+            result = 31 * result + id.hashCode();
+            return result;
+        }
+    }
+}
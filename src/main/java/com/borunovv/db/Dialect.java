@@ -0,0 +1,109 @@
+package com.borunovv.db;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Особенности синтаксиса SQL конкретной БД: кавычки имен, LIMIT/OFFSET, многострочный VALUES,
+ * пакетный upsert (вставка или обновление по ключу), план запроса, стриминг курсора.
+ *
+ * У каждого наследника DBAccess - свой диалект (DBAccess.getDialect()), по нему SimpleORM строит запросы.
+ * Экземпляры без состояния, безопасны для использования из разных потоков.
+ *
+ * @author borunovv
+ */
+public abstract class Dialect {
+
+    public static final Dialect MYSQL = new MySQLDialect();
+    public static final Dialect H2 = new H2Dialect();
+
+    // Ограничение числа параметров ('?') в одном запросе (в MySQL - 65535).
+    private static final int MAX_PARAMETERS = 65535;
+
+    protected Dialect() {
+    }
+
+    public abstract String getName();
+
+    // Имя таблицы/столбца в кавычках.
+    public abstract String quote(String identifier);
+
+    // Допишет " LIMIT ?", " LIMIT ? OFFSET ?" или только смещение (параметры - в том же порядке).
+    public void appendLimit(StringBuilder sql, boolean limit, boolean offset) {
+        if (limit) {
+            sql.append(" LIMIT ?");
+        }
+        if (offset) {
+            sql.append(" OFFSET ?");
+        }
+    }
+
+    // Страница по ключу (keyset pagination): первая - " ORDER BY `id` LIMIT ?",
+    // следующие (после ключа) - " WHERE `id` > ? ORDER BY `id` LIMIT ?".
+    public void appendKeysetPage(StringBuilder sql, String keyColumn, boolean first) {
+        String key = quote(keyColumn);
+        if (!first) {
+            sql.append(" WHERE ").append(key).append(" > ?");
+        }
+        sql.append(" ORDER BY ").append(key);
+        appendLimit(sql, true, false);
+    }
+
+    // `c1`, `c2`
+    public void appendColumnList(StringBuilder sql, Collection<String> columns) {
+        boolean first = true;
+        for (String column : columns) {
+            if (!first) {
+                sql.append(", ");
+            }
+            sql.append(quote(column));
+            first = false;
+        }
+    }
+
+    // " VALUES (?, ?), (?, ?)" - rows строк по columns значений.
+    public void appendValues(StringBuilder sql, int columns, int rows) {
+        sql.append(" VALUES ");
+        for (int row = 0; row < rows; ++row) {
+            sql.append(row > 0 ? ", (" : "(");
+            for (int i = 0; i < columns; ++i) {
+                sql.append(i > 0 ? ", ?" : "?");
+            }
+            sql.append(')');
+        }
+    }
+
+    // INSERT INTO `table` (`c1`, `c2`) VALUES (?, ?)[, (?, ?)...]
+    public String getInsertSql(String table, List<String> columns, int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(quote(table)).append(" (");
+        appendColumnList(sql, columns);
+        sql.append(')');
+        appendValues(sql, columns.size(), rows);
+        return sql.toString();
+    }
+
+    // Вставка rows строк одним запросом; строка с уже существующим ключом (keyColumns - первичный
+    // или уникальный ключ) обновляется значениями остальных столбцов. Параметры - по строкам, в порядке columns.
+    public abstract String getUpsertSql(String table, List<String> columns, List<String> keyColumns, int rows);
+
+    // Сколько строк по columns значений можно передать в одном многострочном запросе.
+    public int getMaxRowsPerStatement(int columns) {
+        return Math.max(1, MAX_PARAMETERS / Math.max(1, columns));
+    }
+
+    // Размер выборки (fetch size) для курсора: под особенности драйвера
+    // (например, MySQL стримит строки только при Integer.MIN_VALUE).
+    public int getStreamingFetchSize(int requestedFetchSize) {
+        return requestedFetchSize;
+    }
+
+    // Запрос плана для sql (см. SlowQueryLog).
+    public String getExplainSql(String sql) {
+        return "EXPLAIN " + sql;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -10,6 +10,14 @@ import java.sql.SQLException;
  */
 public class H2Access extends DBAccess {
 
+    // Коды ошибок H2 (org.h2.api.ErrorCode).
+    private static final int LOCK_TIMEOUT = 50200;
+    private static final int CONCURRENT_UPDATE = 90131;
+    private static final int DATABASE_NOT_FOUND = 90013;
+    private static final int CONNECTION_BROKEN = 90067;
+    private static final int DATABASE_IS_CLOSED = 90098;
+    private static final int DATABASE_CALLED_AT_SHUTDOWN = 90121;
+
     public H2Access(String dbUrl, String user, String password) throws SQLException, ClassNotFoundException {
         this(dbUrl, user, password, 1);
     }
@@ -17,5 +25,28 @@ public class H2Access extends DBAccess {
     public H2Access(String dbUrl, String user, String password, int poolSize) throws SQLException, ClassNotFoundException {
         super("org.h2.Driver", "h2", dbUrl, user, password, poolSize);
     }
-}
 
+    public H2Access(String dbUrl, String user, String password, ConnectionPoolSettings poolSettings) throws SQLException, ClassNotFoundException {
+        super("org.h2.Driver", "h2", dbUrl, user, password, poolSettings);
+    }
+
+    @Override
+    public Dialect getDialect() {
+        return Dialect.H2;
+    }
+
+    // Кроме deadlock-а (40001): таймаут блокировки и конфликт параллельного изменения строки (MVCC).
+    @Override
+    protected boolean isRetryableError(SQLException e) {
+        int code = e.getErrorCode();
+        return code == LOCK_TIMEOUT || code == CONCURRENT_UPDATE || super.isRetryableError(e);
+    }
+
+    // Кроме SQLState 08*: нет связи с сервером, БД не найдена или закрыта.
+    @Override
+    protected boolean isConnectionError(SQLException e) {
+        int code = e.getErrorCode();
+        return code == CONNECTION_BROKEN || code == DATABASE_NOT_FOUND || code == DATABASE_IS_CLOSED
+                || code == DATABASE_CALLED_AT_SHUTDOWN || super.isConnectionError(e);
+    }
+}
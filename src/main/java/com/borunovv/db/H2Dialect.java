@@ -0,0 +1,48 @@
+package com.borunovv.db;
+
+import java.util.List;
+
+/**
+ * Диалект H2: upsert - MERGE INTO ... KEY (...) VALUES.
+ *
+ * @author borunovv
+ */
+public class H2Dialect extends Dialect {
+
+    H2Dialect() {
+    }
+
+    @Override
+    public String getName() {
+        return "H2";
+    }
+
+    // `имя` в H2 (как и в MySQL) - без учета регистра, а "имя" - с учетом: с двойными кавычками
+    // не нашлись бы таблицы, созданные без кавычек (H2 хранит такие имена в верхнем регистре).
+    @Override
+    public String quote(String identifier) {
+        return "`" + identifier + "`";
+    }
+
+    @Override
+    public void appendLimit(StringBuilder sql, boolean limit, boolean offset) {
+        if (offset && !limit) {
+            sql.append(" OFFSET ? ROWS");
+            return;
+        }
+        super.appendLimit(sql, limit, offset);
+    }
+
+    // MERGE INTO `t` (`id`, `c1`) KEY (`id`) VALUES (?, ?), (?, ?)
+    // (число измененных строк - по 1 на строку, и при вставке, и при обновлении).
+    @Override
+    public String getUpsertSql(String table, List<String> columns, List<String> keyColumns, int rows) {
+        StringBuilder sql = new StringBuilder("MERGE INTO ").append(quote(table)).append(" (");
+        appendColumnList(sql, columns);
+        sql.append(") KEY (");
+        appendColumnList(sql, keyColumns);
+        sql.append(')');
+        appendValues(sql, columns.size(), rows);
+        return sql.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package com.borunovv.db;
+
+import java.sql.SQLException;
+
+/**
+ * Слушатель метрик DBAccess (см. DBAccess.setMetricsListener()).
+ * Вызывается синхронно в потоке, выполняющем запрос, поэтому реализация должна быть
+ * быстрой, потокобезопасной и по возможности не аллоцировать (см. DBMetrics).
+ *
+ * Для реализации только части методов удобно наследоваться от MetricsListenerAdapter.
+ *
+ * @author borunovv
+ */
+public interface MetricsListener {
+
+    // Ничего не делающий слушатель (по умолчанию).
+    public static final MetricsListener NONE = new MetricsListenerAdapter();
+
+    // Соединение получено из пула после ожидания waitNanos.
+    public void onConnectionAcquired(long waitNanos);
+
+    // Не удалось дождаться соединения из пула (ConnectionPoolTimeoutException).
+    public void onPoolTimeout();
+
+    // Выполнен запрос. executeNanos - выполнение в БД, processNanos - обработка результата
+    // (IResultSetProcessor), rows - число строк (измененных / в пакете), -1 - неизвестно.
+    public void onQuery(QueryType type, String sql, long executeNanos, long processNanos, int rows);
+
+    // Завершена транзакция (committed == false - откат).
+    public void onTransaction(boolean committed, long durationNanos);
+
+    // Транзакция будет повторена (attempt - номер повтора, с 1) из-за ошибки cause
+    // (deadlock, ошибка сериализации, конфликт версий), см. TransactionSettings.
+    public void onTransactionRetry(int attempt, SQLException cause);
+
+    // ORM смапил rows строк в объекты entityClass.
+    public void onRowsMapped(Class<?> entityClass, int rows);
+}
@@ -0,0 +1,29 @@
+package com.borunovv.db;
+
+import java.sql.SQLException;
+
+/**
+ * Пустая реализация MetricsListener (для наследования).
+ *
+ * @author borunovv
+ */
+public class MetricsListenerAdapter implements MetricsListener {
+
+    public void onConnectionAcquired(long waitNanos) {
+    }
+
+    public void onPoolTimeout() {
+    }
+
+    public void onQuery(QueryType type, String sql, long executeNanos, long processNanos, int rows) {
+    }
+
+    public void onTransaction(boolean committed, long durationNanos) {
+    }
+
+    public void onTransactionRetry(int attempt, SQLException cause) {
+    }
+
+    public void onRowsMapped(Class<?> entityClass, int rows) {
+    }
+}
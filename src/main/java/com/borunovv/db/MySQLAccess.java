@@ -10,6 +10,8 @@ import java.sql.*;
  */
 public class MySQLAccess extends DBAccess {
 
+    private static final int LOCK_WAIT_TIMEOUT = 1205; // ER_LOCK_WAIT_TIMEOUT
+
     public MySQLAccess(String dbUrl, String user, String password) throws SQLException, ClassNotFoundException {
         this(dbUrl, user, password, 1);
     }
@@ -17,4 +19,19 @@ public class MySQLAccess extends DBAccess {
     public MySQLAccess(String dbUrl, String user, String password, int poolSize) throws SQLException, ClassNotFoundException {
         super("com.mysql.jdbc.Driver", "mysql", dbUrl, user, password, poolSize);
     }
+
+    public MySQLAccess(String dbUrl, String user, String password, ConnectionPoolSettings poolSettings) throws SQLException, ClassNotFoundException {
+        super("com.mysql.jdbc.Driver", "mysql", dbUrl, user, password, poolSettings);
+    }
+
+    // Кроме deadlock-а (1213, SQLState 40001): таймаут ожидания блокировки (1205, откатывается только запрос).
+    @Override
+    protected boolean isRetryableError(SQLException e) {
+        return e.getErrorCode() == LOCK_WAIT_TIMEOUT || super.isRetryableError(e);
+    }
+
+    @Override
+    public Dialect getDialect() {
+        return Dialect.MYSQL;
+    }
 }
@@ -0,0 +1,74 @@
+package com.borunovv.db;
+
+import java.util.List;
+
+/**
+ * Диалект MySQL: имена в `обратных кавычках`, upsert - INSERT ... ON DUPLICATE KEY UPDATE.
+ *
+ * @author borunovv
+ */
+public class MySQLDialect extends Dialect {
+
+    MySQLDialect() {
+    }
+
+    @Override
+    public String getName() {
+        return "MySQL";
+    }
+
+    @Override
+    public String quote(String identifier) {
+        return "`" + identifier + "`";
+    }
+
+    // OFFSET без LIMIT в MySQL недопустим: "без ограничения" - максимальным значением.
+    @Override
+    public void appendLimit(StringBuilder sql, boolean limit, boolean offset) {
+        if (offset && !limit) {
+            sql.append(" LIMIT ").append(Long.MAX_VALUE).append(" OFFSET ?");
+            return;
+        }
+        super.appendLimit(sql, limit, offset);
+    }
+
+    // INSERT INTO `t` (`id`, `c1`) VALUES (?, ?), (?, ?) ON DUPLICATE KEY UPDATE `c1` = VALUES(`c1`)
+    // (число измененных строк: 1 - вставка, 2 - обновление, 0 - значения не изменились).
+    @Override
+    public String getUpsertSql(String table, List<String> columns, List<String> keyColumns, int rows) {
+        StringBuilder sql = new StringBuilder(getInsertSql(table, columns, rows)).append(" ON DUPLICATE KEY UPDATE ");
+        boolean first = true;
+        for (String column : columns) {
+            if (containsIgnoreCase(keyColumns, column)) {
+                continue;
+            }
+            if (!first) {
+                sql.append(", ");
+            }
+            sql.append(quote(column)).append(" = VALUES(").append(quote(column)).append(')');
+            first = false;
+        }
+        if (first) {
+            // Только ключевые столбцы: обновлять нечего, но синтаксис требует присваивания.
+            String key = quote(keyColumns.get(0));
+            sql.append(key).append(" = ").append(key);
+        }
+        return sql.toString();
+    }
+
+    // Connector/J стримит строки по одной только при fetchSize == Integer.MIN_VALUE
+    // (иначе вычитывает в память всю выборку целиком).
+    @Override
+    public int getStreamingFetchSize(int requestedFetchSize) {
+        return Integer.MIN_VALUE;
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name) {
+        for (String item : names) {
+            if (item.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
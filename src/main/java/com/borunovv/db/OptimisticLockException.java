@@ -0,0 +1,16 @@
+package com.borunovv.db;
+
+import java.sql.SQLException;
+
+/**
+ * Конфликт версий при оптимистической блокировке: строку изменили с момента чтения
+ * (UPDATE ... WHERE version = ? не затронул ни одной строки). Транзакция откатывается.
+ *
+ * @author borunovv
+ */
+public class OptimisticLockException extends SQLException {
+
+    public OptimisticLockException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,61 @@
+package com.borunovv.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Соединение из пула вместе с его кэшем подготовленных запросов
+ * и временными метками для проверки живости/вытеснения.
+ *
+ * @author borunovv
+ */
+class PooledConnection {
+
+    private final Connection connection;
+    private final StatementCache statementCache;
+    private final long createdAtNanos = System.nanoTime();
+    private volatile long lastUsedAtNanos = createdAtNanos;
+    // Ожидание этого соединения в пуле при последнем получении (для журнала медленных запросов).
+    private long acquireWaitNanos;
+
+    PooledConnection(Connection connection, StatementCache statementCache) {
+        this.connection = connection;
+        this.statementCache = statementCache;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    long getCreatedAtNanos() {
+        return createdAtNanos;
+    }
+
+    long getLastUsedAtNanos() {
+        return lastUsedAtNanos;
+    }
+
+    void setAcquireWaitNanos(long acquireWaitNanos) {
+        this.acquireWaitNanos = acquireWaitNanos;
+    }
+
+    // Вернет ожидание при получении и сбросит его: в транзакции оно относится только к первому запросу.
+    long takeAcquireWaitNanos() {
+        long result = acquireWaitNanos;
+        acquireWaitNanos = 0;
+        return result;
+    }
+
+    void touch() {
+        lastUsedAtNanos = System.nanoTime();
+    }
+
+    void close() throws SQLException {
+        statementCache.closeAll();
+        connection.close();
+    }
+}
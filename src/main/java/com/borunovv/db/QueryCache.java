@@ -0,0 +1,281 @@
+package com.borunovv.db;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш результатов выборок (см. DBAccess.executeSelectCached()): ключ - SQL (с нормализованными пробелами)
+ * и значения параметров, значение - неизменяемый снимок строк (ResultSnapshot).
+ *
+ * Каждая запись помечена таблицами, которые читает запрос (FROM/JOIN). Запись через тот же DBAccess
+ * (executeUpdate(), транзакции, а значит и все записи SimpleORM) сбрасывает записи затронутых таблиц;
+ * если таблицы изменяющего запроса определить не удалось - сбрасывается весь кэш.
+ * Изменения в обход этого DBAccess (другие процессы) не отслеживаются: для них - ttlMillis.
+ *
+ * Размер ограничен примерным объемом снимков в памяти (maxBytes), вытесняются давно не читанные записи.
+ * Потокобезопасен.
+ *
+ * @author borunovv
+ */
+public class QueryCache {
+
+    private final long maxBytes;
+    private final long ttlNanos; // 0 - без ограничения.
+
+    // Порядок доступа: первая - давно не читанная.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final Map<String, Set<Key>> keysByTable = new HashMap<String, Set<Key>>();
+    // Версии таблиц (и общая - при полном сбросе) из одного растущего счетчика: выборка, начатая
+    // до сброса своих таблиц, в кэш не попадет (см. getStamp()/putIfNotInvalidated()).
+    private final Map<String, Long> tableVersions = new HashMap<String, Long>();
+    private long globalVersion;
+    private long versionCounter;
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // maxBytes - ограничение на примерный объем снимков, ttlMillis - время жизни записи (0 - без ограничения).
+    public QueryCache(long maxBytes, long ttlMillis) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Expected maxBytes > 0");
+        }
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Expected ttlMillis >= 0");
+        }
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized ResultSnapshot get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.createdNanos >= ttlNanos) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.snapshot;
+    }
+
+    // Метка версий таблиц: запомнить перед выборкой из них.
+    synchronized long getStamp(Set<String> tables) {
+        long stamp = globalVersion;
+        for (String table : tables) {
+            Long version = tableVersions.get(table);
+            if (version != null && version > stamp) {
+                stamp = version;
+            }
+        }
+        return stamp;
+    }
+
+    // Положит снимок, если с момента stamp его таблицы не сбрасывались (иначе он мог устареть)
+    // и он помещается в кэш.
+    synchronized boolean putIfNotInvalidated(Key key, ResultSnapshot snapshot, Set<String> tables, long stamp) {
+        if (getStamp(tables) != stamp || snapshot.getEstimatedBytes() > maxBytes) {
+            return false;
+        }
+        remove(key);
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (bytes + snapshot.getEstimatedBytes() > maxBytes && it.hasNext()) {
+            Map.Entry<Key, Entry> eldest = it.next();
+            it.remove();
+            unlink(eldest.getKey(), eldest.getValue());
+            evictions.incrementAndGet();
+        }
+        entries.put(key, new Entry(snapshot, tables));
+        bytes += snapshot.getEstimatedBytes();
+        for (String table : tables) {
+            Set<Key> keys = keysByTable.get(table);
+            if (keys == null) {
+                keys = new HashSet<Key>();
+                keysByTable.put(table, keys);
+            }
+            keys.add(key);
+        }
+        return true;
+    }
+
+    // Сбросит выборки из заданных таблиц (null - весь кэш).
+    synchronized void invalidate(Set<String> tables) {
+        if (tables == null) {
+            clear();
+            return;
+        }
+        for (String table : tables) {
+            tableVersions.put(table, ++versionCounter);
+            Set<Key> keys = keysByTable.get(table);
+            if (keys == null) {
+                continue;
+            }
+            for (Key key : keys.toArray(new Key[keys.size()])) {
+                if (remove(key)) {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // Сбросит выборки из таблицы (например, измененной в обход DBAccess).
+    public void invalidateTable(String table) {
+        invalidate(SqlTables.getReadTables("FROM " + table));
+    }
+
+    public synchronized void clear() {
+        globalVersion = ++versionCounter;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        keysByTable.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Примерный объем закэшированных снимков.
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryCache{size=" + size() + ", bytes=" + getBytes() + ", maxBytes=" + maxBytes
+                + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ", invalidations=" + getInvalidations() + "}";
+    }
+
+    private boolean remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        unlink(key, entry);
+        return true;
+    }
+
+    private void unlink(Key key, Entry entry) {
+        bytes -= entry.snapshot.getEstimatedBytes();
+        for (String table : entry.tables) {
+            Set<Key> keys = keysByTable.get(table);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByTable.remove(table);
+                }
+            }
+        }
+    }
+
+    // Ключ: SQL с нормализованными пробелами (вне литералов) + копия параметров.
+    static Key key(String sql, Object[] params) {
+        return new Key(normalize(sql), params);
+    }
+
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean inLiteral = false;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); ++i) {
+            char c = sql.charAt(i);
+            if (!inLiteral && Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            if (c == '\'') {
+                inLiteral = !inLiteral;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+
+    static final class Key {
+        private final String sql;
+        private final Object[] params;
+        private final int hash;
+
+        Key(String sql, Object[] params) {
+            Object[] copy = new Object[params.length];
+            for (int i = 0; i < params.length; ++i) {
+                Object param = params[i];
+                if (param instanceof byte[]) {
+                    param = ((byte[]) param).clone();
+                } else if (param instanceof Date) {
+                    param = ((Date) param).clone();
+                }
+                copy[i] = param;
+            }
+            this.sql = sql;
+            this.params = copy;
+            this.hash = 31 * sql.hashCode() + Arrays.deepHashCode(copy);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && sql.equals(other.sql) && Arrays.deepEquals(params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final ResultSnapshot snapshot;
+        final Set<String> tables;
+        final long createdNanos = System.nanoTime();
+
+        Entry(ResultSnapshot snapshot, Set<String> tables) {
+            this.snapshot = snapshot;
+            this.tables = tables;
+        }
+    }
+}
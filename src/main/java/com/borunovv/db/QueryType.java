@@ -0,0 +1,13 @@
+package com.borunovv.db;
+
+/**
+ * Тип операции DBAccess (для метрик).
+ *
+ * @author borunovv
+ */
+public enum QueryType {
+    SELECT,
+    UPDATE,
+    BATCH,
+    CURSOR
+}
@@ -0,0 +1,124 @@
+package com.borunovv.db;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Выбор реплики для чтения (см. DBAccess.addReplica()).
+ *
+ * Балансировка по нагрузке: из двух случайных доступных реплик берется та, у которой
+ * меньше выполняющихся сейчас запросов ("power of two choices" - без глобальной блокировки
+ * и без перекоса на одну реплику, как у "наименее загруженной из всех").
+ *
+ * Реплика, на которой произошла ошибка соединения, исключается на retryAfterMillis,
+ * затем снова получает запросы (первый удачный - снова здорова).
+ *
+ * @author borunovv
+ */
+class ReplicaRouter {
+
+    private final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+    private volatile long retryAfterNanos = TimeUnit.SECONDS.toNanos(5);
+
+    void add(DBAccess dbAccess) {
+        replicas.add(new Replica(dbAccess));
+    }
+
+    boolean isEmpty() {
+        return replicas.isEmpty();
+    }
+
+    List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+    }
+
+    Replica find(DBAccess dbAccess) {
+        for (Replica replica : replicas) {
+            if (replica.dbAccess == dbAccess) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    // Вернет реплику для очередного чтения или null, если доступных нет (читать с основной БД).
+    Replica choose() {
+        return choose(Collections.<Replica>emptyList());
+    }
+
+    // То же, но без реплик из exclude (например, уже занятых для этого чтения).
+    Replica choose(Collection<Replica> exclude) {
+        int size = replicas.size();
+        if (size == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Replica first = replicas.get(random.nextInt(size));
+        Replica second = size > 1 ? replicas.get(random.nextInt(size)) : first;
+        boolean firstOk = first.isAvailable(now) && !exclude.contains(first);
+        boolean secondOk = second.isAvailable(now) && !exclude.contains(second);
+        if (firstOk && secondOk) {
+            return first.inFlight.get() <= second.inFlight.get() ? first : second;
+        }
+        if (firstOk) {
+            return first;
+        }
+        if (secondOk) {
+            return second;
+        }
+        // Обе случайные недоступны - ищем любую доступную.
+        for (Replica replica : replicas) {
+            if (replica.isAvailable(now) && !exclude.contains(replica)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    void markDown(Replica replica) {
+        replica.failures.incrementAndGet();
+        replica.downUntilNanos = System.nanoTime() + retryAfterNanos;
+    }
+
+
+    static final class Replica {
+        final DBAccess dbAccess;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        volatile long downUntilNanos = 0;
+
+        Replica(DBAccess dbAccess) {
+            this.dbAccess = dbAccess;
+        }
+
+        boolean isAvailable(long now) {
+            long downUntil = downUntilNanos;
+            return (downUntil == 0 || now - downUntil >= 0) && !dbAccess.isClosed();
+        }
+
+        void begin() {
+            inFlight.incrementAndGet();
+            reads.incrementAndGet();
+        }
+
+        // ok == false - ошибка реплики или ее пул занят: состояние "недоступна" не сбрасывается.
+        void end(boolean ok) {
+            inFlight.decrementAndGet();
+            if (ok) {
+                downUntilNanos = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.borunovv.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Неизменяемый снимок результата выборки (для QueryCache): описание столбцов и значения
+ * всех строк в одном плоском массиве (строка за строкой), одинаковые строки-значения - один объект.
+ *
+ * openResultSet() отдает независимый read-only ResultSet (только вперед) поверх снимка,
+ * поэтому один снимок можно обрабатывать любым числом IResultSetProcessor-ов, в т.ч. параллельно.
+ * Изменяемые значения (byte[], даты) отдаются копией.
+ *
+ * @author borunovv
+ */
+public final class ResultSnapshot {
+
+    private static final Class<?>[] RESULT_SET_INTERFACES = {ResultSet.class};
+    private static final Class<?>[] METADATA_INTERFACES = {ResultSetMetaData.class};
+
+    private final String[] labels;
+    private final String[] names;
+    private final int[] types;
+    private final String[] typeNames;
+    private final Object[] values;
+    private final int rowCount;
+    private final long estimatedBytes;
+
+    private ResultSnapshot(String[] labels, String[] names, int[] types, String[] typeNames, Object[] values, int rowCount, long estimatedBytes) {
+        this.labels = labels;
+        this.names = names;
+        this.types = types;
+        this.typeNames = typeNames;
+        this.values = values;
+        this.rowCount = rowCount;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    // Прочитает оставшиеся строки resultSet.
+    public static ResultSnapshot of(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columns = metaData.getColumnCount();
+        String[] labels = new String[columns];
+        String[] names = new String[columns];
+        int[] types = new int[columns];
+        String[] typeNames = new String[columns];
+        long bytes = 64;
+        for (int i = 0; i < columns; ++i) {
+            labels[i] = metaData.getColumnLabel(i + 1);
+            names[i] = metaData.getColumnName(i + 1);
+            types[i] = metaData.getColumnType(i + 1);
+            typeNames[i] = metaData.getColumnTypeName(i + 1);
+            bytes += estimateBytes(labels[i]) + estimateBytes(names[i]) + 8;
+        }
+
+        List<Object> values = new ArrayList<Object>();
+        Map<String, String> strings = new HashMap<String, String>();
+        int rows = 0;
+        while (resultSet.next()) {
+            for (int i = 1; i <= columns; ++i) {
+                Object value = readValue(resultSet, i);
+                if (value instanceof String) {
+                    String existing = strings.get(value);
+                    if (existing != null) {
+                        value = existing;
+                    } else {
+                        strings.put((String) value, (String) value);
+                        bytes += estimateBytes(value);
+                    }
+                } else {
+                    bytes += estimateBytes(value);
+                }
+                values.add(value);
+            }
+            ++rows;
+        }
+        bytes += 8L * values.size();
+        return new ResultSnapshot(labels, names, types, typeNames, values.toArray(), rows, bytes);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return labels.length;
+    }
+
+    // Примерный объем в памяти (для ограничения размера кэша).
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    // Новый ResultSet поверх снимка (позиция - перед первой строкой).
+    public ResultSet openResultSet() {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), RESULT_SET_INTERFACES, new Reader());
+    }
+
+    @Override
+    public String toString() {
+        return "ResultSnapshot{rows=" + rowCount + ", columns=" + labels.length + ", bytes=" + estimatedBytes + "}";
+    }
+
+    private static Object readValue(ResultSet resultSet, int index) throws SQLException {
+        Object value = resultSet.getObject(index);
+        if (value instanceof Clob) {
+            Clob clob = (Clob) value;
+            return clob.getSubString(1, (int) clob.length());
+        }
+        if (value instanceof Blob) {
+            Blob blob = (Blob) value;
+            return blob.getBytes(1, (int) blob.length());
+        }
+        return value;
+    }
+
+    private static long estimateBytes(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        if (value instanceof BigDecimal) {
+            return 64;
+        }
+        if (value instanceof java.util.Date) {
+            return 32;
+        }
+        return 16;
+    }
+
+    private static Object copyIfMutable(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof java.util.Date) {
+            return ((java.util.Date) value).clone();
+        }
+        return value;
+    }
+
+    private static SQLException unsupported(Method method) {
+        return new SQLFeatureNotSupportedException("Cached result set does not support " + method.getName() + "()");
+    }
+
+
+    // Курсор по снимку: реализация ResultSet через Proxy. Поддерживается чтение вперед и типизированные
+    // get-методы по индексу/имени столбца, остальное - SQLFeatureNotSupportedException.
+    private final class Reader implements InvocationHandler {
+        private int row = -1;
+        private boolean wasNull;
+        private boolean closed;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "next":
+                    checkOpen();
+                    if (row < rowCount) {
+                        ++row;
+                    }
+                    return row < rowCount;
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "wasNull":
+                    return wasNull;
+                case "getMetaData":
+                    return Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), METADATA_INTERFACES, new MetaData());
+                case "findColumn":
+                    return findColumn((String) args[0]);
+                case "getRow":
+                    return row >= 0 && row < rowCount ? row + 1 : 0;
+                case "isBeforeFirst":
+                    return row < 0 && rowCount > 0;
+                case "isAfterLast":
+                    return row >= rowCount && rowCount > 0;
+                case "isFirst":
+                    return row == 0 && rowCount > 0;
+                case "isLast":
+                    return row == rowCount - 1 && rowCount > 0;
+                case "getType":
+                    return ResultSet.TYPE_FORWARD_ONLY;
+                case "getConcurrency":
+                    return ResultSet.CONCUR_READ_ONLY;
+                case "getHoldability":
+                    return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+                case "getFetchSize":
+                    return rowCount;
+                case "setFetchSize":
+                case "setFetchDirection":
+                case "clearWarnings":
+                    return null;
+                case "getFetchDirection":
+                    return ResultSet.FETCH_FORWARD;
+                case "getStatement":
+                case "getWarnings":
+                    return null;
+                case "isWrapperFor":
+                    return ((Class<?>) args[0]).isInstance(proxy);
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    throw new SQLException("Not a wrapper for " + args[0]);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "ResultSet{" + ResultSnapshot.this + ", row=" + (row + 1) + "}";
+                default:
+                    if (name.startsWith("get") && args != null && args.length >= 1
+                            && (args[0] instanceof Integer || args[0] instanceof String)) {
+                        return get(method, args);
+                    }
+                    throw unsupported(method);
+            }
+        }
+
+        private Object get(Method method, Object[] args) throws SQLException {
+            checkOpen();
+            if (row < 0 || row >= rowCount) {
+                throw new SQLException("No current row");
+            }
+            int column = args[0] instanceof Integer ? (Integer) args[0] : findColumn((String) args[0]);
+            if (column < 1 || column > labels.length) {
+                throw new SQLException("Column index out of range: " + column);
+            }
+            Object value = values[row * labels.length + column - 1];
+            wasNull = value == null;
+            Class<?> type = method.getReturnType();
+            if (method.getName().equals("getObject")) {
+                if (args.length == 2 && args[1] instanceof Class) {
+                    return ((Class<?>) args[1]).cast(convert(value, (Class<?>) args[1], method));
+                }
+                if (args.length > 1) {
+                    throw unsupported(method);
+                }
+                return copyIfMutable(value);
+            }
+            if (args.length > 1) {
+                throw unsupported(method); // getBigDecimal(column, scale), getDate(column, calendar) и т.п.
+            }
+            return convert(value, type, method);
+        }
+
+        // Значение к типу get-метода (как это сделал бы драйвер для "родного" типа столбца).
+        private Object convert(Object value, Class<?> type, Method method) throws SQLException {
+            if (type.isPrimitive()) {
+                if (value == null) {
+                    return type == Boolean.TYPE ? Boolean.FALSE : convertNumber(0, type);
+                }
+                if (type == Boolean.TYPE) {
+                    if (value instanceof Boolean) {
+                        return value;
+                    }
+                    if (value instanceof Number) {
+                        return ((Number) value).intValue() != 0;
+                    }
+                    return Boolean.parseBoolean(value.toString()) || value.toString().equals("1");
+                }
+                if (value instanceof Number) {
+                    return convertNumber((Number) value, type);
+                }
+                if (value instanceof Boolean) {
+                    return convertNumber((Boolean) value ? 1 : 0, type);
+                }
+                try {
+                    return convertNumber(new BigDecimal(value.toString().trim()), type);
+                } catch (NumberFormatException e) {
+                    throw new SQLException("Can't convert '" + value + "' to " + type, e);
+                }
+            }
+            if (value == null) {
+                return null;
+            }
+            if (type.isInstance(value)) {
+                return copyIfMutable(value);
+            }
+            if (type == String.class) {
+                return value instanceof byte[] ? new String((byte[]) value) : value.toString();
+            }
+            if (type == BigDecimal.class) {
+                try {
+                    return new BigDecimal(value.toString().trim());
+                } catch (NumberFormatException e) {
+                    throw new SQLException("Can't convert '" + value + "' to BigDecimal", e);
+                }
+            }
+            if (value instanceof java.util.Date) {
+                long time = ((java.util.Date) value).getTime();
+                if (type == Timestamp.class) {
+                    return new Timestamp(time);
+                } else if (type == java.sql.Date.class) {
+                    return new java.sql.Date(time);
+                } else if (type == java.sql.Time.class) {
+                    return new java.sql.Time(time);
+                }
+            }
+            if (type == Long.class || type == Integer.class || type == Short.class || type == Byte.class
+                    || type == Double.class || type == Float.class) {
+                return convert(value, primitiveOf(type), method);
+            }
+            throw new SQLException("Can't convert " + value.getClass().getSimpleName() + " to "
+                    + type.getSimpleName() + " in " + method.getName() + "()");
+        }
+
+        private Object convertNumber(Number number, Class<?> type) {
+            if (type == Long.TYPE) {
+                return number.longValue();
+            } else if (type == Integer.TYPE) {
+                return number.intValue();
+            } else if (type == Short.TYPE) {
+                return number.shortValue();
+            } else if (type == Byte.TYPE) {
+                return number.byteValue();
+            } else if (type == Double.TYPE) {
+                return number.doubleValue();
+            }
+            return number.floatValue();
+        }
+
+        private Class<?> primitiveOf(Class<?> type) {
+            if (type == Long.class) {
+                return Long.TYPE;
+            } else if (type == Integer.class) {
+                return Integer.TYPE;
+            } else if (type == Short.class) {
+                return Short.TYPE;
+            } else if (type == Byte.class) {
+                return Byte.TYPE;
+            } else if (type == Double.class) {
+                return Double.TYPE;
+            }
+            return Float.TYPE;
+        }
+
+        private int findColumn(String label) throws SQLException {
+            for (int i = 0; i < labels.length; ++i) {
+                if (labels[i].equalsIgnoreCase(label)) {
+                    return i + 1;
+                }
+            }
+            for (int i = 0; i < names.length; ++i) {
+                if (names[i].equalsIgnoreCase(label)) {
+                    return i + 1;
+                }
+            }
+            throw new SQLException("Column not found: " + label);
+        }
+
+        private void checkOpen() throws SQLException {
+            if (closed) {
+                throw new SQLException("Result set is closed");
+            }
+        }
+    }
+
+    // Описание столбцов снимка: реализация ResultSetMetaData через Proxy.
+    private final class MetaData implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getColumnCount")) {
+                return labels.length;
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("toString")) {
+                return "ResultSetMetaData{" + ResultSnapshot.this + "}";
+            }
+            if (args == null || args.length != 1 || !(args[0] instanceof Integer)) {
+                throw unsupported(method);
+            }
+            int column = (Integer) args[0];
+            if (column < 1 || column > labels.length) {
+                throw new SQLException("Column index out of range: " + column);
+            }
+            switch (name) {
+                case "getColumnLabel":
+                    return labels[column - 1];
+                case "getColumnName":
+                    return names[column - 1];
+                case "getColumnType":
+                    return types[column - 1];
+                case "getColumnTypeName":
+                    return typeNames[column - 1];
+                case "isReadOnly":
+                    return true;
+                default:
+                    throw unsupported(method);
+            }
+        }
+    }
+}
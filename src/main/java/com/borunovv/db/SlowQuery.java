@@ -0,0 +1,97 @@
+package com.borunovv.db;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запись журнала медленных запросов (см. SlowQueryLog): запрос, его форма (SqlFingerprint)
+ * и время по этапам - ожидание соединения из пула, выполнение в БД, обработка результата.
+ * Значения параметров не сохраняются. Неизменяемый.
+ *
+ * @author borunovv
+ */
+public final class SlowQuery {
+
+    private final QueryType type;
+    private final String sql;
+    private final String fingerprint;
+    private final long poolWaitNanos;
+    private final long executeNanos;
+    private final long processNanos;
+    private final int rows;
+    private final long timestampMillis;
+    private final String threadName;
+    private final String explain; // План запроса (EXPLAIN), null - не снимался.
+
+    SlowQuery(QueryType type, String sql, long poolWaitNanos, long executeNanos, long processNanos, int rows, String explain) {
+        this.type = type;
+        this.sql = sql;
+        this.fingerprint = SqlFingerprint.of(sql);
+        this.poolWaitNanos = poolWaitNanos;
+        this.executeNanos = executeNanos;
+        this.processNanos = processNanos;
+        this.rows = rows;
+        this.timestampMillis = System.currentTimeMillis();
+        this.threadName = Thread.currentThread().getName();
+        this.explain = explain;
+    }
+
+    public QueryType getType() {
+        return type;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public long getPoolWaitNanos() {
+        return poolWaitNanos;
+    }
+
+    public long getExecuteNanos() {
+        return executeNanos;
+    }
+
+    public long getProcessNanos() {
+        return processNanos;
+    }
+
+    // Полное время: ожидание пула + выполнение + обработка.
+    public long getTotalNanos() {
+        return poolWaitNanos + executeNanos + processNanos;
+    }
+
+    // Число строк (измененных / в пакете), -1 - неизвестно.
+    public int getRows() {
+        return rows;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public String getExplain() {
+        return explain;
+    }
+
+    @Override
+    public String toString() {
+        return "SlowQuery{" +
+                "type=" + type +
+                ", totalMs=" + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) +
+                ", poolWaitMs=" + TimeUnit.NANOSECONDS.toMillis(poolWaitNanos) +
+                ", executeMs=" + TimeUnit.NANOSECONDS.toMillis(executeNanos) +
+                ", processMs=" + TimeUnit.NANOSECONDS.toMillis(processNanos) +
+                ", rows=" + rows +
+                ", sql='" + fingerprint + '\'' +
+                (explain != null ? ", explain='" + explain + '\'' : "") +
+                '}';
+    }
+}
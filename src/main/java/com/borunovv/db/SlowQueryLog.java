@@ -0,0 +1,145 @@
+package com.borunovv.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Журнал медленных запросов: запросы дольше порога (ожидание пула + выполнение + обработка)
+ * попадают в кольцевой буфер последних N записей (старые вытесняются). Для части из них
+ * (setExplainSampleRate()) DBAccess сразу снимает план запроса (EXPLAIN) на том же соединении.
+ *
+ * Использование:
+ *   SlowQueryLog slowLog = new SlowQueryLog(100, 1000); // > 100 мс, последние 1000
+ *   slowLog.setExplainSampleRate(0.1);
+ *   dbAccess.setSlowQueryLog(slowLog);
+ *   ...
+ *   for (SlowQuery query : slowLog.getWorstByFingerprint(10)) { ... }
+ *
+ * Потокобезопасен. Быстрые запросы стоят одного сравнения, блокировка - только при записи медленного.
+ *
+ * @author borunovv
+ */
+public class SlowQueryLog {
+
+    private static final Comparator<SlowQuery> SLOWEST_FIRST = new Comparator<SlowQuery>() {
+        public int compare(SlowQuery a, SlowQuery b) {
+            return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+        }
+    };
+
+    private final long thresholdNanos;
+    private final SlowQuery[] buffer;
+    private long count; // Всего записано (в т.ч. вытесненные).
+    private volatile double explainSampleRate = 0;
+
+    // thresholdMillis - порог (0 - все запросы), capacity - размер буфера.
+    public SlowQueryLog(long thresholdMillis, int capacity) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("Expected thresholdMillis >= 0");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Expected capacity > 0");
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.buffer = new SlowQuery[capacity];
+    }
+
+    public long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    // Доля медленных запросов (SELECT и изменения данных), для которых снимается EXPLAIN:
+    // 0 - никогда (по умолчанию), 1 - всегда. EXPLAIN выполняется в потоке запроса.
+    public void setExplainSampleRate(double explainSampleRate) {
+        if (explainSampleRate < 0 || explainSampleRate > 1) {
+            throw new IllegalArgumentException("Expected explainSampleRate in [0, 1]");
+        }
+        this.explainSampleRate = explainSampleRate;
+    }
+
+    public double getExplainSampleRate() {
+        return explainSampleRate;
+    }
+
+    boolean isSlow(long totalNanos) {
+        return totalNanos >= thresholdNanos;
+    }
+
+    boolean sampleExplain() {
+        double rate = explainSampleRate;
+        return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    synchronized void add(SlowQuery query) {
+        buffer[(int) (count % buffer.length)] = query;
+        ++count;
+    }
+
+    // Всего медленных запросов с момента создания (или clear()), включая вытесненные из буфера.
+    public synchronized long getSlowQueryCount() {
+        return count;
+    }
+
+    // Записи буфера, новые - первыми.
+    public synchronized List<SlowQuery> getRecent() {
+        int size = (int) Math.min(count, buffer.length);
+        List<SlowQuery> result = new ArrayList<SlowQuery>(size);
+        for (int i = 1; i <= size; ++i) {
+            result.add(buffer[(int) ((count - i) % buffer.length)]);
+        }
+        return result;
+    }
+
+    // Самые долгие записи буфера (не больше limit), по убыванию полного времени.
+    public List<SlowQuery> getWorst(int limit) {
+        List<SlowQuery> result = getRecent();
+        Collections.sort(result, SLOWEST_FIRST);
+        return result.subList(0, Math.min(limit, result.size()));
+    }
+
+    // То же, но по одной (самой долгой) записи на форму запроса.
+    public List<SlowQuery> getWorstByFingerprint(int limit) {
+        Map<String, SlowQuery> worst = new LinkedHashMap<String, SlowQuery>();
+        for (SlowQuery query : getRecent()) {
+            SlowQuery current = worst.get(query.getFingerprint());
+            if (current == null || query.getTotalNanos() > current.getTotalNanos()) {
+                worst.put(query.getFingerprint(), query);
+            }
+        }
+        List<SlowQuery> result = new ArrayList<SlowQuery>(worst.values());
+        Collections.sort(result, SLOWEST_FIRST);
+        return result.subList(0, Math.min(limit, result.size()));
+    }
+
+    // Число записей буфера по формам запросов.
+    public Map<String, Integer> countByFingerprint() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (SlowQuery query : getRecent()) {
+            Integer current = result.get(query.getFingerprint());
+            result.put(query.getFingerprint(), current != null ? current + 1 : 1);
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(buffer, null);
+        count = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SlowQueryLog{thresholdMs=" + getThresholdMillis() + ", capacity=" + buffer.length
+                + ", slowQueries=" + getSlowQueryCount() + "}";
+    }
+}
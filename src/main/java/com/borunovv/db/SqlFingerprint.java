@@ -0,0 +1,92 @@
+package com.borunovv.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * "Отпечаток" SQL-запроса: литералы (строки и числа) заменены на '?',
+ * списки "IN (?, ?, ...)" свернуты в "IN (?)", пробелы схлопнуты.
+ * Запросы, отличающиеся только значениями, дают один отпечаток (форму запроса).
+ *
+ * @author borunovv
+ */
+public final class SqlFingerprint {
+
+    private static final int MAX_CACHED = 10000;
+    private static final Pattern VALUE_LIST = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+
+    // Кэш уже посчитанных отпечатков (для запросов с параметрами SQL-строка обычно одна и та же).
+    // Заполненный кэш не сбрасывается (чтобы не вытеснить разом все горячие запросы):
+    // отпечатки новых SQL-строк сверх MAX_CACHED просто считаются каждый раз заново.
+    private static final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
+
+    private SqlFingerprint() {
+    }
+
+    public static String of(String sql) {
+        String fingerprint = cache.get(sql);
+        if (fingerprint == null) {
+            fingerprint = normalize(sql);
+            if (cache.size() < MAX_CACHED) {
+                cache.put(sql, fingerprint);
+            }
+        }
+        return fingerprint;
+    }
+
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // Строковый литерал ('' внутри - экранированная кавычка).
+                i++;
+                while (i < n) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                sb.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierPart(sb)) {
+                // Числовой литерал (но не часть идентификатора вроде t1).
+                while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                sb.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return collapseLists(sb.toString().trim());
+    }
+
+    private static boolean isIdentifierPart(StringBuilder sb) {
+        if (sb.length() == 0) {
+            return false;
+        }
+        char prev = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(prev) || prev == '_' || prev == '`' || prev == '"';
+    }
+
+    // "(?, ?, ?)" -> "(?)"
+    private static String collapseLists(String sql) {
+        return VALUE_LIST.matcher(sql).replaceAll("(?)");
+    }
+}
@@ -0,0 +1,166 @@
+package com.borunovv.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Грубый разбор SQL: какие таблицы запрос читает и какие изменяет (для инвалидации QueryCache).
+ * Имена - в верхнем регистре, без кавычек и схемы. Если изменяемые таблицы определить
+ * не удалось, лучше сбросить весь кэш (см. getWrittenTables()).
+ *
+ * @author borunovv
+ */
+final class SqlTables {
+
+    private SqlTables() {
+    }
+
+    // Таблицы после FROM (включая перечисление через запятую) и JOIN, в т.ч. в подзапросах.
+    static Set<String> getReadTables(String sql) {
+        List<String> tokens = tokenize(sql);
+        Set<String> result = new LinkedHashSet<String>();
+        for (int i = 0; i < tokens.size(); ++i) {
+            String token = tokens.get(i);
+            if (token.equals("JOIN")) {
+                addTable(tokens, i + 1, result);
+            } else if (token.equals("FROM")) {
+                // FROM t1 [alias], t2 [alias], ...
+                int j = i + 1;
+                while (addTable(tokens, j, result)) {
+                    j = skipAlias(tokens, j + 1);
+                    if (j >= tokens.size() || !tokens.get(j).equals(",")) {
+                        break;
+                    }
+                    ++j;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Изменяемые таблицы (INSERT/REPLACE/MERGE/UPDATE/DELETE/TRUNCATE/DROP/ALTER);
+    // для UPDATE/DELETE с JOIN - все упомянутые таблицы. null - не удалось определить.
+    static Set<String> getWrittenTables(String sql) {
+        List<String> tokens = tokenize(sql);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        Set<String> result = new LinkedHashSet<String>();
+        String command = tokens.get(0);
+        int i = 1;
+        if (command.equals("INSERT") || command.equals("REPLACE") || command.equals("MERGE")) {
+            while (i < tokens.size() && (tokens.get(i).equals("IGNORE") || tokens.get(i).equals("INTO"))) {
+                ++i;
+            }
+        } else if (command.equals("UPDATE") || command.equals("DELETE")) {
+            while (i < tokens.size() && (tokens.get(i).equals("IGNORE") || tokens.get(i).equals("FROM"))) {
+                ++i;
+            }
+            result.addAll(getReadTables(sql));
+        } else if (command.equals("TRUNCATE") || command.equals("DROP") || command.equals("ALTER")) {
+            if (i < tokens.size() && tokens.get(i).equals("TABLE")) {
+                ++i;
+            }
+            if (i + 1 < tokens.size() && tokens.get(i).equals("IF") && tokens.get(i + 1).equals("EXISTS")) {
+                i += 2;
+            }
+        } else if (command.equals("CREATE")) {
+            return result; // Новая таблица: закэшированных выборок из нее нет.
+        } else {
+            return null;
+        }
+        if (!addTable(tokens, i, result)) {
+            return null;
+        }
+        return result;
+    }
+
+    // Добавит имя таблицы из tokens[index] (если это имя, а не "(" подзапроса и т.п.).
+    private static boolean addTable(List<String> tokens, int index, Set<String> result) {
+        if (index >= tokens.size()) {
+            return false;
+        }
+        String token = tokens.get(index);
+        if (!isIdentifier(token)) {
+            return false;
+        }
+        int dot = token.lastIndexOf('.');
+        result.add(dot >= 0 ? token.substring(dot + 1) : token);
+        return true;
+    }
+
+    // Пропустит "[AS] alias" после имени таблицы.
+    private static int skipAlias(List<String> tokens, int index) {
+        if (index < tokens.size() && tokens.get(index).equals("AS")) {
+            ++index;
+        }
+        if (index < tokens.size() && isIdentifier(tokens.get(index)) && !isKeyword(tokens.get(index))) {
+            ++index;
+        }
+        return index;
+    }
+
+    private static boolean isIdentifier(String token) {
+        char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isKeyword(String token) {
+        return token.equals("WHERE") || token.equals("JOIN") || token.equals("LEFT") || token.equals("RIGHT")
+                || token.equals("INNER") || token.equals("OUTER") || token.equals("CROSS") || token.equals("ON")
+                || token.equals("GROUP") || token.equals("ORDER") || token.equals("LIMIT") || token.equals("UNION")
+                || token.equals("HAVING") || token.equals("SET") || token.equals("FOR") || token.equals("OFFSET");
+    }
+
+    // Слова (в верхнем регистре, имена в кавычках - без кавычек, "schema.table" - одним словом)
+    // и знаки препинания. Строковые литералы пропускаются.
+    private static List<String> tokenize(String sql) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                flush(word, tokens);
+                for (++i; i < n; ++i) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                            ++i;
+                            continue;
+                        }
+                        break;
+                    }
+                }
+                ++i;
+            } else if (c == '`' || c == '"') {
+                int end = sql.indexOf(c, i + 1);
+                if (end < 0) {
+                    end = n;
+                }
+                word.append(sql, i + 1, end);
+                i = end + 1;
+            } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.') {
+                word.append(c);
+                ++i;
+            } else {
+                flush(word, tokens);
+                if (!Character.isWhitespace(c)) {
+                    tokens.add(String.valueOf(c));
+                }
+                ++i;
+            }
+        }
+        flush(word, tokens);
+        return tokens;
+    }
+
+    private static void flush(StringBuilder word, List<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.toString().toUpperCase());
+            word.setLength(0);
+        }
+    }
+}
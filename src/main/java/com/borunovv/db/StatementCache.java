@@ -0,0 +1,150 @@
+package com.borunovv.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-кэш подготовленных запросов (PreparedStatement) одного соединения.
+ * Живет вместе с соединением в пуле: повторный запрос с тем же SQL не парсится/не планируется заново.
+ *
+ * Выданный (prepare() без release()) запрос при вытеснении не закрывается - его ResultSet еще могут читать
+ * (например, в транзакции с большим числом разных запросов): он закроется в release().
+ *
+ * Не потокобезопасен: соединение (и его кэш) в каждый момент используется только одним потоком.
+ *
+ * @author borunovv
+ */
+class StatementCache {
+
+    private final Connection conn;
+    private final int capacity;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    // Отдельно запросы без и с возвратом сгенерированных ключей (готовятся по-разному).
+    private final Map<String, PreparedStatement> statements;
+    private final Map<String, PreparedStatement> keyStatements;
+    // Выданные и еще не возвращенные запросы; и те из них, что уже вытеснены из кэша.
+    private final Set<PreparedStatement> checkedOut = Collections.newSetFromMap(new IdentityHashMap<PreparedStatement, Boolean>());
+    private final Set<PreparedStatement> evicted = Collections.newSetFromMap(new IdentityHashMap<PreparedStatement, Boolean>());
+
+    // capacity == 0 - кэш выключен (каждый раз готовится новый запрос, закрывается в release()).
+    StatementCache(Connection conn, int capacity, AtomicLong hits, AtomicLong misses) {
+        this.conn = conn;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = newLruMap();
+        this.keyStatements = newLruMap();
+    }
+
+    // Вернет подготовленный запрос (из кэша или новый). После использования - вызвать release().
+    PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException {
+        if (capacity == 0) {
+            misses.incrementAndGet();
+            return doPrepare(sql, returnGeneratedKeys);
+        }
+
+        Map<String, PreparedStatement> map = returnGeneratedKeys ? keyStatements : statements;
+        PreparedStatement statement = map.get(sql);
+        if (statement != null) {
+            hits.incrementAndGet();
+            checkedOut.add(statement);
+        } else {
+            misses.incrementAndGet();
+            statement = doPrepare(sql, returnGeneratedKeys);
+            checkedOut.add(statement);
+            map.put(sql, statement);
+        }
+        return statement;
+    }
+
+    // Вернет запрос в кэш (или закроет, если кэш выключен или запрос уже вытеснен).
+    void release(PreparedStatement statement) throws SQLException {
+        checkedOut.remove(statement);
+        if (capacity == 0 || evicted.remove(statement)) {
+            statement.close();
+        } else {
+            statement.clearParameters();
+        }
+    }
+
+    // Выбросит запрос из кэша и закроет его (например, после ошибки выполнения).
+    void invalidate(PreparedStatement statement) {
+        removeValue(statements, statement);
+        removeValue(keyStatements, statement);
+        checkedOut.remove(statement);
+        evicted.remove(statement);
+        closeQuietly(statement);
+    }
+
+    int size() {
+        return statements.size() + keyStatements.size();
+    }
+
+    void closeAll() {
+        closeAll(statements);
+        closeAll(keyStatements);
+        for (PreparedStatement statement : evicted) {
+            closeQuietly(statement);
+        }
+        evicted.clear();
+        checkedOut.clear();
+    }
+
+    private PreparedStatement doPrepare(String sql, boolean returnGeneratedKeys) throws SQLException {
+        return returnGeneratedKeys ?
+                conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+                conn.prepareStatement(sql);
+    }
+
+    private Map<String, PreparedStatement> newLruMap() {
+        return new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > capacity) {
+                    PreparedStatement statement = eldest.getValue();
+                    if (checkedOut.contains(statement)) {
+                        evicted.add(statement);
+                    } else {
+                        closeQuietly(statement);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private static void removeValue(Map<String, PreparedStatement> map, PreparedStatement statement) {
+        Iterator<PreparedStatement> it = map.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == statement) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    private static void closeAll(Map<String, PreparedStatement> map) {
+        for (PreparedStatement statement : map.values()) {
+            closeQuietly(statement);
+        }
+        map.clear();
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignore) {
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package com.borunovv.db;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Снимок таблицы (или любой выборки) в компактном типизированном бинарном файле:
+ * выгрузка - курсором прямо в FileChannel, загрузка - пакетными INSERT-ами из отображенного в память
+ * (memory-mapped) файла, без разбора SQL-текста на каждую строку.
+ *
+ * Формат (big-endian):
+ *   заголовок: MAGIC, версия формата, число столбцов, по каждому: имя (int длина + UTF-8), тип (byte), java.sql.Types (int);
+ *   блоки по chunkRows строк: CHUNK_MAGIC, число строк, длина данных, CRC32 данных, данные;
+ *     строка: битовая маска NULL-ов, затем непустые значения (long/int/double - как есть,
+ *     строки, DECIMAL и байты - int длина + байты, TIMESTAMP - long миллисекунды + int наносекунды);
+ *   окончание: END_MAGIC, всего строк (long), число блоков (int) - обрезанный файл не загрузится.
+ *
+ * Блоки независимы (своя контрольная сумма), поэтому загружаются параллельно, каждый своей транзакцией.
+ *
+ * Использование:
+ *   TableSnapshot.export(dbAccess, "SELECT * FROM accum", file);
+ *   TableSnapshot.importInto(otherDbAccess, "accum", file, true);
+ *
+ * @author borunovv
+ */
+public final class TableSnapshot {
+
+    public static final int DEFAULT_CHUNK_ROWS = 10000;
+
+    private static final int MAGIC = 0x4F524D53;       // "ORMS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHUNK_MAGIC = 0x43484E4B; // "CHNK"
+    private static final int END_MAGIC = 0x454E4453;   // "ENDS"
+    private static final int CHUNK_HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+    private static final int INITIAL_CHUNK_BYTES = 1 << 20;
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    // Типы значений в файле.
+    private static final byte LONG = 1;
+    private static final byte INT = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte DECIMAL = 5;
+    private static final byte STRING = 6;
+    private static final byte BYTES = 7;
+    private static final byte TIMESTAMP = 8;
+    private static final byte DATE = 9;
+    private static final byte TIME = 10;
+
+    private TableSnapshot() {
+    }
+
+    // ---------------- Выгрузка ----------------
+
+    // Выгрузит выборку в файл (перезапишет его) блоками по DEFAULT_CHUNK_ROWS строк. Вернет число строк.
+    public static long export(DBAccess dbAccess, String selectQuery, Path file) throws SQLException, InterruptedException, IOException {
+        return export(dbAccess, selectQuery, file, DEFAULT_CHUNK_ROWS);
+    }
+
+    // То же с заданным размером блока и параметрами запроса ('?' в SQL).
+    public static long export(DBAccess dbAccess, String selectQuery, Path file, int chunkRows, Object... params) throws SQLException, InterruptedException, IOException {
+        if (chunkRows <= 0) {
+            throw new IllegalArgumentException("chunkRows must be > 0");
+        }
+        DBAccess.Cursor cursor = dbAccess.openCursor(selectQuery, chunkRows, params);
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                return write(cursor.getResultSet(), channel, chunkRows);
+            } finally {
+                channel.close();
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long write(ResultSet resultSet, FileChannel channel, int chunkRows) throws SQLException, IOException {
+        ResultSetMetaData meta = resultSet.getMetaData();
+        int columnCount = meta.getColumnCount();
+        byte[] types = new byte[columnCount];
+        ByteBuffer header = ByteBuffer.allocate(1024);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(columnCount);
+        for (int i = 0; i < columnCount; ++i) {
+            int sqlType = meta.getColumnType(i + 1);
+            types[i] = toValueType(sqlType);
+            byte[] name = meta.getColumnLabel(i + 1).getBytes(StandardCharsets.UTF_8);
+            header = ensure(header, 4 + name.length + 5);
+            header.putInt(name.length).put(name).put(types[i]).putInt(sqlType);
+        }
+        header.flip();
+        writeFully(channel, header);
+
+        int bitmapBytes = (columnCount + 7) / 8;
+        ByteBuffer chunk = ByteBuffer.allocate(INITIAL_CHUNK_BYTES);
+        ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        long totalRows = 0;
+        int chunks = 0;
+        int rowsInChunk = 0;
+        while (resultSet.next()) {
+            chunk = ensure(chunk, bitmapBytes);
+            int bitmapPosition = chunk.position();
+            for (int i = 0; i < bitmapBytes; ++i) {
+                chunk.put((byte) 0);
+            }
+            for (int i = 0; i < columnCount; ++i) {
+                chunk = writeValue(resultSet, i + 1, types[i], chunk);
+                if (resultSet.wasNull()) {
+                    int at = bitmapPosition + i / 8;
+                    chunk.put(at, (byte) (chunk.get(at) | (1 << (i % 8))));
+                }
+            }
+            ++totalRows;
+            if (++rowsInChunk == chunkRows) {
+                writeChunk(channel, chunk, chunkHeader, crc, rowsInChunk);
+                rowsInChunk = 0;
+                ++chunks;
+            }
+        }
+        if (rowsInChunk > 0) {
+            writeChunk(channel, chunk, chunkHeader, crc, rowsInChunk);
+            ++chunks;
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        trailer.putInt(END_MAGIC).putLong(totalRows).putInt(chunks).flip();
+        writeFully(channel, trailer);
+        return totalRows;
+    }
+
+    // Допишет значение столбца (NULL - ничего, пометку в маске ставит вызывающий по wasNull()).
+    private static ByteBuffer writeValue(ResultSet resultSet, int index, byte type, ByteBuffer out) throws SQLException {
+        switch (type) {
+            case LONG: {
+                long value = resultSet.getLong(index);
+                return resultSet.wasNull() ? out : ensure(out, 8).putLong(value);
+            }
+            case INT: {
+                int value = resultSet.getInt(index);
+                return resultSet.wasNull() ? out : ensure(out, 4).putInt(value);
+            }
+            case BOOLEAN: {
+                boolean value = resultSet.getBoolean(index);
+                return resultSet.wasNull() ? out : ensure(out, 1).put((byte) (value ? 1 : 0));
+            }
+            case DOUBLE: {
+                double value = resultSet.getDouble(index);
+                return resultSet.wasNull() ? out : ensure(out, 8).putDouble(value);
+            }
+            case DECIMAL: {
+                BigDecimal value = resultSet.getBigDecimal(index);
+                return value == null ? out : putBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            case BYTES: {
+                byte[] value = resultSet.getBytes(index);
+                return value == null ? out : putBytes(out, value);
+            }
+            case TIMESTAMP: {
+                Timestamp value = resultSet.getTimestamp(index);
+                return value == null ? out : ensure(out, 12).putLong(value.getTime()).putInt(value.getNanos());
+            }
+            case DATE: {
+                Date value = resultSet.getDate(index);
+                return value == null ? out : ensure(out, 8).putLong(value.getTime());
+            }
+            case TIME: {
+                Time value = resultSet.getTime(index);
+                return value == null ? out : ensure(out, 8).putLong(value.getTime());
+            }
+            default: {
+                String value = resultSet.getString(index);
+                return value == null ? out : putBytes(out, value.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void writeChunk(FileChannel channel, ByteBuffer chunk, ByteBuffer chunkHeader, CRC32 crc, int rows) throws IOException {
+        chunk.flip();
+        crc.reset();
+        crc.update(chunk.array(), chunk.arrayOffset(), chunk.limit());
+        chunkHeader.clear();
+        chunkHeader.putInt(CHUNK_MAGIC).putInt(rows).putInt(chunk.limit()).putInt((int) crc.getValue()).flip();
+        writeFully(channel, chunkHeader);
+        writeFully(channel, chunk);
+        chunk.clear();
+    }
+
+    // ---------------- Загрузка ----------------
+
+    // Загрузит файл в таблицу table (столбцы - по именам из файла) пакетными INSERT-ами.
+    // parallel == false - одной транзакцией; true - блоки параллельно (DBAccess.executeAsync()),
+    // каждый своей транзакцией: при ошибке часть блоков может остаться загруженной.
+    // Вернет число строк.
+    public static long importInto(final DBAccess dbAccess, final String table, Path file, boolean parallel) throws SQLException, InterruptedException, IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            final Layout layout = readLayout(channel);
+            final String insertSql = dbAccess.getDialect().getInsertSql(table, Arrays.asList(layout.names), 1);
+            if (!parallel) {
+                dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                    public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                        for (ByteBuffer chunk : layout.chunks) {
+                            insertChunk(queryExecutor, insertSql, layout, chunk);
+                        }
+                    }
+                });
+                return layout.totalRows;
+            }
+
+            List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>(layout.chunks.size());
+            for (final ByteBuffer chunk : layout.chunks) {
+                parts.add(dbAccess.executeAsync(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                            public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                                insertChunk(queryExecutor, insertSql, layout, chunk);
+                            }
+                        });
+                        return null;
+                    }
+                }));
+            }
+            for (CompletableFuture<Void> part : parts) {
+                DBAccess.await(part, parts);
+            }
+            return layout.totalRows;
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Число строк в файле (по окончанию файла, без проверки блоков).
+    public static long getRowCount(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return readTrailer(channel).getLong(4);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void insertChunk(DBAccess.IQueryExecutor queryExecutor, String insertSql,
+                                    final Layout layout, ByteBuffer chunk) throws SQLException {
+        // Своя позиция чтения на каждую попытку транзакции (и на каждый поток).
+        final ByteBuffer data = chunk.duplicate();
+        int rows = data.getInt(4);
+        data.position(CHUNK_HEADER_SIZE);
+        // Строки читаются из буфера по порядку: элемент списка - тот же буфер.
+        queryExecutor.executeBatch(insertSql, Collections.nCopies(rows, data), new DBAccess.IStatementBinder<ByteBuffer>() {
+            public void bind(PreparedStatement statement, ByteBuffer in) throws SQLException {
+                layout.bindRow(statement, in);
+            }
+        }, INSERT_BATCH_SIZE);
+    }
+
+    // Прочитает заголовок и окончание, отобразит блоки в память и проверит их контрольные суммы.
+    private static Layout readLayout(FileChannel channel) throws IOException {
+        ByteBuffer trailer = readTrailer(channel);
+        long totalRows = trailer.getLong(4);
+        int chunkCount = trailer.getInt(12);
+        long end = channel.size() - TRAILER_SIZE;
+
+        ByteBuffer fixed = readAt(channel, 0, 12);
+        if (fixed.getInt(0) != MAGIC) {
+            throw new IOException("Not a table snapshot file");
+        }
+        if (fixed.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot format version " + fixed.getInt(4));
+        }
+        int columnCount = fixed.getInt(8);
+        long position = 12;
+        String[] names = new String[columnCount];
+        byte[] types = new byte[columnCount];
+        int[] sqlTypes = new int[columnCount];
+        for (int i = 0; i < columnCount; ++i) {
+            int length = readAt(channel, position, 4).getInt(0);
+            ByteBuffer column = readAt(channel, position + 4, length + 5);
+            byte[] name = new byte[length];
+            column.get(name);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            types[i] = column.get();
+            sqlTypes[i] = column.getInt();
+            position += 4 + length + 5;
+        }
+
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(chunkCount);
+        long rows = 0;
+        CRC32 crc = new CRC32();
+        while (position < end) {
+            ByteBuffer chunkHeader = readAt(channel, position, CHUNK_HEADER_SIZE);
+            if (chunkHeader.getInt(0) != CHUNK_MAGIC) {
+                throw new IOException("Corrupted snapshot: bad chunk header at offset " + position);
+            }
+            int length = chunkHeader.getInt(8);
+            if (length < 0 || position + CHUNK_HEADER_SIZE + length > end) {
+                throw new IOException("Corrupted snapshot: bad chunk length at offset " + position);
+            }
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, CHUNK_HEADER_SIZE + length);
+            ByteBuffer payload = chunk.duplicate();
+            payload.position(CHUNK_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != chunkHeader.getInt(12)) {
+                throw new IOException("Corrupted snapshot: checksum mismatch in chunk " + chunks.size());
+            }
+            chunks.add(chunk);
+            rows += chunkHeader.getInt(4);
+            position += CHUNK_HEADER_SIZE + length;
+        }
+        if (chunks.size() != chunkCount || rows != totalRows) {
+            throw new IOException("Corrupted snapshot: expected " + chunkCount + " chunks / " + totalRows
+                    + " rows, found " + chunks.size() + " / " + rows);
+        }
+        return new Layout(names, types, sqlTypes, chunks, totalRows);
+    }
+
+    private static ByteBuffer readTrailer(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < 12 + TRAILER_SIZE) {
+            throw new IOException("Not a table snapshot file (too short)");
+        }
+        ByteBuffer trailer = readAt(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+        if (trailer.getInt(0) != END_MAGIC) {
+            throw new IOException("Corrupted snapshot: file is truncated or not a snapshot");
+        }
+        return trailer;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Corrupted snapshot: unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // ---------------- Вспомогательное ----------------
+
+    private static byte toValueType(int sqlType) {
+        switch (sqlType) {
+            case Types.BIGINT:
+                return LONG;
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return INT;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return BOOLEAN;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BYTES;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.DATE:
+                return DATE;
+            case Types.TIME:
+                return TIME;
+            default:
+                return STRING;
+        }
+    }
+
+    private static ByteBuffer putBytes(ByteBuffer out, byte[] bytes) {
+        return ensure(out, 4 + bytes.length).putInt(bytes.length).put(bytes);
+    }
+
+    // Буфер с местом еще на bytes байт (при нехватке - вдвое больше, с копией данных).
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    // Описание файла: столбцы и отображенные в память блоки (с заголовком блока).
+    private static final class Layout {
+        final String[] names;
+        final byte[] types;
+        final int[] sqlTypes;
+        final List<ByteBuffer> chunks;
+        final long totalRows;
+        final int bitmapBytes;
+
+        Layout(String[] names, byte[] types, int[] sqlTypes, List<ByteBuffer> chunks, long totalRows) {
+            this.names = names;
+            this.types = types;
+            this.sqlTypes = sqlTypes;
+            this.chunks = chunks;
+            this.totalRows = totalRows;
+            this.bitmapBytes = (names.length + 7) / 8;
+        }
+
+        // Прочитает очередную строку из in и выставит ее параметрами запроса.
+        void bindRow(PreparedStatement statement, ByteBuffer in) throws SQLException {
+            int bitmapPosition = in.position();
+            in.position(bitmapPosition + bitmapBytes);
+            for (int i = 0; i < types.length; ++i) {
+                int index = i + 1;
+                if ((in.get(bitmapPosition + i / 8) & (1 << (i % 8))) != 0) {
+                    statement.setNull(index, sqlTypes[i]);
+                    continue;
+                }
+                switch (types[i]) {
+                    case LONG:
+                        statement.setLong(index, in.getLong());
+                        break;
+                    case INT:
+                        statement.setInt(index, in.getInt());
+                        break;
+                    case BOOLEAN:
+                        statement.setBoolean(index, in.get() != 0);
+                        break;
+                    case DOUBLE:
+                        statement.setDouble(index, in.getDouble());
+                        break;
+                    case DECIMAL:
+                        statement.setBigDecimal(index, new BigDecimal(readString(in)));
+                        break;
+                    case BYTES: {
+                        byte[] bytes = new byte[in.getInt()];
+                        in.get(bytes);
+                        statement.setBytes(index, bytes);
+                        break;
+                    }
+                    case TIMESTAMP: {
+                        Timestamp value = new Timestamp(in.getLong());
+                        value.setNanos(in.getInt());
+                        statement.setTimestamp(index, value);
+                        break;
+                    }
+                    case DATE:
+                        statement.setDate(index, new Date(in.getLong()));
+                        break;
+                    case TIME:
+                        statement.setTime(index, new Time(in.getLong()));
+                        break;
+                    default:
+                        statement.setString(index, readString(in));
+                        break;
+                }
+            }
+        }
+    }
+}
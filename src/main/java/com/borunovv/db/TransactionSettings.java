@@ -0,0 +1,104 @@
+package com.borunovv.db;
+
+import java.sql.Connection;
+
+/**
+ * Настройки транзакции (см. DBAccess.executeInTransaction()): уровень изоляции и повторы.
+ *
+ * Транзакция, упавшая из-за deadlock-а или ошибки сериализации (см. DBAccess.isRetryableError()),
+ * откатывается и выполняется заново, не более maxRetries раз, с паузой случайной длины
+ * (экспоненциально растущий предел, чтобы конкурирующие потоки не сталкивались повторно).
+ * Поэтому IExecuteInTransaction может быть вызван несколько раз и не должен иметь побочных эффектов вне БД.
+ *
+ * @author borunovv
+ */
+public class TransactionSettings {
+
+    private int isolation = Connection.TRANSACTION_SERIALIZABLE;
+    private int maxRetries = 3;                   // Сколько раз повторять (0 - не повторять).
+    private long retryBackoffMillis = 10;         // Предел паузы перед первым повтором (далее удваивается).
+    private long maxRetryBackoffMillis = 1000;    // Максимальный предел паузы.
+    private boolean retryOnOptimisticLock = false; // Повторять при OptimisticLockException (если транзакция перечитывает данные).
+
+    public TransactionSettings() {
+    }
+
+    public TransactionSettings(int isolation) {
+        this.isolation = isolation;
+    }
+
+    public TransactionSettings(TransactionSettings other) {
+        this.isolation = other.isolation;
+        this.maxRetries = other.maxRetries;
+        this.retryBackoffMillis = other.retryBackoffMillis;
+        this.maxRetryBackoffMillis = other.maxRetryBackoffMillis;
+        this.retryOnOptimisticLock = other.retryOnOptimisticLock;
+    }
+
+    // Один из Connection.TRANSACTION_*.
+    public int getIsolation() {
+        return isolation;
+    }
+
+    public void setIsolation(int isolation) {
+        this.isolation = isolation;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    public long getMaxRetryBackoffMillis() {
+        return maxRetryBackoffMillis;
+    }
+
+    public void setMaxRetryBackoffMillis(long maxRetryBackoffMillis) {
+        this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+    }
+
+    public boolean isRetryOnOptimisticLock() {
+        return retryOnOptimisticLock;
+    }
+
+    public void setRetryOnOptimisticLock(boolean retryOnOptimisticLock) {
+        this.retryOnOptimisticLock = retryOnOptimisticLock;
+    }
+
+    void validate() {
+        if (isolation != Connection.TRANSACTION_READ_UNCOMMITTED
+                && isolation != Connection.TRANSACTION_READ_COMMITTED
+                && isolation != Connection.TRANSACTION_REPEATABLE_READ
+                && isolation != Connection.TRANSACTION_SERIALIZABLE) {
+            throw new IllegalArgumentException("Unknown transaction isolation: " + isolation);
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must be >= 0");
+        }
+        if (retryBackoffMillis < 0 || maxRetryBackoffMillis < retryBackoffMillis) {
+            throw new IllegalArgumentException("Expected 0 <= retryBackoffMillis <= maxRetryBackoffMillis");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionSettings{" +
+                "isolation=" + isolation +
+                ", maxRetries=" + maxRetries +
+                ", retryBackoffMillis=" + retryBackoffMillis +
+                ", maxRetryBackoffMillis=" + maxRetryBackoffMillis +
+                ", retryOnOptimisticLock=" + retryOnOptimisticLock +
+                '}';
+    }
+}
@@ -1,10 +1,14 @@
 package com.borunovv.orm;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.Date;
 import java.util.Map;
 
 /**
@@ -15,17 +19,46 @@ import java.util.Map;
 public class BeanUtils {
 
     // Создает экземпляр заданного класса (POJO) и инициализирует его свойства (через вызов set-методов).
-    public static <T> T newInstance(Map<String, String> params, Class<T> clazz) throws IllegalAccessException, InstantiationException, InvocationTargetException {
-        Map<Field, String> fieldMapping = getFieldMapping(clazz);
-        T obj = clazz.newInstance();
-        for (Field field : fieldMapping.keySet()) {
-            setFieldValue(clazz, obj, field, findIgnoreCase(params, fieldMapping.get(field)));
+    // Значения - либо уже типизированные объекты, либо строки (будут разобраны конвертером поля).
+    public static <T> T newInstance(Map<String, ?> params, Class<T> clazz) throws IllegalAccessException, InstantiationException, InvocationTargetException {
+        return newInstance(params, EntityMetadata.of(clazz));
+    }
+
+    // То же, но по уже найденным метаданным (без повторной рефлексии класса).
+    public static <T> T newInstance(Map<String, ?> params, EntityMetadata<T> metadata) throws IllegalAccessException, InstantiationException, InvocationTargetException {
+        return newInstance(params, metadata, false);
+    }
+
+    // skipMissing == true - поля, для которых нет значения в params, не трогаем (иначе - исключение).
+    static <T> T newInstance(Map<String, ?> params, EntityMetadata<T> metadata, boolean skipMissing) throws IllegalAccessException, InstantiationException, InvocationTargetException {
+        T obj = metadata.getEntityClass().newInstance();
+        for (ColumnMetadata column : metadata.getColumns()) {
+            if (skipMissing && !containsIgnoreCase(params, column.getColumnName())) {
+                continue;
+            }
+            Object value = findIgnoreCase(params, column.getColumnName());
+            if (value instanceof String && column.getType() != String.class) {
+                value = column.getConverter().fromString((String) value);
+            }
+            column.getSetter().invoke(obj, value);
         }
         return obj;
     }
 
+    private static boolean containsIgnoreCase(Map<String, ?> params, String key) {
+        if (params.containsKey(key)) {
+            return true;
+        }
+        for (String curKey : params.keySet()) {
+            if (curKey.equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Поиск по ключу в мапе без учета регистра.
-    private static String findIgnoreCase(Map<String, String> params, String key) {
+    private static <V> V findIgnoreCase(Map<String, V> params, String key) {
         if (params.containsKey(key)) {
             return params.get(key);
         }
@@ -37,33 +70,65 @@ public class BeanUtils {
         throw new IllegalArgumentException("Expected value for column '" + key + "'");
     }
 
-    // Ищет и вызывает соответствующий set-метод для заданного поля (field).
-    private static <T> void setFieldValue(Class<T> clazz, T obj, Field field, String value) throws InvocationTargetException, IllegalAccessException {
-        String setterName = getSetterName(field);
-        Method setter = findMethod(clazz, setterName);
-        setter.invoke(obj, convertToType(field.getType(), value));
+    // Запишет целочисленное значение (например, сгенерированный ключ) в числовое поле, приведя к его типу.
+    static void setNumericValue(ColumnMetadata column, Object obj, long value) {
+        Class<?> type = column.getType();
+        if (type == Long.TYPE || type == Long.class) {
+            column.setValue(obj, value);
+        } else if (type == Integer.TYPE || type == Integer.class) {
+            column.setValue(obj, (int) value);
+        } else if (type == Short.TYPE || type == Short.class) {
+            column.setValue(obj, (short) value);
+        } else if (type == String.class) {
+            column.setValue(obj, String.valueOf(value));
+        } else {
+            throw new IllegalArgumentException("Can't assign numeric value to field '" + column.getFieldName()
+                    + "' of type '" + type.getSimpleName() + "'");
+        }
     }
 
-    // Недоделано (для учебных целей пойдет):
-    // конвертит из String в заданный тип. Пока только из строки в long/Long/String.
-    private static <T> Object convertToType(Class<T> type, String value) {
-        if (String.class == type) {
-            return value;
-        } else if (Long.TYPE == type || Long.class == type) {
-            return Long.parseLong(value);
-        } else {
-            throw new IllegalArgumentException("TODO: not implemented conversion from String to '" + type.getSimpleName() + "'");
+    // Изменяемое значение поля (массивы, даты) - копией, остальные (неизменяемые) - как есть.
+    // Используется сгенерированными мапперами (EntityMapper.copy()).
+    public static Object copyValue(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).clone();
         }
+        return value;
     }
 
-    // Веренет set-метод для заданного поля.
-    private static String getSetterName(Field field) {
-        String fieldName = field.getName();
-        return "set" + fieldName.substring(0, 1).toUpperCase() + fieldName.substring(1);
+    // Изменяемый ли тип поля (значение надо копировать, см. copyValue()).
+    static boolean isMutableType(Class<?> type) {
+        return type == byte[].class || Date.class.isAssignableFrom(type);
+    }
+
+    // Значение замапленного поля (примитивы - в обертке).
+    static Object getFieldValue(ColumnMetadata column, Object obj) {
+        return column.getValue(obj);
+    }
+
+    // Веренет имя set-метода для заданного поля.
+    static String getSetterName(Field field) {
+        return "set" + capitalize(field.getName());
+    }
+
+    // Вернет get-метод (или is-метод для boolean) для заданного поля. Если нету - null.
+    static Method findGetter(Class<?> clazz, Field field) {
+        String name = capitalize(field.getName());
+        for (Method method : clazz.getMethods()) {
+            if (method.getParameterTypes().length == 0
+                    && (method.getName().equals("get" + name)
+                    || (field.getType() == Boolean.TYPE && method.getName().equals("is" + name)))) {
+                return method;
+            }
+        }
+        return null;
     }
 
     // Ищет медод класса по имени.
-    private static <T> Method findMethod(Class<T> clazz, String name) {
+    static <T> Method findMethod(Class<T> clazz, String name) {
         for (Method method : clazz.getMethods()) {
             if (method.getName().equals(name)) {
                 return method;
@@ -72,19 +137,44 @@ public class BeanUtils {
         throw new IllegalArgumentException("No method '" + name + "' found in class '" + clazz.getSimpleName() + "'");
     }
 
-    // Ищет все поля класса с аннотацией @DBColumn и возвращает мапу [поле,имя столбца в БД]
-    private static Map<Field, String> getFieldMapping(Class clazz) {
-        Map<Field, String> res = new HashMap<Field, String>();
+    // Вернет MethodHandle для прямой записи в поле (в обход set-метода), тип (Object, valueType)void.
+    static MethodHandle fieldSetterHandle(Field field, Class<?> valueType) {
+        try {
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectSetter(field)
+                    .asType(MethodType.methodType(void.class, Object.class, valueType));
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Can't access field '" + field.getName() + "'", e);
+        }
+    }
 
-        for (Field field : clazz.getDeclaredFields()) {
-            Annotation column = field.getAnnotation(DBColumn.class);
-            if (column != null) {
-                String columnName = ((DBColumn) column).value();
-                res.put(field, columnName);
-            }
+    // Вернет MethodHandle для прямого чтения поля (в обход get-метода), тип (Object)valueType.
+    static MethodHandle fieldGetterHandle(Field field, Class<?> valueType) {
+        try {
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field)
+                    .asType(MethodType.methodType(valueType, Object.class));
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Can't access field '" + field.getName() + "'", e);
         }
+    }
+
+    // Вернет MethodHandle конструктора по умолчанию, тип ()Object.
+    static MethodHandle constructorHandle(Class<?> clazz) {
+        try {
+            Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor)
+                    .asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No default constructor found in class '" + clazz.getSimpleName() + "'", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Can't access default constructor of class '" + clazz.getSimpleName() + "'", e);
+        }
+    }
 
-        return res;
+    private static String capitalize(String name) {
+        return name.substring(0, 1).toUpperCase() + name.substring(1);
     }
 
     // Вернет аннотацию к классу по типу аннотации. Если нету - null.
@@ -0,0 +1,71 @@
+package com.borunovv.orm;
+
+/**
+ * Снимок статистики кэша сущностей (см. SimpleORM.getCacheStats()).
+ *
+ * @author borunovv
+ */
+public final class CacheStats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final long invalidations;
+    private final int size;
+
+    CacheStats(long hits, long misses, long evictions, long expirations, long invalidations, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.invalidations = invalidations;
+        this.size = size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    // Доля попаданий (0..1), 0 - если обращений не было.
+    public double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    // Вытеснено по размеру.
+    public long getEvictions() {
+        return evictions;
+    }
+
+    // Удалено по истечении TTL.
+    public long getExpirations() {
+        return expirations;
+    }
+
+    // Удалено из-за записи через ORM.
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", hitRatio=" + String.format("%.3f", getHitRatio()) +
+                ", evictions=" + evictions +
+                ", expirations=" + expirations +
+                ", invalidations=" + invalidations +
+                ", size=" + size +
+                '}';
+    }
+}
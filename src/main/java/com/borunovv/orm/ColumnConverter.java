@@ -0,0 +1,66 @@
+package com.borunovv.orm;
+
+import java.lang.invoke.MethodHandle;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Конвертер значения столбца БД <-> значение поля сущности.
+ * Читает/пишет нативными JDBC-методами (getLong/setLong и т.п.), без промежуточной строки.
+ *
+ * Для примитивных типов readInto()/writeFrom() переопределены так,
+ * чтобы значение шло из ResultSet в поле (и из поля в PreparedStatement) без боксинга.
+ *
+ * @author borunovv
+ */
+public abstract class ColumnConverter {
+
+    private final Class<?> javaType;
+    private final int sqlType; // Код из java.sql.Types (для setNull).
+
+    protected ColumnConverter(Class<?> javaType, int sqlType) {
+        this.javaType = javaType;
+        this.sqlType = sqlType;
+    }
+
+    public Class<?> getJavaType() {
+        return javaType;
+    }
+
+    public int getSqlType() {
+        return sqlType;
+    }
+
+    // Прочитает значение столбца (null, если в БД NULL и тип не примитивный).
+    public abstract Object read(ResultSet resultSet, int index) throws SQLException;
+
+    // Выставит значение параметра запроса (value == null -> setNull()).
+    public abstract void write(PreparedStatement statement, int index, Object value) throws SQLException;
+
+    // Разбор значения из строки (для BeanUtils.newInstance() по мапе строк).
+    public abstract Object fromString(String value);
+
+    // Тип значения, которым оперируют MethodHandle-ы поля в readInto()/writeFrom():
+    // для примитивных конвертеров - сам примитив, для остальных - Object.
+    public Class<?> getHandleType() {
+        return Object.class;
+    }
+
+    // Прочитает столбец и запишет его в поле объекта.
+    // fieldSetter - типа (Object, getHandleType())void.
+    public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+        fieldSetter.invokeExact(target, read(resultSet, index));
+    }
+
+    // Прочитает поле объекта и выставит его как параметр запроса.
+    // fieldGetter - типа (Object)getHandleType().
+    public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+        write(statement, index, (Object) fieldGetter.invokeExact(source));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + javaType.getSimpleName() + "}";
+    }
+}
@@ -0,0 +1,171 @@
+package com.borunovv.orm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Описание одного замапленного поля сущности (@DBColumn):
+ * имя столбца, тип поля, set/get-методы и конвертер значения.
+ * Неизменяемый, безопасен для использования из разных потоков.
+ *
+ * Для класса со сгенерированным маппером (EntityMapper) значения читаются/пишутся через маппер,
+ * а поле, set/get-методы и MethodHandle-ы (нужны только режимам маппинга в рантайме)
+ * находятся рефлексией при первом обращении.
+ *
+ * @author borunovv
+ */
+public final class ColumnMetadata {
+
+    private final Class<?> entityClass;
+    private final String fieldName;
+    private final Class<?> type;
+    private final String columnName;
+    private final ColumnConverter converter;
+    private final boolean mutable; // Значение изменяемое (массив, дата): копировать при копировании сущности.
+    // Сгенерированный маппер и номер столбца в нем (mapper == null - класс без маппера).
+    private final EntityMapper<Object> mapper;
+    private final int index;
+    private volatile Access access;
+
+    // Столбец класса без маппера: доступ к полю разрешается сразу.
+    ColumnMetadata(Field field, String columnName, ColumnConverter converter) {
+        this.entityClass = field.getDeclaringClass();
+        this.fieldName = field.getName();
+        this.type = field.getType();
+        this.columnName = columnName;
+        this.converter = converter;
+        this.mutable = BeanUtils.isMutableType(type);
+        this.mapper = null;
+        this.index = -1;
+        this.access = new Access(entityClass, field, converter);
+    }
+
+    // Столбец index сгенерированного маппера.
+    @SuppressWarnings("unchecked")
+    ColumnMetadata(EntityMapper<?> mapper, int index, String fieldName, Class<?> type, String columnName) {
+        this.entityClass = mapper.getEntityClass();
+        this.fieldName = fieldName;
+        this.type = type;
+        this.columnName = columnName;
+        this.converter = Converters.forType(type);
+        this.mutable = BeanUtils.isMutableType(type);
+        this.mapper = (EntityMapper<Object>) mapper;
+        this.index = index;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    // Тип поля.
+    public Class<?> getType() {
+        return type;
+    }
+
+    public String getColumnName() {
+        return columnName;
+    }
+
+    public ColumnConverter getConverter() {
+        return converter;
+    }
+
+    public boolean isMutable() {
+        return mutable;
+    }
+
+    // Значение поля сущности (примитивы - в обертке).
+    public Object getValue(Object entity) {
+        if (mapper != null) {
+            return mapper.get(entity, index);
+        }
+        try {
+            return (Object) getFieldGetter().invoke(entity);
+        } catch (Throwable e) {
+            throw new RuntimeException("Error ORM mapping", e);
+        }
+    }
+
+    // Запишет в поле сущности значение, уже приведенное к типу поля.
+    public void setValue(Object entity, Object value) {
+        if (mapper != null) {
+            mapper.set(entity, index, value);
+            return;
+        }
+        try {
+            getFieldSetter().invoke(entity, value);
+        } catch (Throwable e) {
+            throw new RuntimeException("Error ORM mapping", e);
+        }
+    }
+
+    public Field getField() {
+        return access().field;
+    }
+
+    public Method getSetter() {
+        return access().setter;
+    }
+
+    // Может быть null, если get-метода нет.
+    public Method getGetter() {
+        return access().getter;
+    }
+
+    // Прямой доступ к полю, типы (Object, X)void и (Object)X, где X = converter.getHandleType().
+    public MethodHandle getFieldSetter() {
+        return access().fieldSetter;
+    }
+
+    public MethodHandle getFieldGetter() {
+        return access().fieldGetter;
+    }
+
+    // Копирование значения поля из одного объекта в другой, тип (Object target, Object source)void.
+    public MethodHandle getFieldCopier() {
+        return access().fieldCopier;
+    }
+
+    private Access access() {
+        Access result = access;
+        if (result == null) {
+            try {
+                result = new Access(entityClass, entityClass.getDeclaredField(fieldName), converter);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("No field '" + fieldName + "' found in class '" + entityClass.getSimpleName() + "'", e);
+            }
+            access = result; // Гонка безвредна: объекты равнозначны.
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnMetadata{" +
+                "field=" + fieldName +
+                ", column='" + columnName + '\'' +
+                '}';
+    }
+
+
+    // Доступ к полю рефлексией: set/get-методы и MethodHandle-ы.
+    private static final class Access {
+        final Field field;
+        final Method setter;
+        final Method getter;
+        final MethodHandle fieldSetter;
+        final MethodHandle fieldGetter;
+        final MethodHandle fieldCopier;
+
+        Access(Class<?> entityClass, Field field, ColumnConverter converter) {
+            this.field = field;
+            this.setter = BeanUtils.findMethod(entityClass, BeanUtils.getSetterName(field));
+            this.getter = BeanUtils.findGetter(entityClass, field);
+            this.fieldSetter = BeanUtils.fieldSetterHandle(field, converter.getHandleType());
+            this.fieldGetter = BeanUtils.fieldGetterHandle(field, converter.getHandleType());
+            this.fieldCopier = MethodHandles.filterArguments(fieldSetter, 1, fieldGetter);
+        }
+    }
+}
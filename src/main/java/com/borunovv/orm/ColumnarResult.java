@@ -0,0 +1,513 @@
+package com.borunovv.orm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Результат выборки по столбцам: значения каждого столбца - в растущем массиве примитивов
+ * (long[], int[], double[]; строки - словарным кодированием: int-код на строку + словарь различных значений).
+ * Ни объекта на строку, ни обертки на значение - на порядок меньше памяти, чем список сущностей.
+ *
+ * Тип столбца определяется по JDBC-типу: BIGINT - LONG, INTEGER/SMALLINT/TINYINT/BOOLEAN - INT,
+ * DOUBLE/FLOAT/REAL/DECIMAL - DOUBLE (DECIMAL без дробной части до 18 знаков - LONG), прочие - STRING.
+ *
+ * offHeap == true - данные в direct-буферах вне кучи (освобождаются вместе с объектом сборщиком мусора).
+ * Объект не потокобезопасен на этапе заполнения, после - только чтение.
+ *
+ * Использование:
+ *   ColumnarResult result = SimpleORM.findAllColumnar(dbAccess, MyModel.class);
+ *   long total = result.sumLong("value");
+ *   long[] ids = result.getLongs("id");
+ *
+ * @author borunovv
+ */
+public class ColumnarResult {
+
+    public enum ColumnType {
+        LONG, INT, DOUBLE, STRING
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Column[] columns;
+    private final Map<String, Column> byName = new HashMap<String, Column>();
+    private final List<String> columnNames;
+    private final boolean offHeap;
+    private int size = 0;
+
+    ColumnarResult(ResultSetMetaData resultSetMetaData, boolean offHeap) throws SQLException {
+        this.offHeap = offHeap;
+        this.columns = new Column[resultSetMetaData.getColumnCount()];
+        List<String> names = new ArrayList<String>(columns.length);
+        for (int i = 0; i < columns.length; ++i) {
+            String name = resultSetMetaData.getColumnLabel(i + 1);
+            ColumnType type = toColumnType(resultSetMetaData.getColumnType(i + 1),
+                    resultSetMetaData.getPrecision(i + 1), resultSetMetaData.getScale(i + 1));
+            columns[i] = new Column(name, type, offHeap);
+            byName.put(name.toLowerCase(Locale.ROOT), columns[i]);
+            names.add(name);
+        }
+        this.columnNames = Collections.unmodifiableList(names);
+    }
+
+    // Прочитает все строки выборки.
+    static ColumnarResult read(ResultSet resultSet, boolean offHeap) throws SQLException {
+        ColumnarResult result = new ColumnarResult(resultSet.getMetaData(), offHeap);
+        while (resultSet.next()) {
+            result.addRow(resultSet);
+        }
+        return result;
+    }
+
+    // Добавит текущую строку выборки.
+    void addRow(ResultSet resultSet) throws SQLException {
+        for (int i = 0; i < columns.length; ++i) {
+            columns[i].read(resultSet, i + 1, size);
+        }
+        ++size;
+    }
+
+    // ---------------- Доступ ----------------
+
+    // Число строк.
+    public int size() {
+        return size;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public ColumnType getColumnType(String column) {
+        return getColumn(column).type;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public boolean isNull(String column, int row) {
+        return getColumn(column).isNull(checkRow(row));
+    }
+
+    // Значение целого столбца (LONG, INT). NULL - 0.
+    public long getLong(String column, int row) {
+        return getColumn(column).getLong(checkRow(row));
+    }
+
+    public int getInt(String column, int row) {
+        Column col = getColumn(column);
+        if (col.type != ColumnType.INT) {
+            throw new IllegalArgumentException("Column '" + column + "' is " + col.type + ", not INT");
+        }
+        return col.codes.get(checkRow(row));
+    }
+
+    // Значение числового столбца (LONG, INT, DOUBLE). NULL - 0.
+    public double getDouble(String column, int row) {
+        return getColumn(column).getDouble(checkRow(row));
+    }
+
+    // Значение любого столбца строкой (NULL - null).
+    public String getString(String column, int row) {
+        return getColumn(column).getString(checkRow(row));
+    }
+
+    // Копия значений целого столбца (NULL - 0).
+    public long[] getLongs(String column) {
+        Column col = getColumn(column);
+        long[] result = new long[size];
+        for (int i = 0; i < size; ++i) {
+            result[i] = col.getLong(i);
+        }
+        return result;
+    }
+
+    public int[] getInts(String column) {
+        Column col = getColumn(column);
+        if (col.type != ColumnType.INT) {
+            throw new IllegalArgumentException("Column '" + column + "' is " + col.type + ", not INT");
+        }
+        return col.codes.toArray(size);
+    }
+
+    public double[] getDoubles(String column) {
+        Column col = getColumn(column);
+        double[] result = new double[size];
+        for (int i = 0; i < size; ++i) {
+            result[i] = col.getDouble(i);
+        }
+        return result;
+    }
+
+    // ---------------- Агрегаты (NULL не учитываются) ----------------
+
+    // Число непустых значений.
+    public int countNotNull(String column) {
+        Column col = getColumn(column);
+        return size - col.nullCount;
+    }
+
+    // Сумма целого столбца.
+    public long sumLong(String column) {
+        Column col = getColumn(column);
+        long sum = 0;
+        for (int i = 0; i < size; ++i) {
+            sum += col.getLong(i);
+        }
+        return sum;
+    }
+
+    // Сумма числового столбца.
+    public double sum(String column) {
+        Column col = getColumn(column);
+        double sum = 0;
+        for (int i = 0; i < size; ++i) {
+            sum += col.getDouble(i);
+        }
+        return sum;
+    }
+
+    // Среднее (NaN, если значений нет).
+    public double avg(String column) {
+        int count = countNotNull(column);
+        return count > 0 ? sum(column) / count : Double.NaN;
+    }
+
+    // Минимум (NaN, если значений нет).
+    public double min(String column) {
+        Column col = getColumn(column);
+        double min = Double.NaN;
+        for (int i = 0; i < size; ++i) {
+            if (!col.isNull(i)) {
+                double value = col.getDouble(i);
+                if (Double.isNaN(min) || value < min) {
+                    min = value;
+                }
+            }
+        }
+        return min;
+    }
+
+    // Максимум (NaN, если значений нет).
+    public double max(String column) {
+        Column col = getColumn(column);
+        double max = Double.NaN;
+        for (int i = 0; i < size; ++i) {
+            if (!col.isNull(i)) {
+                double value = col.getDouble(i);
+                if (Double.isNaN(max) || value > max) {
+                    max = value;
+                }
+            }
+        }
+        return max;
+    }
+
+    // Число строк по каждому значению столбца (для строк - прямо по кодам словаря), в порядке первого появления.
+    public Map<String, Integer> countByValue(String column) {
+        Column col = getColumn(column);
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        if (col.type == ColumnType.STRING) {
+            int[] counts = new int[col.dictionary.size()];
+            for (int i = 0; i < size; ++i) {
+                if (!col.isNull(i)) {
+                    ++counts[col.codes.get(i)];
+                }
+            }
+            for (int code = 0; code < counts.length; ++code) {
+                result.put(col.dictionary.get(code), counts[code]);
+            }
+        } else {
+            for (int i = 0; i < size; ++i) {
+                if (!col.isNull(i)) {
+                    String key = col.getString(i);
+                    Integer count = result.get(key);
+                    result.put(key, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Число различных строк в словаре столбца STRING.
+    public int getDictionarySize(String column) {
+        Column col = getColumn(column);
+        return col.dictionary != null ? col.dictionary.size() : 0;
+    }
+
+    // Объем данных столбцов в байтах (заполненная часть массивов + словари строк приблизительно).
+    public long getDataBytes() {
+        long bytes = 0;
+        for (Column column : columns) {
+            bytes += column.getDataBytes(size);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnarResult{rows=" + size + ", columns=" + columnNames + ", offHeap=" + offHeap + "}";
+    }
+
+    private Column getColumn(String name) {
+        Column column = byName.get(name.toLowerCase(Locale.ROOT));
+        if (column == null) {
+            throw new IllegalArgumentException("Unknown column '" + name + "', expected one of " + columnNames);
+        }
+        return column;
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + ", size " + size);
+        }
+        return row;
+    }
+
+    private static ColumnType toColumnType(int sqlType, int precision, int scale) {
+        switch (sqlType) {
+            case Types.BIGINT:
+                return ColumnType.LONG;
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return ColumnType.INT;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return scale == 0 && precision > 0 && precision <= 18 ? ColumnType.LONG : ColumnType.DOUBLE;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return ColumnType.DOUBLE;
+            default:
+                return ColumnType.STRING;
+        }
+    }
+
+
+    // Столбец: LONG и DOUBLE (биты double) - в values, INT и коды словаря STRING - в codes.
+    private static final class Column {
+        final String name;
+        final ColumnType type;
+        final LongArray values;
+        final IntArray codes;
+        final List<String> dictionary;
+        final Map<String, Integer> dictionaryIndex;
+        long[] nulls = new long[INITIAL_CAPACITY / 64]; // Битовая маска NULL-ов.
+        int nullCount = 0;
+
+        Column(String name, ColumnType type, boolean offHeap) {
+            this.name = name;
+            this.type = type;
+            boolean wide = type == ColumnType.LONG || type == ColumnType.DOUBLE;
+            this.values = wide ? new LongArray(offHeap) : null;
+            this.codes = wide ? null : new IntArray(offHeap);
+            this.dictionary = type == ColumnType.STRING ? new ArrayList<String>() : null;
+            this.dictionaryIndex = type == ColumnType.STRING ? new HashMap<String, Integer>() : null;
+        }
+
+        void read(ResultSet resultSet, int index, int row) throws SQLException {
+            switch (type) {
+                case LONG:
+                    values.add(resultSet.getLong(index));
+                    break;
+                case DOUBLE:
+                    values.add(Double.doubleToRawLongBits(resultSet.getDouble(index)));
+                    break;
+                case INT:
+                    codes.add(resultSet.getInt(index));
+                    break;
+                default:
+                    String value = resultSet.getString(index);
+                    codes.add(value != null ? encode(value) : 0);
+                    break;
+            }
+            if (resultSet.wasNull()) {
+                setNull(row);
+            }
+        }
+
+        private int encode(String value) {
+            Integer code = dictionaryIndex.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                dictionaryIndex.put(value, code);
+            }
+            return code;
+        }
+
+        private void setNull(int row) {
+            int word = row >>> 6;
+            if (word >= nulls.length) {
+                long[] grown = new long[Math.max(nulls.length * 2, word + 1)];
+                System.arraycopy(nulls, 0, grown, 0, nulls.length);
+                nulls = grown;
+            }
+            nulls[word] |= 1L << row;
+            ++nullCount;
+        }
+
+        boolean isNull(int row) {
+            int word = row >>> 6;
+            return word < nulls.length && (nulls[word] & (1L << row)) != 0;
+        }
+
+        long getLong(int row) {
+            switch (type) {
+                case LONG:
+                    return values.get(row);
+                case INT:
+                    return codes.get(row);
+                default:
+                    throw new IllegalArgumentException("Column '" + name + "' is " + type + ", not integer");
+            }
+        }
+
+        double getDouble(int row) {
+            switch (type) {
+                case LONG:
+                    return values.get(row);
+                case INT:
+                    return codes.get(row);
+                case DOUBLE:
+                    return Double.longBitsToDouble(values.get(row));
+                default:
+                    throw new IllegalArgumentException("Column '" + name + "' is " + type + ", not numeric");
+            }
+        }
+
+        String getString(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            switch (type) {
+                case LONG:
+                    return Long.toString(values.get(row));
+                case INT:
+                    return Integer.toString(codes.get(row));
+                case DOUBLE:
+                    return Double.toString(Double.longBitsToDouble(values.get(row)));
+                default:
+                    return dictionary.get(codes.get(row));
+            }
+        }
+
+        long getDataBytes(int size) {
+            long bytes = (long) size * (values != null ? 8 : 4) + nulls.length * 8L;
+            if (dictionary != null) {
+                for (String value : dictionary) {
+                    bytes += 40 + 2L * value.length(); // Строка + запись в словаре, приблизительно.
+                }
+            }
+            return bytes;
+        }
+    }
+
+    // Растущий массив long: в куче или в direct-буфере.
+    private static final class LongArray {
+        private long[] heap;
+        private ByteBuffer direct;
+        private int size = 0;
+
+        LongArray(boolean offHeap) {
+            if (offHeap) {
+                direct = ByteBuffer.allocateDirect(INITIAL_CAPACITY * 8).order(ByteOrder.nativeOrder());
+            } else {
+                heap = new long[INITIAL_CAPACITY];
+            }
+        }
+
+        void add(long value) {
+            if (heap != null) {
+                if (size == heap.length) {
+                    long[] grown = new long[heap.length * 2];
+                    System.arraycopy(heap, 0, grown, 0, size);
+                    heap = grown;
+                }
+                heap[size++] = value;
+            } else {
+                if ((size + 1) * 8 > direct.capacity()) {
+                    direct = grow(direct, size * 8);
+                }
+                direct.putLong(size * 8, value);
+                ++size;
+            }
+        }
+
+        long get(int index) {
+            return heap != null ? heap[index] : direct.getLong(index * 8);
+        }
+    }
+
+    // Растущий массив int: в куче или в direct-буфере.
+    private static final class IntArray {
+        private int[] heap;
+        private ByteBuffer direct;
+        private int size = 0;
+
+        IntArray(boolean offHeap) {
+            if (offHeap) {
+                direct = ByteBuffer.allocateDirect(INITIAL_CAPACITY * 4).order(ByteOrder.nativeOrder());
+            } else {
+                heap = new int[INITIAL_CAPACITY];
+            }
+        }
+
+        void add(int value) {
+            if (heap != null) {
+                if (size == heap.length) {
+                    int[] grown = new int[heap.length * 2];
+                    System.arraycopy(heap, 0, grown, 0, size);
+                    heap = grown;
+                }
+                heap[size++] = value;
+            } else {
+                if ((size + 1) * 4 > direct.capacity()) {
+                    direct = grow(direct, size * 4);
+                }
+                direct.putInt(size * 4, value);
+                ++size;
+            }
+        }
+
+        int get(int index) {
+            return heap != null ? heap[index] : direct.getInt(index * 4);
+        }
+
+        int[] toArray(int length) {
+            int[] result = new int[length];
+            if (heap != null) {
+                System.arraycopy(heap, 0, result, 0, length);
+            } else {
+                for (int i = 0; i < length; ++i) {
+                    result[i] = direct.getInt(i * 4);
+                }
+            }
+            return result;
+        }
+    }
+
+    // Новый direct-буфер вдвое больше с копией первых used байт.
+    private static ByteBuffer grow(ByteBuffer buffer, int used) {
+        ByteBuffer grown = ByteBuffer.allocateDirect(buffer.capacity() * 2).order(ByteOrder.nativeOrder());
+        ByteBuffer source = buffer.duplicate();
+        source.position(0).limit(used);
+        grown.put(source);
+        return grown;
+    }
+}
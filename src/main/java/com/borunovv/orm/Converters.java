@@ -0,0 +1,596 @@
+package com.borunovv.orm;
+
+import java.lang.invoke.MethodHandle;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Реестр конвертеров столбцов по типу поля.
+ * Поддерживаются: примитивы и их обертки, String, BigDecimal,
+ * java.sql.Timestamp/Date, java.util.Date, byte[] и перечисления (хранятся по имени).
+ *
+ * @author borunovv
+ */
+public final class Converters {
+
+    private static final Map<Class<?>, ColumnConverter> converters = new HashMap<Class<?>, ColumnConverter>();
+    private static final ConcurrentMap<Class<?>, ColumnConverter> enumConverters =
+            new ConcurrentHashMap<Class<?>, ColumnConverter>();
+
+    static {
+        register(new LongConverter());
+        register(new IntConverter());
+        register(new ShortConverter());
+        register(new ByteConverter());
+        register(new DoubleConverter());
+        register(new FloatConverter());
+        register(new BooleanConverter());
+
+        register(new LongObjectConverter());
+        register(new IntObjectConverter());
+        register(new ShortObjectConverter());
+        register(new ByteObjectConverter());
+        register(new DoubleObjectConverter());
+        register(new FloatObjectConverter());
+        register(new BooleanObjectConverter());
+
+        register(new StringConverter());
+        register(new BigDecimalConverter());
+        register(new TimestampConverter());
+        register(new SqlDateConverter());
+        register(new DateConverter());
+        register(new BytesConverter());
+    }
+
+    private Converters() {
+    }
+
+    // Вернет конвертер для заданного типа поля.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static ColumnConverter forType(Class<?> type) {
+        ColumnConverter converter = converters.get(type);
+        if (converter != null) {
+            return converter;
+        }
+        if (type.isEnum()) {
+            converter = enumConverters.get(type);
+            if (converter == null) {
+                converter = new EnumConverter(type);
+                ColumnConverter existing = enumConverters.putIfAbsent(type, converter);
+                if (existing != null) {
+                    converter = existing;
+                }
+            }
+            return converter;
+        }
+        throw new IllegalArgumentException("Unsupported field type '" + type.getSimpleName() + "'");
+    }
+
+    private static void register(ColumnConverter converter) {
+        converters.put(converter.getJavaType(), converter);
+    }
+
+    private static UnsupportedOperationException noStringForm(Class<?> type) {
+        return new UnsupportedOperationException("Conversion from String to '" + type.getSimpleName() + "' is not supported");
+    }
+
+
+    // ---------------- Примитивы: чтение/запись без боксинга ----------------
+
+    private static final class LongConverter extends ColumnConverter {
+        LongConverter() {
+            super(Long.TYPE, Types.BIGINT);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getLong(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setLong(index, (Long) value);
+        }
+
+        public Object fromString(String value) {
+            return Long.parseLong(value);
+        }
+
+        public Class<?> getHandleType() {
+            return Long.TYPE;
+        }
+
+        public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+            fieldSetter.invokeExact(target, resultSet.getLong(index));
+        }
+
+        public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+            statement.setLong(index, (long) fieldGetter.invokeExact(source));
+        }
+    }
+
+    private static final class IntConverter extends ColumnConverter {
+        IntConverter() {
+            super(Integer.TYPE, Types.INTEGER);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getInt(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setInt(index, (Integer) value);
+        }
+
+        public Object fromString(String value) {
+            return Integer.parseInt(value);
+        }
+
+        public Class<?> getHandleType() {
+            return Integer.TYPE;
+        }
+
+        public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+            fieldSetter.invokeExact(target, resultSet.getInt(index));
+        }
+
+        public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+            statement.setInt(index, (int) fieldGetter.invokeExact(source));
+        }
+    }
+
+    private static final class ShortConverter extends ColumnConverter {
+        ShortConverter() {
+            super(Short.TYPE, Types.SMALLINT);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getShort(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setShort(index, (Short) value);
+        }
+
+        public Object fromString(String value) {
+            return Short.parseShort(value);
+        }
+
+        public Class<?> getHandleType() {
+            return Short.TYPE;
+        }
+
+        public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+            fieldSetter.invokeExact(target, resultSet.getShort(index));
+        }
+
+        public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+            statement.setShort(index, (short) fieldGetter.invokeExact(source));
+        }
+    }
+
+    private static final class ByteConverter extends ColumnConverter {
+        ByteConverter() {
+            super(Byte.TYPE, Types.TINYINT);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getByte(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setByte(index, (Byte) value);
+        }
+
+        public Object fromString(String value) {
+            return Byte.parseByte(value);
+        }
+
+        public Class<?> getHandleType() {
+            return Byte.TYPE;
+        }
+
+        public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+            fieldSetter.invokeExact(target, resultSet.getByte(index));
+        }
+
+        public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+            statement.setByte(index, (byte) fieldGetter.invokeExact(source));
+        }
+    }
+
+    private static final class DoubleConverter extends ColumnConverter {
+        DoubleConverter() {
+            super(Double.TYPE, Types.DOUBLE);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getDouble(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setDouble(index, (Double) value);
+        }
+
+        public Object fromString(String value) {
+            return Double.parseDouble(value);
+        }
+
+        public Class<?> getHandleType() {
+            return Double.TYPE;
+        }
+
+        public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+            fieldSetter.invokeExact(target, resultSet.getDouble(index));
+        }
+
+        public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+            statement.setDouble(index, (double) fieldGetter.invokeExact(source));
+        }
+    }
+
+    private static final class FloatConverter extends ColumnConverter {
+        FloatConverter() {
+            super(Float.TYPE, Types.REAL);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getFloat(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setFloat(index, (Float) value);
+        }
+
+        public Object fromString(String value) {
+            return Float.parseFloat(value);
+        }
+
+        public Class<?> getHandleType() {
+            return Float.TYPE;
+        }
+
+        public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+            fieldSetter.invokeExact(target, resultSet.getFloat(index));
+        }
+
+        public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+            statement.setFloat(index, (float) fieldGetter.invokeExact(source));
+        }
+    }
+
+    private static final class BooleanConverter extends ColumnConverter {
+        BooleanConverter() {
+            super(Boolean.TYPE, Types.BOOLEAN);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getBoolean(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setBoolean(index, (Boolean) value);
+        }
+
+        public Object fromString(String value) {
+            return "1".equals(value) || Boolean.parseBoolean(value);
+        }
+
+        public Class<?> getHandleType() {
+            return Boolean.TYPE;
+        }
+
+        public void readInto(ResultSet resultSet, int index, Object target, MethodHandle fieldSetter) throws Throwable {
+            fieldSetter.invokeExact(target, resultSet.getBoolean(index));
+        }
+
+        public void writeFrom(PreparedStatement statement, int index, Object source, MethodHandle fieldGetter) throws Throwable {
+            statement.setBoolean(index, (boolean) fieldGetter.invokeExact(source));
+        }
+    }
+
+
+    // ---------------- Обертки примитивов (NULL -> null) ----------------
+
+    private static final class LongObjectConverter extends ColumnConverter {
+        LongObjectConverter() {
+            super(Long.class, Types.BIGINT);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            long value = resultSet.getLong(index);
+            return resultSet.wasNull() ? null : Long.valueOf(value);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, getSqlType());
+            } else {
+                statement.setLong(index, (Long) value);
+            }
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Long.valueOf(value) : null;
+        }
+    }
+
+    private static final class IntObjectConverter extends ColumnConverter {
+        IntObjectConverter() {
+            super(Integer.class, Types.INTEGER);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            int value = resultSet.getInt(index);
+            return resultSet.wasNull() ? null : Integer.valueOf(value);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, getSqlType());
+            } else {
+                statement.setInt(index, (Integer) value);
+            }
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Integer.valueOf(value) : null;
+        }
+    }
+
+    private static final class ShortObjectConverter extends ColumnConverter {
+        ShortObjectConverter() {
+            super(Short.class, Types.SMALLINT);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            short value = resultSet.getShort(index);
+            return resultSet.wasNull() ? null : Short.valueOf(value);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, getSqlType());
+            } else {
+                statement.setShort(index, (Short) value);
+            }
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Short.valueOf(value) : null;
+        }
+    }
+
+    private static final class ByteObjectConverter extends ColumnConverter {
+        ByteObjectConverter() {
+            super(Byte.class, Types.TINYINT);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            byte value = resultSet.getByte(index);
+            return resultSet.wasNull() ? null : Byte.valueOf(value);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, getSqlType());
+            } else {
+                statement.setByte(index, (Byte) value);
+            }
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Byte.valueOf(value) : null;
+        }
+    }
+
+    private static final class DoubleObjectConverter extends ColumnConverter {
+        DoubleObjectConverter() {
+            super(Double.class, Types.DOUBLE);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            double value = resultSet.getDouble(index);
+            return resultSet.wasNull() ? null : Double.valueOf(value);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, getSqlType());
+            } else {
+                statement.setDouble(index, (Double) value);
+            }
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Double.valueOf(value) : null;
+        }
+    }
+
+    private static final class FloatObjectConverter extends ColumnConverter {
+        FloatObjectConverter() {
+            super(Float.class, Types.REAL);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            float value = resultSet.getFloat(index);
+            return resultSet.wasNull() ? null : Float.valueOf(value);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, getSqlType());
+            } else {
+                statement.setFloat(index, (Float) value);
+            }
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Float.valueOf(value) : null;
+        }
+    }
+
+    private static final class BooleanObjectConverter extends ColumnConverter {
+        BooleanObjectConverter() {
+            super(Boolean.class, Types.BOOLEAN);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            boolean value = resultSet.getBoolean(index);
+            return resultSet.wasNull() ? null : Boolean.valueOf(value);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            if (value == null) {
+                statement.setNull(index, getSqlType());
+            } else {
+                statement.setBoolean(index, (Boolean) value);
+            }
+        }
+
+        public Object fromString(String value) {
+            return value != null ? "1".equals(value) || Boolean.parseBoolean(value) : null;
+        }
+    }
+
+
+    // ---------------- Ссылочные типы ----------------
+
+    private static final class StringConverter extends ColumnConverter {
+        StringConverter() {
+            super(String.class, Types.VARCHAR);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getString(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setString(index, (String) value);
+        }
+
+        public Object fromString(String value) {
+            return value;
+        }
+    }
+
+    private static final class BigDecimalConverter extends ColumnConverter {
+        BigDecimalConverter() {
+            super(BigDecimal.class, Types.DECIMAL);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getBigDecimal(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setBigDecimal(index, (BigDecimal) value);
+        }
+
+        public Object fromString(String value) {
+            return value != null ? new BigDecimal(value) : null;
+        }
+    }
+
+    private static final class TimestampConverter extends ColumnConverter {
+        TimestampConverter() {
+            super(Timestamp.class, Types.TIMESTAMP);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getTimestamp(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setTimestamp(index, (Timestamp) value);
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Timestamp.valueOf(value) : null;
+        }
+    }
+
+    private static final class SqlDateConverter extends ColumnConverter {
+        SqlDateConverter() {
+            super(java.sql.Date.class, Types.DATE);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getDate(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setDate(index, (java.sql.Date) value);
+        }
+
+        public Object fromString(String value) {
+            return value != null ? java.sql.Date.valueOf(value) : null;
+        }
+    }
+
+    // java.util.Date хранится как TIMESTAMP.
+    private static final class DateConverter extends ColumnConverter {
+        DateConverter() {
+            super(java.util.Date.class, Types.TIMESTAMP);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            Timestamp value = resultSet.getTimestamp(index);
+            return value != null ? new java.util.Date(value.getTime()) : null;
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setTimestamp(index, value != null ? new Timestamp(((java.util.Date) value).getTime()) : null);
+        }
+
+        public Object fromString(String value) {
+            return value != null ? new java.util.Date(Timestamp.valueOf(value).getTime()) : null;
+        }
+    }
+
+    private static final class BytesConverter extends ColumnConverter {
+        BytesConverter() {
+            super(byte[].class, Types.VARBINARY);
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return resultSet.getBytes(index);
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setBytes(index, (byte[]) value);
+        }
+
+        public Object fromString(String value) {
+            throw noStringForm(byte[].class);
+        }
+    }
+
+    // Перечисления хранятся строкой (по имени константы).
+    private static final class EnumConverter<E extends Enum<E>> extends ColumnConverter {
+        private final Class<E> enumClass;
+
+        EnumConverter(Class<E> enumClass) {
+            super(enumClass, Types.VARCHAR);
+            this.enumClass = enumClass;
+        }
+
+        public Object read(ResultSet resultSet, int index) throws SQLException {
+            return fromString(resultSet.getString(index));
+        }
+
+        public void write(PreparedStatement statement, int index, Object value) throws SQLException {
+            statement.setString(index, value != null ? ((Enum<?>) value).name() : null);
+        }
+
+        public Object fromString(String value) {
+            return value != null ? Enum.valueOf(enumClass, value) : null;
+        }
+    }
+}
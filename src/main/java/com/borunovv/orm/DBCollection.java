@@ -0,0 +1,30 @@
+package com.borunovv.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Коллекция сущностей, ссылающихся на эту (аналогично @OneToMany в Hibernate).
+ * Поле - типа List<X>; mappedBy - столбец X с внешним ключом на @DBId этой сущности
+ * (должен быть замаплен в X через @DBColumn).
+ *
+ *   @DBCollection(mappedBy = "owner_id")
+ *   private List<Pet> pets;
+ *
+ * Список только для чтения, заполняется при загрузке сущности через SimpleORM (в порядке @DBId элементов).
+ *
+ * @author borunovv
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface DBCollection {
+    String mappedBy();
+
+    FetchMode fetch() default FetchMode.LAZY;
+
+    // Для скольких сущностей загружать коллекции одним запросом.
+    int batchSize() default 100;
+}
@@ -16,4 +16,14 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 @Retention(RUNTIME)
 public @interface DBEntity {
     String table();
+
+    // Кэшировать сущности, загруженные по первичному ключу (SimpleORM.findById()).
+    // Кэш свой для каждого DBAccess, сбрасывается при записи через SimpleORM.
+    boolean cacheable() default false;
+
+    // Максимальное число сущностей в кэше.
+    int cacheSize() default 1000;
+
+    // Время жизни записи в кэше (0 - без ограничения).
+    long cacheTtlSeconds() default 0;
 }
@@ -0,0 +1,21 @@
+package com.borunovv.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Аннотация для пометки поля-первичного ключа (ставится вместе с @DBColumn).
+ * (Аналогично @Id в Hibernate).
+ *
+ * @author borunovv
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface DBId {
+    // true - значение генерирует БД (AUTO_INCREMENT): столбец не пишется в INSERT,
+    // а после вставки выставляется в сущность из сгенерированных ключей.
+    boolean generated() default true;
+}
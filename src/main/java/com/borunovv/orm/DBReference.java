@@ -0,0 +1,33 @@
+package com.borunovv.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Ссылка на другую сущность по внешнему ключу (аналогично @ManyToOne в Hibernate).
+ * Поле - типа Reference<X>, где X - сущность с @DBId; column - столбец внешнего ключа
+ * этой сущности (должен быть замаплен через @DBColumn).
+ *
+ *   @DBColumn("owner_id")
+ *   private long ownerId;
+ *
+ *   @DBReference(column = "owner_id")
+ *   private Reference<Owner> owner;
+ *
+ * Поле заполняется при загрузке сущности через SimpleORM; в INSERT/UPDATE не участвует.
+ *
+ * @author borunovv
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface DBReference {
+    String column();
+
+    FetchMode fetch() default FetchMode.LAZY;
+
+    // Сколько ссылок загружать одним запросом.
+    int batchSize() default 100;
+}
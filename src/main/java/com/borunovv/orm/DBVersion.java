@@ -0,0 +1,21 @@
+package com.borunovv.orm;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Аннотация для пометки поля-версии (ставится вместе с @DBColumn, тип - long/int).
+ * (Аналогично @Version в Hibernate).
+ *
+ * Включает оптимистическую блокировку: SimpleORM.updateAll() обновляет строку, только если версия
+ * в БД совпадает с версией сущности, и увеличивает ее на 1. Иначе - OptimisticLockException.
+ *
+ * @author borunovv
+ */
+@Target(FIELD)
+@Retention(RUNTIME)
+public @interface DBVersion {
+}
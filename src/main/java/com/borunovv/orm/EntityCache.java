@@ -0,0 +1,224 @@
+package com.borunovv.orm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограниченный по размеру (и опционально по TTL) кэш с учетом частоты обращений.
+ *
+ * Политика вытеснения - Segmented LRU: новый элемент попадает в "испытательный" сегмент (20% емкости),
+ * и только повторное обращение переводит его в "защищенный" (80%). Поэтому однократные чтения
+ * (например, проход по всей таблице) не вымывают часто используемые элементы.
+ *
+ * Для уменьшения конкуренции кэш разбит на независимые страйпы (по хэшу ключа), у каждого своя блокировка.
+ *
+ * @author borunovv
+ */
+public class EntityCache<K, V> {
+
+    private static final int MAX_STRIPES = 16;
+    private static final int MIN_STRIPE_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    private final long ttlNanos; // 0 - без ограничения.
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    // Счетчик инвалидаций: значение, загруженное до инвалидации, в кэш не кладется (см. putIfNotInvalidated()).
+    private final AtomicLong invalidationStamp = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public EntityCache(int maxSize, long ttlNanos) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be > 0");
+        }
+        int stripeCount = 1;
+        while (stripeCount < MAX_STRIPES && maxSize / (stripeCount * 2) >= MIN_STRIPE_CAPACITY) {
+            stripeCount *= 2;
+        }
+        this.stripes = new EntityCache.Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; ++i) {
+            // Остаток от деления раздаем первым страйпам, чтобы суммарная емкость была ровно maxSize.
+            int capacity = maxSize / stripeCount + (i < maxSize % stripeCount ? 1 : 0);
+            stripes[i] = new Stripe(capacity);
+        }
+        this.ttlNanos = ttlNanos;
+    }
+
+    public V get(K key) {
+        V value = stripeFor(key).get(key, System.nanoTime());
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        stripeFor(key).put(key, value, System.nanoTime());
+    }
+
+    // Текущая "метка" инвалидаций: запомнить перед загрузкой значения из БД.
+    public long getInvalidationStamp() {
+        return invalidationStamp.get();
+    }
+
+    // Положит значение, только если с момента stamp не было инвалидаций
+    // (иначе загруженное значение могло устареть из-за параллельной записи).
+    public boolean putIfNotInvalidated(K key, V value, long stamp) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            if (invalidationStamp.get() != stamp) {
+                return false;
+            }
+            stripe.put(key, value, System.nanoTime());
+            return true;
+        }
+    }
+
+    public void invalidate(K key) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            invalidationStamp.incrementAndGet();
+            if (stripe.remove(key)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                invalidationStamp.incrementAndGet();
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(hits.get(), misses.get(), evictions.get(), expirations.get(), invalidations.get(), size());
+    }
+
+    private Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+
+    private static final class Entry<V> {
+        final V value;
+        final long createdAtNanos;
+
+        Entry(V value, long createdAtNanos) {
+            this.value = value;
+            this.createdAtNanos = createdAtNanos;
+        }
+    }
+
+    // Один страйп: SLRU из двух LinkedHashMap в порядке доступа (первый элемент - самый старый).
+    private final class Stripe {
+        private final int capacity;
+        private final int probationCapacity;
+        private final LinkedHashMap<K, Entry<V>> probation = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        private final LinkedHashMap<K, Entry<V>> protectedEntries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+        Stripe(int capacity) {
+            this.capacity = Math.max(1, capacity);
+            this.probationCapacity = Math.max(1, this.capacity / 5);
+        }
+
+        synchronized V get(K key, long now) {
+            Entry<V> entry = protectedEntries.get(key);
+            if (entry != null) {
+                if (isExpired(entry, now)) {
+                    protectedEntries.remove(key);
+                    expirations.incrementAndGet();
+                    return null;
+                }
+                return entry.value;
+            }
+
+            entry = probation.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            if (isExpired(entry, now)) {
+                expirations.incrementAndGet();
+                return null;
+            }
+            // Повторное обращение - переводим в защищенный сегмент.
+            protectedEntries.put(key, entry);
+            if (protectedEntries.size() > capacity - probationCapacity) {
+                demoteEldestProtected();
+            }
+            return entry.value;
+        }
+
+        synchronized void put(K key, V value, long now) {
+            Entry<V> entry = new Entry<V>(value, now);
+            if (protectedEntries.containsKey(key)) {
+                protectedEntries.put(key, entry);
+                return;
+            }
+            probation.put(key, entry);
+            while (probation.size() + protectedEntries.size() > capacity) {
+                if (!evictEldest(probation)) {
+                    evictEldest(protectedEntries);
+                }
+            }
+        }
+
+        synchronized boolean remove(K key) {
+            return probation.remove(key) != null | protectedEntries.remove(key) != null;
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protectedEntries.clear();
+        }
+
+        synchronized int size() {
+            return probation.size() + protectedEntries.size();
+        }
+
+        private void demoteEldestProtected() {
+            Iterator<Map.Entry<K, Entry<V>>> it = protectedEntries.entrySet().iterator();
+            Map.Entry<K, Entry<V>> eldest = it.next();
+            it.remove();
+            probation.put(eldest.getKey(), eldest.getValue());
+            while (probation.size() + protectedEntries.size() > capacity) {
+                evictEldest(probation);
+            }
+        }
+
+        private boolean evictEldest(LinkedHashMap<K, Entry<V>> map) {
+            Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+            if (!it.hasNext()) {
+                return false;
+            }
+            it.next();
+            it.remove();
+            evictions.incrementAndGet();
+            return true;
+        }
+
+        private boolean isExpired(Entry<V> entry, long now) {
+            return ttlNanos > 0 && now - entry.createdAtNanos > ttlNanos;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.db.DeltaAccumulator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Реестр кэшей сущностей: отдельный кэш на каждую пару (DBAccess, класс сущности с @DBEntity(cacheable = true)).
+ * Кэши одного DBAccess удаляются при его закрытии.
+ *
+ * @author borunovv
+ */
+final class EntityCaches {
+
+    private static final ConcurrentMap<DBAccess, ConcurrentMap<Class<?>, EntityCache<Object, Object>>> caches =
+            new ConcurrentHashMap<DBAccess, ConcurrentMap<Class<?>, EntityCache<Object, Object>>>();
+
+    private static final DBAccess.ICloseListener REMOVE_ON_CLOSE = new DBAccess.ICloseListener() {
+        public void onClose(DBAccess dbAccess) {
+            caches.remove(dbAccess);
+            dbAccess.removeCloseListener(this);
+        }
+    };
+
+    // Сброс записей строк, приращения которых (SimpleORM.increment()) записаны в БД.
+    // Именно после записи: прочитанное из БД до нее значение попало бы в кэш уже после инвалидации.
+    static final DeltaAccumulator.IFlushListener INVALIDATE_ON_FLUSH = new DeltaAccumulator.IFlushListener() {
+        public void onFlushed(DBAccess dbAccess, String table, Object id) {
+            ConcurrentMap<Class<?>, EntityCache<Object, Object>> byClass = caches.get(dbAccess);
+            if (byClass == null) {
+                return;
+            }
+            for (Map.Entry<Class<?>, EntityCache<Object, Object>> entry : byClass.entrySet()) {
+                if (EntityMetadata.of(entry.getKey()).getTableName().equalsIgnoreCase(table)) {
+                    entry.getValue().invalidate(id);
+                }
+            }
+        }
+    };
+
+    private EntityCaches() {
+    }
+
+    // Вернет кэш для сущности (создаст при первом обращении) или null, если сущность не кэшируемая.
+    @SuppressWarnings("unchecked")
+    static <T> EntityCache<Object, T> get(DBAccess dbAccess, EntityMetadata<T> metadata) {
+        if (!metadata.isCacheable()) {
+            return null;
+        }
+        ConcurrentMap<Class<?>, EntityCache<Object, Object>> byClass = caches.get(dbAccess);
+        if (byClass == null) {
+            byClass = new ConcurrentHashMap<Class<?>, EntityCache<Object, Object>>();
+            ConcurrentMap<Class<?>, EntityCache<Object, Object>> existing = caches.putIfAbsent(dbAccess, byClass);
+            if (existing != null) {
+                byClass = existing;
+            } else {
+                dbAccess.addCloseListener(REMOVE_ON_CLOSE);
+            }
+        }
+
+        EntityCache<Object, Object> cache = byClass.get(metadata.getEntityClass());
+        if (cache == null) {
+            cache = new EntityCache<Object, Object>(metadata.getCacheSize(),
+                    TimeUnit.SECONDS.toNanos(metadata.getCacheTtlSeconds()));
+            EntityCache<Object, Object> existing = byClass.putIfAbsent(metadata.getEntityClass(), cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return (EntityCache<Object, T>) (EntityCache<Object, ?>) cache;
+    }
+
+    // То же, но без создания кэша (null, если его еще нет).
+    @SuppressWarnings("unchecked")
+    static <T> EntityCache<Object, T> find(DBAccess dbAccess, EntityMetadata<T> metadata) {
+        ConcurrentMap<Class<?>, EntityCache<Object, Object>> byClass = caches.get(dbAccess);
+        if (byClass == null) {
+            return null;
+        }
+        return (EntityCache<Object, T>) (EntityCache<Object, ?>) byClass.get(metadata.getEntityClass());
+    }
+}
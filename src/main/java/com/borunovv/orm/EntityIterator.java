@@ -0,0 +1,103 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.db.MetricsListener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Итератор по сущностям поверх открытого курсора БД (см. SimpleORM.stream()).
+ * Строки читаются и мапятся по одной, вся выборка в память не грузится.
+ *
+ * Курсор (и соединение из пула) закрывается автоматически по достижении конца выборки.
+ * Связи сущностей (@DBReference, @DBCollection) - только ленивые, по одной сущности
+ * (пакетная загрузка - в findAll(), Query.list() и т.п.).
+ * Если итерация прервана раньше - надо вызвать close() !
+ *
+ * @author borunovv
+ */
+public class EntityIterator<T> implements Iterator<T>, Closeable {
+
+    private final DBAccess.Cursor cursor;
+    private final RowMapper<T> mapper;
+    private final DBAccess dbAccess;
+    private final EntityMetadata<T> metadata;
+    private final MetricsListener metricsListener;
+    private final Class<T> entityClass;
+    private T next;
+    private boolean finished = false;
+    private int rowsMapped = 0;
+
+    EntityIterator(DBAccess.Cursor cursor, RowMapper<T> mapper, DBAccess dbAccess, EntityMetadata<T> metadata) {
+        this.cursor = cursor;
+        this.mapper = mapper;
+        this.dbAccess = dbAccess;
+        this.metadata = metadata;
+        this.metricsListener = dbAccess.getMetricsListener();
+        this.entityClass = metadata.getEntityClass();
+    }
+
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                if (cursor.getResultSet().next()) {
+                    next = mapper.map(cursor.getResultSet());
+                    rowsMapped++;
+                    if (!metadata.getRelations().isEmpty()) {
+                        Relations.attach(dbAccess, metadata, Collections.singletonList(next), false);
+                    }
+                } else {
+                    finished = true;
+                    close();
+                }
+            } catch (SQLException e) {
+                closeQuietly();
+                throw new RuntimeException("Error reading cursor", e);
+            } catch (IOException e) {
+                throw new RuntimeException("Error closing cursor", e);
+            } catch (InterruptedException e) {
+                closeQuietly();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted reading cursor", e);
+            } catch (RuntimeException e) {
+                closeQuietly();
+                throw e;
+            }
+        }
+        return next != null;
+    }
+
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    public void close() throws IOException {
+        finished = true;
+        next = null;
+        if (!cursor.isClosed()) {
+            metricsListener.onRowsMapped(entityClass, rowsMapped);
+        }
+        cursor.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.borunovv.orm;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Маппер сущности, сгенерированный при компиляции (см. processor.EntityProcessor):
+ * обычный Java-код вместо рефлексии и MethodHandle-ов - чтение строки, выставление параметров
+ * запроса и доступ к полям прямыми вызовами полей/get/set-методов.
+ * Описание столбцов (имена, типы, @DBId, @DBVersion) тоже берется из маппера:
+ * метаданные обработанного класса (EntityMetadata) строятся без сканирования класса рефлексией.
+ * Тексты запросов маппер не содержит - их строит EntityMetadata по диалекту БД.
+ *
+ * Реализации находятся через ServiceLoader (META-INF/services/com.borunovv.orm.EntityMapper)
+ * и используются в режиме MappingMode.PROCESSED. Для классов без маппера - маппинг в рантайме.
+ *
+ * Столбец задается номером - индексом в getColumnNames() (порядок объявления полей,
+ * как в EntityMetadata.getColumns()).
+ *
+ * @author borunovv
+ */
+public interface EntityMapper<T> {
+
+    public Class<T> getEntityClass();
+
+    public String getTableName();
+
+    // Имена замапленных столбцов в порядке объявления полей.
+    public String[] getColumnNames();
+
+    // Имена полей столбцов (в том же порядке).
+    public String[] getFieldNames();
+
+    // Типы полей столбцов (в том же порядке; примитивы - как int.class и т.п.).
+    public Class<?>[] getFieldTypes();
+
+    // Номер столбца @DBId или -1.
+    public int getIdColumn();
+
+    public boolean isIdGenerated();
+
+    // Номер столбца @DBVersion или -1.
+    public int getVersionColumn();
+
+    // Имена полей связей (@DBReference, @DBCollection).
+    public String[] getRelationFields();
+
+    // Новый объект по текущей строке. indexes[номер столбца] - индекс (с 1) в выборке, 0 - столбца в выборке нет.
+    public T map(ResultSet resultSet, int[] indexes) throws SQLException;
+
+    // Выставит значение столбца column сущности как параметр запроса с индексом index.
+    public void write(T entity, int column, PreparedStatement statement, int index) throws SQLException;
+
+    // Значение столбца column сущности (примитивы - в обертке).
+    public Object get(T entity, int column);
+
+    // Запишет значение (уже приведенное к типу поля) в столбец column сущности.
+    public void set(T entity, int column, Object value);
+
+    // Новый экземпляр с копией всех замапленных полей (изменяемые значения - копией, см. BeanUtils.copyValue()).
+    public T copy(T source);
+}
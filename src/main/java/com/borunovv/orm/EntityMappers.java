@@ -0,0 +1,60 @@
+package com.borunovv.orm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Реестр сгенерированных при компиляции мапперов (EntityMapper), найденных через ServiceLoader.
+ * Поиск выполняется один раз на загрузчик классов.
+ *
+ * @author borunovv
+ */
+final class EntityMappers {
+
+    private static final ConcurrentMap<ClassLoader, Map<Class<?>, EntityMapper<?>>> byLoader =
+            new ConcurrentHashMap<ClassLoader, Map<Class<?>, EntityMapper<?>>>();
+
+    private EntityMappers() {
+    }
+
+    // Маппер для класса сущности или null, если класс не обработан процессором.
+    @SuppressWarnings("unchecked")
+    static <T> EntityMapper<T> find(Class<T> entityClass) {
+        ClassLoader loader = entityClass.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        Map<Class<?>, EntityMapper<?>> mappers = byLoader.get(loader);
+        if (mappers == null) {
+            mappers = load(loader);
+            Map<Class<?>, EntityMapper<?>> existing = byLoader.putIfAbsent(loader, mappers);
+            if (existing != null) {
+                mappers = existing;
+            }
+        }
+        return (EntityMapper<T>) mappers.get(entityClass);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Map<Class<?>, EntityMapper<?>> load(ClassLoader loader) {
+        Map<Class<?>, EntityMapper<?>> result = new HashMap<Class<?>, EntityMapper<?>>();
+        Iterator<EntityMapper> it = ServiceLoader.load(EntityMapper.class, loader).iterator();
+        while (true) {
+            try {
+                if (!it.hasNext()) {
+                    break;
+                }
+                EntityMapper<?> mapper = it.next();
+                result.put(mapper.getEntityClass(), mapper);
+            } catch (ServiceConfigurationError e) {
+                // Устаревшая запись в META-INF/services (класс удален) - пропускаем, сущность замапится в рантайме.
+            }
+        }
+        return result;
+    }
+}
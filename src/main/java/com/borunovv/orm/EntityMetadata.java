@@ -0,0 +1,527 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.Dialect;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Метаданные класса-сущности (@DBEntity): таблица и список замапленных столбцов
+ * с уже найденными set/get-методами и конвертерами.
+ *
+ * Вычисляются один раз на класс (при первом обращении) и кэшируются в реестре,
+ * чтобы не сканировать класс рефлексией на каждую строку выборки.
+ * Для класса со сгенерированным маппером (EntityMapper) столбцы берутся из маппера, без сканирования
+ * класса (рефлексией находятся только поля связей и - при первом обращении - то, что нужно режимам
+ * маппинга в рантайме, см. ColumnMetadata).
+ * Тексты запросов зависят от диалекта БД (Dialect) и строятся один раз на диалект.
+ * Экземпляры неизменяемы, реестр безопасен для конкурентного чтения.
+ *
+ * @author borunovv
+ */
+public final class EntityMetadata<T> {
+
+    private static final ConcurrentMap<Class<?>, EntityMetadata<?>> registry =
+            new ConcurrentHashMap<Class<?>, EntityMetadata<?>>();
+
+    private final Class<T> entityClass;
+    private final String tableName;
+    private volatile MethodHandle constructor; // Конструктор по умолчанию, тип ()Object (при первом обращении).
+    private final List<ColumnMetadata> columns;
+    // Ключ - имя столбца в верхнем регистре (для поиска без учета регистра).
+    private final Map<String, ColumnMetadata> columnsByName;
+    private final ColumnMetadata idColumn;  // Первичный ключ (@DBId), может быть null.
+    private final boolean idGenerated;
+    private final ColumnMetadata versionColumn; // Версия (@DBVersion), может быть null.
+    private final List<RelationMetadata> relations; // Связи (@DBReference, @DBCollection).
+    private final EntityMapper<T> mapper; // Сгенерированный при компиляции маппер, может быть null.
+    // Столбцы, которые пишутся в INSERT/UPDATE (в порядке параметров запроса).
+    private final List<ColumnMetadata> insertColumns;
+    private final List<ColumnMetadata> updateColumns;
+    // Запросы в синтаксисе диалекта (строятся при первом обращении).
+    private final ConcurrentMap<Dialect, Statements> statements = new ConcurrentHashMap<Dialect, Statements>();
+    // Настройки кэша сущностей (см. @DBEntity.cacheable()).
+    private final boolean cacheable;
+    private final int cacheSize;
+    private final long cacheTtlSeconds;
+
+    // Вернет метаданные для класса сущности (вычислит при первом обращении).
+    // entityClass - должен быть аннотирован через @DBEntity.
+    @SuppressWarnings("unchecked")
+    public static <T> EntityMetadata<T> of(Class<T> entityClass) {
+        EntityMetadata<?> metadata = registry.get(entityClass);
+        if (metadata == null) {
+            metadata = new EntityMetadata<T>(entityClass);
+            EntityMetadata<?> existing = registry.putIfAbsent(entityClass, metadata);
+            if (existing != null) {
+                metadata = existing;
+            }
+        }
+        return (EntityMetadata<T>) metadata;
+    }
+
+    private EntityMetadata(Class<T> entityClass) {
+        DBEntity ann = BeanUtils.getAnnotation(entityClass, DBEntity.class);
+        if (ann == null) {
+            throw new IllegalArgumentException("Expected annotation 'DBEntity' for class '" + entityClass.getSimpleName() + "'");
+        }
+
+        EntityMapper<T> entityMapper = EntityMappers.find(entityClass);
+        Mapping mapping = entityMapper != null ? Mapping.of(entityMapper) : Mapping.scan(entityClass);
+        List<ColumnMetadata> columnList = mapping.columns;
+        Map<String, ColumnMetadata> byName = new HashMap<String, ColumnMetadata>();
+        for (ColumnMetadata column : columnList) {
+            byName.put(column.getColumnName().toUpperCase(), column);
+        }
+        ColumnMetadata id = mapping.id;
+        boolean generated = mapping.idGenerated;
+        ColumnMetadata version = mapping.version;
+        List<RelationMetadata> relationList = mapping.relations;
+
+        for (RelationMetadata relation : relationList) {
+            if (!relation.isCollection() && !byName.containsKey(relation.getForeignKeyColumn().toUpperCase())) {
+                throw new IllegalArgumentException("Expected @DBColumn for reference column '" + relation.getForeignKeyColumn()
+                        + "' in class '" + entityClass.getSimpleName() + "'");
+            }
+            if (relation.isCollection() && id == null) {
+                throw new IllegalArgumentException("Expected @DBId field for collection '" + relation.getName()
+                        + "' in class '" + entityClass.getSimpleName() + "'");
+            }
+        }
+
+        List<ColumnMetadata> toInsert = new ArrayList<ColumnMetadata>();
+        List<ColumnMetadata> toUpdate = new ArrayList<ColumnMetadata>();
+        for (ColumnMetadata column : columnList) {
+            if (column != id || !generated) {
+                toInsert.add(column);
+            }
+            if (column != id && column != version) {
+                toUpdate.add(column);
+            }
+        }
+        if (id != null) {
+            toUpdate.add(id); // WHERE id = ?
+            if (version != null) {
+                toUpdate.add(version); // AND version = ?
+            }
+        }
+
+        this.entityClass = entityClass;
+        this.tableName = ann.table();
+        this.columns = Collections.unmodifiableList(columnList);
+        this.columnsByName = Collections.unmodifiableMap(byName);
+        this.idColumn = id;
+        this.idGenerated = generated;
+        this.versionColumn = version;
+        this.relations = Collections.unmodifiableList(relationList);
+        this.mapper = entityMapper;
+        this.insertColumns = Collections.unmodifiableList(toInsert);
+        this.updateColumns = Collections.unmodifiableList(toUpdate);
+        if (ann.cacheable() && ann.cacheSize() <= 0) {
+            throw new IllegalArgumentException("Expected cacheSize > 0 for class '" + entityClass.getSimpleName() + "'");
+        }
+        this.cacheable = ann.cacheable();
+        this.cacheSize = ann.cacheSize();
+        this.cacheTtlSeconds = ann.cacheTtlSeconds();
+    }
+
+    public Class<T> getEntityClass() {
+        return entityClass;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public MethodHandle getConstructor() {
+        MethodHandle result = constructor;
+        if (result == null) {
+            result = BeanUtils.constructorHandle(entityClass);
+            constructor = result;
+        }
+        return result;
+    }
+
+    public List<ColumnMetadata> getColumns() {
+        return columns;
+    }
+
+    // Поиск столбца по имени без учета регистра. Если нет - null.
+    public ColumnMetadata findColumn(String columnName) {
+        return columnsByName.get(columnName.toUpperCase());
+    }
+
+    public ColumnMetadata getIdColumn() {
+        return idColumn;
+    }
+
+    // Вернет столбец первичного ключа или бросит исключение, если у сущности нет @DBId.
+    public ColumnMetadata requireIdColumn() {
+        if (idColumn == null) {
+            throw new IllegalArgumentException("Expected @DBId field in class '" + entityClass.getSimpleName() + "'");
+        }
+        return idColumn;
+    }
+
+    public boolean isIdGenerated() {
+        return idGenerated;
+    }
+
+    public ColumnMetadata getVersionColumn() {
+        return versionColumn;
+    }
+
+    // Текущая версия сущности (@DBVersion).
+    public long getVersion(T entity) {
+        if (versionColumn == null) {
+            throw new IllegalArgumentException("Expected @DBVersion field in class '" + entityClass.getSimpleName() + "'");
+        }
+        Object value = versionColumn.getValue(entity);
+        return value != null ? ((Number) value).longValue() : 0;
+    }
+
+    public List<RelationMetadata> getRelations() {
+        return relations;
+    }
+
+    // Связь по имени поля или null.
+    public RelationMetadata findRelation(String fieldName) {
+        for (RelationMetadata relation : relations) {
+            if (relation.getName().equals(fieldName)) {
+                return relation;
+            }
+        }
+        return null;
+    }
+
+    // Сгенерированный при компиляции маппер (см. EntityMapper) или null, если класс не обработан процессором.
+    public EntityMapper<T> getMapper() {
+        return mapper;
+    }
+
+    // Номер столбца в getColumns() (и в EntityMapper.getColumnNames()).
+    int indexOf(ColumnMetadata column) {
+        int index = columns.indexOf(column);
+        if (index < 0) {
+            throw new IllegalArgumentException("Column '" + column.getColumnName() + "' is not mapped in class '"
+                    + entityClass.getSimpleName() + "'");
+        }
+        return index;
+    }
+
+    public List<ColumnMetadata> getInsertColumns() {
+        return insertColumns;
+    }
+
+    public List<ColumnMetadata> getUpdateColumns() {
+        return updateColumns;
+    }
+
+    // INSERT INTO `table` (`c1`, `c2`) VALUES (?, ?)
+    public String getInsertSql(Dialect dialect) {
+        return statements(dialect).insertSql;
+    }
+
+    // UPDATE `table` SET `c1` = ?, `c2` = ? WHERE `id` = ?
+    // С @DBVersion: UPDATE `table` SET `c1` = ?, `version` = `version` + 1 WHERE `id` = ? AND `version` = ?
+    public String getUpdateSql(Dialect dialect) {
+        requireIdColumn();
+        return statements(dialect).updateSql;
+    }
+
+    // UPDATE только заданных столбцов (см. Session): UPDATE `table` SET `c2` = ? WHERE `id` = ?
+    // (с @DBVersion - как в getUpdateSql()). Параметры - в порядке getUpdateColumns(changed).
+    String getUpdateSql(Dialect dialect, List<ColumnMetadata> changed) {
+        return buildUpdateSql(dialect, tableName, changed, requireIdColumn(), versionColumn);
+    }
+
+    // Вставка или обновление по первичному ключу rows сущностей одним запросом (см. Dialect.getUpsertSql()).
+    // Пишутся все столбцы (и ключ, даже генерируемый), параметры - по сущностям, в порядке getColumns().
+    public String getUpsertSql(Dialect dialect, int rows) {
+        return dialect.getUpsertSql(tableName, statements(dialect).columnNames,
+                Collections.singletonList(requireIdColumn().getColumnName()), rows);
+    }
+
+    // changed..., id[, version]
+    List<ColumnMetadata> getUpdateColumns(List<ColumnMetadata> changed) {
+        List<ColumnMetadata> result = new ArrayList<ColumnMetadata>(changed.size() + 2);
+        for (ColumnMetadata column : changed) {
+            if (column != idColumn && column != versionColumn) {
+                result.add(column);
+            }
+        }
+        result.add(requireIdColumn());
+        if (versionColumn != null) {
+            result.add(versionColumn);
+        }
+        return result;
+    }
+
+    // SELECT `c1`, `c2` FROM `table` - только замапленные столбцы, а не "SELECT *".
+    public String getSelectAllSql(Dialect dialect) {
+        return statements(dialect).selectAllSql;
+    }
+
+    // SELECT `c1`, `c2` FROM `table` WHERE `id` = ?
+    public String getSelectByIdSql(Dialect dialect) {
+        requireIdColumn();
+        return statements(dialect).selectByIdSql;
+    }
+
+    // Первая страница: SELECT `c1`, `c2` FROM `table` ORDER BY `id` LIMIT ?
+    // Следующая (после ключа): SELECT `c1`, `c2` FROM `table` WHERE `id` > ? ORDER BY `id` LIMIT ?
+    public String getSelectPageSql(Dialect dialect, boolean first) {
+        requireIdColumn();
+        Statements sql = statements(dialect);
+        return first ? sql.selectFirstPageSql : sql.selectNextPageSql;
+    }
+
+    // SELECT MIN(`id`), MAX(`id`) FROM `table`
+    public String getSelectKeyRangeSql(Dialect dialect) {
+        requireIdColumn();
+        return statements(dialect).selectKeyRangeSql;
+    }
+
+    // SELECT `c1`, `c2` FROM `table` WHERE `id` >= ? AND `id` <= ?
+    public String getSelectRangeSql(Dialect dialect) {
+        requireIdColumn();
+        return statements(dialect).selectRangeSql;
+    }
+
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getCacheTtlSeconds() {
+        return cacheTtlSeconds;
+    }
+
+    // Значение первичного ключа сущности (примитивы - в обертке).
+    public Object getId(T entity) {
+        return requireIdColumn().getValue(entity);
+    }
+
+    // Приводит значение ключа к типу поля @DBId, чтобы, например, 5 и 5L были одним ключом кэша.
+    public Object normalizeId(Object id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Id is null");
+        }
+        Class<?> type = requireIdColumn().getType();
+        if (id instanceof Number) {
+            Number number = (Number) id;
+            if (type == long.class || type == Long.class) {
+                return number.longValue();
+            } else if (type == int.class || type == Integer.class) {
+                return number.intValue();
+            } else if (type == short.class || type == Short.class) {
+                return number.shortValue();
+            }
+        } else if (id instanceof String && type != String.class) {
+            return idColumn.getConverter().fromString((String) id);
+        }
+        return id;
+    }
+
+    // Новый экземпляр сущности с копией всех замапленных полей: изменяемые значения (массивы, даты)
+    // копируются, так что изменение копии не затрагивает исходный объект (например, закэшированный).
+    @SuppressWarnings("unchecked")
+    public T copy(T source) {
+        if (mapper != null) {
+            return mapper.copy(source);
+        }
+        try {
+            T result = (T) (Object) getConstructor().invokeExact();
+            for (ColumnMetadata column : columns) {
+                if (column.isMutable()) {
+                    column.setValue(result, BeanUtils.copyValue(column.getValue(source)));
+                } else {
+                    column.getFieldCopier().invokeExact((Object) result, (Object) source);
+                }
+            }
+            return result;
+        } catch (Throwable e) {
+            throw new RuntimeException("Error ORM mapping", e);
+        }
+    }
+
+    private Statements statements(Dialect dialect) {
+        Statements result = statements.get(dialect);
+        if (result == null) {
+            result = new Statements(this, dialect);
+            Statements existing = statements.putIfAbsent(dialect, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    // `c1`, `c2`
+    static String buildColumnList(Dialect dialect, List<ColumnMetadata> columns) {
+        StringBuilder names = new StringBuilder();
+        dialect.appendColumnList(names, getColumnNames(columns));
+        return names.toString();
+    }
+
+    static List<String> getColumnNames(List<ColumnMetadata> columns) {
+        List<String> names = new ArrayList<String>(columns.size());
+        for (ColumnMetadata column : columns) {
+            names.add(column.getColumnName());
+        }
+        return names;
+    }
+
+    private static String buildUpdateSql(Dialect dialect, String tableName, List<ColumnMetadata> columns, ColumnMetadata id, ColumnMetadata version) {
+        StringBuilder sets = new StringBuilder();
+        for (ColumnMetadata column : columns) {
+            if (column == id || column == version) {
+                continue;
+            }
+            if (sets.length() > 0) {
+                sets.append(", ");
+            }
+            sets.append(dialect.quote(column.getColumnName())).append(" = ?");
+        }
+        if (version == null) {
+            return "UPDATE " + dialect.quote(tableName) + " SET " + sets + " WHERE " + dialect.quote(id.getColumnName()) + " = ?";
+        }
+        if (sets.length() > 0) {
+            sets.append(", ");
+        }
+        String versionName = dialect.quote(version.getColumnName());
+        sets.append(versionName).append(" = ").append(versionName).append(" + 1");
+        return "UPDATE " + dialect.quote(tableName) + " SET " + sets
+                + " WHERE " + dialect.quote(id.getColumnName()) + " = ? AND " + versionName + " = ?";
+    }
+
+
+    // Столбцы и связи класса: из сгенерированного маппера или сканированием полей рефлексией.
+    private static final class Mapping {
+        final List<ColumnMetadata> columns = new ArrayList<ColumnMetadata>();
+        ColumnMetadata id;
+        boolean idGenerated;
+        ColumnMetadata version;
+        final List<RelationMetadata> relations = new ArrayList<RelationMetadata>();
+
+        static Mapping of(EntityMapper<?> mapper) {
+            Mapping result = new Mapping();
+            String[] columnNames = mapper.getColumnNames();
+            String[] fieldNames = mapper.getFieldNames();
+            Class<?>[] fieldTypes = mapper.getFieldTypes();
+            for (int i = 0; i < columnNames.length; ++i) {
+                result.columns.add(new ColumnMetadata(mapper, i, fieldNames[i], fieldTypes[i], columnNames[i]));
+            }
+            if (mapper.getIdColumn() >= 0) {
+                result.id = result.columns.get(mapper.getIdColumn());
+                result.idGenerated = mapper.isIdGenerated();
+            }
+            if (mapper.getVersionColumn() >= 0) {
+                result.version = result.columns.get(mapper.getVersionColumn());
+            }
+            Class<?> entityClass = mapper.getEntityClass();
+            for (String fieldName : mapper.getRelationFields()) {
+                try {
+                    result.relations.add(RelationMetadata.of(entityClass.getDeclaredField(fieldName)));
+                } catch (NoSuchFieldException e) {
+                    throw new IllegalArgumentException("No field '" + fieldName + "' found in class '"
+                            + entityClass.getSimpleName() + "' (mapper is out of date)", e);
+                }
+            }
+            return result;
+        }
+
+        static Mapping scan(Class<?> entityClass) {
+            Mapping result = new Mapping();
+            for (Field field : entityClass.getDeclaredFields()) {
+                RelationMetadata relation = RelationMetadata.of(field);
+                if (relation != null) {
+                    result.relations.add(relation);
+                }
+                DBColumn column = field.getAnnotation(DBColumn.class);
+                if (column == null) {
+                    continue;
+                }
+                String columnName = column.value().isEmpty() ? field.getName() : column.value();
+                ColumnMetadata columnMetadata = new ColumnMetadata(field, columnName, Converters.forType(field.getType()));
+                result.columns.add(columnMetadata);
+
+                DBId idAnn = field.getAnnotation(DBId.class);
+                if (idAnn != null) {
+                    if (result.id != null) {
+                        throw new IllegalArgumentException("More than one @DBId field in class '" + entityClass.getSimpleName() + "'");
+                    }
+                    result.id = columnMetadata;
+                    result.idGenerated = idAnn.generated();
+                }
+
+                if (field.getAnnotation(DBVersion.class) != null) {
+                    Class<?> type = field.getType();
+                    if (result.version != null) {
+                        throw new IllegalArgumentException("More than one @DBVersion field in class '" + entityClass.getSimpleName() + "'");
+                    }
+                    if (type != long.class && type != Long.class && type != int.class && type != Integer.class) {
+                        throw new IllegalArgumentException("Expected long or int @DBVersion field in class '" + entityClass.getSimpleName() + "'");
+                    }
+                    result.version = columnMetadata;
+                }
+            }
+            return result;
+        }
+    }
+
+
+    // Запросы сущности в синтаксисе одного диалекта.
+    private static final class Statements {
+        final List<String> columnNames;
+        final String insertSql;
+        final String updateSql;          // null, если нет @DBId.
+        final String selectAllSql;
+        final String selectByIdSql;      // null, если нет @DBId.
+        final String selectFirstPageSql; // null, если нет @DBId.
+        final String selectNextPageSql;  // null, если нет @DBId.
+        final String selectKeyRangeSql;  // null, если нет @DBId.
+        final String selectRangeSql;     // null, если нет @DBId.
+
+        Statements(EntityMetadata<?> metadata, Dialect dialect) {
+            ColumnMetadata id = metadata.idColumn;
+            String table = dialect.quote(metadata.tableName);
+            String selectAll = "SELECT " + buildColumnList(dialect, metadata.columns) + " FROM " + table;
+            this.columnNames = Collections.unmodifiableList(getColumnNames(metadata.columns));
+            this.insertSql = dialect.getInsertSql(metadata.tableName, getColumnNames(metadata.insertColumns), 1);
+            this.selectAllSql = selectAll;
+            if (id == null) {
+                this.updateSql = null;
+                this.selectByIdSql = null;
+                this.selectFirstPageSql = null;
+                this.selectNextPageSql = null;
+                this.selectKeyRangeSql = null;
+                this.selectRangeSql = null;
+                return;
+            }
+            String key = dialect.quote(id.getColumnName());
+            this.updateSql = buildUpdateSql(dialect, metadata.tableName, metadata.updateColumns, id, metadata.versionColumn);
+            this.selectByIdSql = selectAll + " WHERE " + key + " = ?";
+            this.selectFirstPageSql = buildPageSql(dialect, selectAll, id, true);
+            this.selectNextPageSql = buildPageSql(dialect, selectAll, id, false);
+            this.selectKeyRangeSql = "SELECT MIN(" + key + "), MAX(" + key + ") FROM " + table;
+            this.selectRangeSql = selectAll + " WHERE " + key + " >= ? AND " + key + " <= ?";
+        }
+
+        private static String buildPageSql(Dialect dialect, String selectAll, ColumnMetadata id, boolean first) {
+            StringBuilder sql = new StringBuilder(selectAll);
+            dialect.appendKeysetPage(sql, id.getColumnName(), first);
+            return sql.toString();
+        }
+    }
+}
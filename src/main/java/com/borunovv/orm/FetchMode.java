@@ -0,0 +1,13 @@
+package com.borunovv.orm;
+
+/**
+ * Когда загружать связанные сущности (@DBReference, @DBCollection).
+ *
+ * @author borunovv
+ */
+public enum FetchMode {
+    // При первом обращении: сразу для batchSize сущностей, загруженных тем же запросом (WHERE fk IN (...)).
+    LAZY,
+    // Сразу после загрузки сущностей запросом (тоже пакетами WHERE fk IN (...)).
+    EAGER
+}
@@ -0,0 +1,58 @@
+package com.borunovv.orm;
+
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ленивая коллекция (поле с @DBCollection), только для чтения.
+ * При первом обращении загружает коллекции сразу для batchSize сущностей, загруженных тем же запросом.
+ *
+ * @author borunovv
+ */
+final class LazyList<T> extends AbstractList<T> {
+
+    private final Relations.Loader loader;
+    private final Object key;
+    private volatile List<T> elements;
+
+    LazyList(Relations.Loader loader, Object key) {
+        this.loader = loader;
+        this.key = key;
+    }
+
+    public T get(int index) {
+        return load().get(index);
+    }
+
+    public int size() {
+        return load().size();
+    }
+
+    boolean isLoaded() {
+        return elements != null;
+    }
+
+    Relations.Loader getLoader() {
+        return loader;
+    }
+
+    @SuppressWarnings("unchecked")
+    void resolve(List<Object> values) {
+        elements = Collections.unmodifiableList((List<T>) (List<?>) values);
+    }
+
+    private List<T> load() {
+        List<T> result = elements;
+        if (result == null) {
+            loader.load(key);
+            result = elements;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return isLoaded() ? super.toString() : "[not loaded]";
+    }
+}
@@ -0,0 +1,18 @@
+package com.borunovv.orm;
+
+/**
+ * Способ маппинга строк выборки в объекты сущностей.
+ *
+ * @author borunovv
+ */
+public enum MappingMode {
+    // Маппер, сгенерированный при компиляции (EntityMapper, см. processor.EntityProcessor):
+    // обычный Java-код без рефлексии. Для классов без такого маппера - как GENERATED.
+    PROCESSED,
+    // Скомпилированный маппер на MethodHandle-ах: столбцы привязаны по индексу,
+    // поля выставляются напрямую, без промежуточной мапы.
+    GENERATED,
+    // Старый путь через рефлексию: строка -> Map<String, String> -> вызов set-методов.
+    // Оставлен для сравнения.
+    REFLECTIVE
+}
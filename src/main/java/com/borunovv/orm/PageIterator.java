@@ -0,0 +1,78 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.DBAccess;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Итератор по страницам таблицы в порядке первичного ключа (см. SimpleORM.pages()).
+ * Каждая страница - отдельный запрос "WHERE id > [последний ключ] ORDER BY id LIMIT n",
+ * поэтому между страницами соединение не держится, а обход можно продолжить с getLastKey().
+ *
+ * @author borunovv
+ */
+public class PageIterator<T> implements Iterator<List<T>> {
+
+    private final DBAccess dbAccess;
+    private final Class<T> entityClass;
+    private final EntityMetadata<T> metadata;
+    private final int pageSize;
+    private Object lastKey;
+    private List<T> next;
+    private boolean finished = false;
+
+    PageIterator(DBAccess dbAccess, Class<T> entityClass, Object afterKey, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be > 0");
+        }
+        this.dbAccess = dbAccess;
+        this.entityClass = entityClass;
+        this.metadata = EntityMetadata.of(entityClass);
+        this.metadata.requireIdColumn();
+        this.pageSize = pageSize;
+        this.lastKey = afterKey;
+    }
+
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                List<T> page = SimpleORM.findPage(dbAccess, entityClass, lastKey, pageSize);
+                if (page.isEmpty()) {
+                    finished = true;
+                } else {
+                    next = page;
+                    lastKey = metadata.getId(page.get(page.size() - 1));
+                    // Неполная страница - последняя, лишний запрос не нужен.
+                    finished = page.size() < pageSize;
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException("Error reading page", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading page", e);
+            }
+        }
+        return next != null;
+    }
+
+    public List<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<T> result = next;
+        next = null;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    // Ключ последней сущности последней прочитанной страницы (null - еще ничего не прочитано).
+    public Object getLastKey() {
+        return lastKey;
+    }
+}
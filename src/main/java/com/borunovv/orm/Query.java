@@ -0,0 +1,329 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.db.Dialect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Построитель запроса к таблице сущности (см. SimpleORM.query()):
+ *
+ *   List<MyModel> list = SimpleORM.query(MyModel.class)
+ *           .select("id", "value")
+ *           .gt("value", 10)
+ *           .orderByDesc("value")
+ *           .limit(100)
+ *           .list(dbAccess);
+ *
+ * Условия объединяются через AND, значения передаются параметрами ('?'), имена столбцов
+ * проверяются по метаданным сущности (@DBColumn). Выбираются только замапленные столбцы
+ * (или заданные в select(), остальные поля сущности остаются по умолчанию).
+ *
+ * SQL зависит только от "формы" запроса (столбцы, условия, число значений в IN), но не от значений,
+ * поэтому повторные запросы той же формы берут PreparedStatement из кэша соединения.
+ * Синтаксис (кавычки, LIMIT/OFFSET) - по диалекту DBAccess, на котором запрос выполняется.
+ *
+ * Не потокобезопасен: построить и выполнить в одном потоке.
+ *
+ * @author borunovv
+ */
+public class Query<T> {
+
+    private final EntityMetadata<T> metadata;
+    private List<ColumnMetadata> projection;  // null - все замапленные столбцы.
+    private final List<Term> where = new ArrayList<Term>();   // Условия (через AND).
+    private final List<Object> parameters = new ArrayList<Object>();
+    private final List<Term> orderBy = new ArrayList<Term>();
+    private int limit = -1;   // -1 - без ограничения.
+    private long offset = 0;
+    private final List<String> fetches = new ArrayList<String>(); // Связи, загружаемые сразу (fetch()).
+    private boolean cached; // Через кэш результатов DBAccess (cached()).
+
+    Query(EntityMetadata<T> metadata) {
+        this.metadata = metadata;
+    }
+
+    // Выбрать только заданные столбцы. У сущности со связями в выборке должны быть и ключи связей
+    // (внешний ключ @DBReference, @DBId для @DBCollection), иначе list()/stream() бросят исключение.
+    public Query<T> select(String... columns) {
+        List<ColumnMetadata> list = new ArrayList<ColumnMetadata>(columns.length);
+        for (String column : columns) {
+            list.add(column(column));
+        }
+        projection = list;
+        return this;
+    }
+
+    public Query<T> eq(String column, Object value) {
+        return condition(column, "=", value);
+    }
+
+    public Query<T> ne(String column, Object value) {
+        return condition(column, "<>", value);
+    }
+
+    public Query<T> lt(String column, Object value) {
+        return condition(column, "<", value);
+    }
+
+    public Query<T> le(String column, Object value) {
+        return condition(column, "<=", value);
+    }
+
+    public Query<T> gt(String column, Object value) {
+        return condition(column, ">", value);
+    }
+
+    public Query<T> ge(String column, Object value) {
+        return condition(column, ">=", value);
+    }
+
+    public Query<T> like(String column, String pattern) {
+        return condition(column, "LIKE", pattern);
+    }
+
+    // column IN (?, ?, ...). Пустой набор значений - условие, ложное для всех строк.
+    public Query<T> in(String column, Collection<?> values) {
+        ColumnMetadata columnMetadata = column(column);
+        if (values.isEmpty()) {
+            return append(null, "1 = 0");
+        }
+        StringBuilder sb = new StringBuilder(" IN (");
+        for (int i = 0; i < values.size(); ++i) {
+            sb.append(i > 0 ? ", ?" : "?");
+        }
+        parameters.addAll(values);
+        return append(columnMetadata, sb.append(')').toString());
+    }
+
+    public Query<T> isNull(String column) {
+        return append(column(column), " IS NULL");
+    }
+
+    public Query<T> isNotNull(String column) {
+        return append(column(column), " IS NOT NULL");
+    }
+
+    public Query<T> orderBy(String column) {
+        return order(column, "");
+    }
+
+    public Query<T> orderByDesc(String column) {
+        return order(column, " DESC");
+    }
+
+    public Query<T> limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must be >= 0");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    // Для больших смещений лучше SimpleORM.findPage() (стоимость OFFSET растет с глубиной).
+    public Query<T> offset(long offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must be >= 0");
+        }
+        this.offset = offset;
+        return this;
+    }
+
+    // Загрузить связь (имя поля с @DBReference/@DBCollection) сразу, как при FetchMode.EAGER,
+    // - когда известно, что она понадобится для всех сущностей выборки (для list() и first()).
+    public Query<T> fetch(String relation) {
+        if (metadata.findRelation(relation) == null) {
+            throw new IllegalArgumentException("Unknown relation '" + relation + "' in class '"
+                    + metadata.getEntityClass().getSimpleName() + "'");
+        }
+        fetches.add(relation);
+        return this;
+    }
+
+    // Выполнять через кэш результатов выборок (DBAccess.executeSelectCached(), нужен DBAccess.setQueryCache()):
+    // повторный такой же запрос смапит сущности из снимка строк, без обращения к БД (для list(), first(), count()).
+    public Query<T> cached() {
+        this.cached = true;
+        return this;
+    }
+
+    // ---------------- Выполнение ----------------
+
+    public List<T> list(DBAccess dbAccess) throws SQLException, InterruptedException {
+        checkRelationKeys();
+        List<T> result = SimpleORM.selectList(dbAccess, metadata, toSql(dbAccess.getDialect()), limit > 0 ? Math.min(limit, 1024) : 16,
+                projection != null, cached, getParameterArray());
+        for (String relation : fetches) {
+            Relations.fetch(metadata, result, relation);
+        }
+        return result;
+    }
+
+    // Первая сущность выборки или null.
+    public T first(DBAccess dbAccess) throws SQLException, InterruptedException {
+        int savedLimit = limit;
+        limit = 1;
+        try {
+            List<T> list = list(dbAccess);
+            return list.isEmpty() ? null : list.get(0);
+        } finally {
+            limit = savedLimit;
+        }
+    }
+
+    // Число строк, удовлетворяющих условиям (без учета limit/offset).
+    public long count(DBAccess dbAccess) throws SQLException, InterruptedException {
+        DBAccess.IResultSetProcessor<Long> processor = new DBAccess.IResultSetProcessor<Long>() {
+            public Long process(ResultSet resultSet) throws SQLException {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        };
+        return cached
+                ? dbAccess.executeSelectCached(toCountSql(dbAccess.getDialect()), processor, parameters.toArray())
+                : dbAccess.executeSelect(toCountSql(dbAccess.getDialect()), processor, parameters.toArray());
+    }
+
+    // Выборка по столбцам (см. SimpleORM.findAllColumnar()): только выбранные столбцы, без объектов на строку.
+    public ColumnarResult columnar(DBAccess dbAccess) throws SQLException, InterruptedException {
+        return columnar(dbAccess, false);
+    }
+
+    public ColumnarResult columnar(DBAccess dbAccess, boolean offHeap) throws SQLException, InterruptedException {
+        return SimpleORM.selectColumnar(dbAccess, metadata, toSql(dbAccess.getDialect()), offHeap, getParameterArray());
+    }
+
+    // Итератор по выборке поверх курсора (как SimpleORM.stream()): если обход прерван - вызвать close() !
+    public EntityIterator<T> stream(DBAccess dbAccess) throws SQLException, InterruptedException {
+        return stream(dbAccess, SimpleORM.DEFAULT_FETCH_SIZE);
+    }
+
+    public EntityIterator<T> stream(DBAccess dbAccess, int fetchSize) throws SQLException, InterruptedException {
+        checkRelationKeys();
+        return SimpleORM.openIterator(dbAccess, metadata, toSql(dbAccess.getDialect()), fetchSize, projection != null, getParameterArray());
+    }
+
+    // SELECT `c1`, `c2` FROM `table` WHERE ... ORDER BY ... LIMIT ? OFFSET ?
+    public String toSql(Dialect dialect) {
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(EntityMetadata.buildColumnList(dialect, projection != null ? projection : metadata.getColumns()))
+                .append(" FROM ").append(dialect.quote(metadata.getTableName()));
+        appendWhere(sql, dialect);
+        if (!orderBy.isEmpty()) {
+            sql.append(" ORDER BY ");
+            appendTerms(sql, dialect, orderBy, ", ");
+        }
+        dialect.appendLimit(sql, limit >= 0, offset > 0);
+        return sql.toString();
+    }
+
+    // Параметры в порядке '?' в toSql(dialect).
+    public List<Object> getParameters() {
+        return Collections.unmodifiableList(Arrays.asList(getParameterArray()));
+    }
+
+    @Override
+    public String toString() {
+        return toSql(Dialect.MYSQL) + " " + getParameters();
+    }
+
+    private String toCountSql(Dialect dialect) {
+        StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM ").append(dialect.quote(metadata.getTableName()));
+        appendWhere(sql, dialect);
+        return sql.toString();
+    }
+
+    private void appendWhere(StringBuilder sql, Dialect dialect) {
+        if (!where.isEmpty()) {
+            sql.append(" WHERE ");
+            appendTerms(sql, dialect, where, " AND ");
+        }
+    }
+
+    private static void appendTerms(StringBuilder sql, Dialect dialect, List<Term> terms, String separator) {
+        for (int i = 0; i < terms.size(); ++i) {
+            if (i > 0) {
+                sql.append(separator);
+            }
+            Term term = terms.get(i);
+            if (term.column != null) {
+                sql.append(dialect.quote(term.column.getColumnName()));
+            }
+            sql.append(term.text);
+        }
+    }
+
+    // Без ключа связи в проекции поле ключа осталось бы по умолчанию (0),
+    // и связь молча загрузилась бы по неверному ключу.
+    private void checkRelationKeys() {
+        if (projection == null) {
+            return;
+        }
+        for (RelationMetadata relation : metadata.getRelations()) {
+            ColumnMetadata key = relation.isCollection()
+                    ? metadata.getIdColumn()
+                    : metadata.findColumn(relation.getForeignKeyColumn());
+            if (!projection.contains(key)) {
+                throw new IllegalArgumentException("Expected column '" + key.getColumnName() + "' in select() for relation '"
+                        + relation.getName() + "' of class '" + metadata.getEntityClass().getSimpleName() + "'");
+            }
+        }
+    }
+
+    private Object[] getParameterArray() {
+        List<Object> result = new ArrayList<Object>(parameters.size() + 2);
+        result.addAll(parameters);
+        if (limit >= 0) {
+            result.add(limit);
+        }
+        if (offset > 0) {
+            result.add(offset);
+        }
+        return result.toArray();
+    }
+
+    private Query<T> condition(String column, String operator, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null value for column '" + column + "', use isNull()/isNotNull()");
+        }
+        parameters.add(value);
+        return append(column(column), " " + operator + " ?");
+    }
+
+    private Query<T> append(ColumnMetadata column, String condition) {
+        where.add(new Term(column, condition));
+        return this;
+    }
+
+    private Query<T> order(String column, String direction) {
+        orderBy.add(new Term(column(column), direction));
+        return this;
+    }
+
+    private ColumnMetadata column(String name) {
+        ColumnMetadata column = metadata.findColumn(name);
+        if (column == null) {
+            throw new IllegalArgumentException("Unknown column '" + name + "' in class '"
+                    + metadata.getEntityClass().getSimpleName() + "'");
+        }
+        return column;
+    }
+
+
+    // Часть условия или сортировки: имя столбца (в кавычках диалекта) + текст.
+    private static final class Term {
+        final ColumnMetadata column; // null - только текст.
+        final String text;
+
+        Term(ColumnMetadata column, String text) {
+            this.column = column;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.borunovv.orm;
+
+import java.util.List;
+
+/**
+ * Ленивая ссылка на сущность (поле с @DBReference).
+ * get() при первом обращении загрузит не только эту ссылку, но и ссылки остальных сущностей,
+ * загруженных тем же запросом (до batchSize штук одним WHERE id IN (...)), - вместо запроса на каждую.
+ * Безопасна для использования из разных потоков.
+ *
+ * @author borunovv
+ */
+public final class Reference<T> {
+
+    private final Relations.Loader loader;
+    private final Object id;
+    private volatile boolean loaded;
+    private volatile T value;
+
+    Reference(Relations.Loader loader, Object id) {
+        this.loader = loader;
+        this.id = id;
+        this.loaded = id == null;
+    }
+
+    // Связанная сущность (null, если ключ пустой или такой сущности нет).
+    public T get() {
+        if (!loaded) {
+            loader.load(id);
+        }
+        return value;
+    }
+
+    // Значение внешнего ключа (без загрузки).
+    public Object getId() {
+        return id;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    Relations.Loader getLoader() {
+        return loader;
+    }
+
+    @SuppressWarnings("unchecked")
+    void resolve(List<Object> values) {
+        value = values.isEmpty() ? null : (T) values.get(0);
+        loaded = true;
+    }
+
+    @Override
+    public String toString() {
+        return loaded ? "Reference{" + value + "}" : "Reference{id=" + id + ", not loaded}";
+    }
+}
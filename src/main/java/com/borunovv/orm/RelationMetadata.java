@@ -0,0 +1,104 @@
+package com.borunovv.orm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Описание связи сущности (@DBReference или @DBCollection): поле, целевая сущность,
+ * столбец внешнего ключа, режим и размер пакета загрузки.
+ * Неизменяемый, безопасен для использования из разных потоков.
+ *
+ * @author borunovv
+ */
+public final class RelationMetadata {
+
+    private final Field field;
+    private final boolean collection;
+    private final Class<?> targetClass;
+    // @DBReference - столбец этой сущности, @DBCollection - столбец целевой.
+    private final String foreignKeyColumn;
+    private final FetchMode fetchMode;
+    private final int batchSize;
+
+    private RelationMetadata(Field field, boolean collection, Class<?> targetClass, String foreignKeyColumn,
+                             FetchMode fetchMode, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Expected batchSize > 0 for field '" + field.getName() + "'");
+        }
+        field.setAccessible(true);
+        this.field = field;
+        this.collection = collection;
+        this.targetClass = targetClass;
+        this.foreignKeyColumn = foreignKeyColumn;
+        this.fetchMode = fetchMode;
+        this.batchSize = batchSize;
+    }
+
+    // Связь для поля или null, если поле не помечено @DBReference/@DBCollection.
+    static RelationMetadata of(Field field) {
+        DBReference reference = field.getAnnotation(DBReference.class);
+        if (reference != null) {
+            return new RelationMetadata(field, false, getTypeArgument(field, Reference.class),
+                    reference.column(), reference.fetch(), reference.batchSize());
+        }
+        DBCollection collection = field.getAnnotation(DBCollection.class);
+        if (collection != null) {
+            return new RelationMetadata(field, true, getTypeArgument(field, List.class),
+                    collection.mappedBy(), collection.fetch(), collection.batchSize());
+        }
+        return null;
+    }
+
+    // X для поля типа holder<X>.
+    private static Class<?> getTypeArgument(Field field, Class<?> holder) {
+        Type type = field.getGenericType();
+        if (field.getType() == holder && type instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (argument instanceof Class) {
+                return (Class<?>) argument;
+            }
+        }
+        throw new IllegalArgumentException("Expected field '" + field.getName() + "' of type "
+                + holder.getSimpleName() + "<EntityClass>");
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    public String getName() {
+        return field.getName();
+    }
+
+    public boolean isCollection() {
+        return collection;
+    }
+
+    public Class<?> getTargetClass() {
+        return targetClass;
+    }
+
+    public String getForeignKeyColumn() {
+        return foreignKeyColumn;
+    }
+
+    public FetchMode getFetchMode() {
+        return fetchMode;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "RelationMetadata{" +
+                "field=" + field.getName() +
+                ", target=" + targetClass.getSimpleName() +
+                ", " + (collection ? "mappedBy" : "column") + "='" + foreignKeyColumn + '\'' +
+                ", fetch=" + fetchMode +
+                '}';
+    }
+}
@@ -0,0 +1,216 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.db.Dialect;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Заполнение связей (@DBReference, @DBCollection) загруженных сущностей.
+ *
+ * Связи всех сущностей одной выборки обслуживает общий Loader: обращение к любой из них
+ * загружает сразу до batchSize ключей одним "WHERE fk IN (...)". Вместо N+1 запросов - N/batchSize + 1.
+ *
+ * @author borunovv
+ */
+final class Relations {
+
+    private Relations() {
+    }
+
+    // Заполнит поля-связи сущностей ленивыми ссылками/коллекциями.
+    // eager == true - связи с FetchMode.EAGER загружаются сразу (для сущностей, загруженных по связи, - нет,
+    // чтобы взаимные EAGER-связи не грузили всю базу).
+    static <T> void attach(DBAccess dbAccess, EntityMetadata<T> metadata, List<T> entities, boolean eager) throws SQLException, InterruptedException {
+        if (entities.isEmpty()) {
+            return;
+        }
+        for (RelationMetadata relation : metadata.getRelations()) {
+            Loader loader = new Loader(dbAccess, relation);
+            ColumnMetadata keyColumn = relation.isCollection()
+                    ? metadata.getIdColumn()
+                    : metadata.findColumn(relation.getForeignKeyColumn());
+            for (T entity : entities) {
+                Object key = normalizeKey(BeanUtils.getFieldValue(keyColumn, entity));
+                Object slot = relation.isCollection()
+                        ? new LazyList<Object>(loader, key)
+                        : new Reference<Object>(loader, key);
+                if (key != null) {
+                    loader.add(key, slot);
+                } else {
+                    resolve(slot, Collections.emptyList());
+                }
+                try {
+                    relation.getField().set(entity, slot);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException("Error ORM mapping", e);
+                }
+            }
+            if (eager && relation.getFetchMode() == FetchMode.EAGER) {
+                loader.loadAll();
+            }
+        }
+    }
+
+    // Загрузит связь relationName (имя поля) сразу для всех сущностей (см. Query.fetch()).
+    static <T> void fetch(EntityMetadata<T> metadata, List<T> entities, String relationName) throws SQLException, InterruptedException {
+        RelationMetadata relation = metadata.findRelation(relationName);
+        if (relation == null) {
+            throw new IllegalArgumentException("Unknown relation '" + relationName + "' in class '"
+                    + metadata.getEntityClass().getSimpleName() + "'");
+        }
+        if (entities.isEmpty()) {
+            return;
+        }
+        Object slot;
+        try {
+            slot = relation.getField().get(entities.get(0));
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Error ORM mapping", e);
+        }
+        // У всех сущностей одной выборки - общий загрузчик.
+        Loader loader = slot instanceof Reference ? ((Reference<?>) slot).getLoader()
+                : slot instanceof LazyList ? ((LazyList<?>) slot).getLoader()
+                : null;
+        if (loader != null) {
+            loader.loadAll();
+        }
+    }
+
+    // Целые ключи - к Long, чтобы ключ из поля int и из поля long совпадали.
+    private static Object normalizeKey(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        return key;
+    }
+
+    private static void resolve(Object slot, List<Object> values) {
+        if (slot instanceof Reference) {
+            ((Reference<?>) slot).resolve(values);
+        } else {
+            ((LazyList<?>) slot).resolve(values);
+        }
+    }
+
+    // Размер IN-списка: степень двойки (но не больше batchSize), недостающее - повтором последнего ключа.
+    // Так форм запроса немного и подготовленные запросы берутся из кэша.
+    private static int getInListSize(int keys, int batchSize) {
+        int size = 1;
+        while (size < keys) {
+            size <<= 1;
+        }
+        return Math.min(size, batchSize);
+    }
+
+
+    // Загрузчик одной связи для сущностей одной выборки.
+    static final class Loader {
+        private final DBAccess dbAccess;
+        private final RelationMetadata relation;
+        // Ключ -> ожидающие загрузки ссылки/коллекции (в порядке загрузки сущностей).
+        private final Map<Object, List<Object>> pending = new LinkedHashMap<Object, List<Object>>();
+
+        Loader(DBAccess dbAccess, RelationMetadata relation) {
+            this.dbAccess = dbAccess;
+            this.relation = relation;
+        }
+
+        void add(Object key, Object slot) {
+            List<Object> slots = pending.get(key);
+            if (slots == null) {
+                slots = new ArrayList<Object>(1);
+                pending.put(key, slots);
+            }
+            slots.add(slot);
+        }
+
+        // Загрузит связь для ключа и следующих за ним (до batchSize). Ошибка БД - RuntimeException.
+        void load(Object key) {
+            try {
+                loadBatch(key);
+            } catch (SQLException e) {
+                throw new RuntimeException("Error loading relation '" + relation.getName() + "'", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted loading relation '" + relation.getName() + "'", e);
+            }
+        }
+
+        synchronized void loadAll() throws SQLException, InterruptedException {
+            while (!pending.isEmpty()) {
+                loadBatch(pending.keySet().iterator().next());
+            }
+        }
+
+        private synchronized void loadBatch(Object key) throws SQLException, InterruptedException {
+            if (!pending.containsKey(key)) {
+                return; // Уже загружено (другим потоком).
+            }
+            int batchSize = relation.getBatchSize();
+            List<Object> keys = new ArrayList<Object>(Math.min(batchSize, pending.size()));
+            keys.add(key);
+            for (Iterator<Object> it = pending.keySet().iterator(); it.hasNext() && keys.size() < batchSize; ) {
+                Object next = it.next();
+                if (!next.equals(key)) {
+                    keys.add(next);
+                }
+            }
+
+            Map<Object, List<Object>> loaded = query(keys);
+            for (Object loadedKey : keys) {
+                List<Object> values = loaded.get(loadedKey);
+                for (Object slot : pending.remove(loadedKey)) {
+                    resolve(slot, values != null ? values : Collections.emptyList());
+                }
+            }
+        }
+
+        // Сущности по ключам, сгруппированные по ключу.
+        @SuppressWarnings("unchecked")
+        private Map<Object, List<Object>> query(List<Object> keys) throws SQLException, InterruptedException {
+            EntityMetadata<Object> target = EntityMetadata.of((Class<Object>) relation.getTargetClass());
+            ColumnMetadata keyColumn = relation.isCollection()
+                    ? target.findColumn(relation.getForeignKeyColumn())
+                    : target.requireIdColumn();
+            if (keyColumn == null) {
+                throw new IllegalArgumentException("Unknown column '" + relation.getForeignKeyColumn() + "' in class '"
+                        + target.getEntityClass().getSimpleName() + "' (mappedBy of '" + relation.getName() + "')");
+            }
+
+            Dialect dialect = dbAccess.getDialect();
+            int size = getInListSize(keys.size(), relation.getBatchSize());
+            Object[] params = new Object[size];
+            StringBuilder sql = new StringBuilder(target.getSelectAllSql(dialect))
+                    .append(" WHERE ").append(dialect.quote(keyColumn.getColumnName())).append(" IN (");
+            for (int i = 0; i < size; ++i) {
+                sql.append(i > 0 ? ", ?" : "?");
+                params[i] = keys.get(Math.min(i, keys.size() - 1));
+            }
+            sql.append(')');
+            if (relation.isCollection() && target.getIdColumn() != null) {
+                sql.append(" ORDER BY ").append(dialect.quote(target.getIdColumn().getColumnName()));
+            }
+
+            List<Object> rows = SimpleORM.selectRelated(dbAccess, target, sql.toString(), keys.size(), params);
+            Map<Object, List<Object>> result = new HashMap<Object, List<Object>>();
+            for (Object row : rows) {
+                Object rowKey = normalizeKey(BeanUtils.getFieldValue(keyColumn, row));
+                List<Object> values = result.get(rowKey);
+                if (values == null) {
+                    values = new ArrayList<Object>(relation.isCollection() ? 4 : 1);
+                    result.put(rowKey, values);
+                }
+                values.add(row);
+            }
+            return result;
+        }
+    }
+}
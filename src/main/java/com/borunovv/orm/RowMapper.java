@@ -0,0 +1,15 @@
+package com.borunovv.orm;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Маппер текущей строки ResultSet-а в объект сущности.
+ * Создается один раз на выборку (столбцы уже привязаны по индексам),
+ * затем вызывается для каждой строки.
+ *
+ * @author borunovv
+ */
+public interface RowMapper<T> {
+    public T map(ResultSet resultSet) throws SQLException;
+}
@@ -0,0 +1,168 @@
+package com.borunovv.orm;
+
+import java.lang.invoke.MethodHandle;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Фабрика мапперов строк (RowMapper) для сущностей.
+ *
+ * @author borunovv
+ */
+final class RowMappers {
+
+    private RowMappers() {
+    }
+
+    // Создаст маппер для выборки с заданными метаданными (столбцы привязываются один раз на выборку).
+    // В выборке должны быть все замапленные столбцы сущности.
+    static <T> RowMapper<T> create(EntityMetadata<T> metadata, ResultSetMetaData resultSetMetaData, MappingMode mode) throws SQLException {
+        return create(metadata, resultSetMetaData, mode, false);
+    }
+
+    // partial == true - выборка может содержать только часть столбцов (проекция, см. Query.select()),
+    // остальные поля сущности останутся со значениями по умолчанию.
+    static <T> RowMapper<T> create(EntityMetadata<T> metadata, ResultSetMetaData resultSetMetaData, MappingMode mode, boolean partial) throws SQLException {
+        switch (mode) {
+            case PROCESSED:
+                if (metadata.getMapper() != null) {
+                    return new ProcessedRowMapper<T>(metadata, resultSetMetaData, partial);
+                }
+                return new GeneratedRowMapper<T>(metadata, resultSetMetaData, partial);
+            case GENERATED:
+                return new GeneratedRowMapper<T>(metadata, resultSetMetaData, partial);
+            case REFLECTIVE:
+                return new ReflectiveRowMapper<T>(metadata, resultSetMetaData, partial);
+            default:
+                throw new IllegalArgumentException("Unknown mapping mode: " + mode);
+        }
+    }
+
+    // Вернет индекс (с 1) столбца в выборке по имени без учета регистра (0 - нет такого и partial).
+    private static int findColumnIndex(ResultSetMetaData resultSetMetaData, String columnName, boolean partial) throws SQLException {
+        for (int i = 1; i <= resultSetMetaData.getColumnCount(); ++i) {
+            if (resultSetMetaData.getColumnLabel(i).equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        if (partial) {
+            return 0;
+        }
+        throw new IllegalArgumentException("Expected value for column '" + columnName + "'");
+    }
+
+    private static RuntimeException mappingError(Throwable e) {
+        return new RuntimeException("Error ORM mapping", e);
+    }
+
+
+    // Маппер на сгенерированном при компиляции коде (EntityMapper): здесь только привязка столбцов к индексам.
+    private static final class ProcessedRowMapper<T> implements RowMapper<T> {
+        private final EntityMapper<T> mapper;
+        private final int[] columnIndexes; // По номеру столбца сущности, 0 - нет в выборке.
+
+        ProcessedRowMapper(EntityMetadata<T> metadata, ResultSetMetaData resultSetMetaData, boolean partial) throws SQLException {
+            List<ColumnMetadata> columns = metadata.getColumns();
+            this.mapper = metadata.getMapper();
+            this.columnIndexes = new int[columns.size()];
+            for (int i = 0; i < columns.size(); ++i) {
+                columnIndexes[i] = findColumnIndex(resultSetMetaData, columns.get(i).getColumnName(), partial);
+            }
+        }
+
+        public T map(ResultSet resultSet) throws SQLException {
+            return mapper.map(resultSet, columnIndexes);
+        }
+    }
+
+
+    // Маппер на MethodHandle-ах: конструктор и сеттеры полей уже разрешены в метаданных,
+    // здесь только привязка столбцов к индексам. На строку - ни поиска по имени, ни мапы.
+    private static final class GeneratedRowMapper<T> implements RowMapper<T> {
+        private final Class<T> entityClass;
+        private final MethodHandle constructor;
+        private final MethodHandle[] setters;
+        private final ColumnConverter[] converters;
+        private final int[] columnIndexes;
+
+        GeneratedRowMapper(EntityMetadata<T> metadata, ResultSetMetaData resultSetMetaData, boolean partial) throws SQLException {
+            List<ColumnMetadata> present = new ArrayList<ColumnMetadata>();
+            List<Integer> indexes = new ArrayList<Integer>();
+            for (ColumnMetadata column : metadata.getColumns()) {
+                int index = findColumnIndex(resultSetMetaData, column.getColumnName(), partial);
+                if (index > 0) {
+                    present.add(column);
+                    indexes.add(index);
+                }
+            }
+            this.entityClass = metadata.getEntityClass();
+            this.constructor = metadata.getConstructor();
+            this.setters = new MethodHandle[present.size()];
+            this.converters = new ColumnConverter[present.size()];
+            this.columnIndexes = new int[present.size()];
+            for (int i = 0; i < present.size(); ++i) {
+                setters[i] = present.get(i).getFieldSetter();
+                converters[i] = present.get(i).getConverter();
+                columnIndexes[i] = indexes.get(i);
+            }
+        }
+
+        public T map(ResultSet resultSet) throws SQLException {
+            try {
+                Object obj = constructor.invokeExact();
+                for (int i = 0; i < columnIndexes.length; ++i) {
+                    converters[i].readInto(resultSet, columnIndexes[i], obj, setters[i]);
+                }
+                return entityClass.cast(obj);
+            } catch (SQLException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw mappingError(e);
+            }
+        }
+    }
+
+
+    // Рефлексивный маппер (исходная реализация): строка -> Map<String, Object> -> BeanUtils.newInstance().
+    // Значения читаются типизированно конвертером поля (незамапленные столбцы - как Object).
+    private static final class ReflectiveRowMapper<T> implements RowMapper<T> {
+        private final EntityMetadata<T> metadata;
+        private final boolean partial;
+        private final String[] columnNames;
+        private final ColumnConverter[] converters;
+        private final Map<String, Object> entry = new HashMap<String, Object>();
+
+        ReflectiveRowMapper(EntityMetadata<T> metadata, ResultSetMetaData resultSetMetaData, boolean partial) throws SQLException {
+            this.metadata = metadata;
+            this.partial = partial;
+            this.columnNames = new String[resultSetMetaData.getColumnCount()];
+            this.converters = new ColumnConverter[columnNames.length];
+            for (int i = 0; i < columnNames.length; ++i) {
+                columnNames[i] = resultSetMetaData.getColumnName(i + 1);
+                ColumnMetadata column = metadata.findColumn(columnNames[i]);
+                converters[i] = column != null ? column.getConverter() : null;
+                entry.put(columnNames[i], null);
+            }
+        }
+
+        public T map(ResultSet resultSet) throws SQLException {
+            for (int i = 0; i < columnNames.length; ++i) {
+                entry.put(columnNames[i], converters[i] != null ?
+                        converters[i].read(resultSet, i + 1) :
+                        resultSet.getObject(i + 1));
+            }
+            try {
+                return BeanUtils.newInstance(entry, metadata, partial);
+            } catch (Exception e) {
+                throw mappingError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.DBAccess;
+import com.borunovv.db.Dialect;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Единица работы (unit of work): загруженные через сессию сущности запоминаются вместе со снимком
+ * значений полей, а flush() пишет в БД только измененные столбцы измененных сущностей.
+ *
+ * UPDATE-ы группируются по "форме" (сущность + набор измененных столбцов) в JDBC-пакеты
+ * и выполняются в одной транзакции: изменения целого запроса - за один проход вместо запроса на сущность.
+ * Для сущностей с @DBVersion - проверка версии как в SimpleORM.updateAll().
+ *
+ * В сессии одна сущность с данным ключом (identity map): повторный find() вернет тот же объект.
+ * Сессия не потокобезопасна: одна на поток (запрос, задачу).
+ *
+ * Использование:
+ *   Session session = SimpleORM.openSession(dbAccess);
+ *   MyModel model = session.find(MyModel.class, 1);
+ *   model.setValue(100);
+ *   session.flush(); // UPDATE `accum` SET `value` = ? WHERE `id` = ?
+ *
+ * @author borunovv
+ */
+public class Session {
+
+    private final DBAccess dbAccess;
+    // Сущность -> (ключ -> запись сессии), в порядке загрузки.
+    private final Map<EntityMetadata<?>, Map<Object, Entry<?>>> entries = new LinkedHashMap<EntityMetadata<?>, Map<Object, Entry<?>>>();
+
+    Session(DBAccess dbAccess) {
+        this.dbAccess = dbAccess;
+    }
+
+    public DBAccess getDBAccess() {
+        return dbAccess;
+    }
+
+    // ---------------- Загрузка ----------------
+
+    // Сущность по ключу: из сессии, иначе из БД (SimpleORM.findById()). Нет такой - null.
+    public <T> T find(Class<T> entityClass, Object id) throws SQLException, InterruptedException {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        Entry<T> entry = getEntry(metadata, metadata.normalizeId(id));
+        if (entry != null) {
+            return entry.entity;
+        }
+        T entity = SimpleORM.findById(dbAccess, entityClass, id);
+        return entity != null ? attach(entity) : null;
+    }
+
+    public <T> List<T> findAll(Class<T> entityClass) throws SQLException, InterruptedException {
+        return attachAll(SimpleORM.findAll(dbAccess, entityClass));
+    }
+
+    // Выполнит запрос и вернет сущности сессии. Запрос должен выбирать все столбцы (без select()),
+    // иначе невыбранные поля при flush() окажутся "измененными".
+    public <T> List<T> list(Query<T> query) throws SQLException, InterruptedException {
+        return attachAll(query.list(dbAccess));
+    }
+
+    // Начнет отслеживать сущность (снимок - текущие значения полей). Если в сессии уже есть
+    // сущность с таким ключом, вернет ее (с ее изменениями), иначе - entity.
+    @SuppressWarnings("unchecked")
+    public <T> T attach(T entity) {
+        EntityMetadata<T> metadata = EntityMetadata.of((Class<T>) entity.getClass());
+        Object id = metadata.getId(entity);
+        Map<Object, Entry<?>> byId = entries.get(metadata);
+        if (byId == null) {
+            byId = new LinkedHashMap<Object, Entry<?>>();
+            entries.put(metadata, byId);
+        }
+        Entry<T> existing = (Entry<T>) byId.get(id);
+        if (existing != null) {
+            return existing.entity;
+        }
+        byId.put(id, new Entry<T>(metadata, entity));
+        return entity;
+    }
+
+    // attach() для каждой сущности, в том же порядке.
+    public <T> List<T> attachAll(Collection<T> entities) {
+        List<T> result = new ArrayList<T>(entities.size());
+        for (T entity : entities) {
+            result.add(attach(entity));
+        }
+        return result;
+    }
+
+    // Перестанет отслеживать сущность (ее изменения не будут записаны).
+    public void detach(Object entity) {
+        Entry<?> entry = findEntry(entity);
+        if (entry != null) {
+            entries.get(entry.metadata).remove(entry.id);
+        }
+    }
+
+    public boolean contains(Object entity) {
+        return findEntry(entity) != null;
+    }
+
+    // Забудет все сущности (не записывая изменения).
+    public void clear() {
+        entries.clear();
+    }
+
+    // Число отслеживаемых сущностей.
+    public int size() {
+        int size = 0;
+        for (Map<Object, Entry<?>> byId : entries.values()) {
+            size += byId.size();
+        }
+        return size;
+    }
+
+    // ---------------- Изменения ----------------
+
+    public boolean isDirty(Object entity) {
+        Entry<?> entry = requireEntry(entity);
+        return !entry.getChanged().isEmpty();
+    }
+
+    // Имена измененных с момента загрузки (или последнего flush()) столбцов.
+    public List<String> getDirtyColumns(Object entity) {
+        Entry<?> entry = requireEntry(entity);
+        List<String> result = new ArrayList<String>();
+        BitSet changed = entry.getChanged();
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            result.add(entry.metadata.getColumns().get(i).getColumnName());
+        }
+        return result;
+    }
+
+    // Запишет изменения всех сущностей сессии одной транзакцией (по JDBC-пакету на форму UPDATE).
+    // Вернет число измененных сущностей. При ошибке (в т.ч. OptimisticLockException) в БД ничего
+    // не изменится, а сессия сохранит изменения (можно исправить и повторить или clear()).
+    public int flush() throws SQLException, InterruptedException {
+        final Map<Shape, Batch<?>> batches = new LinkedHashMap<Shape, Batch<?>>();
+        int count = 0;
+        for (Map<Object, Entry<?>> byId : entries.values()) {
+            for (Entry<?> entry : byId.values()) {
+                BitSet changed = entry.getChanged();
+                if (!changed.isEmpty()) {
+                    addToBatch(batches, entry, changed, dbAccess.getDialect());
+                    ++count;
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        try {
+            dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    for (Batch<?> batch : batches.values()) {
+                        batch.execute(queryExecutor);
+                    }
+                }
+            });
+        } finally {
+            for (Batch<?> batch : batches.values()) {
+                batch.invalidateCached(dbAccess);
+            }
+        }
+
+        for (Batch<?> batch : batches.values()) {
+            batch.onFlushed();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "Session{entities=" + size() + "}";
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void addToBatch(Map<Shape, Batch<?>> batches, Entry<T> entry, BitSet changed, Dialect dialect) {
+        Shape shape = new Shape(entry.metadata, changed);
+        Batch<T> batch = (Batch<T>) batches.get(shape);
+        if (batch == null) {
+            batch = new Batch<T>(entry.metadata, changed, dialect);
+            batches.put(shape, batch);
+        }
+        batch.entries.add(entry);
+        batch.entities.add(entry.entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Entry<T> getEntry(EntityMetadata<T> metadata, Object id) {
+        Map<Object, Entry<?>> byId = entries.get(metadata);
+        return byId != null ? (Entry<T>) byId.get(id) : null;
+    }
+
+    // Запись сессии именно для этого объекта (а не другого с тем же ключом).
+    @SuppressWarnings("unchecked")
+    private Entry<?> findEntry(Object entity) {
+        EntityMetadata<Object> metadata = EntityMetadata.of((Class<Object>) entity.getClass());
+        Entry<?> entry = getEntry(metadata, metadata.getId(entity));
+        return entry != null && entry.entity == entity ? entry : null;
+    }
+
+    private Entry<?> requireEntry(Object entity) {
+        Entry<?> entry = findEntry(entity);
+        if (entry == null) {
+            throw new IllegalArgumentException("Entity is not attached to session: " + entity);
+        }
+        return entry;
+    }
+
+
+    // Отслеживаемая сущность и снимок ее полей (по индексам metadata.getColumns()).
+    private static final class Entry<T> {
+        final EntityMetadata<T> metadata;
+        final T entity;
+        final Object id;
+        Object[] snapshot;
+
+        Entry(EntityMetadata<T> metadata, T entity) {
+            this.metadata = metadata;
+            this.entity = entity;
+            this.id = metadata.getId(entity);
+            takeSnapshot();
+        }
+
+        void takeSnapshot() {
+            List<ColumnMetadata> columns = metadata.getColumns();
+            Object[] values = new Object[columns.size()];
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = BeanUtils.copyValue(BeanUtils.getFieldValue(columns.get(i), entity));
+            }
+            snapshot = values;
+        }
+
+        // Индексы измененных столбцов (ключ и версия не в счет: их сессия не пишет).
+        BitSet getChanged() {
+            List<ColumnMetadata> columns = metadata.getColumns();
+            BitSet changed = new BitSet(columns.size());
+            for (int i = 0; i < columns.size(); ++i) {
+                ColumnMetadata column = columns.get(i);
+                if (column == metadata.getIdColumn() || column == metadata.getVersionColumn()) {
+                    continue;
+                }
+                if (!Objects.deepEquals(snapshot[i], BeanUtils.getFieldValue(column, entity))) {
+                    changed.set(i);
+                }
+            }
+            return changed;
+        }
+    }
+
+    // Форма UPDATE-а: сущность + набор измененных столбцов.
+    private static final class Shape {
+        final EntityMetadata<?> metadata;
+        final BitSet changed;
+
+        Shape(EntityMetadata<?> metadata, BitSet changed) {
+            this.metadata = metadata;
+            this.changed = changed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            Shape other = (Shape) o;
+            return metadata == other.metadata && changed.equals(other.changed);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * metadata.hashCode() + changed.hashCode();
+        }
+    }
+
+    // Сущности одной формы: один UPDATE, один JDBC-пакет.
+    private static final class Batch<T> {
+        final EntityMetadata<T> metadata;
+        final String sql;
+        final DBAccess.IStatementBinder<T> binder;
+        final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+        final List<T> entities = new ArrayList<T>();
+
+        Batch(EntityMetadata<T> metadata, BitSet changed, Dialect dialect) {
+            List<ColumnMetadata> columns = new ArrayList<ColumnMetadata>();
+            for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                columns.add(metadata.getColumns().get(i));
+            }
+            this.metadata = metadata;
+            this.sql = metadata.getUpdateSql(dialect, columns);
+            this.binder = StatementBinders.create(metadata, metadata.getUpdateColumns(columns));
+        }
+
+        void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+            int[] counts = queryExecutor.executeBatch(sql, entities, binder, SimpleORM.DEFAULT_BATCH_SIZE);
+            if (metadata.getVersionColumn() != null) {
+                SimpleORM.checkVersions(metadata, entities, counts);
+            }
+        }
+
+        void invalidateCached(DBAccess dbAccess) {
+            SimpleORM.invalidateCached(dbAccess, metadata, entities);
+        }
+
+        // После коммита: версия +1 (как в БД), новый снимок.
+        void onFlushed() {
+            ColumnMetadata versionColumn = metadata.getVersionColumn();
+            for (Entry<T> entry : entries) {
+                if (versionColumn != null) {
+                    BeanUtils.setNumericValue(versionColumn, entry.entity, metadata.getVersion(entry.entity) + 1);
+                }
+                entry.takeSnapshot();
+            }
+        }
+    }
+}
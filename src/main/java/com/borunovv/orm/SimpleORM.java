@@ -1,15 +1,23 @@
 package com.borunovv.orm;
 
 import com.borunovv.db.DBAccess;
+import com.borunovv.db.DeltaAccumulator;
+import com.borunovv.db.Dialect;
+import com.borunovv.db.OptimisticLockException;
+import com.borunovv.db.TableSnapshot;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Минимальная реализация ORM (Object Relational Mapping) - слой,
@@ -21,49 +29,556 @@ import java.util.Map;
  */
 public class SimpleORM {
 
+    static final int DEFAULT_FETCH_SIZE = 1000;
+    static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static volatile MappingMode mappingMode = MappingMode.PROCESSED;
+
+    // Переключение способа маппинга строк в объекты (например, для сравнения производительности).
+    public static void setMappingMode(MappingMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("Mapping mode is null");
+        }
+        mappingMode = mode;
+    }
+
+    public static MappingMode getMappingMode() {
+        return mappingMode;
+    }
+
     // Веренет все записи таблицы в виде списка объектов.
     // entityClass - должен быть аннотирован через @DBEntity.
-    public static <T> List<T> findAll(DBAccess dbAccess, final Class<T> entityClass) throws SQLException, InterruptedException {
-        return dbAccess.executeSelect("SELECT * FROM `" + getTableName(entityClass) + "`",
-                new DBAccess.IResultSetProcessor<List<T>>() {
+    public static <T> List<T> findAll(DBAccess dbAccess, Class<T> entityClass) throws SQLException, InterruptedException {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        return selectList(dbAccess, metadata, metadata.getSelectAllSql(dbAccess.getDialect()), 16);
+    }
 
-            public List<T> process(ResultSet resultSet) throws SQLException {
-                try {
-                    return toEntityList(resultSet, entityClass);
-                } catch (Exception e) {
-                    throw new RuntimeException("Error ORM mapping", e);
+    // Вернет сущность по первичному ключу (@DBId) или null, если ее нет.
+    // Для сущностей с @DBEntity(cacheable = true) сначала ищет в кэше (свой для каждого dbAccess).
+    // Из кэша всегда возвращается копия, так что изменение результата кэш не портит.
+    // Промах кэша читается с основной БД: строка с отстающей реплики пережила бы сброс кэша записью.
+    public static <T> T findById(final DBAccess dbAccess, final Class<T> entityClass, Object id) throws SQLException, InterruptedException {
+        final EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        final Object key = metadata.normalizeId(id);
+
+        EntityCache<Object, T> cache = EntityCaches.get(dbAccess, metadata);
+        long stamp = 0;
+        if (cache != null) {
+            T cached = cache.get(key);
+            if (cached != null) {
+                return withRelations(dbAccess, metadata, metadata.copy(cached));
+            }
+            stamp = cache.getInvalidationStamp();
+        }
+
+        final String sql = metadata.getSelectByIdSql(dbAccess.getDialect());
+        final DBAccess.IResultSetProcessor<T> processor = new DBAccess.IResultSetProcessor<T>() {
+            public T process(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                T result = RowMappers.create(metadata, resultSet.getMetaData(), mappingMode).map(resultSet);
+                dbAccess.getMetricsListener().onRowsMapped(entityClass, 1);
+                return result;
+            }
+        };
+        T entity;
+        if (cache != null) {
+            entity = dbAccess.executeOnPrimary(new DBAccess.IPrimarySession<T>() {
+                public T execute(DBAccess primary) throws SQLException, InterruptedException {
+                    return primary.executeSelect(sql, processor, key);
                 }
+            });
+        } else {
+            entity = dbAccess.executeSelect(sql, processor, key);
+        }
+
+        if (entity != null && cache != null) {
+            cache.putIfNotInvalidated(key, metadata.copy(entity), stamp);
+        }
+        return withRelations(dbAccess, metadata, entity);
+    }
+
+    // Заполнит связи (@DBReference, @DBCollection) одной сущности.
+    private static <T> T withRelations(DBAccess dbAccess, EntityMetadata<T> metadata, T entity) throws SQLException, InterruptedException {
+        if (entity != null && !metadata.getRelations().isEmpty()) {
+            Relations.attach(dbAccess, metadata, Collections.singletonList(entity), true);
+        }
+        return entity;
+    }
+
+    // Статистика кэша сущностей (null, если сущность не кэшируемая или к кэшу еще не обращались).
+    public static CacheStats getCacheStats(DBAccess dbAccess, Class<?> entityClass) {
+        EntityCache<Object, ?> cache = EntityCaches.find(dbAccess, EntityMetadata.of(entityClass));
+        return cache != null ? cache.getStats() : null;
+    }
+
+    // Очистит кэш сущностей (например, после изменения таблицы в обход SimpleORM).
+    public static void evictCache(DBAccess dbAccess, Class<?> entityClass) {
+        EntityCache<Object, ?> cache = EntityCaches.find(dbAccess, EntityMetadata.of(entityClass));
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    // Параллельный findAll(): таблица делится на диапазоны первичного ключа (между MIN и MAX, целочисленный @DBId),
+    // диапазоны читаются и мапятся одновременно на разных соединениях пула (см. DBAccess.executeAsync()).
+    // Порядок сущностей в результате не определен.
+    public static <T> List<T> findAllParallel(DBAccess dbAccess, Class<T> entityClass) throws SQLException, InterruptedException {
+        return findAllParallel(dbAccess, entityClass, defaultPartitions(dbAccess));
+    }
+
+    // partitions - на сколько диапазонов делить (больше числа соединений - ровнее нагрузка при "дырах" в ключах).
+    public static <T> List<T> findAllParallel(DBAccess dbAccess, Class<T> entityClass, int partitions) throws SQLException, InterruptedException {
+        List<CompletableFuture<List<T>>> parts = scanPartitions(dbAccess, EntityMetadata.of(entityClass), partitions);
+        List<List<T>> results = new ArrayList<List<T>>(parts.size());
+        int size = 0;
+        for (CompletableFuture<List<T>> part : parts) {
+            List<T> list = DBAccess.await(part, parts);
+            results.add(list);
+            size += list.size();
+        }
+        List<T> result = new ArrayList<T>(size);
+        for (List<T> list : results) {
+            result.addAll(list);
+        }
+        return result;
+    }
+
+    // То же в виде неупорядоченного параллельного потока: диапазоны отдаются по мере чтения.
+    // Ошибка чтения - CompletionException при обходе потока.
+    public static <T> Stream<T> parallelStream(DBAccess dbAccess, Class<T> entityClass) throws SQLException, InterruptedException {
+        List<CompletableFuture<List<T>>> parts = scanPartitions(dbAccess, EntityMetadata.of(entityClass), defaultPartitions(dbAccess));
+        return parts.parallelStream().unordered().flatMap(new Function<CompletableFuture<List<T>>, Stream<T>>() {
+            public Stream<T> apply(CompletableFuture<List<T>> part) {
+                return part.join().stream();
             }
         });
     }
 
-    private static <T> List<T> toEntityList(ResultSet resultSet, Class<T> clazz) throws SQLException, InvocationTargetException, InstantiationException, IllegalAccessException {
-        List<T> result = new LinkedList<T>();
+    private static int defaultPartitions(DBAccess dbAccess) {
+        return dbAccess.getPoolMaxSize() * 4;
+    }
 
-        ResultSetMetaData metaData = resultSet.getMetaData();
-        String[] columnNames = new String[metaData.getColumnCount()];
-        Map<String, String> entry = new HashMap<String, String>();
+    // Запустит чтение диапазонов ключа [MIN, MAX], поделенного на partitions частей.
+    private static <T> List<CompletableFuture<List<T>>> scanPartitions(final DBAccess dbAccess, final EntityMetadata<T> metadata,
+                                                                      int partitions) throws SQLException, InterruptedException {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Partitions must be > 0");
+        }
+        Class<?> idType = metadata.requireIdColumn().getType();
+        if (idType != long.class && idType != Long.class && idType != int.class && idType != Integer.class
+                && idType != short.class && idType != Short.class) {
+            throw new IllegalArgumentException("Expected integer @DBId field in class '" + metadata.getEntityClass().getSimpleName() + "'");
+        }
 
-        for (int i = 0; i < columnNames.length ; ++i) {
-            columnNames[i] = metaData.getColumnName(i + 1);
-            entry.put(columnNames[i], null);
+        long[] range = dbAccess.executeSelect(metadata.getSelectKeyRangeSql(dbAccess.getDialect()), new DBAccess.IResultSetProcessor<long[]>() {
+            public long[] process(ResultSet resultSet) throws SQLException {
+                resultSet.next();
+                long min = resultSet.getLong(1);
+                return resultSet.wasNull() ? null : new long[]{min, resultSet.getLong(2)};
+            }
+        });
+        List<CompletableFuture<List<T>>> parts = new ArrayList<CompletableFuture<List<T>>>(partitions);
+        if (range == null) {
+            return parts; // Пустая таблица.
         }
 
-        while (resultSet.next()) {
-            for (String columnName : columnNames) {
-                entry.put(columnName, resultSet.getString(columnName));
+        // Равные по ширине диапазоны ключей (span <= 0 - разность не влезла в long, тогда шаг - максимально возможный).
+        long min = range[0];
+        long max = range[1];
+        long span = max - min + 1;
+        long step = span > 0 ? Math.max(1, (span + partitions - 1) / partitions) : Long.MAX_VALUE / partitions;
+        for (long from = min; from <= max; ) {
+            final long lo = from;
+            final long hi = (max - lo < step) ? max : lo + step - 1;
+            parts.add(dbAccess.executeAsync(new Callable<List<T>>() {
+                public List<T> call() throws Exception {
+                    return selectList(dbAccess, metadata, metadata.getSelectRangeSql(dbAccess.getDialect()), 16, lo, hi);
+                }
+            }));
+            if (hi == max) {
+                break;
             }
-            result.add(BeanUtils.newInstance(entry, clazz));
+            from = hi + 1;
         }
+        return parts;
+    }
+
+    // Асинхронный findAll() (см. DBAccess.executeAsync()).
+    public static <T> CompletableFuture<List<T>> findAllAsync(final DBAccess dbAccess, final Class<T> entityClass) {
+        return dbAccess.executeAsync(new Callable<List<T>>() {
+            public List<T> call() throws Exception {
+                return findAll(dbAccess, entityClass);
+            }
+        });
+    }
+
+    // Асинхронный findById().
+    public static <T> CompletableFuture<T> findByIdAsync(final DBAccess dbAccess, final Class<T> entityClass, final Object id) {
+        return dbAccess.executeAsync(new Callable<T>() {
+            public T call() throws Exception {
+                return findById(dbAccess, entityClass, id);
+            }
+        });
+    }
+
+    // Страница записей таблицы в порядке первичного ключа (@DBId): не больше limit сущностей с ключом > afterKey
+    // (afterKey == null - с начала таблицы). Ключ следующей страницы - ключ последней сущности.
+    // В отличие от OFFSET, стоимость не зависит от "глубины" страницы: это поиск по индексу ключа.
+    public static <T> List<T> findPage(DBAccess dbAccess, Class<T> entityClass, Object afterKey, int limit) throws SQLException, InterruptedException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page limit must be > 0");
+        }
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        if (afterKey == null) {
+            return selectList(dbAccess, metadata, metadata.getSelectPageSql(dbAccess.getDialect(), true), limit, limit);
+        }
+        return selectList(dbAccess, metadata, metadata.getSelectPageSql(dbAccess.getDialect(), false), limit,
+                metadata.normalizeId(afterKey), limit);
+    }
+
+    // Итератор по страницам таблицы (по pageSize сущностей, в порядке первичного ключа), см. findPage().
+    // Соединение занимается только на время чтения очередной страницы.
+    public static <T> PageIterator<T> pages(DBAccess dbAccess, Class<T> entityClass, int pageSize) {
+        return new PageIterator<T>(dbAccess, entityClass, null, pageSize);
+    }
+
+    // То же, начиная со страницы после ключа afterKey (например, PageIterator.getLastKey() прерванного обхода).
+    public static <T> PageIterator<T> pages(DBAccess dbAccess, Class<T> entityClass, Object afterKey, int pageSize) {
+        return new PageIterator<T>(dbAccess, entityClass, afterKey, pageSize);
+    }
+
+    // Новая сессия (unit of work): отслеживает загруженные через нее сущности и пишет
+    // в flush() только измененные столбцы, см. Session.
+    public static Session openSession(DBAccess dbAccess) {
+        return new Session(dbAccess);
+    }
+
+    // Запрос с условиями, сортировкой, лимитом и проекцией столбцов, см. Query.
+    public static <T> Query<T> query(Class<T> entityClass) {
+        return new Query<T>(EntityMetadata.of(entityClass));
+    }
+
+    // Вернет итератор по всем записям таблицы, читающий их курсором по мере обхода
+    // (память не зависит от размера таблицы). Соединение из пула занято, пока итератор открыт:
+    // он закрывается сам по достижении конца, иначе надо вызвать close() !
+    public static <T> EntityIterator<T> stream(DBAccess dbAccess, Class<T> entityClass) throws SQLException, InterruptedException {
+        return stream(dbAccess, entityClass, DEFAULT_FETCH_SIZE);
+    }
+
+    public static <T> EntityIterator<T> stream(DBAccess dbAccess, Class<T> entityClass, int fetchSize) throws SQLException, InterruptedException {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        return openIterator(dbAccess, metadata, metadata.getSelectAllSql(dbAccess.getDialect()), fetchSize, false);
+    }
+
+    // Вернет все записи таблицы по столбцам (массивы примитивов вместо объекта на строку),
+    // для аналитики по большим таблицам. Читается курсором. offHeap - данные вне кучи.
+    public static ColumnarResult findAllColumnar(DBAccess dbAccess, Class<?> entityClass) throws SQLException, InterruptedException {
+        return findAllColumnar(dbAccess, entityClass, false);
+    }
+
+    public static ColumnarResult findAllColumnar(DBAccess dbAccess, Class<?> entityClass, boolean offHeap) throws SQLException, InterruptedException {
+        EntityMetadata<?> metadata = EntityMetadata.of(entityClass);
+        return selectColumnar(dbAccess, metadata, metadata.getSelectAllSql(dbAccess.getDialect()), offHeap);
+    }
+
+    // Прочитает выборку курсором в ColumnarResult (см. findAllColumnar(), Query.columnar()).
+    static ColumnarResult selectColumnar(DBAccess dbAccess, EntityMetadata<?> metadata, String sql,
+                                         boolean offHeap, Object... params) throws SQLException, InterruptedException {
+        DBAccess.Cursor cursor = dbAccess.openCursor(sql, DEFAULT_FETCH_SIZE, params);
+        try {
+            ColumnarResult result = ColumnarResult.read(cursor.getResultSet(), offHeap);
+            dbAccess.getMetricsListener().onRowsMapped(metadata.getEntityClass(), result.size());
+            return result;
+        } finally {
+            closeQuietly(cursor);
+        }
+    }
+
+    // Выгрузит все записи таблицы сущности в файл снимка (см. TableSnapshot). Вернет число строк.
+    public static long exportSnapshot(DBAccess dbAccess, Class<?> entityClass, Path file) throws SQLException, InterruptedException, IOException {
+        return TableSnapshot.export(dbAccess, EntityMetadata.of(entityClass).getSelectAllSql(dbAccess.getDialect()), file);
+    }
 
+    // Загрузит файл снимка в таблицу сущности (parallel - блоками параллельно, см. TableSnapshot.importInto()).
+    // Кэш сущностей для dbAccess сбрасывается.
+    public static long importSnapshot(DBAccess dbAccess, Class<?> entityClass, Path file, boolean parallel) throws SQLException, InterruptedException, IOException {
+        try {
+            return TableSnapshot.importInto(dbAccess, EntityMetadata.of(entityClass).getTableName(), file, parallel);
+        } finally {
+            evictCache(dbAccess, entityClass);
+        }
+    }
+
+    // Откроет курсор по выборке и вернет итератор по сущностям (см. stream(), Query.stream()).
+    static <T> EntityIterator<T> openIterator(DBAccess dbAccess, EntityMetadata<T> metadata, String sql, int fetchSize,
+                                              boolean partial, Object... params) throws SQLException, InterruptedException {
+        DBAccess.Cursor cursor = dbAccess.openCursor(sql, fetchSize, params);
+        try {
+            RowMapper<T> mapper = RowMappers.create(metadata, cursor.getResultSet().getMetaData(), mappingMode, partial);
+            return new EntityIterator<T>(cursor, mapper, dbAccess, metadata);
+        } catch (SQLException e) {
+            closeQuietly(cursor);
+            throw e;
+        } catch (RuntimeException e) {
+            closeQuietly(cursor);
+            throw e;
+        }
+    }
+
+    // Пакетная вставка сущностей в одной транзакции (addBatch/executeBatch по DEFAULT_BATCH_SIZE штук).
+    // Если первичный ключ генерируется БД (@DBId(generated = true)), он не пишется в INSERT,
+    // а сгенерированные значения выставляются в сущности и возвращаются (в порядке entities).
+    // Иначе вернет пустой массив.
+    public static <T> long[] insertAll(DBAccess dbAccess, Class<T> entityClass, List<T> entities) throws SQLException, InterruptedException {
+        return insertAll(dbAccess, entityClass, entities, DEFAULT_BATCH_SIZE);
+    }
+
+    public static <T> long[] insertAll(DBAccess dbAccess, Class<T> entityClass, final List<T> entities, final int batchSize) throws SQLException, InterruptedException {
+        final EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        if (entities.isEmpty()) {
+            return new long[0];
+        }
+
+        final String sql = metadata.getInsertSql(dbAccess.getDialect());
+        final long[][] keys = new long[1][];
+        dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+            public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                DBAccess.IStatementBinder<T> binder = StatementBinders.create(metadata, metadata.getInsertColumns());
+                if (metadata.isIdGenerated()) {
+                    keys[0] = queryExecutor.executeBatchInsert(sql, entities, binder, batchSize);
+                } else {
+                    queryExecutor.executeBatch(sql, entities, binder, batchSize);
+                    keys[0] = new long[0];
+                }
+            }
+        });
+
+        if (metadata.getIdColumn() != null && !metadata.isIdGenerated()) {
+            // Ключи заданы явно: строку с таким ключом могли удалить в обход SimpleORM, а в кэше она осталась.
+            invalidateCached(dbAccess, metadata, entities);
+        }
+
+        if (metadata.isIdGenerated()) {
+            ColumnMetadata idColumn = metadata.getIdColumn();
+            int i = 0;
+            for (T entity : entities) {
+                BeanUtils.setNumericValue(idColumn, entity, keys[0][i++]);
+            }
+        }
+        return keys[0];
+    }
+
+    // Пакетное обновление сущностей по первичному ключу (@DBId) в одной транзакции.
+    // Вернет число обновленных строк на каждую сущность.
+    // Если есть @DBVersion: при несовпадении версии хотя бы одной сущности с БД - OptimisticLockException
+    // (транзакция откатывается), иначе версии сущностей увеличиваются на 1.
+    public static <T> int[] updateAll(DBAccess dbAccess, Class<T> entityClass, List<T> entities) throws SQLException, InterruptedException {
+        return updateAll(dbAccess, entityClass, entities, DEFAULT_BATCH_SIZE);
+    }
+
+    public static <T> int[] updateAll(DBAccess dbAccess, Class<T> entityClass, final List<T> entities, final int batchSize) throws SQLException, InterruptedException {
+        final EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        metadata.requireIdColumn();
+        if (entities.isEmpty()) {
+            return new int[0];
+        }
+
+        final String sql = metadata.getUpdateSql(dbAccess.getDialect());
+        final int[][] counts = new int[1][];
+        try {
+            dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    counts[0] = queryExecutor.executeBatch(sql, entities,
+                            StatementBinders.create(metadata, metadata.getUpdateColumns()), batchSize);
+                    if (metadata.getVersionColumn() != null) {
+                        checkVersions(metadata, entities, counts[0]);
+                    }
+                }
+            });
+        } finally {
+            // Сбрасываем и при ошибке: не знаем, какие строки успели измениться.
+            invalidateCached(dbAccess, metadata, entities);
+        }
+
+        ColumnMetadata versionColumn = metadata.getVersionColumn();
+        if (versionColumn != null) {
+            for (T entity : entities) {
+                BeanUtils.setNumericValue(versionColumn, entity, metadata.getVersion(entity) + 1);
+            }
+        }
+        return counts[0];
+    }
+
+    // Пакетная вставка или обновление сущностей по первичному ключу (@DBId) в одной транзакции, без чтения:
+    // многострочным upsert-ом диалекта (H2 - MERGE INTO, MySQL - INSERT ... ON DUPLICATE KEY UPDATE),
+    // по batchSize сущностей в одном запросе. Пишутся все столбцы: ключи должны быть заданы
+    // (в т.ч. для @DBId(generated = true)), @DBVersion - как есть, без проверки (для проверки - updateAll()).
+    // Вернет число измененных строк по данным драйвера (MySQL считает обновленную строку за 2).
+    public static <T> int upsertAll(DBAccess dbAccess, Class<T> entityClass, List<T> entities) throws SQLException, InterruptedException {
+        return upsertAll(dbAccess, entityClass, entities, DEFAULT_BATCH_SIZE);
+    }
+
+    public static <T> int upsertAll(DBAccess dbAccess, Class<T> entityClass, List<T> entities, int batchSize) throws SQLException, InterruptedException {
+        final EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        metadata.requireIdColumn();
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Expected batchSize > 0");
+        }
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        // Полные пакеты - одним SQL (и одним JDBC-пакетом), остаток - отдельным запросом.
+        Dialect dialect = dbAccess.getDialect();
+        int rows = Math.min(Math.min(batchSize, entities.size()), dialect.getMaxRowsPerStatement(metadata.getColumns().size()));
+        int fullRows = entities.size() / rows * rows;
+        final List<List<T>> batches = new ArrayList<List<T>>(entities.size() / rows);
+        for (int i = 0; i < fullRows; i += rows) {
+            batches.add(entities.subList(i, i + rows));
+        }
+        final List<T> rest = entities.subList(fullRows, entities.size());
+        final String sql = metadata.getUpsertSql(dialect, rows);
+        final String restSql = rest.isEmpty() ? null : metadata.getUpsertSql(dialect, rest.size());
+        final DBAccess.IStatementBinder<List<T>> binder = StatementBinders.createRows(metadata, metadata.getColumns());
+
+        final int[] total = new int[1];
+        try {
+            dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    total[0] = sumCounts(queryExecutor.executeBatch(sql, batches, binder, batches.size()));
+                    if (restSql != null) {
+                        total[0] += sumCounts(queryExecutor.executeBatch(restSql, Collections.singletonList(rest), binder, 1));
+                    }
+                }
+            });
+        } finally {
+            invalidateCached(dbAccess, metadata, entities);
+        }
+        return total[0];
+    }
+
+    // Сумма чисел измененных строк пакета (Statement.SUCCESS_NO_INFO и т.п. - не в счет).
+    private static int sumCounts(int[] counts) {
+        int sum = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                sum += count;
+            }
+        }
+        return sum;
+    }
+
+    // 0 обновленных строк при UPDATE ... AND version = ? - строку изменили (или удалили) параллельно.
+    // (Statement.SUCCESS_NO_INFO - драйвер не сообщает число строк, проверить нельзя.)
+    static <T> void checkVersions(EntityMetadata<T> metadata, List<T> entities, int[] counts) throws OptimisticLockException {
+        int i = 0;
+        for (T entity : entities) {
+            if (counts[i++] == 0) {
+                throw new OptimisticLockException("Entity '" + metadata.getEntityClass().getSimpleName()
+                        + "' with id " + metadata.getId(entity) + " and version " + metadata.getVersion(entity)
+                        + " was modified concurrently");
+            }
+        }
+    }
+
+    // Отложенный инкремент числового столбца сущности с первичным ключом id (см. DBAccess.getDeltaAccumulator()):
+    // приращения копятся в памяти и пишутся в БД пакетами "SET col = col + ?", без транзакции на каждый вызов.
+    // До сброса накопленное не видно при чтении из БД (и из кэша сущностей: его запись сбрасывается после записи в БД).
+    public static <T> void increment(DBAccess dbAccess, Class<T> entityClass, Object id, String column, long delta) {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        Object key = metadata.normalizeId(id);
+        getDeltaAccumulator(dbAccess).add(metadata.getTableName(), getCounterColumn(metadata, column),
+                metadata.getIdColumn().getColumnName(), key, delta);
+    }
+
+    // То же, но вернется только после записи в БД (сбрасывает весь накопитель, попутно - и чужие приращения).
+    public static <T> void incrementAndFlush(DBAccess dbAccess, Class<T> entityClass, Object id, String column, long delta) throws SQLException, InterruptedException {
+        EntityMetadata<T> metadata = EntityMetadata.of(entityClass);
+        Object key = metadata.normalizeId(id);
+        getDeltaAccumulator(dbAccess).addAndFlush(metadata.getTableName(), getCounterColumn(metadata, column),
+                metadata.getIdColumn().getColumnName(), key, delta);
+    }
+
+    // Накопитель DBAccess, сбрасывающий после записи кэш сущностей.
+    private static DeltaAccumulator getDeltaAccumulator(DBAccess dbAccess) {
+        DeltaAccumulator accumulator = dbAccess.getDeltaAccumulator();
+        accumulator.addFlushListener(EntityCaches.INVALIDATE_ON_FLUSH);
+        return accumulator;
+    }
+
+    private static String getCounterColumn(EntityMetadata<?> metadata, String column) {
+        ColumnMetadata columnMetadata = metadata.findColumn(column);
+        if (columnMetadata == null) {
+            throw new IllegalArgumentException("Unknown column '" + column + "' in class '"
+                    + metadata.getEntityClass().getSimpleName() + "'");
+        }
+        Class<?> type = columnMetadata.getType();
+        if (!Number.class.isAssignableFrom(type)
+                && type != long.class && type != int.class && type != short.class && type != byte.class
+                && type != double.class && type != float.class) {
+            throw new IllegalArgumentException("Expected numeric column '" + column + "' in class '"
+                    + metadata.getEntityClass().getSimpleName() + "'");
+        }
+        return columnMetadata.getColumnName();
+    }
+
+    static <T> void invalidateCached(DBAccess dbAccess, EntityMetadata<T> metadata, List<T> entities) {
+        EntityCache<Object, T> cache = EntityCaches.find(dbAccess, metadata);
+        if (cache != null) {
+            for (T entity : entities) {
+                cache.invalidate(metadata.getId(entity));
+            }
+        }
+    }
+
+    // Выполнит выборку и смапит все строки в сущности.
+    private static <T> List<T> selectList(DBAccess dbAccess, EntityMetadata<T> metadata, String sql,
+                                          int expectedSize, Object... params) throws SQLException, InterruptedException {
+        return selectList(dbAccess, metadata, sql, expectedSize, false, false, params);
+    }
+
+    // partial == true - в выборке может быть только часть столбцов сущности (см. Query.select()),
+    // cached == true - через кэш результатов (DBAccess.executeSelectCached(), см. Query.cached()).
+    // Связи сущностей заполняются после выборки (EAGER - загружаются), когда соединение уже возвращено в пул.
+    static <T> List<T> selectList(DBAccess dbAccess, EntityMetadata<T> metadata, String sql, int expectedSize,
+                                  boolean partial, boolean cached, Object... params) throws SQLException, InterruptedException {
+        List<T> result = mapList(dbAccess, metadata, sql, expectedSize, partial, cached, params);
+        Relations.attach(dbAccess, metadata, result, true);
         return result;
     }
 
-    private static <T> String getTableName(Class<T> entityClass) {
-        DBEntity ann = BeanUtils.getAnnotation(entityClass, DBEntity.class);
-        if (ann == null) {
-            throw new IllegalArgumentException("Expected annotation 'DBEntry' for calass '" + entityClass.getSimpleName() + "'");
+    // Сущности, загружаемые по связи (см. Relations): их собственные связи - только ленивые.
+    static <T> List<T> selectRelated(DBAccess dbAccess, EntityMetadata<T> metadata, String sql,
+                                     int expectedSize, Object... params) throws SQLException, InterruptedException {
+        List<T> result = mapList(dbAccess, metadata, sql, expectedSize, false, false, params);
+        Relations.attach(dbAccess, metadata, result, false);
+        return result;
+    }
+
+    private static <T> List<T> mapList(final DBAccess dbAccess, final EntityMetadata<T> metadata, String sql, final int expectedSize,
+                                       final boolean partial, boolean cached, Object... params) throws SQLException, InterruptedException {
+        DBAccess.IResultSetProcessor<List<T>> processor = new DBAccess.IResultSetProcessor<List<T>>() {
+            public List<T> process(ResultSet resultSet) throws SQLException {
+                List<T> result = new ArrayList<T>(expectedSize);
+                RowMapper<T> mapper = RowMappers.create(metadata, resultSet.getMetaData(), mappingMode, partial);
+                while (resultSet.next()) {
+                    result.add(mapper.map(resultSet));
+                }
+                dbAccess.getMetricsListener().onRowsMapped(metadata.getEntityClass(), result.size());
+                return result;
+            }
+        };
+        return cached
+                ? dbAccess.executeSelectCached(sql, processor, params)
+                : dbAccess.executeSelect(sql, processor, params);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignore) {
         }
-        return ann.table();
     }
 }
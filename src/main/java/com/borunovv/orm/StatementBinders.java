@@ -0,0 +1,116 @@
+package com.borunovv.orm;
+
+import com.borunovv.db.DBAccess;
+
+import java.lang.invoke.MethodHandle;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Фабрика биндеров: выставляют поля сущности параметрами запроса (INSERT/UPDATE)
+ * через MethodHandle-ы полей и типизированные конвертеры (примитивы - без боксинга).
+ *
+ * @author borunovv
+ */
+final class StatementBinders {
+
+    private StatementBinders() {
+    }
+
+    // Биндер, выставляющий заданные столбцы по порядку как параметры 1..N.
+    // В режиме MappingMode.PROCESSED - через сгенерированный при компиляции маппер сущности, если он есть.
+    static <T> DBAccess.IStatementBinder<T> create(EntityMetadata<T> metadata, List<ColumnMetadata> columns) {
+        return createColumnsBinder(metadata, columns);
+    }
+
+    // Биндер для многострочного запроса (... VALUES (?, ?), (?, ?)): сущности списка - подряд,
+    // столбцы каждой - по порядку (параметры 1..N, N+1..2N, ...).
+    static <T> DBAccess.IStatementBinder<List<T>> createRows(EntityMetadata<T> metadata, List<ColumnMetadata> columns) {
+        return new RowsBinder<T>(createColumnsBinder(metadata, columns), columns.size());
+    }
+
+    private static <T> ColumnsBinder<T> createColumnsBinder(EntityMetadata<T> metadata, List<ColumnMetadata> columns) {
+        EntityMapper<T> mapper = metadata.getMapper();
+        if (mapper != null && SimpleORM.getMappingMode() == MappingMode.PROCESSED) {
+            return new ProcessedBinder<T>(metadata, mapper, columns);
+        }
+        return new EntityBinder<T>(columns);
+    }
+
+    // Выставляет столбцы сущности параметрами offset+1..offset+N.
+    private static abstract class ColumnsBinder<T> implements DBAccess.IStatementBinder<T> {
+
+        abstract void bind(PreparedStatement statement, T item, int offset) throws SQLException;
+
+        public void bind(PreparedStatement statement, T item) throws SQLException {
+            bind(statement, item, 0);
+        }
+    }
+
+    private static final class RowsBinder<T> implements DBAccess.IStatementBinder<List<T>> {
+        private final ColumnsBinder<T> binder;
+        private final int columns;
+
+        RowsBinder(ColumnsBinder<T> binder, int columns) {
+            this.binder = binder;
+            this.columns = columns;
+        }
+
+        public void bind(PreparedStatement statement, List<T> items) throws SQLException {
+            int offset = 0;
+            for (T item : items) {
+                binder.bind(statement, item, offset);
+                offset += columns;
+            }
+        }
+    }
+
+    private static final class EntityBinder<T> extends ColumnsBinder<T> {
+        private final ColumnConverter[] converters;
+        private final MethodHandle[] getters;
+
+        EntityBinder(List<ColumnMetadata> columns) {
+            this.converters = new ColumnConverter[columns.size()];
+            this.getters = new MethodHandle[columns.size()];
+            for (int i = 0; i < columns.size(); ++i) {
+                converters[i] = columns.get(i).getConverter();
+                getters[i] = columns.get(i).getFieldGetter();
+            }
+        }
+
+        void bind(PreparedStatement statement, T item, int offset) throws SQLException {
+            try {
+                for (int i = 0; i < converters.length; ++i) {
+                    converters[i].writeFrom(statement, offset + i + 1, item, getters[i]);
+                }
+            } catch (SQLException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException("Error ORM mapping", e);
+            }
+        }
+    }
+
+    // Биндер на сгенерированном маппере: номера столбцов вычислены заранее, значения - прямыми вызовами.
+    private static final class ProcessedBinder<T> extends ColumnsBinder<T> {
+        private final EntityMapper<T> mapper;
+        private final int[] columns;
+
+        ProcessedBinder(EntityMetadata<T> metadata, EntityMapper<T> mapper, List<ColumnMetadata> columns) {
+            this.mapper = mapper;
+            this.columns = new int[columns.size()];
+            for (int i = 0; i < columns.size(); ++i) {
+                this.columns[i] = metadata.indexOf(columns.get(i));
+            }
+        }
+
+        void bind(PreparedStatement statement, T item, int offset) throws SQLException {
+            for (int i = 0; i < columns.length; ++i) {
+                mapper.write(item, columns[i], statement, offset + i + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.borunovv.orm.processor;
+
+import com.borunovv.orm.DBCollection;
+import com.borunovv.orm.DBColumn;
+import com.borunovv.orm.DBEntity;
+import com.borunovv.orm.DBId;
+import com.borunovv.orm.DBReference;
+import com.borunovv.orm.DBVersion;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Процессор аннотаций: для каждого класса @DBEntity генерирует маппер (EntityMapper) -
+ * описание столбцов и обычный Java-код чтения строки, выставления параметров и доступа к полям.
+ * Мапперы регистрируются в META-INF/services/com.borunovv.orm.EntityMapper, откуда их берет SimpleORM.
+ *
+ * Подключается автоматически (META-INF/services/javax.annotation.processing.Processor):
+ * достаточно, чтобы библиотека была в classpath при компиляции сущностей.
+ *
+ * Поля читаются/пишутся напрямую, если не private, иначе через get/is- и set-методы.
+ * Класс пропускается (NOTE при компиляции, маппинг в рантайме), если его нельзя замапить
+ * сгенерированным кодом: private/локальный/параметризованный класс, нет доступного конструктора
+ * без параметров, неподдерживаемый тип поля, нет доступного get/set-метода для private-поля,
+ * несколько @DBId/@DBVersion или @DBVersion не long/int (такие ошибки сообщит маппинг в рантайме).
+ *
+ * @author borunovv
+ */
+@SupportedAnnotationTypes("com.borunovv.orm.DBEntity")
+public class EntityProcessor extends AbstractProcessor {
+
+    static final String SERVICE_FILE = "META-INF/services/com.borunovv.orm.EntityMapper";
+    static final String MAPPER_SUFFIX = "_EntityMapper";
+
+    // Сгенерированные мапперы (полные имена классов) - за все раунды.
+    private final Set<String> mappers = new LinkedHashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!mappers.isEmpty()) {
+                writeServiceFile();
+            }
+            return false;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(DBEntity.class)) {
+            if (element.getKind() == ElementKind.CLASS) {
+                process((TypeElement) element);
+            }
+        }
+        return false;
+    }
+
+    private void process(TypeElement entity) {
+        String reason = checkClass(entity);
+        List<Column> columns = new ArrayList<Column>();
+        List<String> relations = new ArrayList<String>();
+        int ids = 0;
+        int versions = 0;
+        for (Element member : entity.getEnclosedElements()) {
+            if (reason != null) {
+                break;
+            }
+            if (member.getKind() != ElementKind.FIELD) {
+                continue;
+            }
+            if (member.getAnnotation(DBReference.class) != null || member.getAnnotation(DBCollection.class) != null) {
+                relations.add(member.getSimpleName().toString());
+            }
+            if (member.getAnnotation(DBColumn.class) == null) {
+                continue;
+            }
+            Column column = new Column((VariableElement) member);
+            reason = column.resolve(entity);
+            columns.add(column);
+            ids += column.id ? 1 : 0;
+            versions += column.version ? 1 : 0;
+        }
+        if (reason == null && (ids > 1 || versions > 1)) {
+            reason = "more than one @DBId or @DBVersion field";
+        }
+        if (reason != null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "No generated mapper for " + entity.getQualifiedName() + " (" + reason + "), runtime mapping is used", entity);
+            return;
+        }
+
+        String packageName = getPackage(entity).getQualifiedName().toString();
+        String mapperName = getMapperName(entity);
+        String qualifiedName = packageName.isEmpty() ? mapperName : packageName + "." + mapperName;
+        try {
+            Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, entity).openWriter();
+            try {
+                new MapperWriter(writer, packageName, mapperName, entity, columns, relations).write();
+            } finally {
+                writer.close();
+            }
+            mappers.add(qualifiedName);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Can't write mapper for " + entity.getQualifiedName() + ": " + e, entity);
+        }
+    }
+
+    // Причина, по которой класс нельзя замапить сгенерированным кодом, или null.
+    private String checkClass(TypeElement entity) {
+        if (entity.getModifiers().contains(Modifier.PRIVATE) || entity.getModifiers().contains(Modifier.ABSTRACT)) {
+            return "private or abstract class";
+        }
+        if (entity.getNestingKind() != NestingKind.TOP_LEVEL
+                && (entity.getNestingKind() != NestingKind.MEMBER || !entity.getModifiers().contains(Modifier.STATIC))) {
+            return "not a top-level or static nested class";
+        }
+        for (Element enclosing = entity.getEnclosingElement(); enclosing instanceof TypeElement;
+             enclosing = enclosing.getEnclosingElement()) {
+            if (enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+                return "enclosed in private class";
+            }
+        }
+        if (!entity.getTypeParameters().isEmpty()) {
+            return "generic class";
+        }
+        for (Element member : entity.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.CONSTRUCTOR
+                    && ((ExecutableElement) member).getParameters().isEmpty()
+                    && !member.getModifiers().contains(Modifier.PRIVATE)) {
+                return null;
+            }
+        }
+        return "no accessible constructor without parameters";
+    }
+
+    // Дополнит список мапперов в META-INF/services (при частичной перекомпиляции там уже могут быть другие).
+    private void writeServiceFile() {
+        Set<String> all = new LinkedHashSet<String>();
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8));
+            try {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        all.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // Файла еще нет.
+        }
+        all.addAll(mappers);
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            Writer writer = file.openWriter();
+            try {
+                for (String mapper : all) {
+                    writer.write(mapper);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Can't write " + SERVICE_FILE + ": " + e);
+        }
+    }
+
+    private static PackageElement getPackage(Element element) {
+        while (!(element instanceof PackageElement)) {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    // Outer.Inner -> Outer_Inner_EntityMapper (в пакете сущности, чтобы видеть ее не-private члены).
+    static String getMapperName(TypeElement entity) {
+        StringBuilder name = new StringBuilder(entity.getSimpleName());
+        for (Element enclosing = entity.getEnclosingElement(); enclosing instanceof TypeElement;
+             enclosing = enclosing.getEnclosingElement()) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+        }
+        return name.append(MAPPER_SUFFIX).toString();
+    }
+
+
+    // Замапленное поле сущности и способ доступа к нему из сгенерированного кода.
+    final class Column {
+        final VariableElement field;
+        final String columnName;
+        final boolean id;
+        final boolean idGenerated;
+        final boolean version;
+        final TypeMirror type;
+        // Доступ к полю: чтение - "x" или "getX()", запись - "x" (присваивание) или "setX" (вызов).
+        String getter;
+        String setter;
+        boolean setterMethod;
+
+        Column(VariableElement field) {
+            String value = field.getAnnotation(DBColumn.class).value();
+            DBId idAnn = field.getAnnotation(DBId.class);
+            this.field = field;
+            this.columnName = value.isEmpty() ? field.getSimpleName().toString() : value;
+            this.id = idAnn != null;
+            this.idGenerated = idAnn != null && idAnn.generated();
+            this.version = field.getAnnotation(DBVersion.class) != null;
+            this.type = field.asType();
+        }
+
+        String getFieldName() {
+            return field.getSimpleName().toString();
+        }
+
+        // Чтение поля объекта target: "target.x" или "target.getX()".
+        String get(String target) {
+            return target + "." + getter;
+        }
+
+        // Запись value в поле объекта target: "target.x = value" или "target.setX(value)".
+        String set(String target, String value) {
+            return setterMethod ? target + "." + setter + "(" + value + ")" : target + "." + setter + " = " + value;
+        }
+
+        // Найдет способ доступа к полю. Вернет причину, если замапить нельзя, иначе null.
+        String resolve(TypeElement entity) {
+            if (field.getModifiers().contains(Modifier.STATIC)) {
+                return "static field '" + field.getSimpleName() + "'";
+            }
+            if (!MapperWriter.isSupported(processingEnv, type)) {
+                return "unsupported type of field '" + field.getSimpleName() + "'";
+            }
+            if (version && !MapperWriter.isVersionType(type)) {
+                return "@DBVersion field '" + field.getSimpleName() + "' is not long or int";
+            }
+            String name = getFieldName();
+            if (!field.getModifiers().contains(Modifier.PRIVATE)) {
+                getter = name;
+                setter = name;
+                setterMethod = false;
+                return null;
+            }
+            String capitalized = name.substring(0, 1).toUpperCase() + name.substring(1);
+            String get = findMethod(entity, "get" + capitalized, null);
+            if (get == null && type.getKind() == TypeKind.BOOLEAN) {
+                get = findMethod(entity, "is" + capitalized, null);
+            }
+            String set = findMethod(entity, "set" + capitalized, type);
+            if (get == null || set == null) {
+                return "no accessible get/set method for private field '" + name + "'";
+            }
+            getter = get + "()";
+            setter = set;
+            setterMethod = true;
+            return null;
+        }
+
+        // Не-private метод без параметров (parameter == null) или с одним параметром типа parameter.
+        private String findMethod(TypeElement entity, String name, TypeMirror parameter) {
+            for (Element member : entity.getEnclosedElements()) {
+                if (member.getKind() != ElementKind.METHOD || !member.getSimpleName().contentEquals(name)
+                        || member.getModifiers().contains(Modifier.PRIVATE) || member.getModifiers().contains(Modifier.STATIC)) {
+                    continue;
+                }
+                ExecutableElement method = (ExecutableElement) member;
+                if (parameter == null) {
+                    if (method.getParameters().isEmpty()
+                            && processingEnv.getTypeUtils().isSameType(method.getReturnType(), type)) {
+                        return name;
+                    }
+                } else if (method.getParameters().size() == 1
+                        && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), parameter)) {
+                    return name;
+                }
+            }
+            return null;
+        }
+    }
+}
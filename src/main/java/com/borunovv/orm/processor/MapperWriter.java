@@ -0,0 +1,347 @@
+package com.borunovv.orm.processor;
+
+import com.borunovv.orm.DBEntity;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Генерация исходного кода маппера (EntityMapper) для одной сущности.
+ *
+ * Примитивы читаются/пишутся прямыми JDBC-вызовами (getLong/setLong и т.п., как конвертеры примитивов),
+ * остальные типы - через конвертер столбца (Converters.forType()), найденный один раз при загрузке маппера.
+ *
+ * @author borunovv
+ */
+final class MapperWriter {
+
+    // Типы полей, для которых есть конвертер (кроме примитивов и перечислений).
+    private static final Set<String> CONVERTED_TYPES = new HashSet<String>(Arrays.asList(
+            "java.lang.Long", "java.lang.Integer", "java.lang.Short", "java.lang.Byte",
+            "java.lang.Double", "java.lang.Float", "java.lang.Boolean",
+            "java.lang.String", "java.math.BigDecimal",
+            "java.sql.Timestamp", "java.sql.Date", "java.util.Date"));
+
+    // Изменяемые типы полей (копируются в EntityMapper.copy()).
+    private static final Set<String> MUTABLE_TYPES = new HashSet<String>(Arrays.asList(
+            "java.sql.Timestamp", "java.sql.Date", "java.util.Date"));
+
+    private final Writer writer;
+    private final String packageName;
+    private final String mapperName;
+    private final String entityName;
+    private final String tableName;
+    private final List<EntityProcessor.Column> columns;
+    private final List<String> relations;
+
+    MapperWriter(Writer writer, String packageName, String mapperName, TypeElement entity,
+                 List<EntityProcessor.Column> columns, List<String> relations) {
+        this.writer = writer;
+        this.packageName = packageName;
+        this.mapperName = mapperName;
+        this.entityName = entity.getQualifiedName().toString();
+        this.tableName = entity.getAnnotation(DBEntity.class).table();
+        this.columns = columns;
+        this.relations = relations;
+    }
+
+    // Поддерживается ли тип поля (см. Converters).
+    static boolean isSupported(ProcessingEnvironment env, TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return type.getKind() != TypeKind.CHAR;
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return ((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE;
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        Element element = ((DeclaredType) type).asElement();
+        return element.getKind() == ElementKind.ENUM
+                || CONVERTED_TYPES.contains(((TypeElement) element).getQualifiedName().toString());
+    }
+
+    // Допустимый тип поля @DBVersion: long/int (или обертка).
+    static boolean isVersionType(TypeMirror type) {
+        if (type.getKind() == TypeKind.LONG || type.getKind() == TypeKind.INT) {
+            return true;
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        String name = ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+        return name.equals("java.lang.Long") || name.equals("java.lang.Integer");
+    }
+
+    void write() throws IOException {
+        if (!packageName.isEmpty()) {
+            line("package " + packageName + ";");
+            line("");
+        }
+        line("import com.borunovv.orm.BeanUtils;");
+        line("import com.borunovv.orm.ColumnConverter;");
+        line("import com.borunovv.orm.Converters;");
+        line("import com.borunovv.orm.EntityMapper;");
+        line("");
+        line("import java.sql.PreparedStatement;");
+        line("import java.sql.ResultSet;");
+        line("import java.sql.SQLException;");
+        line("");
+        line("/**");
+        line(" * Маппер сущности " + entityName + ".");
+        line(" * Сгенерирован " + EntityProcessor.class.getName() + ", не редактировать.");
+        line(" */");
+        line("public final class " + mapperName + " implements EntityMapper<" + entityName + "> {");
+        line("");
+        line("    private static final String[] COLUMN_NAMES = {" + columnNameList() + "};");
+        line("    private static final String[] FIELD_NAMES = {" + fieldNameList() + "};");
+        line("    private static final Class<?>[] FIELD_TYPES = {" + fieldTypeList() + "};");
+        line("    private static final String[] RELATION_FIELDS = {" + literalList(relations) + "};");
+        for (int i = 0; i < columns.size(); ++i) {
+            if (!isPrimitive(columns.get(i))) {
+                line("    private static final ColumnConverter CONVERTER_" + i
+                        + " = Converters.forType(" + erasure(columns.get(i)) + ".class);");
+            }
+        }
+        line("");
+        line("    public Class<" + entityName + "> getEntityClass() {");
+        line("        return " + entityName + ".class;");
+        line("    }");
+        line("");
+        line("    public String getTableName() {");
+        line("        return " + literal(tableName) + ";");
+        line("    }");
+        line("");
+        line("    public String[] getColumnNames() {");
+        line("        return COLUMN_NAMES.clone();");
+        line("    }");
+        line("");
+        line("    public String[] getFieldNames() {");
+        line("        return FIELD_NAMES.clone();");
+        line("    }");
+        line("");
+        line("    public Class<?>[] getFieldTypes() {");
+        line("        return FIELD_TYPES.clone();");
+        line("    }");
+        line("");
+        line("    public int getIdColumn() {");
+        line("        return " + idColumn() + ";");
+        line("    }");
+        line("");
+        line("    public boolean isIdGenerated() {");
+        line("        return " + (idColumn() >= 0 && columns.get(idColumn()).idGenerated) + ";");
+        line("    }");
+        line("");
+        line("    public int getVersionColumn() {");
+        line("        return " + versionColumn() + ";");
+        line("    }");
+        line("");
+        line("    public String[] getRelationFields() {");
+        line("        return RELATION_FIELDS.clone();");
+        line("    }");
+        line("");
+        line("    public " + entityName + " map(ResultSet resultSet, int[] indexes) throws SQLException {");
+        line("        " + entityName + " entity = new " + entityName + "();");
+        line("        int index;");
+        for (int i = 0; i < columns.size(); ++i) {
+            EntityProcessor.Column column = columns.get(i);
+            line("        if ((index = indexes[" + i + "]) > 0) {");
+            line("            " + column.set("entity", readExpression(column, i)) + ";");
+            line("        }");
+        }
+        line("        return entity;");
+        line("    }");
+        line("");
+        line("    public void write(" + entityName + " entity, int column, PreparedStatement statement, int index) throws SQLException {");
+        line("        switch (column) {");
+        for (int i = 0; i < columns.size(); ++i) {
+            line("            case " + i + ":");
+            line("                " + writeStatement(columns.get(i), i) + ";");
+            line("                return;");
+        }
+        line("            default:");
+        line("                throw " + outOfBounds() + ";");
+        line("        }");
+        line("    }");
+        line("");
+        line("    public Object get(" + entityName + " entity, int column) {");
+        line("        switch (column) {");
+        for (int i = 0; i < columns.size(); ++i) {
+            line("            case " + i + ":");
+            line("                return " + columns.get(i).get("entity") + ";");
+        }
+        line("            default:");
+        line("                throw " + outOfBounds() + ";");
+        line("        }");
+        line("    }");
+        line("");
+        line("    public void set(" + entityName + " entity, int column, Object value) {");
+        line("        switch (column) {");
+        for (int i = 0; i < columns.size(); ++i) {
+            line("            case " + i + ":");
+            line("                " + columns.get(i).set("entity", "(" + boxed(columns.get(i)) + ") value") + ";");
+            line("                return;");
+        }
+        line("            default:");
+        line("                throw " + outOfBounds() + ";");
+        line("        }");
+        line("    }");
+        line("");
+        line("    public " + entityName + " copy(" + entityName + " source) {");
+        line("        " + entityName + " entity = new " + entityName + "();");
+        for (EntityProcessor.Column column : columns) {
+            line("        " + column.set("entity", copyExpression(column)) + ";");
+        }
+        line("        return entity;");
+        line("    }");
+        line("}");
+    }
+
+    private static boolean isPrimitive(EntityProcessor.Column column) {
+        return column.type.getKind().isPrimitive();
+    }
+
+    private static String erasure(EntityProcessor.Column column) {
+        TypeMirror type = column.type;
+        if (type.getKind() == TypeKind.DECLARED) {
+            return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+        }
+        return type.toString(); // byte[]
+    }
+
+    // getLong, getInt, ... для примитива.
+    private static String jdbcSuffix(TypeKind kind) {
+        String name = kind.name().toLowerCase();
+        return name.substring(0, 1).toUpperCase() + name.substring(1);
+    }
+
+    private static String readExpression(EntityProcessor.Column column, int i) {
+        if (isPrimitive(column)) {
+            return "resultSet.get" + jdbcSuffix(column.type.getKind()) + "(index)";
+        }
+        return "(" + erasure(column) + ") CONVERTER_" + i + ".read(resultSet, index)";
+    }
+
+    private static String writeStatement(EntityProcessor.Column column, int i) {
+        if (isPrimitive(column)) {
+            return "statement.set" + jdbcSuffix(column.type.getKind()) + "(index, " + column.get("entity") + ")";
+        }
+        return "CONVERTER_" + i + ".write(statement, index, " + column.get("entity") + ")";
+    }
+
+    // Значение поля source для копии: изменяемые типы (byte[], даты) - копией.
+    private static String copyExpression(EntityProcessor.Column column) {
+        String value = column.get("source");
+        if (column.type.getKind() == TypeKind.ARRAY || MUTABLE_TYPES.contains(erasure(column))) {
+            return "(" + erasure(column) + ") BeanUtils.copyValue(" + value + ")";
+        }
+        return value;
+    }
+
+    // Тип для приведения Object-значения: для примитива - обертка (присваивание распакует).
+    private static String boxed(EntityProcessor.Column column) {
+        switch (column.type.getKind()) {
+            case INT:
+                return "Integer";
+            case BOOLEAN:
+            case BYTE:
+            case SHORT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return jdbcSuffix(column.type.getKind());
+            default:
+                return erasure(column);
+        }
+    }
+
+    private int idColumn() {
+        for (int i = 0; i < columns.size(); ++i) {
+            if (columns.get(i).id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int versionColumn() {
+        for (int i = 0; i < columns.size(); ++i) {
+            if (columns.get(i).version) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String outOfBounds() {
+        return "new IndexOutOfBoundsException(\"Column \" + column + \" of " + columns.size() + "\")";
+    }
+
+    private String columnNameList() {
+        List<String> names = new ArrayList<String>(columns.size());
+        for (EntityProcessor.Column column : columns) {
+            names.add(column.columnName);
+        }
+        return literalList(names);
+    }
+
+    private String fieldNameList() {
+        List<String> names = new ArrayList<String>(columns.size());
+        for (EntityProcessor.Column column : columns) {
+            names.add(column.getFieldName());
+        }
+        return literalList(names);
+    }
+
+    // long.class, java.lang.String.class, byte[].class, ...
+    private String fieldTypeList() {
+        StringBuilder result = new StringBuilder();
+        for (EntityProcessor.Column column : columns) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(erasure(column)).append(".class");
+        }
+        return result.toString();
+    }
+
+    private static String literalList(List<String> values) {
+        StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(literal(value));
+        }
+        return result.toString();
+    }
+
+    private static String literal(String value) {
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\');
+            }
+            result.append(c);
+        }
+        return result.append('"').toString();
+    }
+
+    private void line(String text) throws IOException {
+        writer.write(text);
+        writer.write('\n');
+    }
+}
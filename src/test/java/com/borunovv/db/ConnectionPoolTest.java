@@ -0,0 +1,100 @@
+package com.borunovv.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+
+/**
+ * @author borunovv
+ */
+public class ConnectionPoolTest extends Assert {
+
+    private static final String H2_MEM_URL = "jdbc:h2:mem:pool_test;DB_CLOSE_DELAY=-1";
+
+    @Test
+    public void testPreWarm() throws Exception {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings(4);
+        settings.setMinIdle(2);
+        DBAccess dbAccess = new H2Access(H2_MEM_URL, "sa", "", settings);
+        try {
+            assertEquals(2, dbAccess.getPoolTotalCount());
+            assertEquals(2, dbAccess.getPoolIdleCount());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testAcquireTimeout() throws Exception {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings(1);
+        settings.setAcquireTimeoutMillis(200);
+        DBAccess dbAccess = new H2Access(H2_MEM_URL, "sa", "", settings);
+        try {
+            Closeable cursor = dbAccess.openCursor("SELECT 1");
+            assertEquals(1, dbAccess.getPoolActiveCount());
+
+            long start = System.currentTimeMillis();
+            try {
+                dbAccess.executeUpdate("SET LOCK_TIMEOUT 1000");
+                fail("Expected timeout");
+            } catch (ConnectionPoolTimeoutException expected) {
+                assertTrue(System.currentTimeMillis() - start >= 200);
+            }
+
+            cursor.close();
+            dbAccess.executeUpdate("SET LOCK_TIMEOUT 1000");
+            assertEquals(1, dbAccess.getPoolTotalCount());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingClose() throws Exception {
+        DBAccess dbAccess = new H2Access(H2_MEM_URL, "sa", "", 2);
+        Closeable cursor = dbAccess.openCursor("SELECT 1");
+        dbAccess.executeUpdate("SET LOCK_TIMEOUT 1000");
+        assertEquals(2, dbAccess.getPoolTotalCount());
+
+        // Не ждет возврата занятого соединения.
+        dbAccess.close();
+        assertEquals(1, dbAccess.getPoolTotalCount());
+
+        cursor.close();
+        assertEquals(0, dbAccess.getPoolTotalCount());
+        try {
+            dbAccess.executeUpdate("SET LOCK_TIMEOUT 1000");
+            fail("Expected closed pool");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings(3);
+        settings.setIdleTimeoutMillis(50);
+        settings.setEvictionIntervalMillis(20);
+        DBAccess dbAccess = new H2Access(H2_MEM_URL, "sa", "", settings);
+        try {
+            Closeable cursor = dbAccess.openCursor("SELECT 1");
+            dbAccess.executeUpdate("SET LOCK_TIMEOUT 1000");
+            cursor.close();
+            assertEquals(2, dbAccess.getPoolTotalCount());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (dbAccess.getPoolTotalCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, dbAccess.getPoolTotalCount());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSettings() throws SQLException, ClassNotFoundException {
+        new H2Access(H2_MEM_URL, "sa", "", new ConnectionPoolSettings(0));
+    }
+}
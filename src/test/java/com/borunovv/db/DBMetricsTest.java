@@ -0,0 +1,73 @@
+package com.borunovv.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * @author borunovv
+ */
+public class DBMetricsTest extends Assert {
+
+    @Test
+    public void testMetrics() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:mem:metrics_test;DB_CLOSE_DELAY=-1", "sa", "", 2);
+        DBMetrics metrics = new DBMetrics(dbAccess);
+        try {
+            Helper.fillDB(dbAccess, 10);
+            for (int i = 1; i <= 5; ++i) {
+                dbAccess.executeSelect("SELECT value FROM accum WHERE id=" + i, new DBAccess.IResultSetProcessor<Object>() {
+                    public Object process(ResultSet resultSet) throws SQLException {
+                        return resultSet.next();
+                    }
+                });
+            }
+            dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    queryExecutor.executeUpdate("UPDATE accum SET value=? WHERE id=?", 1, 1);
+                }
+            });
+
+            assertEquals(5, metrics.getSelectCount());
+            assertEquals(10 + 2 + 1, metrics.getUpdateCount());
+            assertEquals(1, metrics.getCommits());
+            assertEquals(0, metrics.getRollbacks());
+            assertEquals(12 + 5 + 1, metrics.getPoolWaitCount());
+            // Все 5 выборок - одной формы.
+            assertEquals(5, metrics.getSqlShapeHistogram("SELECT value FROM accum WHERE id=100").getCount());
+
+            metrics.registerMBean("test");
+            ObjectName name = new ObjectName("com.borunovv.db:type=DBMetrics,name=\"test\"");
+            assertEquals(5L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SelectCount"));
+            metrics.unregisterMBean();
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxNanos());
+        long p50 = histogram.getPercentileNanos(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.25);
+        long p99 = histogram.getPercentileNanos(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+    }
+
+    @Test
+    public void testSqlFingerprint() {
+        assertEquals("SELECT * FROM t1 WHERE id = ? AND name = ?",
+                SqlFingerprint.of("SELECT *  FROM t1\n WHERE id = 15 AND name = 'it''s'"));
+        assertEquals("SELECT * FROM t WHERE id IN (?)", SqlFingerprint.of("SELECT * FROM t WHERE id IN (1, 2, 3)"));
+        assertEquals("UPDATE t SET v=? WHERE id=?", SqlFingerprint.of("UPDATE t SET v=? WHERE id=?"));
+    }
+}
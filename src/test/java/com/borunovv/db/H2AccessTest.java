@@ -3,8 +3,24 @@ package com.borunovv.db;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author borunovv
@@ -35,6 +51,618 @@ public class H2AccessTest extends Assert {
         }
     }
 
+    @Test
+    public void testParameterizedQueries() throws Exception {
+        final DBAccess dbAccess = createDBAccess(1);
+        try {
+            Helper.fillDB(dbAccess, 10);
+            long missesBefore = dbAccess.getStatementCacheMisses();
+
+            for (int i = 1; i <= 10; ++i) {
+                assertEquals(1, dbAccess.executeUpdate("UPDATE accum SET value=? WHERE id=?", i * 10, i));
+            }
+            long value = dbAccess.executeSelect("SELECT value FROM accum WHERE id=?",
+                    new DBAccess.IResultSetProcessor<Long>() {
+                        public Long process(ResultSet resultSet) throws SQLException {
+                            resultSet.next();
+                            return resultSet.getLong(1);
+                        }
+                    }, 5);
+
+            assertEquals(50, value);
+            // Каждый из двух запросов подготовлен один раз, остальное - из кэша.
+            assertEquals(missesBefore + 2, dbAccess.getStatementCacheMisses());
+            assertTrue(dbAccess.getStatementCacheHits() >= 9);
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testStatementCacheEviction() throws Exception {
+        Connection conn = DriverManager.getConnection(H2_DB_URL, H2_DB_USER, H2_DB_PASSWORD);
+        try {
+            StatementCache cache = new StatementCache(conn, 1, new AtomicLong(), new AtomicLong());
+            PreparedStatement first = cache.prepare("SELECT X FROM SYSTEM_RANGE(1, 3)", false);
+            ResultSet firstResult = first.executeQuery();
+            assertTrue(firstResult.next());
+
+            // Второй запрос вытесняет первый, но тот еще выдан: его ResultSet читается дальше.
+            PreparedStatement second = cache.prepare("SELECT X FROM SYSTEM_RANGE(10, 12)", false);
+            ResultSet secondResult = second.executeQuery();
+            assertTrue(secondResult.next());
+            assertEquals(1, cache.size());
+            assertTrue(firstResult.next());
+            assertEquals(2, firstResult.getLong(1));
+            assertEquals(10, secondResult.getLong(1));
+
+            // Вытесненный закрывается при возврате, оставшийся в кэше - нет.
+            cache.release(first);
+            assertTrue(first.isClosed());
+            cache.release(second);
+            assertFalse(second.isClosed());
+            cache.closeAll();
+            assertTrue(second.isClosed());
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testTransactionRollbackAndRetry() throws Exception {
+        final DBAccess dbAccess = createDBAccess(1);
+        DBMetrics metrics = new DBMetrics(dbAccess);
+        try {
+            Helper.fillDB(dbAccess, 0);
+
+            // RuntimeException тоже откатывает транзакцию.
+            try {
+                dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                    public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                        queryExecutor.executeUpdate("INSERT INTO accum(value) VALUES (?)", 1);
+                        throw new IllegalStateException("test");
+                    }
+                });
+                fail("Expected exception");
+            } catch (IllegalStateException expected) {
+            }
+            assertEquals(0, count(dbAccess));
+
+            // Ошибка сериализации (SQLState 40001) - повтор, изменения неудачных попыток откатываются.
+            final AtomicInteger attempts = new AtomicInteger();
+            dbAccess.executeInTransaction(Connection.TRANSACTION_READ_COMMITTED, new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    queryExecutor.executeUpdate("INSERT INTO accum(value) VALUES (?)", 1);
+                    if (attempts.incrementAndGet() < 3) {
+                        throw new SQLException("Serialization failure", "40001");
+                    }
+                }
+            });
+            assertEquals(3, attempts.get());
+            assertEquals(1, count(dbAccess));
+            assertEquals(2, metrics.getTransactionRetries());
+            assertEquals(1 + 2, metrics.getRollbacks());
+
+            // Прочие ошибки и исчерпание попыток - исключение без (лишних) повторов.
+            TransactionSettings settings = new TransactionSettings();
+            settings.setMaxRetries(1);
+            attempts.set(0);
+            try {
+                dbAccess.executeInTransaction(settings, new DBAccess.IExecuteInTransaction() {
+                    public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                        attempts.incrementAndGet();
+                        throw new SQLException("Deadlock", "40001");
+                    }
+                });
+                fail("Expected exception");
+            } catch (SQLException expected) {
+            }
+            assertEquals(2, attempts.get());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    // Атомарный инкремент без блокировок (SELECT ... FOR UPDATE): проверка версии + повтор при конфликте.
+    @Test
+    public void testOptimisticRetry() throws Exception {
+        final int threadCount = 8;
+        final DBAccess dbAccess = createDBAccess(threadCount);
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS counter");
+            dbAccess.executeUpdate("CREATE TABLE counter (id bigint PRIMARY KEY, value bigint, version bigint)");
+            dbAccess.executeUpdate("INSERT INTO counter VALUES (1, 0, 0)");
+
+            final TransactionSettings settings = new TransactionSettings(Connection.TRANSACTION_READ_COMMITTED);
+            settings.setMaxRetries(100);
+            settings.setRetryBackoffMillis(1);
+            settings.setMaxRetryBackoffMillis(20);
+            settings.setRetryOnOptimisticLock(true);
+
+            final AtomicInteger errors = new AtomicInteger();
+            Thread[] threads = new Thread[threadCount];
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < 10; ++j) {
+                                dbAccess.executeInTransaction(settings, new DBAccess.IExecuteInTransaction() {
+                                    public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                                        ResultSet resultSet = queryExecutor.executeSelect("SELECT value, version FROM counter WHERE id = ?", 1);
+                                        resultSet.next();
+                                        long value = resultSet.getLong(1);
+                                        long version = resultSet.getLong(2);
+                                        int updated = queryExecutor.executeUpdate(
+                                                "UPDATE counter SET value = ?, version = ? WHERE id = ? AND version = ?",
+                                                value + 1, version + 1, 1, version);
+                                        if (updated == 0) {
+                                            throw new OptimisticLockException("Counter was modified concurrently");
+                                        }
+                                    }
+                                });
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(0, errors.get());
+            long value = dbAccess.executeSelect("SELECT value FROM counter WHERE id = 1",
+                    new DBAccess.IResultSetProcessor<Long>() {
+                        public Long process(ResultSet resultSet) throws SQLException {
+                            resultSet.next();
+                            return resultSet.getLong(1);
+                        }
+                    });
+            assertEquals(threadCount * 10, value);
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final int poolSize = 4;
+        final DBAccess dbAccess = createDBAccess(poolSize);
+        try {
+            Helper.fillDB(dbAccess, 10);
+
+            // Запросов много больше, чем соединений: одновременно выполняется не больше poolSize.
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            List<CompletableFuture<Long>> selects = new ArrayList<CompletableFuture<Long>>();
+            for (int i = 0; i < 200; ++i) {
+                selects.add(dbAccess.executeSelectAsync("SELECT value FROM accum WHERE id = ?",
+                        new DBAccess.IResultSetProcessor<Long>() {
+                            public Long process(ResultSet resultSet) throws SQLException {
+                                int now = running.incrementAndGet();
+                                while (true) {
+                                    int max = maxRunning.get();
+                                    if (now <= max || maxRunning.compareAndSet(max, now)) {
+                                        break;
+                                    }
+                                }
+                                try {
+                                    resultSet.next();
+                                    return resultSet.getLong(1);
+                                } finally {
+                                    running.decrementAndGet();
+                                }
+                            }
+                        }, i % 10 + 1));
+            }
+            for (int i = 0; i < selects.size(); ++i) {
+                assertEquals(i % 10, selects.get(i).get().longValue());
+            }
+            assertTrue(maxRunning.get() <= poolSize);
+
+            assertEquals(1, dbAccess.executeUpdateAsync("UPDATE accum SET value = ? WHERE id = ?", 100, 1).get().intValue());
+            dbAccess.executeInTransactionAsync(new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    queryExecutor.executeUpdate("DELETE FROM accum WHERE id = ?", 1);
+                }
+            }).get();
+            assertEquals(9, count(dbAccess));
+
+            // Ошибка - в future.
+            try {
+                dbAccess.executeUpdateAsync("UPDATE no_such_table SET value = 1").get();
+                fail("Expected exception");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testDeltaAccumulator() throws Exception {
+        final DBAccess dbAccess = createDBAccess(2);
+        Helper.fillDB(dbAccess, 2);
+
+        final DeltaAccumulator accumulator = new DeltaAccumulator(dbAccess, 10, 1000);
+        final int threadCount = 8;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 10000; ++j) {
+                        accumulator.add("accum", "value", "id", j % 2 + 1L, 1);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Синхронный режим: после возврата приращение (и все накопленное) уже в БД.
+        accumulator.addAndFlush("accum", "value", "id", 1L, 1000);
+        assertEquals(0, accumulator.getPendingCount());
+        assertEquals(threadCount * 5000 + 1000, value(dbAccess, 1));
+        assertEquals(threadCount * 5000 + 1, value(dbAccess, 2));
+        // Десятки тысяч инкрементов - всего несколько сбросов.
+        assertTrue(accumulator.getFlushCount() < 1000);
+
+        accumulator.add("accum", "value", "id", 100L, 1);
+        accumulator.flush();
+        assertEquals(1, accumulator.getMissingRows());
+
+        // При закрытии DBAccess накопленное пишется в БД.
+        accumulator.add("accum", "value", "id", 2L, 5);
+        dbAccess.close();
+        DBAccess reopened = createDBAccess(1);
+        try {
+            assertEquals(threadCount * 5000 + 6, value(reopened, 2));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testCloseListeners() throws Exception {
+        DBAccess dbAccess = createDBAccess(1);
+        final AtomicLong calls = new AtomicLong();
+        for (int i = 0; i < 2; ++i) {
+            dbAccess.addCloseListener(new DBAccess.ICloseListener() {
+                public void onClose(DBAccess dbAccess) throws SQLException {
+                    calls.incrementAndGet();
+                    throw new SQLException("listener failed");
+                }
+            });
+        }
+        // Все слушатели вызваны, пул закрыт, брошена первая ошибка.
+        try {
+            dbAccess.close();
+            fail("Expected SQLException");
+        } catch (SQLException e) {
+            assertEquals("listener failed", e.getMessage());
+        }
+        assertEquals(2, calls.get());
+        assertTrue(dbAccess.isClosed());
+    }
+
+    @Test
+    public void testReplicas() throws Exception {
+        // Три независимые БД в памяти: на репликах данные "отстают" (3 строки против 10).
+        final DBAccess primary = new H2Access("jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 2);
+        DBAccess replica1 = new H2Access("jdbc:h2:mem:replica1;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 2);
+        DBAccess replica2 = new H2Access("jdbc:h2:mem:replica2;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 2);
+        // Недоступная реплика (никто не слушает порт).
+        DBAccess dead = new H2Access("jdbc:h2:tcp://localhost:1/mem:dead", H2_DB_USER, H2_DB_PASSWORD, 1);
+        try {
+            Helper.fillDB(primary, 10);
+            Helper.fillDB(replica1, 3);
+            Helper.fillDB(replica2, 3);
+            primary.addReplica(replica1);
+            primary.addReplica(replica2);
+            primary.addReplica(dead);
+            primary.setReplicaRetryMillis(60000);
+
+            // Чтение - с живых реплик, нагрузка распределяется; мертвая пропускается.
+            for (int i = 0; i < 100; ++i) {
+                assertEquals(3, count(primary));
+            }
+            assertTrue(primary.getReplicaReadCount(replica1) > 10);
+            assertTrue(primary.getReplicaReadCount(replica2) > 10);
+            assertEquals(1, primary.getReplicaFailureCount(dead));
+            assertEquals(1, primary.getReplicaReadCount(dead));
+
+            // Запись - на основную БД, прочитать ее можно в executeOnPrimary().
+            primary.executeUpdate("INSERT INTO accum(value) VALUES (?)", 100);
+            assertEquals(3, count(primary));
+            assertEquals(11L, primary.executeOnPrimary(new DBAccess.IPrimarySession<Long>() {
+                public Long execute(DBAccess dbAccess) throws SQLException, InterruptedException {
+                    return count(dbAccess);
+                }
+            }).longValue());
+
+            // Окно "чтения своих записей": сразу после записи поток читает с основной БД.
+            primary.setReadYourWritesMillis(60000);
+            primary.executeUpdate("INSERT INTO accum(value) VALUES (?)", 101);
+            assertEquals(12, count(primary));
+            primary.setReadYourWritesMillis(0);
+            assertEquals(3, count(primary));
+
+            // Закрытая реплика больше не получает запросов.
+            replica1.close();
+            long reads = primary.getReplicaReadCount(replica1);
+            for (int i = 0; i < 10; ++i) {
+                assertEquals(3, count(primary));
+            }
+            assertEquals(reads, primary.getReplicaReadCount(replica1));
+
+            // Кэш результатов заполняется только с основной БД.
+            primary.setQueryCache(new QueryCache(1024 * 1024, 0));
+            for (int i = 0; i < 2; ++i) {
+                assertEquals(12L, primary.executeSelectCached("SELECT COUNT(*) FROM accum", new DBAccess.IResultSetProcessor<Long>() {
+                    public Long process(ResultSet resultSet) throws SQLException {
+                        resultSet.next();
+                        return resultSet.getLong(1);
+                    }
+                }).longValue());
+            }
+        } finally {
+            primary.close();
+        }
+        assertTrue(replica2.isClosed());
+    }
+
+    @Test
+    public void testBusyReplica() throws Exception {
+        final DBAccess primary = new H2Access("jdbc:h2:mem:busy_primary;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 2);
+        ConnectionPoolSettings poolSettings = new ConnectionPoolSettings(1);
+        poolSettings.setAcquireTimeoutMillis(50);
+        final DBAccess replica = new H2Access("jdbc:h2:mem:busy_replica;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, poolSettings);
+        try {
+            Helper.fillDB(primary, 10);
+            Helper.fillDB(replica, 3);
+            primary.addReplica(replica);
+            primary.setReplicaRetryMillis(60000);
+
+            // Единственное соединение реплики занято: чтение уходит на основную БД,
+            // но реплика не помечается недоступной.
+            final AtomicLong busyCount = new AtomicLong();
+            replica.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    try {
+                        busyCount.set(count(primary));
+                    } catch (InterruptedException e) {
+                        throw new SQLException(e);
+                    }
+                }
+            });
+            assertEquals(10, busyCount.get());
+            assertEquals(0, primary.getReplicaFailureCount(replica));
+
+            // Соединение освободилось - следующее чтение снова с реплики.
+            assertEquals(3, count(primary));
+        } finally {
+            primary.close();
+        }
+    }
+
+    @Test
+    public void testSlowQueryLog() throws Exception {
+        final DBAccess dbAccess = new H2Access("jdbc:h2:mem:slow_log;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 1);
+        try {
+            dbAccess.executeUpdate("CREATE TABLE items (id bigint PRIMARY KEY, name varchar(50))");
+            for (int i = 1; i <= 10; ++i) {
+                dbAccess.executeUpdate("INSERT INTO items VALUES (?, ?)", i, "item" + i);
+            }
+
+            // Порог 0: пишется все, в буфере - последние 5.
+            SlowQueryLog log = new SlowQueryLog(0, 5);
+            log.setExplainSampleRate(1);
+            dbAccess.setSlowQueryLog(log);
+            for (int i = 1; i <= 6; ++i) {
+                dbAccess.executeSelect("SELECT name FROM items WHERE id = " + i, new DBAccess.IResultSetProcessor<Integer>() {
+                    public Integer process(ResultSet resultSet) throws SQLException {
+                        return 0;
+                    }
+                });
+            }
+            dbAccess.executeUpdate("UPDATE items SET name = ? WHERE id = ?", "renamed", 1);
+
+            assertEquals(7, log.getSlowQueryCount());
+            List<SlowQuery> recent = log.getRecent();
+            assertEquals(5, recent.size());
+            assertEquals(QueryType.UPDATE, recent.get(0).getType());
+            assertEquals(1, recent.get(0).getRows());
+            assertEquals("SELECT name FROM items WHERE id = ?", recent.get(1).getFingerprint());
+            assertEquals(Integer.valueOf(4), log.countByFingerprint().get("SELECT name FROM items WHERE id = ?"));
+            assertEquals(2, log.getWorstByFingerprint(10).size());
+            // План снят на том же соединении (для запроса с параметрами - с ними же).
+            assertTrue(recent.get(1).getExplain(), recent.get(1).getExplain().contains("PRIMARY_KEY"));
+            assertNotNull(recent.get(0).getExplain());
+            assertFalse(recent.get(0).getExplain(), recent.get(0).getExplain().startsWith("EXPLAIN failed"));
+
+            // Порог 100 мс: быстрые запросы не пишутся, а ожидание занятого соединения учитывается.
+            log = new SlowQueryLog(100, 5);
+            dbAccess.setSlowQueryLog(log);
+            dbAccess.executeUpdate("UPDATE items SET name = ? WHERE id = ?", "fast", 2);
+            assertEquals(0, log.getSlowQueryCount());
+
+            final DBAccess.Cursor cursor = dbAccess.openCursor("SELECT * FROM items");
+            Thread releaser = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                        cursor.close();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            releaser.start();
+            dbAccess.executeUpdate("UPDATE items SET name = ? WHERE id = ?", "waited", 3);
+            releaser.join();
+
+            assertEquals(1, log.getSlowQueryCount());
+            SlowQuery slow = log.getWorst(1).get(0);
+            assertTrue(slow.toString(), slow.getPoolWaitNanos() >= 200000000L);
+            assertNull(slow.getExplain());
+        } finally {
+            dbAccess.setSlowQueryLog(null);
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS items");
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testQueryCache() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:mem:query_cache;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 2);
+        DBAccess.IResultSetProcessor<String> names = new DBAccess.IResultSetProcessor<String>() {
+            public String process(ResultSet resultSet) throws SQLException {
+                StringBuilder sb = new StringBuilder();
+                while (resultSet.next()) {
+                    sb.append(resultSet.getLong("id")).append('=').append(resultSet.getString(2)).append(';');
+                }
+                return sb.toString();
+            }
+        };
+        try {
+            dbAccess.executeUpdate("CREATE TABLE items (id bigint PRIMARY KEY, name varchar(50))");
+            dbAccess.executeUpdate("CREATE TABLE other (id bigint PRIMARY KEY)");
+            dbAccess.executeUpdate("INSERT INTO items VALUES (1, 'a'), (2, 'b')");
+
+            QueryCache cache = new QueryCache(1024 * 1024, 0);
+            dbAccess.setQueryCache(cache);
+            String sql = "SELECT id, name FROM items WHERE id >= ? ORDER BY id";
+            assertEquals("1=a;2=b;", dbAccess.executeSelectCached(sql, names, 1));
+            // Тот же запрос (с точностью до пробелов) - из снимка.
+            assertEquals("1=a;2=b;", dbAccess.executeSelectCached("SELECT id, name\n FROM items  WHERE id >= ? ORDER BY id", names, 1));
+            assertEquals("2=b;", dbAccess.executeSelectCached(sql, names, 2));
+            assertEquals(1, cache.getHits());
+            assertEquals(2, cache.getMisses());
+            assertEquals(2, cache.size());
+
+            // Запись в другую таблицу кэш не трогает, в items - сбрасывает.
+            dbAccess.executeUpdate("INSERT INTO other VALUES (?)", 1);
+            assertEquals(2, cache.size());
+            dbAccess.executeUpdate("UPDATE items SET name = ? WHERE id = ?", "c", 2);
+            assertEquals(0, cache.size());
+            assertEquals("1=a;2=c;", dbAccess.executeSelectCached(sql, names, 1));
+
+            // Транзакция - после коммита.
+            dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                    queryExecutor.executeUpdate("DELETE FROM `items` WHERE id = ?", 2);
+                }
+            });
+            assertEquals("1=a;", dbAccess.executeSelectCached(sql, names, 1));
+
+            // Снимок больше ограничения по объему не кэшируется.
+            QueryCache small = new QueryCache(1, 0);
+            dbAccess.setQueryCache(small);
+            dbAccess.executeSelectCached(sql, names, 1);
+            assertEquals(0, small.size());
+        } finally {
+            dbAccess.setQueryCache(null);
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS items");
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS other");
+            dbAccess.close();
+        }
+
+        assertEquals(new HashSet<String>(Arrays.asList("A", "B", "C")),
+                SqlTables.getReadTables("SELECT * FROM a x, `s`.`b` JOIN c ON c.id = x.id WHERE x.id IN (SELECT id FROM b)"));
+        assertEquals(new HashSet<String>(Arrays.asList("T")), SqlTables.getWrittenTables("INSERT INTO t (a) VALUES ('FROM x')"));
+        assertEquals(new HashSet<String>(Arrays.asList("T", "U")), SqlTables.getWrittenTables("UPDATE t JOIN u ON t.id = u.id SET t.a = 1"));
+        assertEquals(new HashSet<String>(Arrays.asList("T")), SqlTables.getWrittenTables("DROP TABLE IF EXISTS t"));
+        assertNull(SqlTables.getWrittenTables("CALL proc()"));
+    }
+
+    @Test
+    public void testTableSnapshot() throws Exception {
+        DBAccess source = new H2Access("jdbc:h2:mem:snapshot_source;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 1);
+        DBAccess target = new H2Access("jdbc:h2:mem:snapshot_target;DB_CLOSE_DELAY=-1", H2_DB_USER, H2_DB_PASSWORD, 4);
+        Path file = Files.createTempFile("snapshot", ".bin");
+        String createTable = "CREATE TABLE typed (id bigint PRIMARY KEY, i int, d double, flag boolean, " +
+                "amount decimal(10,2), created timestamp, data varbinary(16), name varchar(50))";
+        String selectAll = "SELECT id, i, d, flag, amount, created, data, name FROM typed ORDER BY id";
+        try {
+            source.executeUpdate(createTable);
+            for (int i = 0; i < 2500; ++i) {
+                boolean nulls = i % 10 == 0;
+                source.executeUpdate("INSERT INTO typed VALUES (?, ?, ?, ?, ?, ?, ?, ?)", i,
+                        nulls ? null : i, i / 4.0, i % 2 == 0, nulls ? null : new BigDecimal(i + ".25"),
+                        nulls ? null : new Timestamp(1000000000000L + i * 1001L),
+                        nulls ? null : new byte[]{(byte) i, 1}, nulls ? null : "имя " + i);
+            }
+
+            assertEquals(2500, TableSnapshot.export(source, selectAll, file, 1000));
+            assertEquals(2500, TableSnapshot.getRowCount(file));
+
+            String expected = dump(source, selectAll);
+            for (boolean parallel : new boolean[]{false, true}) {
+                target.executeUpdate("DROP TABLE IF EXISTS typed");
+                target.executeUpdate(createTable);
+                assertEquals(2500, TableSnapshot.importInto(target, "TYPED", file, parallel));
+                assertEquals(expected, dump(target, selectAll));
+            }
+
+            // Поврежденный блок не загружается.
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(file, bytes);
+            try {
+                TableSnapshot.importInto(target, "TYPED", file, false);
+                fail("Expected IOException");
+            } catch (IOException expectedError) {
+                assertTrue(expectedError.getMessage().contains("checksum"));
+            }
+        } finally {
+            Files.delete(file);
+            source.close();
+            target.close();
+        }
+    }
+
+    // Все строки выборки текстом (для сравнения содержимого таблиц).
+    private static String dump(DBAccess dbAccess, String selectQuery) throws SQLException, InterruptedException {
+        return dbAccess.executeSelect(selectQuery, new DBAccess.IResultSetProcessor<String>() {
+            public String process(ResultSet resultSet) throws SQLException {
+                StringBuilder sb = new StringBuilder();
+                int columns = resultSet.getMetaData().getColumnCount();
+                while (resultSet.next()) {
+                    for (int i = 1; i <= columns; ++i) {
+                        Object value = resultSet.getObject(i);
+                        sb.append(value instanceof byte[] ? Arrays.toString((byte[]) value) : value).append('|');
+                    }
+                    sb.append('\n');
+                }
+                return sb.toString();
+            }
+        });
+    }
+
+    private static long value(DBAccess dbAccess, long id) throws SQLException, InterruptedException {
+        return dbAccess.executeSelect("SELECT value FROM accum WHERE id = ?", new DBAccess.IResultSetProcessor<Long>() {
+            public Long process(ResultSet resultSet) throws SQLException {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }, id);
+    }
+
+    private static long count(DBAccess dbAccess) throws SQLException, InterruptedException {
+        return dbAccess.executeSelect("SELECT COUNT(*) FROM accum", new DBAccess.IResultSetProcessor<Long>() {
+            public Long process(ResultSet resultSet) throws SQLException {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        });
+    }
+
     private DBAccess createDBAccess(int connectionPoolCapacity) throws SQLException, ClassNotFoundException {
         return new H2Access(H2_DB_URL, H2_DB_USER, H2_DB_PASSWORD, connectionPoolCapacity);
     }
@@ -46,4 +674,42 @@ public class H2AccessTest extends Assert {
 
         TransactionTester.testTransactions(dbAccess, 10);
     }
+
+    @Test
+    public void testParameterizedTransactions() throws Exception {
+        // Как TransactionTester, но через параметры ('?') внутри транзакции.
+        final DBAccess dbAccess = createDBAccess(4);
+        try {
+            dbAccess.executeUpdate("SET LOCK_TIMEOUT 30000");
+            Helper.fillDB(dbAccess, 1);
+            final int threadCount = 8;
+            Thread[] threads = new Thread[threadCount];
+            final AtomicLong errors = new AtomicLong();
+            for (int i = 0; i < threads.length; ++i) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            dbAccess.executeInTransaction(new DBAccess.IExecuteInTransaction() {
+                                public void execute(DBAccess.IQueryExecutor queryExecutor) throws SQLException {
+                                    ResultSet resultSet = queryExecutor.executeSelect("SELECT value FROM accum WHERE id = ? FOR UPDATE", 1);
+                                    long value = resultSet.next() ? resultSet.getLong(1) : 0;
+                                    queryExecutor.executeUpdate("UPDATE accum SET value = ? WHERE id = ?", value + 1, 1);
+                                }
+                            });
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, errors.get());
+            assertEquals(threadCount, value(dbAccess, 1));
+        } finally {
+            dbAccess.close();
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package com.borunovv.orm;
+
+/**
+ * Кэшируемая сущность (для тестов кэша).
+ *
+ * @author borunovv
+ */
+@DBEntity(table = "cached", cacheable = true, cacheSize = 4)
+public class CachedModel {
+
+    @DBId
+    @DBColumn("id")
+    private long id;
+
+    @DBColumn("name")
+    private String name;
+
+    public CachedModel() {
+    }
+
+    public CachedModel(String name) {
+        this.name = name;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return "CachedModel{" +
+                "id=" + id +
+                ", name='" + name + '\'' +
+                '}';
+    }
+}
@@ -6,12 +6,20 @@ package com.borunovv.orm;
 @DBEntity(table = "accum")
 public class MyModel {
 
+    @DBId
     @DBColumn("id")
     private long id;
 
     @DBColumn("value")
     private long value;
 
+    public MyModel() {
+    }
+
+    public MyModel(long value) {
+        this.value = value;
+    }
+
     public long getId() {
         return id;
     }
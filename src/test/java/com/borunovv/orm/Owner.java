@@ -0,0 +1,42 @@
+package com.borunovv.orm;
+
+import java.util.List;
+
+/**
+ * Сущность с коллекцией (для тестов связей).
+ *
+ * @author borunovv
+ */
+@DBEntity(table = "owner")
+public class Owner {
+
+    @DBId
+    @DBColumn("id")
+    private long id;
+
+    @DBColumn("name")
+    private String name;
+
+    @DBCollection(mappedBy = "owner_id")
+    private List<Pet> pets;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<Pet> getPets() {
+        return pets;
+    }
+}
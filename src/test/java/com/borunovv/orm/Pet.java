@@ -0,0 +1,55 @@
+package com.borunovv.orm;
+
+/**
+ * Сущность со ссылкой (для тестов связей).
+ *
+ * @author borunovv
+ */
+@DBEntity(table = "pet")
+public class Pet {
+
+    @DBId
+    @DBColumn("id")
+    private long id;
+
+    @DBColumn("owner_id")
+    private Long ownerId;
+
+    @DBColumn("name")
+    private String name;
+
+    @DBReference(column = "owner_id", batchSize = 4)
+    private Reference<Owner> owner;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public Long getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(Long ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Owner getOwner() {
+        return owner.get();
+    }
+
+    public Reference<Owner> getOwnerReference() {
+        return owner;
+    }
+}
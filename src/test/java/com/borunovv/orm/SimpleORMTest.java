@@ -1,14 +1,35 @@
 package com.borunovv.orm;
 
 import com.borunovv.db.DBAccess;
+import com.borunovv.db.DBMetrics;
+import com.borunovv.db.Dialect;
 import com.borunovv.db.H2Access;
 import com.borunovv.db.Helper;
 import com.borunovv.db.MySQLAccess;
+import com.borunovv.db.OptimisticLockException;
+import com.borunovv.db.QueryCache;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author borunovv
@@ -30,4 +51,867 @@ public class SimpleORMTest {
 
         dbAccess.close();
     }
+
+    @Test
+    public void testMappingModes() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 10);
+
+            SimpleORM.setMappingMode(MappingMode.REFLECTIVE);
+            List<MyModel> reflective = SimpleORM.findAll(dbAccess, MyModel.class);
+            SimpleORM.setMappingMode(MappingMode.GENERATED);
+            List<MyModel> generated = SimpleORM.findAll(dbAccess, MyModel.class);
+            SimpleORM.setMappingMode(MappingMode.PROCESSED);
+            List<MyModel> processed = SimpleORM.findAll(dbAccess, MyModel.class);
+
+            assertEquals(10, generated.size());
+            assertEquals(reflective.toString(), generated.toString());
+            assertEquals(reflective.toString(), processed.toString());
+        } finally {
+            SimpleORM.setMappingMode(MappingMode.PROCESSED);
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testGeneratedMapper() throws Exception {
+        // Мапперы тестовых сущностей сгенерированы процессором при компиляции тестов.
+        EntityMetadata<TypedModel> metadata = EntityMetadata.of(TypedModel.class);
+        assertEquals("TypedModel_EntityMapper", metadata.getMapper().getClass().getSimpleName());
+        assertEquals("SELECT `id`, `i`, `d`, `flag`, `amount`, `created`, `data`, `kind`, `name`, `nullable` FROM `typed`",
+                metadata.getSelectAllSql(Dialect.H2));
+        assertEquals("INSERT INTO `versioned` (`value`, `version`) VALUES (?, ?)",
+                EntityMetadata.of(VersionedModel.class).getInsertSql(Dialect.H2));
+
+        // Метаданные обработанного класса - из маппера: столбцы, типы, @DBId, @DBVersion.
+        EntityMetadata<VersionedModel> versioned = EntityMetadata.of(VersionedModel.class);
+        assertNotNull(versioned.getMapper());
+        assertEquals("id", versioned.getIdColumn().getColumnName());
+        assertTrue(versioned.isIdGenerated());
+        assertEquals("version", versioned.getVersionColumn().getColumnName());
+        assertEquals(int.class, versioned.getVersionColumn().getType());
+        VersionedModel entity = new VersionedModel();
+        BeanUtils.setNumericValue(versioned.getIdColumn(), entity, 7);
+        versioned.getVersionColumn().setValue(entity, 3);
+        assertEquals(7L, versioned.getId(entity));
+        assertEquals(3, versioned.copy(entity).getVersion());
+        assertEquals(1, EntityMetadata.of(Pet.class).getRelations().size());
+
+        // private-поле без get-метода: маппера нет, маппинг в рантайме.
+        assertNull(EntityMetadata.of(NoGetterModel.class).getMapper());
+
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 3);
+            List<NoGetterModel> models = SimpleORM.findAll(dbAccess, NoGetterModel.class);
+            assertEquals(3, models.size());
+            assertEquals(1, models.get(0).id);
+
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS typed");
+            dbAccess.executeUpdate("CREATE TABLE typed (id bigint PRIMARY KEY, i int, d double, flag boolean, " +
+                    "amount decimal(10,2), created timestamp, data varbinary(16), kind varchar(10), " +
+                    "name varchar(50), nullable bigint)");
+            TypedModel model = new TypedModel();
+            model.setId(1);
+            model.setIntValue(7);
+            model.setFlag(true);
+            model.setData(new byte[]{3});
+            model.setKind(TypedModel.Kind.SMALL);
+            model.setNullable(5L);
+            SimpleORM.insertAll(dbAccess, TypedModel.class, Collections.singletonList(model));
+
+            TypedModel loaded = SimpleORM.findAll(dbAccess, TypedModel.class).get(0);
+            assertEquals(7, loaded.getIntValue());
+            assertTrue(loaded.isFlag());
+            assertArrayEquals(new byte[]{3}, loaded.getData());
+            assertEquals(TypedModel.Kind.SMALL, loaded.getKind());
+            assertNull(loaded.getName());
+            assertEquals(Long.valueOf(5), loaded.getNullable());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @DBEntity(table = "accum")
+    public static class NoGetterModel {
+        @DBColumn("id")
+        private long id;
+
+        public void setId(long id) {
+            this.id = id;
+        }
+    }
+
+    @Test
+    public void testTypedColumns() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS typed");
+            dbAccess.executeUpdate("CREATE TABLE typed (id bigint PRIMARY KEY, i int, d double, flag boolean, " +
+                    "amount decimal(10,2), created timestamp, data varbinary(16), kind varchar(10), " +
+                    "name varchar(50), nullable bigint)");
+            dbAccess.executeUpdate("INSERT INTO typed VALUES (1, 42, 1.5, true, 12.34, " +
+                    "'2016-01-02 03:04:05', X'0102', 'BIG', 'first', NULL)");
+
+            for (MappingMode mode : MappingMode.values()) {
+                SimpleORM.setMappingMode(mode);
+                TypedModel model = SimpleORM.findAll(dbAccess, TypedModel.class).get(0);
+
+                assertEquals(42, model.getIntValue());
+                assertEquals(1.5, model.getDoubleValue(), 0.0);
+                assertTrue(model.isFlag());
+                assertEquals(new BigDecimal("12.34"), model.getAmount());
+                assertEquals(Timestamp.valueOf("2016-01-02 03:04:05"), model.getCreated());
+                assertArrayEquals(new byte[]{1, 2}, model.getData());
+                assertEquals(TypedModel.Kind.BIG, model.getKind());
+                assertEquals("first", model.getName());
+                assertNull(model.getNullable());
+            }
+        } finally {
+            SimpleORM.setMappingMode(MappingMode.PROCESSED);
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testCachedQuery() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        DBMetrics metrics = new DBMetrics(dbAccess);
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS typed");
+            dbAccess.executeUpdate("CREATE TABLE typed (id bigint PRIMARY KEY, i int, d double, flag boolean, " +
+                    "amount decimal(10,2), created timestamp, data varbinary(16), kind varchar(10), " +
+                    "name varchar(50), nullable bigint)");
+            dbAccess.executeUpdate("INSERT INTO typed VALUES (1, 42, 1.5, true, 12.34, " +
+                    "'2016-01-02 03:04:05', X'0102', 'BIG', 'first', NULL)");
+            dbAccess.setQueryCache(new QueryCache(1024 * 1024, 0));
+
+            long selects = metrics.getSelectCount();
+            for (MappingMode mode : MappingMode.values()) {
+                SimpleORM.setMappingMode(mode);
+                TypedModel model = SimpleORM.query(TypedModel.class).eq("id", 1).cached().first(dbAccess);
+                assertEquals(42, model.getIntValue());
+                assertEquals(1.5, model.getDoubleValue(), 0.0);
+                assertTrue(model.isFlag());
+                assertEquals(new BigDecimal("12.34"), model.getAmount());
+                assertEquals(Timestamp.valueOf("2016-01-02 03:04:05"), model.getCreated());
+                assertArrayEquals(new byte[]{1, 2}, model.getData());
+                assertEquals(TypedModel.Kind.BIG, model.getKind());
+                assertNull(model.getNullable());
+                model.getData()[0] = 9; // Снимок в кэше не меняется.
+            }
+            assertEquals(1, SimpleORM.query(TypedModel.class).cached().count(dbAccess));
+            assertEquals(selects + 2, metrics.getSelectCount());
+
+            // Запись в таблицу сбрасывает выборки из нее.
+            TypedModel model = SimpleORM.query(TypedModel.class).eq("id", 1).cached().first(dbAccess);
+            assertEquals(1, model.getData()[0]);
+            dbAccess.executeUpdate("UPDATE typed SET name = ? WHERE id = ?", "second", 1);
+            assertEquals("second", SimpleORM.query(TypedModel.class).eq("id", 1).cached().first(dbAccess).getName());
+            assertEquals(selects + 3, metrics.getSelectCount());
+        } finally {
+            SimpleORM.setMappingMode(MappingMode.PROCESSED);
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "", 1);
+        try {
+            Helper.fillDB(dbAccess, 100);
+
+            EntityIterator<MyModel> iterator = SimpleORM.stream(dbAccess, MyModel.class, 10);
+            long sum = 0;
+            int count = 0;
+            while (iterator.hasNext()) {
+                sum += iterator.next().getValue();
+                count++;
+            }
+            assertEquals(100, count);
+            assertEquals(99 * 100 / 2, sum);
+
+            // Итератор закрыт (соединение вернулось в пул) - можно читать дальше.
+            iterator = SimpleORM.stream(dbAccess, MyModel.class);
+            assertEquals(0, iterator.next().getValue());
+            iterator.close();
+            assertEquals(100, SimpleORM.findAll(dbAccess, MyModel.class).size());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testBatchInsertAndUpdate() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 0);
+
+            List<MyModel> models = new ArrayList<MyModel>();
+            for (int i = 0; i < 250; ++i) {
+                models.add(new MyModel(i));
+            }
+            long[] keys = SimpleORM.insertAll(dbAccess, MyModel.class, models, 100);
+
+            assertEquals(250, keys.length);
+            assertEquals(keys[249], models.get(249).getId());
+            assertEquals(keys[0] + 249, keys[249]);
+
+            for (MyModel model : models) {
+                model.setValue(model.getValue() * 2);
+            }
+            int[] counts = SimpleORM.updateAll(dbAccess, MyModel.class, models, 100);
+            assertEquals(250, counts.length);
+            assertEquals(1, counts[0]);
+
+            long sum = 0;
+            for (MyModel model : SimpleORM.findAll(dbAccess, MyModel.class)) {
+                sum += model.getValue();
+            }
+            assertEquals(249 * 250, sum);
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testEntityMetadata() throws Exception {
+        EntityMetadata<MyModel> metadata = EntityMetadata.of(MyModel.class);
+
+        assertSame(metadata, EntityMetadata.of(MyModel.class));
+        assertEquals("accum", metadata.getTableName());
+        assertEquals(2, metadata.getColumns().size());
+        assertEquals("value", metadata.findColumn("VALUE").getColumnName());
+        assertEquals("getValue", metadata.findColumn("value").getGetter().getName());
+        assertNull(metadata.findColumn("unknown"));
+        assertEquals("id", metadata.getIdColumn().getColumnName());
+        assertEquals("INSERT INTO `accum` (`value`) VALUES (?)", metadata.getInsertSql(Dialect.H2));
+        assertEquals("UPDATE `accum` SET `value` = ? WHERE `id` = ?", metadata.getUpdateSql(Dialect.H2));
+
+        // Синтаксис по диалекту.
+        assertEquals("SELECT `id`, `value` FROM `accum` WHERE `id` > ? ORDER BY `id` LIMIT ?",
+                metadata.getSelectPageSql(Dialect.MYSQL, false));
+        assertEquals("MERGE INTO `accum` (`id`, `value`) KEY (`id`) VALUES (?, ?), (?, ?)",
+                metadata.getUpsertSql(Dialect.H2, 2));
+        assertEquals("INSERT INTO `accum` (`id`, `value`) VALUES (?, ?), (?, ?) ON DUPLICATE KEY UPDATE `value` = VALUES(`value`)",
+                metadata.getUpsertSql(Dialect.MYSQL, 2));
+        Query<MyModel> query = SimpleORM.query(MyModel.class).offset(10);
+        assertEquals("SELECT `id`, `value` FROM `accum` LIMIT " + Long.MAX_VALUE + " OFFSET ?", query.toSql(Dialect.MYSQL));
+        assertEquals("SELECT `id`, `value` FROM `accum` OFFSET ? ROWS", query.toSql(Dialect.H2));
+    }
+
+    @Test
+    public void testUpsertAll() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 3);
+            assertSame(Dialect.H2, dbAccess.getDialect());
+
+            // 3 существующих + 4 новых: пакет из 4 строк и остаток из 3 - два запроса.
+            List<MyModel> models = SimpleORM.findAll(dbAccess, MyModel.class);
+            for (MyModel model : models) {
+                model.setValue(model.getValue() + 10);
+            }
+            for (int i = 0; i < 4; ++i) {
+                MyModel model = new MyModel(100 + i);
+                model.setId(100 + i);
+                models.add(model);
+            }
+            assertEquals(7, SimpleORM.upsertAll(dbAccess, MyModel.class, models, 4));
+
+            List<MyModel> result = SimpleORM.query(MyModel.class).orderBy("id").list(dbAccess);
+            assertEquals(7, result.size());
+            assertEquals(10, result.get(0).getValue());
+            assertEquals(12, result.get(2).getValue());
+            assertEquals(100, result.get(3).getId());
+            assertEquals(103, result.get(6).getValue());
+            assertEquals(4, SimpleORM.query(MyModel.class).offset(3).list(dbAccess).size());
+            assertEquals(0, SimpleORM.upsertAll(dbAccess, MyModel.class, Collections.<MyModel>emptyList()));
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testEntityCache() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS cached");
+            dbAccess.executeUpdate("CREATE TABLE cached (id bigint auto_increment PRIMARY KEY, name varchar(50))");
+            List<CachedModel> models = new ArrayList<CachedModel>();
+            for (int i = 0; i < 10; ++i) {
+                models.add(new CachedModel("name" + i));
+            }
+            long[] ids = SimpleORM.insertAll(dbAccess, CachedModel.class, models);
+
+            CachedModel first = SimpleORM.findById(dbAccess, CachedModel.class, ids[0]);
+            assertEquals("name0", first.getName());
+            // Ключ приводится к типу поля: int и long - одна запись кэша.
+            CachedModel second = SimpleORM.findById(dbAccess, CachedModel.class, (int) ids[0]);
+            assertEquals("name0", second.getName());
+            assertNotSame(first, second);
+            assertNull(SimpleORM.findById(dbAccess, CachedModel.class, -1));
+
+            CacheStats stats = SimpleORM.getCacheStats(dbAccess, CachedModel.class);
+            assertEquals(1, stats.getHits());
+            assertEquals(2, stats.getMisses());
+            assertEquals(1, stats.getSize());
+
+            // Изменение возвращенного объекта не портит кэш.
+            second.setName("changed");
+            assertEquals("name0", SimpleORM.findById(dbAccess, CachedModel.class, ids[0]).getName());
+
+            // Запись через ORM сбрасывает запись кэша.
+            SimpleORM.updateAll(dbAccess, CachedModel.class, Collections.singletonList(second));
+            assertEquals("changed", SimpleORM.findById(dbAccess, CachedModel.class, ids[0]).getName());
+            assertEquals(1, SimpleORM.getCacheStats(dbAccess, CachedModel.class).getInvalidations());
+
+            // Размер ограничен (cacheSize = 4).
+            for (long id : ids) {
+                SimpleORM.findById(dbAccess, CachedModel.class, id);
+            }
+            stats = SimpleORM.getCacheStats(dbAccess, CachedModel.class);
+            assertEquals(4, stats.getSize());
+            assertTrue(stats.getEvictions() > 0);
+
+            // Запрос к таблице мимо ORM - кэш надо сбросить явно.
+            dbAccess.executeUpdate("UPDATE cached SET name = ? WHERE id = ?", "external", ids[9]);
+            SimpleORM.evictCache(dbAccess, CachedModel.class);
+            assertEquals("external", SimpleORM.findById(dbAccess, CachedModel.class, ids[9]).getName());
+        } finally {
+            dbAccess.close();
+        }
+        assertNull(SimpleORM.getCacheStats(dbAccess, CachedModel.class));
+    }
+
+    @Test
+    public void testEntityCacheWithReplica() throws Exception {
+        // На реплике - "отстающая" копия строки: в кэш она попасть не должна.
+        DBAccess dbAccess = new H2Access("jdbc:h2:mem:cache_primary;DB_CLOSE_DELAY=-1", "sa", "");
+        DBAccess replica = new H2Access("jdbc:h2:mem:cache_replica;DB_CLOSE_DELAY=-1", "sa", "");
+        try {
+            for (DBAccess db : Arrays.asList(dbAccess, replica)) {
+                db.executeUpdate("DROP TABLE IF EXISTS cached");
+                db.executeUpdate("CREATE TABLE cached (id bigint PRIMARY KEY, name varchar(50))");
+            }
+            dbAccess.executeUpdate("INSERT INTO cached VALUES (?, ?)", 1, "fresh");
+            replica.executeUpdate("INSERT INTO cached VALUES (?, ?)", 1, "stale");
+            dbAccess.addReplica(replica);
+
+            assertEquals("fresh", SimpleORM.findById(dbAccess, CachedModel.class, 1).getName());
+            assertEquals("fresh", SimpleORM.findById(dbAccess, CachedModel.class, 1).getName());
+            CachedModel model = SimpleORM.findById(dbAccess, CachedModel.class, 1);
+            model.setName("updated");
+            SimpleORM.updateAll(dbAccess, CachedModel.class, Collections.singletonList(model));
+            assertEquals("updated", SimpleORM.findById(dbAccess, CachedModel.class, 1).getName());
+            assertEquals(0, dbAccess.getReplicaReadCount(replica));
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testOptimisticLocking() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS versioned");
+            dbAccess.executeUpdate("CREATE TABLE versioned (id bigint auto_increment PRIMARY KEY, value bigint, version int)");
+            SimpleORM.insertAll(dbAccess, VersionedModel.class, Collections.singletonList(new VersionedModel()));
+
+            EntityMetadata<VersionedModel> metadata = EntityMetadata.of(VersionedModel.class);
+            assertEquals("UPDATE `versioned` SET `value` = ?, `version` = `version` + 1 WHERE `id` = ? AND `version` = ?",
+                    metadata.getUpdateSql(Dialect.H2));
+
+            VersionedModel first = SimpleORM.findAll(dbAccess, VersionedModel.class).get(0);
+            VersionedModel second = SimpleORM.findAll(dbAccess, VersionedModel.class).get(0);
+
+            first.setValue(1);
+            SimpleORM.updateAll(dbAccess, VersionedModel.class, Collections.singletonList(first));
+            assertEquals(1, first.getVersion());
+
+            second.setValue(2);
+            try {
+                SimpleORM.updateAll(dbAccess, VersionedModel.class, Collections.singletonList(second));
+                fail("Expected OptimisticLockException");
+            } catch (OptimisticLockException expected) {
+            }
+            assertEquals(0, second.getVersion());
+
+            VersionedModel stored = SimpleORM.findAll(dbAccess, VersionedModel.class).get(0);
+            assertEquals(1, stored.getValue());
+            assertEquals(1, stored.getVersion());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testFindAllAsync() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "", 2);
+        try {
+            Helper.fillDB(dbAccess, 10);
+
+            List<MyModel> list = SimpleORM.findAllAsync(dbAccess, MyModel.class).get();
+            assertEquals(10, list.size());
+            assertEquals(5, SimpleORM.findByIdAsync(dbAccess, MyModel.class, 6).get().getValue());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testIncrement() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 3);
+
+            for (int i = 0; i < 100; ++i) {
+                SimpleORM.increment(dbAccess, MyModel.class, 3, "value", 1);
+            }
+            SimpleORM.incrementAndFlush(dbAccess, MyModel.class, 3, "value", 10);
+
+            assertEquals(2 + 100 + 10, SimpleORM.findById(dbAccess, MyModel.class, 3).getValue());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @DBEntity(table = "counter", cacheable = true, cacheSize = 4)
+    public static class CachedCounter {
+        @DBId
+        @DBColumn("id")
+        long id;
+
+        @DBColumn("hits")
+        long hits;
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public void setHits(long hits) {
+            this.hits = hits;
+        }
+    }
+
+    // Кэшируемая сущность с изменяемыми значениями (массив, дата).
+    @DBEntity(table = "blob", cacheable = true, cacheSize = 4)
+    public static class CachedBlob {
+        @DBId(generated = false)
+        @DBColumn("id")
+        long id;
+
+        @DBColumn("data")
+        byte[] data;
+
+        @DBColumn("created")
+        Timestamp created;
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public void setData(byte[] data) {
+            this.data = data;
+        }
+
+        public void setCreated(Timestamp created) {
+            this.created = created;
+        }
+    }
+
+    // То же, но private-класс: маппера нет, копия строится в рантайме.
+    @DBEntity(table = "blob", cacheable = true, cacheSize = 4)
+    private static class RuntimeCachedBlob {
+        @DBId(generated = false)
+        @DBColumn("id")
+        long id;
+
+        @DBColumn("data")
+        byte[] data;
+
+        @DBColumn("created")
+        Timestamp created;
+
+        public void setId(long id) {
+            this.id = id;
+        }
+
+        public void setData(byte[] data) {
+            this.data = data;
+        }
+
+        public void setCreated(Timestamp created) {
+            this.created = created;
+        }
+    }
+
+    @Test
+    public void testEntityCacheCopiesMutableValues() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS blob");
+            dbAccess.executeUpdate("CREATE TABLE blob (id bigint PRIMARY KEY, data varbinary(16), created timestamp)");
+            dbAccess.executeUpdate("INSERT INTO blob VALUES (?, ?, ?)", 1, new byte[]{1, 2, 3}, new Timestamp(1000));
+            assertNotNull(EntityMetadata.of(CachedBlob.class).getMapper());
+            assertNull(EntityMetadata.of(RuntimeCachedBlob.class).getMapper());
+
+            // Изменение массива/даты в возвращенной сущности не портит закэшированную.
+            CachedBlob blob = SimpleORM.findById(dbAccess, CachedBlob.class, 1);
+            blob.data[0] = 42;
+            blob.created.setTime(2000);
+            blob = SimpleORM.findById(dbAccess, CachedBlob.class, 1);
+            assertArrayEquals(new byte[]{1, 2, 3}, blob.data);
+            assertEquals(1000, blob.created.getTime());
+            assertEquals(1, SimpleORM.getCacheStats(dbAccess, CachedBlob.class).getHits());
+
+            RuntimeCachedBlob runtime = SimpleORM.findById(dbAccess, RuntimeCachedBlob.class, 1);
+            runtime.data[0] = 42;
+            runtime.created.setTime(2000);
+            runtime = SimpleORM.findById(dbAccess, RuntimeCachedBlob.class, 1);
+            assertArrayEquals(new byte[]{1, 2, 3}, runtime.data);
+            assertEquals(1000, runtime.created.getTime());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testIncrementCached() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS counter");
+            dbAccess.executeUpdate("CREATE TABLE counter (id bigint PRIMARY KEY, hits bigint)");
+            dbAccess.executeUpdate("INSERT INTO counter VALUES (1, 0)");
+
+            // Прочитанное до сброса (и закэшированное) значение сбрасывается из кэша после записи в БД.
+            SimpleORM.increment(dbAccess, CachedCounter.class, 1, "hits", 5);
+            SimpleORM.findById(dbAccess, CachedCounter.class, 1);
+            dbAccess.getDeltaAccumulator().flush();
+            assertEquals(5, SimpleORM.findById(dbAccess, CachedCounter.class, 1).hits);
+
+            SimpleORM.incrementAndFlush(dbAccess, CachedCounter.class, 1, "hits", 2);
+            assertEquals(7, SimpleORM.findById(dbAccess, CachedCounter.class, 1).hits);
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 25);
+
+            List<MyModel> first = SimpleORM.findPage(dbAccess, MyModel.class, null, 10);
+            assertEquals(10, first.size());
+            assertEquals(1, first.get(0).getId());
+            List<MyModel> second = SimpleORM.findPage(dbAccess, MyModel.class, first.get(9).getId(), 10);
+            assertEquals(11, second.get(0).getId());
+            assertEquals(20, second.get(9).getId());
+            assertTrue(SimpleORM.findPage(dbAccess, MyModel.class, 25, 10).isEmpty());
+
+            PageIterator<MyModel> pages = SimpleORM.pages(dbAccess, MyModel.class, 10);
+            int pageCount = 0;
+            long expectedId = 1;
+            while (pages.hasNext()) {
+                for (MyModel model : pages.next()) {
+                    assertEquals(expectedId++, model.getId());
+                }
+                pageCount++;
+            }
+            assertEquals(3, pageCount);
+            assertEquals(26, expectedId);
+            assertEquals(25L, pages.getLastKey());
+
+            // Продолжение обхода с ключа.
+            assertEquals(15, SimpleORM.pages(dbAccess, MyModel.class, 10, 100).next().size());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 20);
+
+            Query<MyModel> query = SimpleORM.query(MyModel.class)
+                    .gt("value", 4)
+                    .lt("value", 15)
+                    .orderByDesc("value")
+                    .limit(3);
+            assertEquals("SELECT `id`, `value` FROM `accum` WHERE `value` > ? AND `value` < ? ORDER BY `value` DESC LIMIT ?",
+                    query.toSql(Dialect.H2));
+            assertEquals("[4, 15, 3]", query.getParameters().toString());
+
+            List<MyModel> list = query.list(dbAccess);
+            assertEquals(3, list.size());
+            assertEquals(14, list.get(0).getValue());
+            assertEquals(12, list.get(2).getValue());
+            assertEquals(10, query.count(dbAccess));
+
+            // Та же форма запроса с другими значениями - тот же SQL (PreparedStatement из кэша).
+            long misses = dbAccess.getStatementCacheMisses();
+            List<MyModel> other = SimpleORM.query(MyModel.class).gt("value", 0).lt("value", 3)
+                    .orderByDesc("value").limit(10).list(dbAccess);
+            assertEquals(2, other.size());
+            assertEquals(misses, dbAccess.getStatementCacheMisses());
+
+            // Проекция: незапрошенные поля - по умолчанию.
+            for (MappingMode mode : MappingMode.values()) {
+                SimpleORM.setMappingMode(mode);
+                MyModel projected = SimpleORM.query(MyModel.class).select("value").eq("id", 7).first(dbAccess);
+                assertEquals(6, projected.getValue());
+                assertEquals(0, projected.getId());
+            }
+
+            assertEquals(3, SimpleORM.query(MyModel.class).in("id", Arrays.asList(1, 2, 3, 100)).count(dbAccess));
+            assertEquals(0, SimpleORM.query(MyModel.class).in("id", Collections.emptyList()).list(dbAccess).size());
+            assertNull(SimpleORM.query(MyModel.class).isNull("value").first(dbAccess));
+            assertEquals(5, SimpleORM.query(MyModel.class).orderBy("id").limit(5).offset(15).list(dbAccess).size());
+        } finally {
+            SimpleORM.setMappingMode(MappingMode.PROCESSED);
+            dbAccess.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQueryUnknownColumn() {
+        SimpleORM.query(MyModel.class).eq("value; DROP TABLE accum", 1);
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "", 4);
+        try {
+            Helper.fillDB(dbAccess, 0);
+            assertTrue(SimpleORM.findAllParallel(dbAccess, MyModel.class).isEmpty());
+
+            Helper.fillDB(dbAccess, 1000);
+            dbAccess.executeUpdate("DELETE FROM accum WHERE id BETWEEN ? AND ?", 100, 399);
+
+            List<MyModel> list = SimpleORM.findAllParallel(dbAccess, MyModel.class, 7);
+            assertEquals(700, list.size());
+            Set<Long> ids = new HashSet<Long>();
+            long sum = 0;
+            for (MyModel model : list) {
+                ids.add(model.getId());
+                sum += model.getValue();
+            }
+            assertEquals(700, ids.size());
+
+            long streamSum = 0;
+            for (Object model : SimpleORM.parallelStream(dbAccess, MyModel.class).toArray()) {
+                streamSum += ((MyModel) model).getValue();
+            }
+            assertEquals(sum, streamSum);
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testColumnar() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        try {
+            Helper.fillDB(dbAccess, 3000);
+            for (boolean offHeap : new boolean[]{false, true}) {
+                ColumnarResult result = SimpleORM.findAllColumnar(dbAccess, MyModel.class, offHeap);
+                assertEquals(3000, result.size());
+                assertEquals(ColumnarResult.ColumnType.LONG, result.getColumnType("value"));
+                assertEquals(2999L * 3000 / 2, result.sumLong("value"));
+                assertEquals(1499.5, result.avg("value"), 0.0);
+                assertEquals(2999.0, result.max("value"), 0.0);
+                long[] ids = result.getLongs("id");
+                assertEquals(3000, ids.length);
+                assertEquals(ids[2999], result.getLong("ID", 2999));
+                // Два long на строку - без объектов и оберток.
+                assertTrue(result.getDataBytes() < 3000 * 20);
+            }
+
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS typed");
+            dbAccess.executeUpdate("CREATE TABLE typed (id bigint PRIMARY KEY, i int, d double, flag boolean, " +
+                    "amount decimal(10,2), created timestamp, data varbinary(16), kind varchar(10), " +
+                    "name varchar(50), nullable bigint)");
+            for (int i = 0; i < 10; ++i) {
+                dbAccess.executeUpdate("INSERT INTO typed(id, i, d, kind, nullable) VALUES (?, ?, ?, ?, ?)",
+                        i, i, i / 2.0, i % 3 == 0 ? "BIG" : "SMALL", i % 2 == 0 ? null : (long) i);
+            }
+            ColumnarResult result = SimpleORM.query(TypedModel.class).select("i", "d", "kind", "nullable")
+                    .ge("id", 2).columnar(dbAccess, true);
+            assertEquals(8, result.size());
+            assertEquals(Arrays.asList("I", "D", "KIND", "NULLABLE"), result.getColumnNames());
+            assertArrayEquals(new int[]{2, 3, 4, 5, 6, 7, 8, 9}, result.getInts("i"));
+            assertEquals(22.0, result.sum("d"), 0.0);
+            assertEquals(2, result.getDictionarySize("kind"));
+            assertEquals("{SMALL=5, BIG=3}", result.countByValue("kind").toString());
+            assertTrue(result.isNull("nullable", 0));
+            assertNull(result.getString("nullable", 0));
+            assertEquals(4, result.countNotNull("nullable"));
+            assertEquals(3 + 5 + 7 + 9, result.sumLong("nullable"));
+            assertEquals(3.0, result.min("nullable"), 0.0);
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        DBMetrics metrics = new DBMetrics(dbAccess);
+        try {
+            Helper.fillDB(dbAccess, 10);
+            Session session = SimpleORM.openSession(dbAccess);
+            List<MyModel> list = session.findAll(MyModel.class);
+            MyModel first = session.find(MyModel.class, 1);
+            assertSame(list.get(0), first);
+            assertEquals(10, session.size());
+            assertEquals(0, session.flush());
+
+            for (int i = 0; i < 5; ++i) {
+                list.get(i).setValue(100 + i);
+            }
+            list.get(9).setValue(9); // То же значение - не изменение.
+            assertTrue(session.isDirty(first));
+            assertFalse(session.isDirty(list.get(9)));
+            assertEquals(Collections.singletonList("value"), session.getDirtyColumns(first));
+
+            // Пять сущностей одной формы - один пакет в одной транзакции.
+            long batchesBefore = metrics.getBatchCount();
+            long commitsBefore = metrics.getCommits();
+            assertEquals(5, session.flush());
+            assertEquals(batchesBefore + 1, metrics.getBatchCount());
+            assertEquals(commitsBefore + 1, metrics.getCommits());
+            assertFalse(session.isDirty(first));
+            assertEquals(104, SimpleORM.findById(dbAccess, MyModel.class, 5).getValue());
+            assertEquals(6, SimpleORM.findById(dbAccess, MyModel.class, 7).getValue());
+
+            // Версионированная сущность: версия растет, конфликт - исключение без изменений в БД.
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS versioned");
+            dbAccess.executeUpdate("CREATE TABLE versioned (id bigint auto_increment PRIMARY KEY, value bigint, version int)");
+            SimpleORM.insertAll(dbAccess, VersionedModel.class, Collections.singletonList(new VersionedModel()));
+            VersionedModel versioned = session.findAll(VersionedModel.class).get(0);
+            versioned.setValue(1);
+            assertEquals(1, session.flush());
+            assertEquals(1, versioned.getVersion());
+
+            dbAccess.executeUpdate("UPDATE versioned SET version = version + 1");
+            versioned.setValue(2);
+            first.setValue(200);
+            try {
+                session.flush();
+                fail("Expected OptimisticLockException");
+            } catch (OptimisticLockException expected) {
+            }
+            assertTrue(session.isDirty(versioned));
+            assertEquals(100, SimpleORM.findById(dbAccess, MyModel.class, 1).getValue());
+
+            session.detach(versioned);
+            assertFalse(session.contains(versioned));
+            assertEquals(1, session.flush());
+            assertEquals(200, SimpleORM.findById(dbAccess, MyModel.class, 1).getValue());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testRelations() throws Exception {
+        DBAccess dbAccess = new H2Access("jdbc:h2:~/test;MVCC=true", "sa", "");
+        DBMetrics metrics = new DBMetrics(dbAccess);
+        try {
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS pet");
+            dbAccess.executeUpdate("DROP TABLE IF EXISTS owner");
+            dbAccess.executeUpdate("CREATE TABLE owner (id bigint PRIMARY KEY, name varchar(50))");
+            dbAccess.executeUpdate("CREATE TABLE pet (id bigint PRIMARY KEY, owner_id bigint, name varchar(50))");
+            for (int i = 1; i <= 10; ++i) {
+                dbAccess.executeUpdate("INSERT INTO owner VALUES (?, ?)", i, "owner" + i);
+                dbAccess.executeUpdate("INSERT INTO pet VALUES (?, ?, ?)", i * 2, i, "cat" + i);
+                dbAccess.executeUpdate("INSERT INTO pet VALUES (?, ?, ?)", i * 2 + 1, i, "dog" + i);
+            }
+            dbAccess.executeUpdate("INSERT INTO owner VALUES (?, ?)", 11, "no pets");
+            dbAccess.executeUpdate("INSERT INTO pet VALUES (?, ?, ?)", 100, null, "stray");
+
+            // Коллекции всех 11 владельцев - одним запросом (batchSize по умолчанию 100), а не 11.
+            long selects = metrics.getSelectCount();
+            List<Owner> owners = SimpleORM.findAll(dbAccess, Owner.class);
+            for (Owner owner : owners) {
+                int expected = owner.getId() == 11 ? 0 : 2;
+                assertEquals(expected, owner.getPets().size());
+            }
+            assertEquals(selects + 2, metrics.getSelectCount());
+            Owner third = owners.get(2);
+            assertEquals("[cat3, dog3]", Arrays.asList(third.getPets().get(0).getName(), third.getPets().get(1).getName()).toString());
+
+            // Ссылки 21 животного на 10 владельцев: пакетами по 4 ключа (@DBReference(batchSize = 4)).
+            selects = metrics.getSelectCount();
+            List<Pet> pets = SimpleORM.findAll(dbAccess, Pet.class);
+            assertFalse(pets.get(0).getOwnerReference().isLoaded());
+            for (Pet pet : pets) {
+                if (pet.getOwnerId() == null) {
+                    assertNull(pet.getOwner());
+                } else {
+                    assertEquals(pet.getOwnerId().longValue(), pet.getOwner().getId());
+                }
+            }
+            assertEquals(selects + 1 + 3, metrics.getSelectCount());
+
+            // Загрузка связи вместе с запросом.
+            List<Owner> fetched = SimpleORM.query(Owner.class).le("id", 3).fetch("pets").list(dbAccess);
+            selects = metrics.getSelectCount();
+            assertEquals(2, fetched.get(0).getPets().size());
+            assertEquals(selects, metrics.getSelectCount());
+
+            assertEquals(2, SimpleORM.findById(dbAccess, Owner.class, 5).getPets().size());
+
+            // Проекция без ключа связи - ошибка, а не пустая связь.
+            try {
+                SimpleORM.query(Pet.class).select("id", "name").list(dbAccess);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                SimpleORM.query(Owner.class).select("name").list(dbAccess);
+                fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException expected) {
+            }
+            Pet pet = SimpleORM.query(Pet.class).select("id", "owner_id").first(dbAccess);
+            assertNull(pet.getName());
+            assertNotNull(pet.getOwner());
+        } finally {
+            dbAccess.close();
+        }
+    }
+
+    @Test
+    public void testEntityCacheEviction() throws Exception {
+        EntityCache<Integer, String> cache = new EntityCache<Integer, String>(5, 0);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.get(1);
+        cache.get(2);   // 1 и 2 - в защищенном сегменте.
+
+        // Однократно прочитанные ключи вытесняют друг друга, а не часто используемые.
+        for (int i = 100; i < 110; ++i) {
+            cache.put(i, "x");
+        }
+        assertEquals("one", cache.get(1));
+        assertEquals("two", cache.get(2));
+        assertEquals(5, cache.size());
+
+        // Загруженное до инвалидации значение в кэш не попадает.
+        long stamp = cache.getInvalidationStamp();
+        cache.invalidate(1);
+        assertFalse(cache.putIfNotInvalidated(1, "stale", stamp));
+        assertNull(cache.get(1));
+
+        EntityCache<Integer, String> ttlCache = new EntityCache<Integer, String>(5, 1);
+        ttlCache.put(1, "one");
+        Thread.sleep(1);
+        assertNull(ttlCache.get(1));
+        assertEquals(1, ttlCache.getStats().getExpirations());
+    }
 }
@@ -0,0 +1,144 @@
+package com.borunovv.orm;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * Сущность с полями разных типов (для тестов конвертеров).
+ *
+ * @author borunovv
+ */
+@DBEntity(table = "typed")
+public class TypedModel {
+
+    public enum Kind {
+        SMALL, BIG
+    }
+
+    @DBColumn("id")
+    private long id;
+
+    @DBColumn("i")
+    private int intValue;
+
+    @DBColumn("d")
+    private double doubleValue;
+
+    @DBColumn("flag")
+    private boolean flag;
+
+    @DBColumn("amount")
+    private BigDecimal amount;
+
+    @DBColumn("created")
+    private Timestamp created;
+
+    @DBColumn("data")
+    private byte[] data;
+
+    @DBColumn("kind")
+    private Kind kind;
+
+    @DBColumn("name")
+    private String name;
+
+    @DBColumn("nullable")
+    private Long nullable;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public int getIntValue() {
+        return intValue;
+    }
+
+    public void setIntValue(int intValue) {
+        this.intValue = intValue;
+    }
+
+    public double getDoubleValue() {
+        return doubleValue;
+    }
+
+    public void setDoubleValue(double doubleValue) {
+        this.doubleValue = doubleValue;
+    }
+
+    public boolean isFlag() {
+        return flag;
+    }
+
+    public void setFlag(boolean flag) {
+        this.flag = flag;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public void setAmount(BigDecimal amount) {
+        this.amount = amount;
+    }
+
+    public Timestamp getCreated() {
+        return created;
+    }
+
+    public void setCreated(Timestamp created) {
+        this.created = created;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public void setKind(Kind kind) {
+        this.kind = kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Long getNullable() {
+        return nullable;
+    }
+
+    public void setNullable(Long nullable) {
+        this.nullable = nullable;
+    }
+
+    @Override
+    public String toString() {
+        return "TypedModel{" +
+                "id=" + id +
+                ", intValue=" + intValue +
+                ", doubleValue=" + doubleValue +
+                ", flag=" + flag +
+                ", amount=" + amount +
+                ", created=" + created +
+                ", data=" + Arrays.toString(data) +
+                ", kind=" + kind +
+                ", name='" + name + '\'' +
+                ", nullable=" + nullable +
+                '}';
+    }
+}
@@ -0,0 +1,54 @@
+package com.borunovv.orm;
+
+/**
+ * Сущность с версией (для тестов оптимистической блокировки).
+ *
+ * @author borunovv
+ */
+@DBEntity(table = "versioned")
+public class VersionedModel {
+
+    @DBId
+    @DBColumn("id")
+    private long id;
+
+    @DBColumn("value")
+    private long value;
+
+    @DBVersion
+    @DBColumn("version")
+    private int version;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.value = value;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    @Override
+    public String toString() {
+        return "VersionedModel{" +
+                "id=" + id +
+                ", value=" + value +
+                ", version=" + version +
+                '}';
+    }
+}